@@ -0,0 +1,53 @@
+package org.ohmage.trialist.processor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Micro-benchmark for {@link NativeAnalysisBackend}. Its results for the
+ * same fixtures are checked against the OpenCPU results by
+ * {@link NativeAnalysisCheck} ("ant check"). The fixtures with fewer than
+ * {@link NativeAnalysisBackend#MINIMUM_RESPONSES_PER_REGIMEN} responses on a
+ * regimen are refused by the backend, so they are not measured.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class TrialState {
+		@Param({ "user-428", "user-429", "user-430", "user-431", "user-432" })
+		public String trial;
+
+		NativeAnalysisBackend backend;
+		String normalizedData;
+
+		@Setup
+		public void setUp() throws Exception {
+			backend = new NativeAnalysisBackend();
+			normalizedData = TrialFixture.load(trial).getNormalizedData().toString();
+		}
+	}
+
+	@Benchmark
+	public JSONObject nativeAnalysis(final TrialState state) {
+		return state.backend.analyze(state.normalizedData);
+	}
+}
@@ -0,0 +1,307 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.TrialScanner;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.TrialWindow;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.UserTrial;
+
+/**
+ * <p>
+ * Checks that incremental runs find the same trials as full scans when the
+ * setup and start surveys commit in a different order than their
+ * survey_response IDs were handed out.
+ * </p>
+ *
+ * <p>
+ * A seeded sequence of setup and start surveys, built from the fixtures in
+ * data/fake-trial-data-and-results, is inserted for a few hundred users. Some
+ * surveys commit up to MAX_COMMIT_DELAY inserts late, and a few carry an
+ * older timestamp than the user's surveys before them. After every
+ * SURVEYS_PER_RUN commits, an incremental run that starts from the last
+ * run's checkpoint and a full scan read the committed surveys. Both must
+ * find the same trials, and at most a quarter of the incremental runs may
+ * have to scan every survey again. The same runs without an overlap below
+ * the checkpoint must miss a trial at least once, or the sequence does not
+ * test the overlap.
+ * </p>
+ *
+ * <p>
+ * Run with "ant check". Exits with a non-zero status if an incremental run
+ * finds different trials.
+ * </p>
+ */
+public class IncrementalScanCheck {
+	private static final long SEED = 2013013000L;
+	private static final int NUMBER_OF_USERS = 400;
+	private static final int NUMBER_OF_SURVEYS = 4000;
+	private static final int SURVEYS_PER_RUN = 50;
+
+	// The fraction of surveys that commit late, and the most inserts they commit after
+	private static final double LATE_COMMIT_RATE = 0.1;
+	private static final int MAX_COMMIT_DELAY = 40;
+
+	// The fraction of surveys uploaded with an older timestamp than the user's surveys before them
+	private static final double LATE_UPLOAD_RATE = 0.002;
+
+	// More than MAX_COMMIT_DELAY, which is what checkpoint.overlapIds must cover
+	private static final long OVERLAP_IDS = 100;
+
+	private static final long FIRST_EPOCH_MILLIS = new DateTime(2013, 1, 30, 0, 0, DateTimeZone.UTC).getMillis();
+
+	/**
+	 * A survey_response row and the position at which it commits.
+	 */
+	private static class SurveyRow {
+		private final long id;
+		private final long userId;
+		private final String surveyId;
+		private final String survey;
+		private final long epochMillis;
+		private final int commitPosition;
+
+		private SurveyRow(final long pId, final long pUserId, final String pSurveyId, final String pSurvey,
+				final long pEpochMillis, final int pCommitPosition) {
+
+			id = pId;
+			userId = pUserId;
+			surveyId = pSurveyId;
+			survey = pSurvey;
+			epochMillis = pEpochMillis;
+			commitPosition = pCommitPosition;
+		}
+	}
+
+	/**
+	 * Serves the committed rows the way JdbcSurveyResponseSource reads them.
+	 */
+	private static class CommittedRows implements SurveyResponseSource {
+		private final List<SurveyRow> rows = new ArrayList<SurveyRow>();
+
+		@Override
+		public void scanSetupAndStartSurveys(final String campaignUrn, final long afterSurveyResponseId,
+				final SurveyHandler handler) {
+
+			List<SurveyRow> scannedRows = new ArrayList<SurveyRow>();
+			for(SurveyRow row : rows) {
+				if(row.id > afterSurveyResponseId) {
+					scannedRows.add(row);
+				}
+			}
+
+			Collections.sort(scannedRows, new Comparator<SurveyRow>() {
+				@Override
+				public int compare(SurveyRow first, SurveyRow second) {
+					if(first.userId != second.userId) {
+						return first.userId < second.userId ? -1 : 1;
+					}
+					if(first.epochMillis != second.epochMillis) {
+						return first.epochMillis < second.epochMillis ? -1 : 1;
+					}
+					return first.id < second.id ? -1 : (first.id == second.id ? 0 : 1);
+				}
+			});
+
+			try {
+				for(SurveyRow row : scannedRows) {
+					handler.handleSurvey(row.id, row.surveyId + "-" + row.id, row.userId, row.surveyId, row.survey,
+						row.epochMillis);
+				}
+			} catch(JSONException jsonException) {
+				throw new IllegalStateException(jsonException);
+			}
+		}
+
+		@Override
+		public void scanMainSurveyPromptResponses(final String campaignUrn, final List<TrialPeriod> trialPeriods,
+				final PromptResponseHandler handler) {
+		}
+
+		@Override
+		public int getMaxTrialPeriodsPerScan() {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		List<SurveyRow> rows = surveyRows();
+
+		List<SurveyRow> commitOrder = new ArrayList<SurveyRow>(rows);
+		Collections.sort(commitOrder, new Comparator<SurveyRow>() {
+			@Override
+			public int compare(SurveyRow first, SurveyRow second) {
+				if(first.commitPosition != second.commitPosition) {
+					return first.commitPosition < second.commitPosition ? -1 : 1;
+				}
+				return first.id < second.id ? -1 : (first.id == second.id ? 0 : 1);
+			}
+		});
+
+		CommittedRows committedRows = new CommittedRows();
+		TrialistAnalysisProcessor fullProcessor = processor(committedRows, OVERLAP_IDS);
+		TrialistAnalysisProcessor incrementalProcessor = processor(committedRows, OVERLAP_IDS);
+		TrialistAnalysisProcessor noOverlapProcessor = processor(committedRows, 0);
+
+		JSONObject checkpoint = null;
+		JSONObject noOverlapCheckpoint = null;
+		int numberOfRuns = 0;
+		int numberOfFailedRuns = 0;
+		int numberOfNoOverlapMisses = 0;
+		int numberOfRescans = 0;
+
+		for(int committed = 0; committed < commitOrder.size(); committed++) {
+			committedRows.rows.add(commitOrder.get(committed));
+
+			if((committed + 1) % SURVEYS_PER_RUN != 0 && committed + 1 != commitOrder.size()) {
+				continue;
+			}
+
+			numberOfRuns++;
+			Set<String> fullScanTrials = trials(fullProcessor.scanTrials(null, 0));
+
+			Map<Long, TrialWindow> trialWindows = new HashMap<Long, TrialWindow>();
+			TrialScanner incrementalScanner = incrementalScan(incrementalProcessor, checkpoint, trialWindows);
+			if(incrementalScanner.getTrialWindows() != trialWindows) {
+				numberOfRescans++;
+			}
+			Set<String> incrementalTrials = trials(incrementalScanner);
+			checkpoint = checkpoint(incrementalProcessor, incrementalScanner);
+
+			TrialScanner noOverlapScanner =
+				incrementalScan(noOverlapProcessor, noOverlapCheckpoint, new HashMap<Long, TrialWindow>());
+			if(! trials(noOverlapScanner).equals(fullScanTrials)) {
+				numberOfNoOverlapMisses++;
+			}
+			noOverlapCheckpoint = checkpoint(noOverlapProcessor, noOverlapScanner);
+
+			if(! incrementalTrials.equals(fullScanTrials)) {
+				numberOfFailedRuns++;
+				Set<String> missed = new TreeSet<String>(fullScanTrials);
+				missed.removeAll(incrementalTrials);
+				Set<String> extra = new TreeSet<String>(incrementalTrials);
+				extra.removeAll(fullScanTrials);
+				System.out.println("FAILED: run " + numberOfRuns + " after " + (committed + 1) + " commits missed " + missed
+					+ " and found " + extra);
+			}
+		}
+
+		System.out.println(numberOfRuns + " incremental runs over " + rows.size() + " re-ordered commits, "
+			+ numberOfFailedRuns + " found different trials than a full scan.");
+		System.out.println(numberOfRescans + " of the incremental runs found a survey older than its saved window and"
+			+ " scanned every survey again.");
+		System.out.println("Without the overlap, " + numberOfNoOverlapMisses + " run(s) found different trials.");
+
+		// A survey that belongs before the surveys of its saved window is rare, so most runs must not start over
+		if(numberOfRescans * 4 > numberOfRuns) {
+			System.out.println("FAILED: " + numberOfRescans + " of " + numberOfRuns + " incremental runs scanned every survey again.");
+			System.exit(1);
+		}
+
+		if(numberOfNoOverlapMisses == 0) {
+			System.out.println("FAILED: the commit order never made a run without the overlap miss a trial.");
+			System.exit(1);
+		}
+
+		if(numberOfFailedRuns > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns the surveys in the order they are inserted, with their IDs and
+	 * commit positions.
+	 */
+	private static List<SurveyRow> surveyRows() throws Exception {
+		List<String> setupSurveys = new ArrayList<String>();
+		List<String> startSurveys = new ArrayList<String>();
+
+		for(String name : TrialFixture.names()) {
+			TrialFixture fixture = TrialFixture.load(name);
+			setupSurveys.add(fixture.getSetupSurvey().toString());
+			startSurveys.add(fixture.getStartSurvey().toString());
+		}
+
+		Random random = new Random(SEED);
+		List<SurveyRow> rows = new ArrayList<SurveyRow>(NUMBER_OF_SURVEYS);
+		Map<Long, Long> lastEpochMillis = new HashMap<Long, Long>();
+
+		for(int position = 0; position < NUMBER_OF_SURVEYS; position++) {
+			long userId = 1 + random.nextInt(NUMBER_OF_USERS);
+			boolean isSetup = random.nextInt(3) == 0;
+			long epochMillis = FIRST_EPOCH_MILLIS + position * 60000L;
+
+			if(random.nextDouble() < LATE_UPLOAD_RATE && lastEpochMillis.containsKey(userId)) {
+				epochMillis = lastEpochMillis.get(userId) - 1;
+			} else {
+				lastEpochMillis.put(userId, epochMillis);
+			}
+
+			int commitPosition = position;
+			if(random.nextDouble() < LATE_COMMIT_RATE) {
+				commitPosition += 1 + random.nextInt(MAX_COMMIT_DELAY);
+			}
+
+			List<String> surveys = isSetup ? setupSurveys : startSurveys;
+			rows.add(new SurveyRow(position + 1, userId, isSetup ? "setup" : "start",
+				surveys.get(random.nextInt(surveys.size())), epochMillis, commitPosition));
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Returns a processor that reads the committed rows and counts every
+	 * finished trial, whatever its end date.
+	 */
+	private static TrialistAnalysisProcessor processor(final CommittedRows committedRows, final long overlapIds) {
+		TrialistAnalysisProcessor processor =
+			new TrialistAnalysisProcessor(false, true, new DateTime(DateTimeZone.UTC), TrialFixture.MOCK_CAMPAIGN_URN);
+		processor.useSurveyResponseSource(committedRows, overlapIds);
+		return processor;
+	}
+
+	/**
+	 * Scans the committed rows into the windows of the checkpoint, which are
+	 * put into the provided map, or into the empty map if there is no
+	 * checkpoint yet. A scan that has to start over uses new windows.
+	 */
+	private static TrialScanner incrementalScan(final TrialistAnalysisProcessor processor, final JSONObject checkpoint,
+			final Map<Long, TrialWindow> trialWindows) throws JSONException {
+
+		long lastSurveyResponseId = checkpoint == null ? 0 : processor.restoreTrialWindows(checkpoint, trialWindows);
+		return processor.scanTrials(trialWindows, lastSurveyResponseId);
+	}
+
+	/**
+	 * Returns the checkpoint the run leaves, as the next run reads it back.
+	 */
+	private static JSONObject checkpoint(final TrialistAnalysisProcessor processor, final TrialScanner trialScanner)
+			throws JSONException {
+
+		return new JSONObject(
+			processor.savedTrialWindows(trialScanner.getTrialWindows(), trialScanner.getLastSurveyResponseId()).toString());
+	}
+
+	private static Set<String> trials(final TrialScanner trialScanner) throws JSONException {
+		Set<String> trials = new TreeSet<String>();
+
+		for(UserTrial userTrial : trialScanner.finish()) {
+			trials.add(userTrial.getUserId() + "/" + userTrial.getSetupSurveyUuid() + "/" + userTrial.getTrialStartDate()
+				+ "/" + userTrial.getTrialEndDate());
+		}
+
+		return trials;
+	}
+}
@@ -0,0 +1,208 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Checks the results of {@link NativeAnalysisBackend} against the OpenCPU
+ * results stored next to every fixture in data/fake-trial-data-and-results.
+ * For each outcome, the posterior median effect and both bounds of its
+ * credible interval (graph_5) must be within EFFECT_TOLERANCE of the
+ * OpenCPU results, and the probability of each regimen being marginally or
+ * clinically better (graph_6) within PROBABILITY_TOLERANCE.
+ * </p>
+ *
+ * <p>
+ * A fixture with fewer than
+ * {@link NativeAnalysisBackend#MINIMUM_RESPONSES_PER_REGIMEN} responses on a
+ * regimen must be refused instead, and {@link FallbackAnalysisBackend} must
+ * send exactly those fixtures to OpenCPU, which is stood in for by the
+ * stored results.
+ * </p>
+ *
+ * <p>
+ * Run with "ant check". Exits with a non-zero status if any result is out
+ * of tolerance.
+ * </p>
+ */
+public class NativeAnalysisCheck {
+	// The largest accepted difference in a signed effect or bound, on the 0 to 1 response scale
+	private static final double EFFECT_TOLERANCE = 0.05;
+
+	// The largest accepted difference in a graph_6 probability
+	private static final double PROBABILITY_TOLERANCE = 0.1;
+
+	private static final String[] BOUNDS = { "median_effect", "lower_bound", "upper_bound" };
+	private static final String[] REGIMENS = { "more_effective_regimen", "lower_bound_regimen", "upper_bound_regimen" };
+	private static final String[] PROBABILITIES = {
+		"b_clinically_better", "b_marginally_better", "a_marginally_better", "a_clinically_better"
+	};
+
+	private int numberOfChecks = 0;
+	private final List<String> failures = new ArrayList<String>();
+
+	public static void main(final String[] args) throws Exception {
+		NativeAnalysisCheck check = new NativeAnalysisCheck();
+		NativeAnalysisBackend backend = new NativeAnalysisBackend();
+		StoredResults storedResults = new StoredResults();
+		FallbackAnalysisBackend fallbackBackend = new FallbackAnalysisBackend(backend, storedResults);
+
+		for(String name : TrialFixture.names()) {
+			TrialFixture fixture = TrialFixture.load(name);
+			check.checkFallback(name, fixture, fallbackBackend, storedResults);
+			boolean isTooShort = fewestResponsesOnARegimen(fixture.getNormalizedData()) < NativeAnalysisBackend.MINIMUM_RESPONSES_PER_REGIMEN;
+			JSONObject results = null;
+
+			try {
+				results = backend.analyze(fixture.getNormalizedData().toString());
+			} catch(IllegalStateException illegalStateException) {
+				check.numberOfChecks++;
+
+				if(isTooShort) {
+					System.out.println(name + ": refused (" + illegalStateException.getMessage() + ")");
+				} else {
+					check.failures.add(name + ": refused (" + illegalStateException.getMessage() + ")");
+				}
+				continue;
+			}
+
+			if(isTooShort) {
+				check.numberOfChecks++;
+				check.failures.add(name + ": analyzed although it has fewer than "
+					+ NativeAnalysisBackend.MINIMUM_RESPONSES_PER_REGIMEN + " responses on a regimen");
+				continue;
+			}
+
+			int numberOfFailures = check.failures.size();
+			check.compare(name, fixture.getAnalysisResults(), results);
+			System.out.println(name + ": " + (check.failures.size() == numberOfFailures ? "within tolerance" : "out of tolerance"));
+		}
+
+		System.out.println(check.numberOfChecks + " native analysis checks, " + check.failures.size() + " failed.");
+
+		if(! check.failures.isEmpty()) {
+			for(String failure : check.failures) {
+				System.out.println("FAILED: " + failure);
+			}
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Stands in for OpenCPU with the stored results of the fixture being
+	 * checked.
+	 */
+	private static class StoredResults implements AnalysisBackend {
+		private JSONObject results;
+		private int numberOfCalls = 0;
+
+		@Override
+		public String getVersion() {
+			return "stored";
+		}
+
+		@Override
+		public JSONObject analyze(final String normalizedData) {
+			numberOfCalls++;
+			return results;
+		}
+	}
+
+	/**
+	 * Checks that the fallback backend sends the fixture to OpenCPU if and
+	 * only if the native backend refuses it, and that OpenCPU's results are
+	 * the ones returned.
+	 */
+	private void checkFallback(final String name, final TrialFixture fixture, final FallbackAnalysisBackend fallbackBackend,
+			final StoredResults storedResults) throws Exception {
+
+		boolean isTooShort = fewestResponsesOnARegimen(fixture.getNormalizedData()) < NativeAnalysisBackend.MINIMUM_RESPONSES_PER_REGIMEN;
+		storedResults.results = fixture.getAnalysisResults();
+		storedResults.numberOfCalls = 0;
+
+		JSONObject results = fallbackBackend.analyze(fixture.getNormalizedData().toString());
+		numberOfChecks++;
+
+		if(isTooShort && (storedResults.numberOfCalls != 1 || results != storedResults.results)) {
+			failures.add(name + ": not sent to OpenCPU although it has fewer than "
+				+ NativeAnalysisBackend.MINIMUM_RESPONSES_PER_REGIMEN + " responses on a regimen");
+		} else if(! isTooShort && storedResults.numberOfCalls != 0) {
+			failures.add(name + ": sent to OpenCPU although the native backend can analyze it");
+		} else if(isTooShort) {
+			System.out.println(name + ": sent to OpenCPU by the fallback backend");
+		}
+	}
+
+	/**
+	 * Compares the results of every outcome in the OpenCPU results.
+	 */
+	private void compare(final String name, final JSONObject expectedResults, final JSONObject results) throws JSONException {
+		Iterator<?> keys = expectedResults.keys();
+
+		while(keys.hasNext()) {
+			String outcome = (String) keys.next();
+
+			// The OpenCPU results also hold the setup survey ID
+			if(! (expectedResults.get(outcome) instanceof JSONObject)) {
+				continue;
+			}
+
+			if(! results.has(outcome)) {
+				failures.add(name + " " + outcome + ": no results");
+				continue;
+			}
+
+			JSONObject expectedGraph5 = expectedResults.getJSONObject(outcome).getJSONObject("graph_5");
+			JSONObject graph5 = results.getJSONObject(outcome).getJSONObject("graph_5");
+			for(int i = 0; i < BOUNDS.length; i++) {
+				compare(name + " " + outcome + " " + BOUNDS[i], signed(expectedGraph5, BOUNDS[i], REGIMENS[i]),
+					signed(graph5, BOUNDS[i], REGIMENS[i]), EFFECT_TOLERANCE);
+			}
+
+			JSONObject expectedGraph6 = expectedResults.getJSONObject(outcome).getJSONObject("graph_6");
+			JSONObject graph6 = results.getJSONObject(outcome).getJSONObject("graph_6");
+			for(String probability : PROBABILITIES) {
+				compare(name + " " + outcome + " " + probability, expectedGraph6.getJSONArray(probability).getDouble(0),
+					graph6.getJSONArray(probability).getDouble(0), PROBABILITY_TOLERANCE);
+			}
+		}
+	}
+
+	private void compare(final String description, final double expected, final double actual, final double tolerance) {
+		numberOfChecks++;
+
+		if(Math.abs(expected - actual) > tolerance) {
+			failures.add(description + " is " + actual + " but OpenCPU computed " + expected);
+		}
+	}
+
+	/**
+	 * Returns the number of data points on the regimen with the fewest.
+	 */
+	private static int fewestResponsesOnARegimen(final JSONObject normalizedData) throws JSONException {
+		JSONArray data = normalizedData.getJSONArray("data");
+		int numberOnA = 0;
+
+		for(int i = 0; i < data.length(); i++) {
+			if("A".equals(data.getJSONObject(i).getString("regimen"))) {
+				numberOnA++;
+			}
+		}
+
+		return Math.min(numberOnA, data.length() - numberOnA);
+	}
+
+	/**
+	 * Returns a graph_5 value, positive if it favors regimen A.
+	 */
+	private static double signed(final JSONObject graph5, final String value, final String regimen) throws JSONException {
+		double magnitude = graph5.getJSONArray(value).getDouble(0);
+		return "A".equals(graph5.getJSONArray(regimen).getString(0)) ? magnitude : -magnitude;
+	}
+}
@@ -0,0 +1,164 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.TrialWindow;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.UserSurveyDate;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.UserTrial;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>
+ * Micro-benchmarks for the CPU-bound parts of
+ * {@link TrialistAnalysisProcessor}: folding setup and start surveys into
+ * trial windows, computing the trial end date, building the normalized data
+ * set and the setup survey lookups it relies on.
+ * </p>
+ *
+ * <p>
+ * The trial inputs are rebuilt from the fixtures in
+ * data/fake-trial-data-and-results, from 4 (user-418) to 84 (user-432) main
+ * survey responses. Run with "ant bench".
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalizationBenchmark {
+
+	/**
+	 * One fixture trial and the processor state needed to normalize it.
+	 */
+	@State(Scope.Benchmark)
+	public static class TrialState {
+		@Param({ "user-418", "user-420", "user-428", "user-430", "user-432" })
+		public String trial;
+
+		TrialistAnalysisProcessor processor;
+		TrialFixture fixture;
+		TrialWindow trialWindow;
+		UserTrial userTrial;
+
+		@Setup
+		public void setUp() throws Exception {
+			processor = new TrialistAnalysisProcessor(false, false, new DateTime(DateTimeZone.UTC), TrialFixture.MOCK_CAMPAIGN_URN);
+			fixture = TrialFixture.load(trial);
+
+			trialWindow = new TrialWindow(1);
+			trialWindow.add(new UserSurveyDate("setup-" + trial, 1, "setup", fixture.getSetupSurvey()), 1, 1);
+			trialWindow.add(new UserSurveyDate("start-" + trial, 1, "start", fixture.getStartSurvey()), 2, 2);
+
+			userTrial = processor.createUserTrial(trialWindow);
+
+			// Make sure the rebuilt inputs describe the same trial as the fixture
+			JSONObject normalizedData = new JSONObject(processor.normalizeTrial(userTrial, fixture.getSurveyResponses()));
+			JSONObject expectedMetadata = fixture.getNormalizedData().getJSONObject("metadata");
+
+			if(! normalizedData.getJSONObject("metadata").getString("trial_end_date")
+					.equals(expectedMetadata.getString("trial_end_date"))) {
+				throw new IllegalStateException("The computed trial end date does not match the fixture " + trial);
+			}
+
+			if(normalizedData.getJSONArray("data").length() != fixture.getNormalizedData().getJSONArray("data").length()) {
+				throw new IllegalStateException("The normalized data does not match the fixture " + trial);
+			}
+		}
+	}
+
+	/**
+	 * A stream of setup and start surveys ordered by user and time, as
+	 * returned by the trial setup query. Every user sets up twice and starts
+	 * twice, so both the pending setup and the repeated start paths are
+	 * taken.
+	 */
+	@State(Scope.Benchmark)
+	public static class SurveyStreamState {
+		@Param({ "100", "10000" })
+		public int users;
+
+		List<UserSurveyDate> surveys;
+
+		@Setup
+		public void setUp() throws Exception {
+			TrialFixture fixture = TrialFixture.load("user-418");
+			surveys = new ArrayList<UserSurveyDate>(users * 4);
+
+			for(int userId = 1; userId <= users; userId++) {
+				surveys.add(new UserSurveyDate("setup-a-" + userId, userId, "setup", fixture.getSetupSurvey()));
+				surveys.add(new UserSurveyDate("setup-b-" + userId, userId, "setup", fixture.getSetupSurvey()));
+				surveys.add(new UserSurveyDate("start-a-" + userId, userId, "start", fixture.getStartSurvey()));
+				surveys.add(new UserSurveyDate("start-b-" + userId, userId, "start", fixture.getStartSurvey()));
+			}
+		}
+	}
+
+	@Benchmark
+	public int trialWindowStateMachine(final SurveyStreamState state) {
+		TrialWindow currentWindow = null;
+		int numberOfTrials = 0;
+		long epochMillis = 0;
+
+		for(UserSurveyDate survey : state.surveys) {
+			if(currentWindow == null || currentWindow.getUserId() != survey.getUserId()) {
+				if(currentWindow != null && currentWindow.hasTrial()) {
+					numberOfTrials++;
+				}
+				currentWindow = new TrialWindow(survey.getUserId());
+			}
+			currentWindow.add(survey, epochMillis, epochMillis++);
+		}
+
+		if(currentWindow != null && currentWindow.hasTrial()) {
+			numberOfTrials++;
+		}
+
+		return numberOfTrials;
+	}
+
+	@Benchmark
+	public DateTime trialEndDate(final TrialState state) throws JSONException {
+		return state.processor.createUserTrial(state.trialWindow).getTrialEndDate();
+	}
+
+	@Benchmark
+	public String normalizeTrial(final TrialState state) throws JSONException {
+		return state.processor.normalizeTrial(state.userTrial, state.fixture.getSurveyResponses());
+	}
+
+	@Benchmark
+	public void regimenArray(final TrialState state, final Blackhole blackhole) throws JSONException {
+		blackhole.consume(state.processor.regimenArray(state.fixture.getSetupSurvey(), "regimenA", TrialFixture.MOCK_CAMPAIGN_URN));
+		blackhole.consume(state.processor.regimenArray(state.fixture.getSetupSurvey(), "regimenB", TrialFixture.MOCK_CAMPAIGN_URN));
+	}
+
+	@Benchmark
+	public void getIntValueForPromptId(final TrialState state, final Blackhole blackhole) throws JSONException {
+		blackhole.consume(state.processor.getIntValueForPromptId(state.fixture.getSetupSurvey(), "regimenDuration"));
+		blackhole.consume(state.processor.getIntValueForPromptId(state.fixture.getSetupSurvey(), "numberComparisonCycles"));
+	}
+
+	@Benchmark
+	public void getStringValueForPromptId(final TrialState state, final Blackhole blackhole) throws JSONException {
+		blackhole.consume(state.processor.getStringValueForPromptId(state.fixture.getSetupSurvey(), "randomAsText"));
+		blackhole.consume(state.processor.getStringValueForPromptId(state.fixture.getSetupSurvey(), "cognitiveFunction"));
+	}
+}
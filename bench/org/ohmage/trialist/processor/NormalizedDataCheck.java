@@ -0,0 +1,272 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeFormatterBuilder;
+import org.joda.time.format.ISODateTimeFormat;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.TrialWindow;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.UserSurveyDate;
+import org.ohmage.trialist.processor.TrialistAnalysisProcessor.UserTrial;
+
+/**
+ * <p>
+ * Checks that {@link NormalizedDataBuilder} writes the same text as building
+ * the normalized data set as nested JSONObjects and serializing those, which
+ * is how it was written before the builder.
+ * </p>
+ *
+ * <p>
+ * Every fixture trial in data/fake-trial-data-and-results is normalized
+ * both ways. The builder is then given values JSONObject.quote() escapes:
+ * "&lt;/", control characters, the line and paragraph separators, and data
+ * points with more keys than a HashMap holds before it resizes. Finally
+ * every character is quoted both ways.
+ * </p>
+ *
+ * <p>
+ * Run with "ant check". Exits with a non-zero status if any text differs.
+ * </p>
+ */
+public class NormalizedDataCheck {
+	// The processor's formatter for the data point timestamps
+	private static final DateTimeFormatter DATE_TIME_FORMATTER = new DateTimeFormatterBuilder()
+		.append(ISODateTimeFormat.dateTime().getPrinter(), ISODateTimeFormat.dateTime().getParser())
+		.toFormatter();
+
+	private static final String[] ESCAPED_VALUES = {
+		"</script>",
+		"<<//",
+		"a/b</c",
+		"\"quoted\" \\back\\slashed\\",
+		"\u0000\u0001\u0007\b\t\n\u000b\f\r\u001b\u001f",
+		"\u007f\u0080\u009f\u00a0",
+		"line\u2028separator\u2029paragraph",
+		"\u2000\u200b\u20ac\u20ff\u2100",
+		"\ud83d\ude00 caf\u00e9",
+		""
+	};
+
+	private int numberOfChecks = 0;
+	private final List<String> failures = new ArrayList<String>();
+
+	public static void main(final String[] args) throws Exception {
+		NormalizedDataCheck check = new NormalizedDataCheck();
+
+		check.checkFixtures();
+		check.checkEscapedValues();
+		check.checkManyKeys();
+		check.checkEveryCharacter();
+
+		System.out.println(check.numberOfChecks + " normalized data checks, " + check.failures.size() + " failed.");
+
+		if(! check.failures.isEmpty()) {
+			for(String failure : check.failures) {
+				System.out.println("FAILED: " + failure);
+			}
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Normalizes every fixture trial with the builder and with JSONObjects.
+	 */
+	private void checkFixtures() throws Exception {
+		TrialistAnalysisProcessor processor =
+			new TrialistAnalysisProcessor(false, false, new DateTime(DateTimeZone.UTC), TrialFixture.MOCK_CAMPAIGN_URN);
+
+		for(String name : TrialFixture.names()) {
+			TrialFixture fixture = TrialFixture.load(name);
+
+			TrialWindow trialWindow = new TrialWindow(1);
+			trialWindow.add(new UserSurveyDate("setup-" + name, 1, "setup", fixture.getSetupSurvey()), 1, 1);
+			trialWindow.add(new UserSurveyDate("start-" + name, 1, "start", fixture.getStartSurvey()), 2, 2);
+			UserTrial userTrial = processor.createUserTrial(trialWindow);
+
+			String expected = normalizeWithJsonObjects(processor.normalizedMetadata(userTrial), userTrial,
+				fixture.getSurveyResponses());
+
+			compare(name, expected, processor.normalizeTrial(userTrial, fixture.getSurveyResponses()));
+		}
+	}
+
+	/**
+	 * Puts each escaped value as a metadata value, a data point value and a
+	 * data point key.
+	 */
+	private void checkEscapedValues() throws JSONException {
+		JSONObject metadata = new JSONObject();
+		for(int i = 0; i < ESCAPED_VALUES.length; i++) {
+			metadata.put("note" + i, ESCAPED_VALUES[i]);
+		}
+
+		NormalizedDataBuilder builder = new NormalizedDataBuilder(metadata, DATE_TIME_FORMATTER);
+		JSONArray data = new JSONArray();
+
+		for(String value : ESCAPED_VALUES) {
+			JSONObject dataPoint = new JSONObject();
+			builder.startDataPoint();
+
+			builder.put("cycle", 1);
+			dataPoint.put("cycle", 1);
+			builder.put("note", value);
+			dataPoint.put("note", value);
+			builder.put(value, -7);
+			dataPoint.put(value, -7);
+
+			// Setting a key again replaces its value
+			builder.put("cycle", Integer.MIN_VALUE);
+			dataPoint.put("cycle", Integer.MIN_VALUE);
+
+			builder.endDataPoint();
+			data.put(dataPoint);
+		}
+
+		compare("escaped values", document(metadata, data), builder.finish());
+	}
+
+	/**
+	 * Writes data points with more keys than a HashMap holds before it
+	 * resizes, in several key sequences, including an empty data point.
+	 */
+	private void checkManyKeys() throws JSONException {
+		JSONObject metadata = new JSONObject();
+		NormalizedDataBuilder builder = new NormalizedDataBuilder(metadata, DATE_TIME_FORMATTER);
+		JSONArray data = new JSONArray();
+
+		for(int numberOfKeys = 0; numberOfKeys <= 40; numberOfKeys += 5) {
+			for(int reversed = 0; reversed < 2; reversed++) {
+				JSONObject dataPoint = new JSONObject();
+				builder.startDataPoint();
+
+				for(int i = 0; i < numberOfKeys; i++) {
+					String key = "prompt" + (reversed == 0 ? i : numberOfKeys - i);
+					builder.put(key, i);
+					dataPoint.put(key, i);
+				}
+
+				builder.endDataPoint();
+				data.put(dataPoint);
+			}
+		}
+
+		compare("many keys", document(metadata, data), builder.finish());
+	}
+
+	/**
+	 * Quotes every character on its own and after a '<'.
+	 */
+	private void checkEveryCharacter() {
+		StringBuilder quoted = new StringBuilder();
+		int numberOfMismatches = 0;
+
+		for(int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+			String string = "<" + (char) c + "/" + (char) c;
+
+			quoted.setLength(0);
+			NormalizedDataBuilder.appendQuoted(quoted, string);
+
+			if(! quoted.toString().equals(JSONObject.quote(string))) {
+				if(numberOfMismatches++ == 0) {
+					failures.add("every character: U+" + Integer.toHexString(c) + " is quoted as " + quoted
+						+ " instead of " + JSONObject.quote(string));
+				}
+			}
+		}
+
+		numberOfChecks++;
+		System.out.println("every character: " + (numberOfMismatches == 0 ? "identical" : numberOfMismatches + " differ"));
+	}
+
+	/**
+	 * Normalizes the trial the way it was done before the builder: one
+	 * JSONObject per data point, put into a JSONArray and a root JSONObject
+	 * that is then serialized.
+	 */
+	private static String normalizeWithJsonObjects(final JSONObject metadata, final UserTrial userTrial,
+			final SurveyResponseColumns surveyResponses) throws JSONException {
+
+		JSONArray dataArray = new JSONArray();
+
+		int cycleLength = metadata.getInt("regimen_duration") * 2;
+		DateTime surveyDateTime = null;
+		boolean participantStartedOnDayZero = false;
+
+		for(int survey = 0; survey < surveyResponses.size(); survey++) {
+			long epochMillis = surveyResponses.getEpochMillis(survey);
+			String timeZoneId = surveyResponses.getTimeZoneId(survey);
+
+			surveyDateTime = new DateTime(epochMillis, DateTimeZone.forID(timeZoneId))
+				.withZone(DateTimeZone.forID("UTC"))
+				.withTime(0, 0, 0, 0);
+
+			int daysInTrial = Days.daysBetween(userTrial.getTrialStartDate(), surveyDateTime).getDays();
+
+			if(daysInTrial == 0) {
+				participantStartedOnDayZero = true;
+			}
+			if(participantStartedOnDayZero) {
+				daysInTrial++;
+			}
+
+			int cycle = 0;
+
+			if(daysInTrial % cycleLength == 0) {
+				cycle = daysInTrial / cycleLength;
+			} else {
+				cycle = daysInTrial / cycleLength + 1;
+			}
+
+			JSONObject dataPoint = new JSONObject();
+
+			for(int promptResponse = 0; promptResponse < surveyResponses.getNumberOfPromptResponses(survey); promptResponse++) {
+				String promptId = surveyResponses.getPromptId(survey, promptResponse);
+
+				dataPoint.put("cycle", cycle);
+				dataPoint.put("timestamp", DATE_TIME_FORMATTER.withZone(DateTimeZone.forID(timeZoneId)).print(epochMillis));
+
+				if(promptId.equals("currentRegimen")) {
+					dataPoint.put("regimen", surveyResponses.getIntResponse(survey, promptResponse) == 0 ? "A" : "B");
+				} else if(! promptId.equals("notesAboutToday")) {
+					dataPoint.put(promptId, surveyResponses.getIntResponse(survey, promptResponse));
+				}
+			}
+
+			dataArray.put(dataPoint);
+		}
+
+		return document(metadata, dataArray);
+	}
+
+	private static String document(final JSONObject metadata, final JSONArray data) throws JSONException {
+		JSONObject root = new JSONObject();
+		root.put("metadata", metadata);
+		root.put("data", data);
+		return root.toString();
+	}
+
+	private void compare(final String name, final String expected, final String actual) {
+		numberOfChecks++;
+
+		if(expected.equals(actual)) {
+			System.out.println(name + ": identical (" + actual.length() + " characters)");
+			return;
+		}
+
+		int index = 0;
+		while(index < expected.length() && index < actual.length() && expected.charAt(index) == actual.charAt(index)) {
+			index++;
+		}
+
+		failures.add(name + ": differs at character " + index + ", expected ..."
+			+ expected.substring(index, Math.min(expected.length(), index + 40)) + " but was ..."
+			+ actual.substring(index, Math.min(actual.length(), index + 40)));
+	}
+}
@@ -0,0 +1,239 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * <p>
+ * Rebuilds the database input of one trial from a normalized data set in
+ * data/fake-trial-data-and-results: the setup survey, the start survey and
+ * the main survey responses that the processor would have normalized into
+ * that data set. The OpenCPU results for the data set are loaded with it.
+ * </p>
+ *
+ * <p>
+ * The fixture directory is resolved against the working directory unless
+ * -Dtrialist.fixtures is set.
+ * </p>
+ */
+public class TrialFixture {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String FIXTURE_DIRECTORY =
+		System.getProperty("trialist.fixtures", "data/fake-trial-data-and-results");
+
+	private static final String RESULTS_SUFFIX = "-results.json";
+
+	// The fixtures are mock trials, so the regimens are music genres
+	public static final String MOCK_CAMPAIGN_URN = "urn:campaign:trialist:mock";
+
+	// The fixture timestamps are Pacific time (-08:00 and -07:00)
+	public static final String TIME_ZONE = "America/Los_Angeles";
+
+	// The prompt keys in the order of their <key> elements in the campaign XML
+	private static final List<String> MOCK_REGIMENS = Arrays.asList(
+		"Classical", "Country", "Easy Listening", "Folk", "Hip hop", "Jazz", "Pop", "Rock", "Other");
+	private static final List<Integer> REGIMEN_DURATIONS = Arrays.asList(2, 7, 14);
+	private static final List<Integer> NUMBERS_OF_CYCLES = Arrays.asList(2, 3, 4);
+
+	private final String name;
+	private final JSONObject setupSurvey;
+	private final JSONObject startSurvey;
+	private final SurveyResponseColumns surveyResponses;
+	private final JSONObject normalizedData;
+	private final JSONObject analysisResults;
+
+	private TrialFixture(
+			final String pName,
+			final JSONObject pSetupSurvey,
+			final JSONObject pStartSurvey,
+			final SurveyResponseColumns pSurveyResponses,
+			final JSONObject pNormalizedData,
+			final JSONObject pAnalysisResults) {
+
+		name = pName;
+		setupSurvey = pSetupSurvey;
+		startSurvey = pStartSurvey;
+		surveyResponses = pSurveyResponses;
+		normalizedData = pNormalizedData;
+		analysisResults = pAnalysisResults;
+	}
+
+	/**
+	 * Loads a fixture.
+	 *
+	 * @param name The fixture name without the .json extension, e.g.
+	 * 			   user-418.
+	 *
+	 * @return The fixture.
+	 *
+	 * @throws IOException The fixture could not be read.
+	 *
+	 * @throws JSONException The fixture is not a normalized data set.
+	 */
+	public static TrialFixture load(final String name) throws IOException, JSONException {
+		JSONObject normalizedData = read(new File(FIXTURE_DIRECTORY, name + ".json"));
+		JSONObject analysisResults = read(new File(FIXTURE_DIRECTORY, name + RESULTS_SUFFIX));
+
+		JSONObject metadata = normalizedData.getJSONObject("metadata");
+		JSONArray data = normalizedData.getJSONArray("data");
+		long startMillis = new DateTime(data.getJSONObject(0).getString("timestamp")).getMillis();
+
+		JSONArray setupResponses = new JSONArray();
+		setupResponses.put(response("regimenA", regimenKeys(metadata.getJSONArray("regimen_a")).toString()));
+		setupResponses.put(response("regimenB", regimenKeys(metadata.getJSONArray("regimen_b")).toString()));
+		setupResponses.put(response("regimenDuration", REGIMEN_DURATIONS.indexOf(metadata.getInt("regimen_duration"))));
+		setupResponses.put(response("numberComparisonCycles", NUMBERS_OF_CYCLES.indexOf(metadata.getInt("number_of_cycles"))));
+		setupResponses.put(response("randomAsText", metadata.getString("cycle_ab_pairs")));
+		setupResponses.put(response("cognitiveFunction", metadata.getString("cognitiveFunctionPromptKey")));
+
+		JSONObject setupSurvey = new JSONObject();
+		setupSurvey.put("time", startMillis);
+		setupSurvey.put("responses", setupResponses);
+
+		JSONArray startResponses = new JSONArray();
+		startResponses.put(response("startPrompt", metadata.getString("trial_start_date")));
+
+		JSONObject startSurvey = new JSONObject();
+		startSurvey.put("time", startMillis);
+		startSurvey.put("timezone", TIME_ZONE);
+		startSurvey.put("responses", startResponses);
+
+		SurveyResponseColumns surveyResponses = new SurveyResponseColumns(new StringCodes(), new StringCodes());
+		int numberOfDataPoints = data.length();
+
+		for(int i = 0; i < numberOfDataPoints; i++) {
+			JSONObject dataPoint = data.getJSONObject(i);
+			surveyResponses.addSurvey(new DateTime(dataPoint.getString("timestamp")).getMillis(), TIME_ZONE);
+
+			Iterator<?> keys = dataPoint.keys();
+			while(keys.hasNext()) {
+				String key = (String) keys.next();
+
+				if(key.equals("regimen")) {
+					surveyResponses.addPromptResponse("currentRegimen", "A".equals(dataPoint.getString(key)) ? "0" : "1");
+				} else if(! key.equals("cycle") && ! key.equals("timestamp")) {
+					surveyResponses.addPromptResponse(key, String.valueOf(dataPoint.getInt(key)));
+				}
+			}
+
+			// Dropped by the normalization, but present in every main survey
+			surveyResponses.addPromptResponse("notesAboutToday", "Nothing to report.");
+		}
+
+		surveyResponses.trimToSize();
+
+		return new TrialFixture(name, setupSurvey, startSurvey, surveyResponses, normalizedData, analysisResults);
+	}
+
+	/**
+	 * Returns the names of the fixtures that have OpenCPU results, in order.
+	 *
+	 * @return The fixture names, e.g. user-418.
+	 *
+	 * @throws IllegalStateException The fixture directory holds no fixtures.
+	 */
+	public static List<String> names() {
+		File directory = new File(FIXTURE_DIRECTORY);
+		String[] files = directory.list();
+		List<String> names = new ArrayList<String>();
+
+		if(files != null) {
+			Arrays.sort(files);
+
+			for(String file : files) {
+				if(file.endsWith(RESULTS_SUFFIX)) {
+					names.add(file.substring(0, file.length() - RESULTS_SUFFIX.length()));
+				}
+			}
+		}
+
+		if(names.isEmpty()) {
+			throw new IllegalStateException("No fixtures were found in " + directory.getAbsolutePath());
+		}
+
+		return names;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public JSONObject getSetupSurvey() {
+		return setupSurvey;
+	}
+
+	public JSONObject getStartSurvey() {
+		return startSurvey;
+	}
+
+	public SurveyResponseColumns getSurveyResponses() {
+		return surveyResponses;
+	}
+
+	/**
+	 * Returns the normalized data set the fixture was built from.
+	 *
+	 * @return The normalized data set.
+	 */
+	public JSONObject getNormalizedData() {
+		return normalizedData;
+	}
+
+	/**
+	 * Returns the OpenCPU analysis results for the normalized data set.
+	 *
+	 * @return The analysis results.
+	 */
+	public JSONObject getAnalysisResults() {
+		return analysisResults;
+	}
+
+	private static JSONObject read(final File file) throws IOException, JSONException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+
+		try {
+			return new JSONObject(new JSONTokener(reader));
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static JSONObject response(final String promptId, final Object value) throws JSONException {
+		JSONObject response = new JSONObject();
+		response.put("prompt_id", promptId);
+		response.put("value", value);
+		return response;
+	}
+
+	private static JSONArray regimenKeys(final JSONArray regimens) throws JSONException {
+		JSONArray keys = new JSONArray();
+		int numberOfRegimens = regimens.length();
+
+		for(int i = 0; i < numberOfRegimens; i++) {
+			int key = MOCK_REGIMENS.indexOf(regimens.getString(i));
+
+			if(key < 0) {
+				throw new JSONException("Unknown mock regimen: " + regimens.getString(i));
+			}
+
+			keys.put(key);
+		}
+
+		return keys;
+	}
+}
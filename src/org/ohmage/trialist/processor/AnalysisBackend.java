@@ -0,0 +1,40 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Performs the post-trial statistical analysis of a normalized data set.
+ * The results contain a graph_5 and a graph_6 object for each outcome, as
+ * produced by the TrialistNof1 R package.
+ * </p>
+ *
+ * <p>
+ * Implementations are called concurrently from the analysis threads.
+ * </p>
+ */
+public interface AnalysisBackend {
+	/**
+	 * Identifies the analysis this backend performs. Backends with the same
+	 * version produce the same results for the same data.
+	 *
+	 * @return The analysis version.
+	 */
+	public String getVersion();
+
+	/**
+	 * Analyzes a normalized data set.
+	 *
+	 * @param normalizedData The normalized data set with its metadata and
+	 * 						 data sections, as JSON text.
+	 *
+	 * @return The analysis results keyed by outcome.
+	 *
+	 * @throws IOException The backend could not be reached.
+	 *
+	 * @throws IllegalStateException The data set could not be analyzed.
+	 */
+	public JSONObject analyze(String normalizedData) throws IOException;
+}
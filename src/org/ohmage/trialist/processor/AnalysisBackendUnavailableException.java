@@ -0,0 +1,22 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * The analysis backend could not be reached or kept failing, so a trial
+ * was not analyzed through no fault of its own. Unlike other analysis
+ * failures, the trial is not quarantined; the next run tries it again.
+ * </p>
+ */
+public class AnalysisBackendUnavailableException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public AnalysisBackendUnavailableException(final String message) {
+		super(message);
+	}
+
+	public AnalysisBackendUnavailableException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+}
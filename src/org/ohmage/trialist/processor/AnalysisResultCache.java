@@ -0,0 +1,244 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * A size-bounded store of analysis results on the local disk. Each result
+ * is kept in its own file named after its key. When the store grows past
+ * its maximum size, the least recently used results are deleted.
+ * </p>
+ *
+ * <p>
+ * The store is tied to one analysis version. If it is opened with a
+ * different version than the one it was last used with, every result is
+ * deleted, because the results of the old version cannot be reused.
+ * </p>
+ */
+public class AnalysisResultCache {
+	private static final Logger LOGGER = Logger.getLogger(AnalysisResultCache.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// The file that records which analysis version the results belong to
+	private static final String VERSION_FILE_NAME = "VERSION";
+
+	private static final String ENTRY_SUFFIX = ".json";
+
+	private static final FilenameFilter ENTRY_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(File directory, String name) {
+			return name.endsWith(ENTRY_SUFFIX);
+		}
+	};
+
+	private final File directory;
+	private final long maximumSize;
+
+	// Key to entry size, least recently used first
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long size = 0;
+
+	/**
+	 * Opens the store in the directory, creating the directory if needed.
+	 *
+	 * @param pDirectory The directory that holds the results.
+	 *
+	 * @param pMaximumSize The maximum total size of the results in bytes.
+	 *
+	 * @param analysisVersion The version of the analysis the results come
+	 * 						  from. Results from other versions are deleted.
+	 *
+	 * @throws IOException The directory could not be read or created.
+	 */
+	public AnalysisResultCache(final File pDirectory, final long pMaximumSize, final String analysisVersion)
+			throws IOException {
+
+		directory = pDirectory;
+		maximumSize = pMaximumSize;
+
+		if(! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("Could not create the analysis cache directory: " + directory.getAbsolutePath());
+		}
+
+		File versionFile = new File(directory, VERSION_FILE_NAME);
+		if(! analysisVersion.equals(readVersion(versionFile))) {
+			invalidate();
+			writeVersion(versionFile, analysisVersion);
+			LOGGER.info("Started an empty analysis cache for the analysis version " + analysisVersion);
+		}
+
+		// The modification time of an entry is its last use, which orders the entries from before a restart
+		File[] files = directory.listFiles(ENTRY_FILTER);
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				return Long.compare(first.lastModified(), second.lastModified());
+			}
+		});
+
+		for(File file : files) {
+			String name = file.getName();
+			entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), file.length());
+			size += file.length();
+		}
+
+		evict();
+
+		LOGGER.info("Opened the analysis cache at " + directory.getAbsolutePath() + " with " + entries.size()
+			+ " result(s) using " + size + " of " + maximumSize + " bytes");
+	}
+
+	/**
+	 * Returns the result stored under the key.
+	 *
+	 * @param key The key, which must be safe to use as a file name.
+	 *
+	 * @return A new copy of the result or null if it is not stored.
+	 */
+	public synchronized JSONObject get(final String key) {
+		if(entries.get(key) == null) {
+			return null;
+		}
+
+		File file = entryFile(key);
+
+		try {
+			JSONObject result = new CheckpointFile(file).read();
+
+			if(result != null) {
+				file.setLastModified(System.currentTimeMillis());
+				return result;
+			}
+
+		} catch(IOException ioException) {
+			LOGGER.warn("Could not read the cached analysis result " + file.getAbsolutePath() + ". Dropping it.", ioException);
+		}
+
+		remove(key);
+		return null;
+	}
+
+	/**
+	 * Stores the result under the key, deleting the least recently used
+	 * results if the store is full. A result that cannot be written is only
+	 * logged, because the cache is an optimization.
+	 *
+	 * @param key The key, which must be safe to use as a file name.
+	 *
+	 * @param result The result.
+	 */
+	public synchronized void put(final String key, final JSONObject result) {
+		File file = entryFile(key);
+
+		try {
+			new CheckpointFile(file).write(result);
+		} catch(IOException ioException) {
+			LOGGER.warn("Could not write the analysis result to the cache at " + file.getAbsolutePath(), ioException);
+			return;
+		}
+
+		Long previousSize = entries.put(key, file.length());
+		size += file.length() - (previousSize == null ? 0 : previousSize);
+
+		evict();
+	}
+
+	/**
+	 * Deletes every stored result.
+	 *
+	 * @throws IOException A result could not be deleted.
+	 */
+	public synchronized void invalidate() throws IOException {
+		for(File file : directory.listFiles(ENTRY_FILTER)) {
+			if(! file.delete()) {
+				throw new IOException("Could not delete the cached analysis result " + file.getAbsolutePath());
+			}
+		}
+
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Deletes the least recently used results until the store fits.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+		while(size > maximumSize && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			File file = entryFile(eldest.getKey());
+
+			if(file.delete() || ! file.exists()) {
+				size -= eldest.getValue();
+				iterator.remove();
+			} else {
+				LOGGER.warn("Could not evict the cached analysis result " + file.getAbsolutePath());
+				return;
+			}
+		}
+	}
+
+	private void remove(final String key) {
+		Long entrySize = entries.remove(key);
+
+		if(entrySize != null) {
+			size -= entrySize;
+			entryFile(key).delete();
+		}
+	}
+
+	private File entryFile(final String key) {
+		return new File(directory, key + ENTRY_SUFFIX);
+	}
+
+	private static String readVersion(final File versionFile) throws IOException {
+		if(! versionFile.exists()) {
+			return null;
+		}
+
+		StringBuilder version = new StringBuilder();
+		Reader reader = new InputStreamReader(new FileInputStream(versionFile), UTF_8);
+
+		try {
+			char[] buffer = new char[256];
+			int amountRead = 0;
+
+			while((amountRead = reader.read(buffer)) != -1) {
+				version.append(buffer, 0, amountRead);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return version.toString();
+	}
+
+	private static void writeVersion(final File versionFile, final String version) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(versionFile), UTF_8);
+
+		try {
+			writer.write(version);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * An analysis backend that can also analyze several normalized data sets
+ * in one call, which saves the per-call overhead of the backend for each
+ * data set but the first.
+ * </p>
+ */
+public interface BatchAnalysisBackend extends AnalysisBackend {
+	/**
+	 * The key of the entry returned for a data set that could not be
+	 * analyzed. Its value describes the error.
+	 */
+	public static final String ERROR_KEY = "error";
+
+	/**
+	 * Analyzes several normalized data sets in one call. A data set that
+	 * cannot be analyzed does not fail the others.
+	 *
+	 * @param normalizedData The normalized data sets, each as JSON text.
+	 *
+	 * @return One entry for each data set, in the same order: its analysis
+	 * 		   results keyed by outcome, or an object with only an
+	 * 		   {@link #ERROR_KEY} if it could not be analyzed.
+	 *
+	 * @throws IOException The backend could not be reached or rejected the
+	 * 					   whole call.
+	 *
+	 * @throws IllegalStateException The backend's answer could not be read.
+	 */
+	public List<JSONObject> analyzeBatch(List<String> normalizedData) throws IOException;
+}
@@ -0,0 +1,273 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Groups the trials that the analysis threads analyze at the same time
+ * into batches, and sends each batch to the wrapped backend in one call.
+ * A batch is sent as soon as it holds batchSize trials, or once its first
+ * trial has waited lingerMillis for others to join it. For batches to fill
+ * up, there must be at least batchSize analysis threads.
+ * </p>
+ *
+ * <p>
+ * Each trial still succeeds or fails on its own:
+ * </p>
+ *
+ * <ul>
+ * <li>A trial that the backend could not analyze fails with an
+ * IllegalStateException, like a single call.</li>
+ * <li>If the backend is unavailable, every trial of the batch fails with
+ * the {@link AnalysisBackendUnavailableException}.</li>
+ * <li>If the backend rejects the batch as a whole or answers with
+ * something that cannot be split up, the trials of the batch are sent again
+ * one at a time, so a single bad trial cannot fail the others.</li>
+ * </ul>
+ */
+public class BatchingAnalysisBackend implements AnalysisBackend {
+	private static final Logger LOGGER = Logger.getLogger(BatchingAnalysisBackend.class);
+
+	private final BatchAnalysisBackend backend;
+	private final int batchSize;
+	private final long lingerNanos;
+
+	// The batch that trials are added to until it is sent
+	private Batch openBatch;
+
+	private final AtomicInteger numberOfBatches = new AtomicInteger();
+	private final AtomicInteger numberOfFallbacks = new AtomicInteger();
+
+	/**
+	 * Creates a backend that batches the calls to the wrapped backend.
+	 *
+	 * @param pBackend The backend the batches are sent to.
+	 *
+	 * @param pBatchSize The most trials sent in one call.
+	 *
+	 * @param pLingerMillis How long a trial waits for others to join its
+	 * 						batch.
+	 */
+	public BatchingAnalysisBackend(final BatchAnalysisBackend pBackend, final int pBatchSize, final long pLingerMillis) {
+		if(pBatchSize < 2) {
+			throw new IllegalArgumentException("The batch size must be at least 2: " + pBatchSize);
+		}
+
+		backend = pBackend;
+		batchSize = pBatchSize;
+		lingerNanos = TimeUnit.MILLISECONDS.toNanos(pLingerMillis);
+	}
+
+	@Override
+	public String getVersion() {
+		// Batched and single calls run the same analysis
+		return backend.getVersion();
+	}
+
+	/**
+	 * Adds the data set to the open batch and waits for its results. The
+	 * thread whose trial fills the batch, or whose trial was the first to
+	 * wait out the linger time, sends it.
+	 */
+	@Override
+	public JSONObject analyze(final String normalizedData) throws IOException {
+		Batch batch = null;
+		int index = 0;
+		boolean send = false;
+
+		synchronized(this) {
+			if(openBatch == null) {
+				openBatch = new Batch(System.nanoTime() + lingerNanos);
+			}
+
+			batch = openBatch;
+			index = batch.add(normalizedData);
+
+			if(batch.size() >= batchSize) {
+				openBatch = null;
+				send = true;
+			}
+		}
+
+		if(! send && ! batch.awaitSent()) {
+			synchronized(this) {
+				// Another thread may have filled the batch in the meantime
+				if(openBatch == batch) {
+					openBatch = null;
+					send = true;
+				}
+			}
+		}
+
+		if(send) {
+			send(batch);
+		}
+
+		return batch.getResults(index);
+	}
+
+	/**
+	 * Sends a batch and hands each trial its outcome.
+	 */
+	private void send(final Batch batch) {
+		try {
+			if(batch.size() == 1) {
+				analyzeEach(batch);
+				return;
+			}
+
+			List<JSONObject> results = null;
+
+			try {
+				results = backend.analyzeBatch(batch.normalizedData);
+
+			} catch(AnalysisBackendUnavailableException unavailable) {
+				failAll(batch, unavailable);
+				return;
+
+			} catch(IOException rejected) {
+				if(Thread.currentThread().isInterrupted()) {
+					failAll(batch, rejected);
+					return;
+				}
+
+				LOGGER.warn("The analysis backend rejected a batch of " + batch.size() + " trial(s). Sending them one at a time ("
+					+ numberOfFallbacks.incrementAndGet() + " batch(es) so far): " + rejected);
+				analyzeEach(batch);
+				return;
+
+			} catch(RuntimeException unreadable) {
+				if(Thread.currentThread().isInterrupted()) {
+					failAll(batch, unreadable);
+					return;
+				}
+
+				LOGGER.warn("Could not split the results of a batch of " + batch.size() + " trial(s). Sending them one at a "
+					+ "time (" + numberOfFallbacks.incrementAndGet() + " batch(es) so far): " + unreadable);
+				analyzeEach(batch);
+				return;
+			}
+
+			for(int i = 0; i < batch.size(); i++) {
+				JSONObject trialResults = results.get(i);
+
+				if(trialResults.has(BatchAnalysisBackend.ERROR_KEY)) {
+					batch.outcomes[i] = new IllegalStateException("The analysis backend could not analyze the trial: "
+						+ trialResults.opt(BatchAnalysisBackend.ERROR_KEY));
+				} else {
+					batch.outcomes[i] = trialResults;
+				}
+			}
+
+			LOGGER.info("Analyzed a batch of " + batch.size() + " trial(s) (" + numberOfBatches.incrementAndGet()
+				+ " batch(es) so far)");
+
+		} finally {
+			// Every trial of the batch gets an outcome, even if this thread was interrupted
+			batch.sent.countDown();
+		}
+	}
+
+	/**
+	 * Fails every trial of the batch with the same failure.
+	 */
+	private static void failAll(final Batch batch, final Exception failure) {
+		for(int i = 0; i < batch.size(); i++) {
+			batch.outcomes[i] = failure;
+		}
+	}
+
+	/**
+	 * Sends the trials of the batch one at a time on this thread. A failure
+	 * only fails its own trial.
+	 */
+	private void analyzeEach(final Batch batch) {
+		for(int i = 0; i < batch.size(); i++) {
+			try {
+				batch.outcomes[i] = backend.analyze(batch.normalizedData.get(i));
+			} catch(IOException ioException) {
+				batch.outcomes[i] = ioException;
+			} catch(RuntimeException runtimeException) {
+				batch.outcomes[i] = runtimeException;
+			}
+		}
+	}
+
+	/**
+	 * The trials sent in one call and, once it has been answered, the
+	 * results or failure of each.
+	 */
+	private class Batch {
+		private final long sendByNanos;
+		private final List<String> normalizedData = new ArrayList<String>(batchSize);
+		private final Object[] outcomes = new Object[batchSize];
+		private final CountDownLatch sent = new CountDownLatch(1);
+
+		public Batch(final long pSendByNanos) {
+			sendByNanos = pSendByNanos;
+		}
+
+		/**
+		 * Adds a trial while the batch is open.
+		 *
+		 * @return The index of the trial in the batch.
+		 */
+		public int add(final String trialData) {
+			normalizedData.add(trialData);
+			return normalizedData.size() - 1;
+		}
+
+		public int size() {
+			return normalizedData.size();
+		}
+
+		/**
+		 * Waits until the batch has been answered or its linger time is over.
+		 *
+		 * @return Whether the batch has been answered.
+		 */
+		public boolean awaitSent() {
+			try {
+				return sent.await(sendByNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch(InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a batch of trials to be sent.", interruptedException);
+			}
+		}
+
+		/**
+		 * Waits until the batch has been answered and returns the results of
+		 * a trial or throws its failure.
+		 */
+		public JSONObject getResults(final int index) throws IOException {
+			try {
+				sent.await();
+			} catch(InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the results of a batch.", interruptedException);
+			}
+
+			Object outcome = outcomes[index];
+
+			if(outcome instanceof IOException) {
+				throw (IOException) outcome;
+			}
+			if(outcome instanceof RuntimeException) {
+				throw (RuntimeException) outcome;
+			}
+			if(outcome == null) {
+				throw new IllegalStateException("The batch of the trial was not answered.");
+			}
+
+			return (JSONObject) outcome;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Reuses the results of earlier analyses of the same normalized data.
+ * Results are stored under a hash of the analysis version and the
+ * normalized data. An unchanged trial is therefore not sent to the wrapped
+ * backend again, and a new analysis version never reuses old results.
+ * </p>
+ *
+ * <p>
+ * The hash is computed over the normalized data with its object keys sorted.
+ * A data set built by this run and the same data set read back from the
+ * database therefore hash the same.
+ * </p>
+ */
+public class CachingAnalysisBackend implements AnalysisBackend {
+	private static final Logger LOGGER = Logger.getLogger(CachingAnalysisBackend.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final AnalysisBackend backend;
+	private final AnalysisResultCache cache;
+
+	private final AtomicInteger numberOfHits = new AtomicInteger();
+	private final AtomicInteger numberOfMisses = new AtomicInteger();
+
+	/**
+	 * Creates a backend that caches the results of the wrapped backend.
+	 *
+	 * @param pBackend The backend that analyzes the trials that are not
+	 * 				   cached.
+	 *
+	 * @param pCache The store for the results. It must have been opened with
+	 * 				 the version of the wrapped backend.
+	 */
+	public CachingAnalysisBackend(final AnalysisBackend pBackend, final AnalysisResultCache pCache) {
+		backend = pBackend;
+		cache = pCache;
+	}
+
+	@Override
+	public String getVersion() {
+		return backend.getVersion();
+	}
+
+	@Override
+	public JSONObject analyze(final String normalizedData) throws IOException {
+		String key = key(normalizedData);
+		JSONObject cachedResults = cache.get(key);
+
+		if(cachedResults != null) {
+			LOGGER.info("Reusing the cached analysis results " + key + " (" + numberOfHits.incrementAndGet() + " hit(s), "
+				+ numberOfMisses.get() + " miss(es) so far)");
+			return cachedResults;
+		}
+
+		numberOfMisses.incrementAndGet();
+
+		JSONObject results = backend.analyze(normalizedData);
+		cache.put(key, results);
+
+		return results;
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the analysis version and the normalized
+	 * data as hexadecimal.
+	 */
+	private String key(final String normalizedData) {
+		StringBuilder canonicalJson = new StringBuilder(backend.getVersion()).append('\n');
+
+		try {
+			appendCanonical(new JSONObject(normalizedData), canonicalJson);
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not serialize the normalized data", jsonException);
+		}
+
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException noSuchAlgorithmException) {
+			throw new IllegalStateException("SHA-256 is not available", noSuchAlgorithmException);
+		}
+
+		byte[] hash = digest.digest(canonicalJson.toString().getBytes(UTF_8));
+		char[] hex = new char[hash.length * 2];
+
+		for(int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * Appends the value as JSON with the keys of every object in sorted
+	 * order. Equal JSON values always produce the same text.
+	 */
+	static void appendCanonical(final Object value, final StringBuilder builder) throws JSONException {
+		if(value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			List<String> keys = new ArrayList<String>();
+
+			Iterator<?> iterator = object.keys();
+			while(iterator.hasNext()) {
+				keys.add((String) iterator.next());
+			}
+			Collections.sort(keys);
+
+			builder.append('{');
+			for(int i = 0; i < keys.size(); i++) {
+				if(i > 0) {
+					builder.append(',');
+				}
+				builder.append(JSONObject.quote(keys.get(i))).append(':');
+				appendCanonical(object.get(keys.get(i)), builder);
+			}
+			builder.append('}');
+
+		} else if(value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			int length = array.length();
+
+			builder.append('[');
+			for(int i = 0; i < length; i++) {
+				if(i > 0) {
+					builder.append(',');
+				}
+				appendCanonical(array.get(i), builder);
+			}
+			builder.append(']');
+
+		} else if(value instanceof String) {
+			builder.append(JSONObject.quote((String) value));
+
+		} else if(value instanceof Number) {
+			builder.append(JSONObject.numberToString((Number) value));
+
+		} else {
+			// Booleans and JSONObject.NULL
+			builder.append(value);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * <p>
+ * A JSON document kept in a local file between runs. Writes go to a
+ * temporary file that is then renamed over the checkpoint, so a crash while
+ * writing leaves the previous checkpoint in place.
+ * </p>
+ */
+public class CheckpointFile {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	/**
+	 * Creates a checkpoint backed by the file. The file does not need to
+	 * exist yet.
+	 *
+	 * @param pFile The checkpoint file.
+	 */
+	public CheckpointFile(final File pFile) {
+		file = pFile;
+	}
+
+	/**
+	 * Creates a checkpoint for one campaign in the directory. The file name
+	 * is derived from the campaign URN.
+	 *
+	 * @param directory The directory that holds the checkpoints.
+	 *
+	 * @param campaignUrn The campaign the checkpoint belongs to.
+	 *
+	 * @param suffix The file name suffix that identifies the kind of
+	 * 				 checkpoint.
+	 *
+	 * @return The checkpoint.
+	 */
+	public static CheckpointFile forCampaign(final File directory, final String campaignUrn, final String suffix) {
+		return new CheckpointFile(new File(directory, campaignUrn.replaceAll("[^A-Za-z0-9._-]", "_") + suffix));
+	}
+
+	/**
+	 * Returns the file behind this checkpoint.
+	 *
+	 * @return The checkpoint file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Reads the checkpoint.
+	 *
+	 * @return The saved JSON object or null if no checkpoint has been saved.
+	 *
+	 * @throws IOException The file could not be read or is not a JSON
+	 * 					   object.
+	 */
+	public JSONObject read() throws IOException {
+		if(! file.exists()) {
+			return null;
+		}
+
+		Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+
+		try {
+			return new JSONObject(new JSONTokener(reader));
+		} catch(JSONException jsonException) {
+			throw new IOException("The checkpoint is not a JSON object: " + file.getAbsolutePath(), jsonException);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Replaces the checkpoint with the JSON object.
+	 *
+	 * @param checkpoint The JSON object to save.
+	 *
+	 * @throws IOException The checkpoint could not be written.
+	 */
+	public void write(final JSONObject checkpoint) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if(! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("Could not create the checkpoint directory: " + directory.getAbsolutePath());
+		}
+
+		File temporaryFile = new File(directory, file.getName() + ".tmp");
+		FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+		Writer writer = new OutputStreamWriter(outputStream, UTF_8);
+
+		try {
+			checkpoint.write(writer);
+			writer.flush();
+			outputStream.getFD().sync();
+		} catch(JSONException jsonException) {
+			throw new IOException("Could not write the checkpoint: " + file.getAbsolutePath(), jsonException);
+		} finally {
+			writer.close();
+		}
+
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes the checkpoint if it exists.
+	 *
+	 * @throws IOException The checkpoint could not be deleted.
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(file.toPath());
+	}
+}
@@ -0,0 +1,112 @@
+package org.ohmage.trialist.processor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Stops calls to a backend that keeps failing. After failureThreshold
+ * failures in a row the circuit opens and calls are refused without
+ * being sent. Once it has been open for openMillis, a single trial call is
+ * let through: if it succeeds the circuit closes again, and if it fails
+ * the circuit stays open for another openMillis.
+ * </p>
+ *
+ * <p>
+ * The methods may be called from any thread.
+ * </p>
+ */
+public class CircuitBreaker {
+	private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class);
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openNanos;
+
+	private int consecutiveFailures = 0;
+	private boolean open = false;
+	private long openUntilNanos;
+	private boolean trialCallInFlight = false;
+
+	/**
+	 * Creates a closed circuit.
+	 *
+	 * @param pName What the circuit protects, for the log.
+	 *
+	 * @param pFailureThreshold The number of failures in a row that opens
+	 * 							the circuit.
+	 *
+	 * @param openMillis How long the circuit stays open before a trial call
+	 * 					 is let through.
+	 */
+	public CircuitBreaker(final String pName, final int pFailureThreshold, final long openMillis) {
+		name = pName;
+		failureThreshold = pFailureThreshold;
+		openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * Returns whether a call may be sent now. A caller that is allowed must
+	 * report the outcome with {@link #recordSuccess()},
+	 * {@link #recordFailure()} or {@link #recordAbandoned()}.
+	 *
+	 * @return Whether the call may be sent.
+	 */
+	public synchronized boolean allowCall() {
+		if(! open) {
+			return true;
+		}
+
+		if(trialCallInFlight || System.nanoTime() - openUntilNanos < 0) {
+			return false;
+		}
+
+		trialCallInFlight = true;
+		return true;
+	}
+
+	/**
+	 * Records that a call was answered, which closes the circuit.
+	 */
+	public synchronized void recordSuccess() {
+		if(open) {
+			LOGGER.info("The " + name + " circuit is closed again.");
+		}
+
+		consecutiveFailures = 0;
+		open = false;
+		trialCallInFlight = false;
+	}
+
+	/**
+	 * Records that a call failed because the backend is unavailable.
+	 */
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+
+		if(trialCallInFlight || (! open && consecutiveFailures >= failureThreshold)) {
+			LOGGER.warn("The " + name + " circuit is open after " + consecutiveFailures + " failure(s) in a row. No calls are sent for "
+				+ TimeUnit.NANOSECONDS.toMillis(openNanos) + " ms.");
+			open = true;
+			openUntilNanos = System.nanoTime() + openNanos;
+			trialCallInFlight = false;
+		}
+	}
+
+	/**
+	 * Records that a call was given up without an answer, for example
+	 * because its thread was interrupted. The circuit stays as it is, but a
+	 * trial call may be let through again.
+	 */
+	public synchronized void recordAbandoned() {
+		trialCallInFlight = false;
+	}
+
+	/**
+	 * Returns whether the circuit is open.
+	 */
+	public synchronized boolean isOpen() {
+		return open;
+	}
+}
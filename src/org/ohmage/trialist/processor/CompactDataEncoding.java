@@ -0,0 +1,145 @@
+package org.ohmage.trialist.processor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Converts the data section of a normalized data set between its usual
+ * form, an array with one object per data point, and a compact form with
+ * one array per key:
+ * </p>
+ *
+ * <pre>
+ * "data": [{"cycle": 1, "regimen": "A"}, {"cycle": 1, "regimen": "B"}]
+ * "data": {"cycle": [1, 1], "regimen": ["A", "B"]}
+ * </pre>
+ *
+ * <p>
+ * The compact form names each prompt once instead of once per data point.
+ * A data point without a key has null in that key's array. R reads the
+ * compact form as a list of columns, which as.data.frame expands to the
+ * same data frame as the usual form, with NA for the missing values.
+ * </p>
+ */
+public class CompactDataEncoding {
+	private static final String DATA_KEY = "data";
+
+	private CompactDataEncoding() {}
+
+	/**
+	 * Returns the data set with its data section in the compact form.
+	 *
+	 * @param normalizedData The normalized data set as JSON text.
+	 *
+	 * @return The data set as JSON text. A data set whose data section is
+	 * 		   not an array is returned as it is.
+	 *
+	 * @throws IllegalStateException The data set is not valid JSON.
+	 */
+	public static String toColumns(final String normalizedData) {
+		try {
+			JSONObject document = new JSONObject(normalizedData);
+			JSONArray rows = document.optJSONArray(DATA_KEY);
+
+			if(rows == null) {
+				return normalizedData;
+			}
+
+			// Keys in the order they first appear, each with a value for every data point seen so far
+			Map<String, JSONArray> columns = new LinkedHashMap<String, JSONArray>();
+
+			for(int i = 0; i < rows.length(); i++) {
+				JSONObject row = rows.getJSONObject(i);
+				Iterator<?> keys = row.keys();
+
+				while(keys.hasNext()) {
+					String key = (String) keys.next();
+					JSONArray column = columns.get(key);
+
+					if(column == null) {
+						column = new JSONArray();
+						while(column.length() < i) {
+							column.put(JSONObject.NULL);
+						}
+						columns.put(key, column);
+					}
+
+					column.put(row.get(key));
+				}
+
+				for(JSONArray column : columns.values()) {
+					if(column.length() <= i) {
+						column.put(JSONObject.NULL);
+					}
+				}
+			}
+
+			JSONObject compactData = new JSONObject();
+			for(Map.Entry<String, JSONArray> column : columns.entrySet()) {
+				compactData.put(column.getKey(), column.getValue());
+			}
+
+			document.put(DATA_KEY, compactData);
+			return document.toString();
+
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not convert the normalized data to columns", jsonException);
+		}
+	}
+
+	/**
+	 * Returns the data set with its data section in the usual form. Null
+	 * values are left out of the data points.
+	 *
+	 * @param normalizedData The normalized data set.
+	 *
+	 * @return The data set. It is the same object, changed in place.
+	 *
+	 * @throws IllegalStateException A column is not an array.
+	 */
+	public static JSONObject toRows(final JSONObject normalizedData) {
+		JSONObject columns = normalizedData.optJSONObject(DATA_KEY);
+
+		if(columns == null) {
+			return normalizedData;
+		}
+
+		try {
+			int numberOfRows = 0;
+			Iterator<?> keys = columns.keys();
+			while(keys.hasNext()) {
+				numberOfRows = Math.max(numberOfRows, columns.getJSONArray((String) keys.next()).length());
+			}
+
+			JSONArray rows = new JSONArray();
+
+			for(int i = 0; i < numberOfRows; i++) {
+				JSONObject row = new JSONObject();
+
+				keys = columns.keys();
+				while(keys.hasNext()) {
+					String key = (String) keys.next();
+					Object value = columns.getJSONArray(key).opt(i);
+
+					if(value != null && ! JSONObject.NULL.equals(value)) {
+						row.put(key, value);
+					}
+				}
+
+				rows.put(row);
+			}
+
+			normalizedData.put(DATA_KEY, rows);
+			return normalizedData;
+
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not convert the normalized data to rows", jsonException);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+import org.ohmage.trialist.processor.NativeAnalysisBackend.TooFewResponsesException;
+
+/**
+ * <p>
+ * Analyzes trials with the native backend and sends the trials it refuses
+ * for having too few responses on a regimen to another backend, normally
+ * OpenCPU. Short trials are therefore analyzed by the R package instead of
+ * failing, while the others stay in this JVM.
+ * </p>
+ *
+ * <p>
+ * The version combines the versions of both backends, so a change to either
+ * discards the cached results.
+ * </p>
+ */
+public class FallbackAnalysisBackend implements AnalysisBackend {
+	private static final Logger LOGGER = Logger.getLogger(FallbackAnalysisBackend.class);
+
+	private final NativeAnalysisBackend nativeBackend;
+	private final AnalysisBackend fallbackBackend;
+
+	private final AtomicInteger numberOfFallbacks = new AtomicInteger();
+
+	/**
+	 * Creates a backend that analyzes the trials the native backend refuses
+	 * with the fallback backend.
+	 *
+	 * @param pNativeBackend The backend that analyzes the trials first.
+	 *
+	 * @param pFallbackBackend The backend that analyzes the trials with too
+	 * 						   few responses on a regimen.
+	 */
+	public FallbackAnalysisBackend(final NativeAnalysisBackend pNativeBackend, final AnalysisBackend pFallbackBackend) {
+		nativeBackend = pNativeBackend;
+		fallbackBackend = pFallbackBackend;
+	}
+
+	@Override
+	public String getVersion() {
+		return nativeBackend.getVersion() + "+" + fallbackBackend.getVersion();
+	}
+
+	@Override
+	public JSONObject analyze(final String normalizedData) throws IOException {
+		try {
+			return nativeBackend.analyze(normalizedData);
+
+		} catch(TooFewResponsesException tooFewResponsesException) {
+			LOGGER.info("Analyzing the trial with " + fallbackBackend.getVersion() + " ("
+				+ numberOfFallbacks.incrementAndGet() + " so far): " + tooFewResponsesException.getMessage());
+			return fallbackBackend.analyze(normalizedData);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.ohmage.trialist.processor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * <p>
+ * Reads the survey responses from the ohmage database with streamed
+ * queries.
+ * </p>
+ */
+public class JdbcSurveyResponseSource implements SurveyResponseSource {
+	// Retrieve all setup and start surveys for all users for a given trialist campaign. Incremental runs only read the surveys
+	// after an ID a little below the last survey_response ID in the checkpoint; full scans pass 0.
+	private static final String SQL_SELECT_TRIAL_SETUP_AND_START =
+		"SELECT id, uuid, user_id, survey_id, survey, epoch_millis " +
+		"FROM survey_response " +
+		"WHERE campaign_id = (SELECT id FROM campaign WHERE urn = ?) " +
+			"AND survey_id IN ('start', 'setup') AND id > ? ORDER BY user_id, epoch_millis, id";
+
+	// Get the Trialist main surveys for a set of trials. "main" is the name given to the daily self-report survey in Trialist.
+	// One "(sr.user_id = ? AND sr.epoch_millis >= ? AND sr.epoch_millis < ?)" condition per trial is appended to the
+	// OR list so the epoch_millis range can be resolved against an index instead of being computed per row.
+	private static final String SQL_SELECT_MAIN_SURVEY_PROMPT_RESPONSES_FOR_TRIALS =
+		"SELECT sr.user_id, sr.id, sr.epoch_millis, sr.phone_timezone, pr.prompt_id, pr.response " +
+		"FROM prompt_response pr, survey_response sr " +
+		"WHERE pr.survey_response_id = sr.id " +
+			"AND sr.survey_id = 'main' " +
+			"AND sr.campaign_id = (SELECT id FROM campaign where urn = ?) " +
+			"AND (%s) " +
+			"ORDER BY sr.user_id, sr.epoch_millis, sr.id";
+
+	private static final String SQL_MAIN_SURVEY_TRIAL_CONDITION =
+		"(sr.user_id = ? AND sr.epoch_millis >= ? AND sr.epoch_millis < ?)";
+
+	// The maximum number of trial conditions in a single query
+	private static final int MAX_TRIAL_PERIODS_PER_QUERY = 500;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	/**
+	 * Creates a source that reads with the template.
+	 *
+	 * @param pJdbcTemplate The template for the ohmage database.
+	 */
+	public JdbcSurveyResponseSource(final JdbcTemplate pJdbcTemplate) {
+		jdbcTemplate = pJdbcTemplate;
+	}
+
+	@Override
+	public void scanSetupAndStartSurveys(final String campaignUrn, final long afterSurveyResponseId, final SurveyHandler handler) {
+		jdbcTemplate.query(
+			new StreamingPreparedStatementCreator(
+				SQL_SELECT_TRIAL_SETUP_AND_START, new Object[] { campaignUrn, afterSurveyResponseId }),
+			new RowCallbackHandler() {
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					try {
+						handler.handleSurvey(rs.getLong("id"), rs.getString("uuid"), rs.getLong("user_id"),
+							rs.getString("survey_id"), rs.getString("survey"), rs.getLong("epoch_millis"));
+					} catch(JSONException jsonException) {
+						throw new SQLException(jsonException);
+					}
+				}
+			}
+		);
+	}
+
+	@Override
+	public void scanMainSurveyPromptResponses(
+			final String campaignUrn,
+			final List<TrialPeriod> trialPeriods,
+			final PromptResponseHandler handler) {
+
+		if(trialPeriods.size() > MAX_TRIAL_PERIODS_PER_QUERY) {
+			throw new IllegalArgumentException("At most " + MAX_TRIAL_PERIODS_PER_QUERY + " trial periods can be read at once.");
+		}
+
+		if(trialPeriods.isEmpty()) {
+			return;
+		}
+
+		StringBuilder conditions = new StringBuilder();
+		List<Object> parameters = new ArrayList<Object>();
+		parameters.add(campaignUrn);
+
+		for(TrialPeriod trialPeriod : trialPeriods) {
+			if(conditions.length() > 0) {
+				conditions.append(" OR ");
+			}
+			conditions.append(SQL_MAIN_SURVEY_TRIAL_CONDITION);
+
+			parameters.add(trialPeriod.getUserId());
+			parameters.add(trialPeriod.getStartMillis());
+			parameters.add(trialPeriod.getEndMillis());
+		}
+
+		jdbcTemplate.query(
+			new StreamingPreparedStatementCreator(
+				String.format(SQL_SELECT_MAIN_SURVEY_PROMPT_RESPONSES_FOR_TRIALS, conditions), parameters.toArray()),
+			new RowCallbackHandler() {
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					handler.handlePromptResponse(rs.getLong("id"), rs.getLong("user_id"), rs.getLong("epoch_millis"),
+						rs.getString("phone_timezone"), rs.getString("prompt_id"), rs.getString("response"));
+				}
+			}
+		);
+	}
+
+	@Override
+	public int getMaxTrialPeriodsPerScan() {
+		return MAX_TRIAL_PERIODS_PER_QUERY;
+	}
+}
@@ -0,0 +1,621 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataRetrievalFailureException;
+
+/**
+ * <p>
+ * Reads the survey responses from JSON Lines exports of the ohmage
+ * campaign, survey_response and prompt_response tables instead of the
+ * database, so backfills can run against a snapshot without loading the
+ * live database. Each line of campaign.jsonl, survey_response.jsonl and
+ * prompt_response.jsonl is one row as an object keyed by column name.
+ * Only the columns the processor reads are needed.
+ * </p>
+ *
+ * <p>
+ * The first scan of a campaign reads survey_response.jsonl and
+ * prompt_response.jsonl once, sequentially, and indexes where the lines of
+ * the campaign's surveys and their prompt responses are, in the order the
+ * SQL queries read them, through a file channel into a direct buffer. The
+ * index holds a few numbers per row, not the rows. Every scan then reads
+ * only the lines it hands out, one row at a time, so a main survey scan
+ * takes as many trial periods as a database query does and the run's
+ * memory does not grow with the size of the export. The campaign's ID is
+ * kept with its index, and the index is built again if an export changes.
+ * </p>
+ */
+public class JsonLinesSurveyResponseSource implements SurveyResponseSource {
+	private static final Logger LOGGER = Logger.getLogger(JsonLinesSurveyResponseSource.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String CAMPAIGN_FILE_NAME = "campaign.jsonl";
+	private static final String SURVEY_RESPONSE_FILE_NAME = "survey_response.jsonl";
+	private static final String PROMPT_RESPONSE_FILE_NAME = "prompt_response.jsonl";
+
+	// The maximum number of trial periods in a single scan, the same as a database query takes
+	private static final int MAX_TRIAL_PERIODS_PER_SCAN = 500;
+
+	// The size of the reads while the exports are indexed
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final File directory;
+
+	// The index of each campaign scanned so far, by campaign URN
+	private final Map<String, CampaignIndex> campaignIndexes = new HashMap<String, CampaignIndex>();
+
+	/**
+	 * Creates a source for the exports in the directory.
+	 *
+	 * @param pDirectory The directory that holds the exports.
+	 *
+	 * @throws IllegalStateException An export is missing.
+	 */
+	public JsonLinesSurveyResponseSource(final File pDirectory) {
+		directory = pDirectory;
+
+		for(String fileName : new String[] { CAMPAIGN_FILE_NAME, SURVEY_RESPONSE_FILE_NAME, PROMPT_RESPONSE_FILE_NAME }) {
+			if(! new File(directory, fileName).isFile()) {
+				LOGGER.error("The export " + fileName + " is missing from " + directory.getAbsolutePath());
+				throw new IllegalStateException("Incorrect input configuration");
+			}
+		}
+	}
+
+	@Override
+	public void scanSetupAndStartSurveys(final String campaignUrn, final long afterSurveyResponseId, final SurveyHandler handler) {
+		CampaignIndex campaignIndex = campaignIndex(campaignUrn);
+
+		if(campaignIndex == null) {
+			return;
+		}
+
+		SurveyLines surveys = campaignIndex.setupAndStartSurveys;
+		FileChannel surveyResponses = open(SURVEY_RESPONSE_FILE_NAME);
+
+		try {
+			for(int i = 0; i < surveys.size; i++) {
+				if(surveys.ids[i] <= afterSurveyResponseId) {
+					continue;
+				}
+
+				JSONObject row = readLine(surveyResponses, SURVEY_RESPONSE_FILE_NAME, surveys.offsets[i], surveys.lengths[i]);
+
+				try {
+					// The survey column is text, but an export may have written it as a nested object
+					Object survey = row.get("survey");
+
+					handler.handleSurvey(surveys.ids[i], row.getString("uuid"), surveys.userIds[i], row.getString("survey_id"),
+						survey instanceof String ? (String) survey : survey.toString(), surveys.epochMillis[i]);
+
+				} catch(JSONException jsonException) {
+					throw new DataRetrievalFailureException("Could not handle the survey response " + surveys.ids[i],
+						jsonException);
+				}
+			}
+		} finally {
+			close(surveyResponses);
+		}
+	}
+
+	@Override
+	public void scanMainSurveyPromptResponses(
+			final String campaignUrn,
+			final List<TrialPeriod> trialPeriods,
+			final PromptResponseHandler handler) {
+
+		if(trialPeriods.size() > MAX_TRIAL_PERIODS_PER_SCAN) {
+			throw new IllegalArgumentException("At most " + MAX_TRIAL_PERIODS_PER_SCAN + " trial periods can be read at once.");
+		}
+
+		if(trialPeriods.isEmpty()) {
+			return;
+		}
+
+		CampaignIndex campaignIndex = campaignIndex(campaignUrn);
+
+		if(campaignIndex == null) {
+			return;
+		}
+
+		// The main surveys in any of the periods, in the order of the index, which is the order of the query
+		SurveyLines surveys = campaignIndex.mainSurveys;
+		int[] positions = new int[16];
+		int numberOfPositions = 0;
+
+		for(TrialPeriod trialPeriod : trialPeriods) {
+			for(int i = surveys.first(trialPeriod.getUserId(), trialPeriod.getStartMillis());
+					i < surveys.size && surveys.userIds[i] == trialPeriod.getUserId()
+						&& surveys.epochMillis[i] < trialPeriod.getEndMillis();
+					i++) {
+
+				if(numberOfPositions == positions.length) {
+					positions = Arrays.copyOf(positions, numberOfPositions * 2);
+				}
+				positions[numberOfPositions++] = i;
+			}
+		}
+
+		Arrays.sort(positions, 0, numberOfPositions);
+
+		FileChannel surveyResponses = open(SURVEY_RESPONSE_FILE_NAME);
+		FileChannel promptResponses = open(PROMPT_RESPONSE_FILE_NAME);
+
+		try {
+			for(int p = 0; p < numberOfPositions; p++) {
+				int i = positions[p];
+
+				// Trial periods that overlap find a survey once, like the OR of the query
+				if(p > 0 && positions[p - 1] == i) {
+					continue;
+				}
+
+				// Like the inner join, survey responses without prompt responses produce no rows
+				int firstPrompt = campaignIndex.promptStarts[i];
+				int endOfPrompts = campaignIndex.promptStarts[i + 1];
+				if(firstPrompt == endOfPrompts) {
+					continue;
+				}
+
+				JSONObject survey = readLine(surveyResponses, SURVEY_RESPONSE_FILE_NAME, surveys.offsets[i], surveys.lengths[i]);
+
+				try {
+					String phoneTimezone = stringOrNull(survey, "phone_timezone");
+
+					for(int prompt = firstPrompt; prompt < endOfPrompts; prompt++) {
+						JSONObject promptResponse = readLine(promptResponses, PROMPT_RESPONSE_FILE_NAME,
+							campaignIndex.promptOffsets[prompt], campaignIndex.promptLengths[prompt]);
+
+						handler.handlePromptResponse(surveys.ids[i], surveys.userIds[i], surveys.epochMillis[i], phoneTimezone,
+							promptResponse.getString("prompt_id"), stringOrNull(promptResponse, "response"));
+					}
+
+				} catch(JSONException jsonException) {
+					throw new DataRetrievalFailureException("Could not read the prompt responses of the survey response "
+						+ surveys.ids[i], jsonException);
+				}
+			}
+		} finally {
+			close(surveyResponses);
+			close(promptResponses);
+		}
+	}
+
+	@Override
+	public int getMaxTrialPeriodsPerScan() {
+		return MAX_TRIAL_PERIODS_PER_SCAN;
+	}
+
+	/**
+	 * Returns the index of the campaign, building it if the campaign has not
+	 * been scanned yet or an export has changed since, or null if the
+	 * campaign is not in the export. The campaigns of a run may be scanned
+	 * from several threads.
+	 */
+	private synchronized CampaignIndex campaignIndex(final String campaignUrn) {
+		CampaignIndex campaignIndex = campaignIndexes.get(campaignUrn);
+
+		if(campaignIndex != null && campaignIndex.isCurrent()) {
+			return campaignIndex;
+		}
+
+		// The version is taken before the campaign export is read, so a change while it is read is noticed next time
+		String campaignVersion = version(CAMPAIGN_FILE_NAME);
+		Long campaignId = campaignId(campaignUrn);
+
+		if(campaignId == null) {
+			campaignIndexes.remove(campaignUrn);
+			return null;
+		}
+
+		campaignIndex = buildCampaignIndex(campaignId);
+		campaignIndex.campaignVersion = campaignVersion;
+		campaignIndexes.put(campaignUrn, campaignIndex);
+
+		return campaignIndex;
+	}
+
+	/**
+	 * Reads the survey_response and prompt_response exports once and indexes
+	 * the lines of the campaign's setup, start and main surveys and of the
+	 * main surveys' prompt responses.
+	 */
+	private CampaignIndex buildCampaignIndex(final long campaignId) {
+		long startMillis = System.currentTimeMillis();
+		final CampaignIndex campaignIndex = new CampaignIndex();
+		final SurveyLines setupAndStartSurveys = new SurveyLines();
+		final SurveyLines mainSurveys = new SurveyLines();
+
+		read(SURVEY_RESPONSE_FILE_NAME, new RowReader() {
+			@Override
+			public void row(JSONObject row, long offset, int length) throws JSONException {
+				if(row.getLong("campaign_id") != campaignId) {
+					return;
+				}
+
+				String surveyId = row.getString("survey_id");
+
+				if("setup".equals(surveyId) || "start".equals(surveyId)) {
+					setupAndStartSurveys.add(row, offset, length);
+				} else if("main".equals(surveyId)) {
+					mainSurveys.add(row, offset, length);
+				}
+			}
+		});
+
+		campaignIndex.setupAndStartSurveys = setupAndStartSurveys.sorted();
+		campaignIndex.mainSurveys = mainSurveys.sorted();
+
+		// The position of each main survey in the index, by survey_response ID
+		final SurveyLines surveys = campaignIndex.mainSurveys;
+		final long[] idsInIdOrder = Arrays.copyOf(surveys.ids, surveys.size);
+		Arrays.sort(idsInIdOrder);
+		final int[] positionsInIdOrder = new int[surveys.size];
+		for(int i = 0; i < surveys.size; i++) {
+			positionsInIdOrder[Arrays.binarySearch(idsInIdOrder, surveys.ids[i])] = i;
+		}
+
+		// The prompt responses of the main surveys, in the order of the export, with the position of their survey
+		final PromptLines promptLines = new PromptLines();
+
+		read(PROMPT_RESPONSE_FILE_NAME, new RowReader() {
+			@Override
+			public void row(JSONObject row, long offset, int length) throws JSONException {
+				int idOrder = Arrays.binarySearch(idsInIdOrder, row.getLong("survey_response_id"));
+
+				if(idOrder >= 0) {
+					promptLines.add(positionsInIdOrder[idOrder], offset, length);
+				}
+			}
+		});
+
+		// Groups the prompt responses by survey, keeping their export order within each survey
+		int[] promptStarts = new int[surveys.size + 1];
+		for(int line = 0; line < promptLines.size; line++) {
+			promptStarts[promptLines.positions[line] + 1]++;
+		}
+		for(int i = 0; i < surveys.size; i++) {
+			promptStarts[i + 1] += promptStarts[i];
+		}
+
+		int totalPrompts = promptLines.size;
+		int[] nextPrompt = Arrays.copyOf(promptStarts, surveys.size);
+		campaignIndex.promptStarts = promptStarts;
+		campaignIndex.promptOffsets = new long[totalPrompts];
+		campaignIndex.promptLengths = new int[totalPrompts];
+
+		for(int line = 0; line < totalPrompts; line++) {
+			int prompt = nextPrompt[promptLines.positions[line]]++;
+			campaignIndex.promptOffsets[prompt] = promptLines.offsets[line];
+			campaignIndex.promptLengths[prompt] = promptLines.lengths[line];
+		}
+
+		campaignIndex.surveyResponseVersion = version(SURVEY_RESPONSE_FILE_NAME);
+		campaignIndex.promptResponseVersion = version(PROMPT_RESPONSE_FILE_NAME);
+
+		LOGGER.info("Indexed " + campaignIndex.setupAndStartSurveys.size + " setup and start surveys, " + surveys.size
+			+ " main surveys and " + totalPrompts + " prompt responses of the campaign " + campaignId + " in "
+			+ (System.currentTimeMillis() - startMillis) + " ms");
+
+		return campaignIndex;
+	}
+
+	/**
+	 * Returns the ID of the campaign or null if it is not in the export.
+	 */
+	private Long campaignId(final String campaignUrn) {
+		final Long[] campaignId = new Long[1];
+
+		read(CAMPAIGN_FILE_NAME, new RowReader() {
+			@Override
+			public void row(JSONObject row, long offset, int length) throws JSONException {
+				if(campaignUrn.equals(row.getString("urn"))) {
+					campaignId[0] = row.getLong("id");
+				}
+			}
+		});
+
+		if(campaignId[0] == null) {
+			LOGGER.warn("The campaign " + campaignUrn + " is not in " + new File(directory, CAMPAIGN_FILE_NAME).getAbsolutePath());
+		}
+
+		return campaignId[0];
+	}
+
+	/**
+	 * Passes every row of the export to the reader with the byte offset and
+	 * length of its line.
+	 */
+	private void read(final String fileName, final RowReader rowReader) {
+		File file = new File(directory, fileName);
+		int lineNumber = 0;
+		FileChannel channel = open(fileName);
+
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+			byte[] line = new byte[1024];
+			int lineLength = 0;
+			long lineOffset = 0;
+			long offset = 0;
+
+			while(channel.read(buffer) != -1) {
+				buffer.flip();
+
+				while(buffer.hasRemaining()) {
+					int end = buffer.position();
+					while(end < buffer.limit() && buffer.get(end) != '\n') {
+						end++;
+					}
+
+					// The part of the line in the buffer is copied in one go
+					int segmentLength = end - buffer.position();
+					if(lineLength + segmentLength > line.length) {
+						line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + segmentLength));
+					}
+					buffer.get(line, lineLength, segmentLength);
+					lineLength += segmentLength;
+					offset += segmentLength;
+
+					if(end == buffer.limit()) {
+						break;
+					}
+
+					// The newline
+					buffer.get();
+					offset++;
+
+					lineNumber++;
+					row(rowReader, line, lineLength, lineOffset);
+					lineLength = 0;
+					lineOffset = offset;
+				}
+
+				buffer.clear();
+			}
+
+			if(lineLength > 0) {
+				lineNumber++;
+				row(rowReader, line, lineLength, lineOffset);
+			}
+
+		} catch(IOException ioException) {
+			throw new DataAccessResourceFailureException("Could not read " + file.getAbsolutePath(), ioException);
+		} catch(JSONException jsonException) {
+			throw new DataRetrievalFailureException("Malformed row on line " + lineNumber + " of " + file.getAbsolutePath(),
+				jsonException);
+		} finally {
+			close(channel);
+		}
+	}
+
+	/**
+	 * Passes a line that is not blank to the reader.
+	 */
+	private static void row(final RowReader rowReader, final byte[] line, final int length, final long offset)
+			throws JSONException {
+
+		String text = new String(line, 0, length, UTF_8);
+
+		if(text.trim().length() > 0) {
+			rowReader.row(new JSONObject(text), offset, length);
+		}
+	}
+
+	/**
+	 * Reads the row on the line of an export at the offset.
+	 */
+	private JSONObject readLine(final FileChannel channel, final String fileName, final long offset, final int length) {
+		ByteBuffer line = ByteBuffer.allocate(length);
+
+		try {
+			while(line.hasRemaining()) {
+				if(channel.read(line, offset + line.position()) == -1) {
+					throw new IOException("The export ends before the indexed line at byte " + offset + ".");
+				}
+			}
+
+			return new JSONObject(new String(line.array(), UTF_8));
+
+		} catch(IOException ioException) {
+			throw new DataAccessResourceFailureException("Could not read " + new File(directory, fileName).getAbsolutePath(),
+				ioException);
+		} catch(JSONException jsonException) {
+			throw new DataRetrievalFailureException("Malformed row at byte " + offset + " of "
+				+ new File(directory, fileName).getAbsolutePath(), jsonException);
+		}
+	}
+
+	private FileChannel open(final String fileName) {
+		File file = new File(directory, fileName);
+
+		try {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch(IOException ioException) {
+			throw new DataAccessResourceFailureException("Could not read " + file.getAbsolutePath(), ioException);
+		}
+	}
+
+	private static void close(final FileChannel channel) {
+		try {
+			channel.close();
+		} catch(IOException ioException) {
+			LOGGER.warn("Could not close an export.", ioException);
+		}
+	}
+
+	/**
+	 * Returns what changes when the export is replaced or written to.
+	 */
+	private String version(final String fileName) {
+		File file = new File(directory, fileName);
+		return file.lastModified() + "/" + file.length();
+	}
+
+	private static String stringOrNull(final JSONObject row, final String column) throws JSONException {
+		return row.isNull(column) ? null : row.getString(column);
+	}
+
+	/**
+	 * Receives the rows of an export.
+	 */
+	private static abstract class RowReader {
+		public abstract void row(JSONObject row, long offset, int length) throws JSONException;
+	}
+
+	/**
+	 * Where the lines of one campaign's surveys and prompt responses are in
+	 * the exports.
+	 */
+	private class CampaignIndex {
+		private String campaignVersion;
+		private String surveyResponseVersion;
+		private String promptResponseVersion;
+
+		private SurveyLines setupAndStartSurveys;
+		private SurveyLines mainSurveys;
+
+		// The prompt responses of main survey i are [promptStarts[i], promptStarts[i + 1])
+		private int[] promptStarts;
+		private long[] promptOffsets;
+		private int[] promptLengths;
+
+		/**
+		 * Returns whether the exports are still the ones that were indexed.
+		 */
+		private boolean isCurrent() {
+			return campaignVersion.equals(version(CAMPAIGN_FILE_NAME))
+				&& surveyResponseVersion.equals(version(SURVEY_RESPONSE_FILE_NAME))
+				&& promptResponseVersion.equals(version(PROMPT_RESPONSE_FILE_NAME));
+		}
+	}
+
+	/**
+	 * The prompt_response lines of the main surveys with the position of
+	 * their survey in the index, in the order of the export.
+	 */
+	private static class PromptLines {
+		private int[] positions = new int[16];
+		private long[] offsets = new long[16];
+		private int[] lengths = new int[16];
+		private int size = 0;
+
+		private void add(final int position, final long offset, final int length) {
+			if(size == positions.length) {
+				int capacity = size * 2;
+				positions = Arrays.copyOf(positions, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+			}
+
+			positions[size] = position;
+			offsets[size] = offset;
+			lengths[size] = length;
+			size++;
+		}
+	}
+
+	/**
+	 * The survey_response lines of some surveys, by column, with the columns
+	 * the order depends on.
+	 */
+	private static class SurveyLines {
+		private long[] userIds = new long[16];
+		private long[] epochMillis = new long[16];
+		private long[] ids = new long[16];
+		private long[] offsets = new long[16];
+		private int[] lengths = new int[16];
+		private int size = 0;
+
+		private void add(final JSONObject row, final long offset, final int length) throws JSONException {
+			add(row.getLong("user_id"), row.getLong("epoch_millis"), row.getLong("id"), offset, length);
+		}
+
+		private void add(final long userId, final long pEpochMillis, final long id, final long offset, final int length) {
+			if(size == ids.length) {
+				int capacity = size * 2;
+				userIds = Arrays.copyOf(userIds, capacity);
+				epochMillis = Arrays.copyOf(epochMillis, capacity);
+				ids = Arrays.copyOf(ids, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+			}
+
+			userIds[size] = userId;
+			epochMillis[size] = pEpochMillis;
+			ids[size] = id;
+			offsets[size] = offset;
+			lengths[size] = length;
+			size++;
+		}
+
+		/**
+		 * Returns the lines ordered by user ID, epoch millis and ID, the order
+		 * of the SQL queries.
+		 */
+		private SurveyLines sorted() {
+			List<Integer> order = new ArrayList<Integer>(size);
+			for(int i = 0; i < size; i++) {
+				order.add(i);
+			}
+
+			Collections.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer first, Integer second) {
+					int comparison = Long.compare(userIds[first], userIds[second]);
+					if(comparison == 0) {
+						comparison = Long.compare(epochMillis[first], epochMillis[second]);
+					}
+					if(comparison == 0) {
+						comparison = Long.compare(ids[first], ids[second]);
+					}
+					return comparison;
+				}
+			});
+
+			SurveyLines sorted = new SurveyLines();
+			for(Integer i : order) {
+				sorted.add(userIds[i], epochMillis[i], ids[i], offsets[i], lengths[i]);
+			}
+			return sorted;
+		}
+
+		/**
+		 * Returns the position of the user's first line at or after the epoch
+		 * millis, in sorted lines.
+		 */
+		private int first(final long userId, final long startMillis) {
+			int low = 0;
+			int high = size;
+
+			while(low < high) {
+				int middle = (low + high) >>> 1;
+
+				if(userIds[middle] < userId || (userIds[middle] == userId && epochMillis[middle] < startMillis)) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+	}
+}
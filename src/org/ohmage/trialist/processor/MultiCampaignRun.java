@@ -0,0 +1,301 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.dao.DataAccessException;
+
+/**
+ * <p>
+ * Processes several campaigns in one run, for example the production
+ * campaign and the mock and pilot campaigns, with one
+ * {@link TrialistAnalysisProcessor} per campaign. The campaigns share the
+ * database pool, the OpenCPU HTTP client and the analysis backend of the
+ * {@link ProcessorResources}, and the processed trial index is refreshed
+ * once for all of them instead of once per campaign. In partitioned mode
+ * each campaign refreshes it once it has claimed its partitions.
+ * </p>
+ *
+ * <p>
+ * Up to campaigns.threads campaigns are processed at the same time. Their
+ * analysis threads take turns at the shared analysis permits, which are
+ * handed out in the order they were asked for. Every campaign has the same
+ * number of analysis threads, so a campaign with many trials gets the same
+ * share of the analysis backend as the others instead of holding them up.
+ * </p>
+ *
+ * <p>
+ * A campaign that fails does not stop the others. Once every campaign has
+ * finished, the run fails if any of them failed. The number of trials
+ * processed is counted per campaign, and the run summary holds the metrics
+ * of each campaign.
+ * </p>
+ */
+public class MultiCampaignRun {
+	private static final Logger LOGGER = Logger.getLogger(MultiCampaignRun.class);
+
+	// One processor per campaign, in the order the campaigns were given
+	private final List<TrialistAnalysisProcessor> processors;
+
+	private int campaignThreads;
+	private boolean partitioned;
+	private File metricsSummaryFile;
+
+	private volatile boolean stopRequested = false;
+
+	/**
+	 * Creates a run of the previous day's completed trials for the default
+	 * Trialist campaign.
+	 */
+	public MultiCampaignRun() {
+		this(Arrays.asList(new TrialistAnalysisProcessor()));
+	}
+
+	/**
+	 * Creates a run of the trials of the campaigns that were completed on the
+	 * date. The parameters other than the campaigns are those of
+	 * {@link TrialistAnalysisProcessor#TrialistAnalysisProcessor(boolean, boolean, DateTime, String)}.
+	 *
+	 * @param reprocess Whether to re-run the analysis for trials that may
+	 * 					have already had the analysis performed.
+	 *
+	 * @param reprocessAll Whether to re-run the analysis for all completed
+	 * 					   trials.
+	 *
+	 * @param date Only trials ending on this date will be processed.
+	 *
+	 * @param campaignUrns The campaigns to process. A campaign given more
+	 * 					   than once is processed once.
+	 *
+	 * @throws IllegalArgumentException No campaigns were given.
+	 */
+	public MultiCampaignRun(final boolean reprocess, final boolean reprocessAll, final DateTime date,
+			final List<String> campaignUrns) {
+
+		this(processorsFor(reprocess, reprocessAll, date, campaignUrns));
+	}
+
+	/**
+	 * Creates a run of the processors, each of which processes a different
+	 * campaign.
+	 */
+	MultiCampaignRun(final List<TrialistAnalysisProcessor> pProcessors) {
+		processors = new ArrayList<TrialistAnalysisProcessor>(pProcessors);
+	}
+
+	private static List<TrialistAnalysisProcessor> processorsFor(final boolean reprocess, final boolean reprocessAll,
+			final DateTime date, final List<String> campaignUrns) {
+
+		if(campaignUrns.isEmpty()) {
+			throw new IllegalArgumentException("At least one campaign URN is required.");
+		}
+
+		// The journal, checkpoint and leases of a campaign must only be used by one processor
+		List<TrialistAnalysisProcessor> processors = new ArrayList<TrialistAnalysisProcessor>();
+		for(String campaignUrn : new LinkedHashSet<String>(campaignUrns)) {
+			processors.add(new TrialistAnalysisProcessor(reprocess, reprocessAll, date, campaignUrn));
+		}
+
+		return processors;
+	}
+
+	/**
+	 * Sets up every campaign's processor with the resources, which are shared
+	 * by all of them.
+	 */
+	void useResources(final ProcessorResources resources) {
+		for(TrialistAnalysisProcessor processor : processors) {
+			processor.useResources(resources);
+		}
+
+		campaignThreads = resources.getCampaignThreads();
+		partitioned = resources.isPartitioned();
+		metricsSummaryFile = resources.getMetricsSummaryFile();
+	}
+
+	/**
+	 * Asks every campaign's processor to stop and keeps the campaigns that
+	 * have not started yet from starting. May be called from any thread.
+	 */
+	void requestStop() {
+		stopRequested = true;
+
+		for(TrialistAnalysisProcessor processor : processors) {
+			processor.requestStop();
+		}
+	}
+
+	/**
+	 * Returns the number of trials processed for each campaign.
+	 *
+	 * @return The counts by campaign URN, in the order the campaigns were
+	 * 		   given.
+	 */
+	Map<String, Integer> getNumberOfTrialsProcessed() {
+		Map<String, Integer> numberOfTrialsProcessed = new LinkedHashMap<String, Integer>();
+
+		for(TrialistAnalysisProcessor processor : processors) {
+			numberOfTrialsProcessed.put(processor.getCampaignUrn(), processor.getNumberOfTrialsProcessed());
+		}
+
+		return numberOfTrialsProcessed;
+	}
+
+	/**
+	 * Logs the number of trials processed for each campaign.
+	 */
+	void logNumberOfTrialsProcessed() {
+		for(Map.Entry<String, Integer> campaign : getNumberOfTrialsProcessed().entrySet()) {
+			LOGGER.info("Processed " + campaign.getValue() + " trials for the campaign " + campaign.getKey() + ".");
+		}
+	}
+
+	/**
+	 * Processes the campaigns. A run of a single campaign is the same as the
+	 * campaign processor's {@link TrialistAnalysisProcessor#run()}.
+	 *
+	 * @throws IllegalStateException One or more campaigns could not be
+	 * 								 processed.
+	 */
+	public void run() throws IOException, JSONException {
+		if(processors.size() == 1) {
+			processors.get(0).run();
+			return;
+		}
+
+		DateTime startTime = new DateTime();
+
+		// The index holds the trials of every campaign, so one refresh serves all of them. Partitioned campaigns find them 
+		// after claiming their partitions instead, or they would miss the trials other instances write in the meantime.
+		Set<TrialKey> processedTrials = null;
+
+		if(! partitioned) {
+			try {
+				processedTrials = Collections.unmodifiableSet(processors.get(0).selectProcessedTrials());
+			} catch(DataAccessException dataAccessException) {
+				LOGGER.error("An error occurred when accessing the database to retrieve already processed trials.");
+				throw dataAccessException;
+			}
+		}
+
+		LOGGER.info("Processing " + processors.size() + " campaigns, up to " + campaignThreads + " at a time.");
+
+		ExecutorService campaignExecutor = Executors.newFixedThreadPool(Math.min(campaignThreads, processors.size()));
+		List<Future<Void>> campaignFutures = new ArrayList<Future<Void>>();
+		String[] outcomes = new String[processors.size()];
+		int numberOfFailedCampaigns = 0;
+
+		try {
+
+			for(final TrialistAnalysisProcessor processor : processors) {
+				processor.joinRun(processedTrials);
+
+				campaignFutures.add(campaignExecutor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if(! stopRequested) {
+							processor.run();
+						}
+						return null;
+					}
+				}));
+			}
+
+			for(int i = 0; i < campaignFutures.size(); i++) {
+				try {
+
+					campaignFutures.get(i).get();
+					outcomes[i] = stopRequested ? "stopped" : "completed";
+
+				} catch(ExecutionException executionException) {
+
+					LOGGER.error("The run of the campaign " + processors.get(i).getCampaignUrn() + " did not complete.",
+						executionException.getCause());
+					outcomes[i] = "failed";
+					numberOfFailedCampaigns++;
+
+				} catch(InterruptedException interruptedException) {
+
+					campaignExecutor.shutdownNow();
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for the campaigns to finish.", interruptedException);
+				}
+			}
+
+		} finally {
+
+			campaignExecutor.shutdownNow();
+
+			if(metricsSummaryFile != null) {
+				try {
+					writeSummary(startTime, outcomes);
+				} catch(IOException ioException) {
+					LOGGER.warn("Could not write the run summary to " + metricsSummaryFile.getAbsolutePath(), ioException);
+				}
+			}
+		}
+
+		if(numberOfFailedCampaigns > 0) {
+			throw new IllegalStateException(numberOfFailedCampaigns + " of " + processors.size()
+				+ " campaign(s) could not be processed.");
+		}
+	}
+
+	/**
+	 * Writes the summary of every campaign that was started to the summary
+	 * file, replacing the summary of the previous run. A campaign without an
+	 * outcome was still in progress when the run gave up on it.
+	 */
+	private void writeSummary(final DateTime startTime, final String[] outcomes) throws IOException {
+		try {
+			JSONArray campaignSummaries = new JSONArray();
+			int numberOfTrialsProcessed = 0;
+			String outcome = stopRequested ? "stopped" : "completed";
+
+			for(int i = 0; i < processors.size(); i++) {
+				String campaignOutcome = outcomes[i] == null ? "failed" : outcomes[i];
+				if("failed".equals(campaignOutcome)) {
+					outcome = "failed";
+				}
+
+				RunMetrics runMetrics = processors.get(i).getRunMetrics();
+				if(runMetrics != null) {
+					campaignSummaries.put(runMetrics.toSummary(campaignOutcome, processors.get(i).getNumberOfTrialsProcessed()));
+				}
+
+				numberOfTrialsProcessed += processors.get(i).getNumberOfTrialsProcessed();
+			}
+
+			JSONObject summary = new JSONObject();
+			summary.put("startTime", startTime.toString());
+			summary.put("endTime", new DateTime().toString());
+			summary.put("durationMillis", System.currentTimeMillis() - startTime.getMillis());
+			summary.put("outcome", outcome);
+			summary.put("trialsProcessed", numberOfTrialsProcessed);
+			summary.put("campaigns", campaignSummaries);
+
+			new CheckpointFile(metricsSummaryFile).write(summary);
+
+		} catch(JSONException jsonException) {
+			throw new IOException("Could not create the run summary", jsonException);
+		}
+	}
+}
@@ -0,0 +1,799 @@
+package org.ohmage.trialist.processor;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Analyzes trials in this JVM instead of calling OpenCPU. For each outcome,
+ * every data point is scored as the mean of the outcome's prompts divided
+ * by the highest possible response, so 0 is no symptoms and 1 is the worst
+ * symptoms. The effect is the mean score on regimen B minus the mean score
+ * on regimen A. A positive effect means A is better.
+ * </p>
+ *
+ * <p>
+ * The outcomes are modeled the way the TrialistNof1 R package models them.
+ * An outcome with several prompts is treated as continuous: with a flat
+ * prior and a variance pooled across both regimens, the posterior of the
+ * effect is a Student's t distribution with n - 2 degrees of freedom. An
+ * outcome with a single prompt is treated as ordinal: a proportional odds
+ * model is fitted with weak priors, the effect is the difference in
+ * the expected response it predicts for each regimen, and its posterior is
+ * approximated by a normal distribution from the model's covariance. Both
+ * are evaluated in closed form rather than by sampling, so results are
+ * deterministic.
+ * </p>
+ *
+ * <p>
+ * For the fixtures in data/fake-trial-data-and-results, the results are
+ * within 0.05 of the R results for the effects and within 0.1 for the
+ * probabilities, the tolerances "ant check" enforces. With only a few responses on a regimen the R
+ * results are dominated by the priors of its sampler and cannot be matched,
+ * so trials with fewer than MINIMUM_RESPONSES_PER_REGIMEN complete responses
+ * on either regimen are refused with a {@link TooFewResponsesException}.
+ * {@link FallbackAnalysisBackend} sends them to OpenCPU instead.
+ * </p>
+ *
+ * <p>
+ * The results have the same layout as the OpenCPU results:
+ * </p>
+ * <ul>
+ * <li>graph_5 holds the posterior median effect and its 95% credible
+ * interval. Each value is a magnitude paired with the regimen it
+ * favors.</li>
+ * <li>graph_6 holds the posterior probability of each regimen being
+ * marginally or clinically better. A clinically better regimen differs by
+ * more than 0.2 of the response scale.</li>
+ * </ul>
+ */
+public class NativeAnalysisBackend implements AnalysisBackend {
+	// Change whenever a change to this class changes its results
+	private static final String VERSION = "native/2";
+
+	// Trials with fewer complete responses on either regimen for any outcome are not analyzed
+	static final int MINIMUM_RESPONSES_PER_REGIMEN = 7;
+
+	// The smallest difference in scores, as a fraction of the response scale, that matters clinically
+	private static final double CLINICAL_DIFFERENCE = 0.2;
+
+	private static final Outcome[] OUTCOMES = {
+		new Outcome("constipation", 5, "constipationPrompt"),
+		new Outcome("drowsiness", 6, "drowsinessPrompt"),
+		new Outcome("neuropathic_pain", 10, "painHotness", "painSharpness", "painSensitivity"),
+		new Outcome("thinking_problems", 5),
+		new Outcome("pain", 10, "averagePainIntensity", "enjoymentOfLife", "generalActivity"),
+		new Outcome("sleep_problems", 5, "sleepDisturbancePrompt"),
+		new Outcome("fatigue", 5, "fatiguePrompt")
+	};
+
+	@Override
+	public String getVersion() {
+		return VERSION;
+	}
+
+	@Override
+	public JSONObject analyze(final String normalizedDataText) {
+		try {
+			JSONObject normalizedData = new JSONObject(normalizedDataText);
+
+			// The cognitive function prompt is chosen per trial in the setup survey
+			String cognitiveFunctionPromptId = normalizedData.getJSONObject("metadata").getString("cognitiveFunctionPromptKey");
+			JSONArray data = normalizedData.getJSONArray("data");
+
+			JSONObject results = new JSONObject();
+
+			for(Outcome outcome : OUTCOMES) {
+				String[] promptIds = outcome.promptIds.length == 0 ? new String[] { cognitiveFunctionPromptId } : outcome.promptIds;
+				results.put(outcome.name, analyzeOutcome(data, promptIds, outcome.maximumResponse));
+			}
+
+			return results;
+
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not analyze the normalized data", jsonException);
+		}
+	}
+
+	/**
+	 * Returns the graph_5 and graph_6 objects for one outcome.
+	 *
+	 * @throws TooFewResponsesException There are too few complete responses
+	 * 									 on a regimen.
+	 *
+	 * @throws IllegalStateException The ordinal model could not be fitted.
+	 */
+	private JSONObject analyzeOutcome(final JSONArray data, final String[] promptIds, final int maximumResponse)
+			throws JSONException {
+
+		int numberOfDataPoints = data.length();
+		double[] responses = new double[numberOfDataPoints];
+		int[] regimens = new int[numberOfDataPoints];
+		int numberOfResponses = 0;
+
+		// Complete responses per regimen: index 0 is A, index 1 is B
+		int[] count = new int[2];
+
+		for(int i = 0; i < numberOfDataPoints; i++) {
+			JSONObject dataPoint = data.getJSONObject(i);
+
+			double response = 0;
+			boolean isComplete = true;
+			for(String promptId : promptIds) {
+				if(! dataPoint.has(promptId)) {
+					isComplete = false;
+					break;
+				}
+				response += dataPoint.getDouble(promptId);
+			}
+
+			if(! isComplete) {
+				continue;
+			}
+
+			int regimen = "A".equals(dataPoint.getString("regimen")) ? 0 : 1;
+			responses[numberOfResponses] = response / promptIds.length;
+			regimens[numberOfResponses] = regimen;
+			numberOfResponses++;
+			count[regimen]++;
+		}
+
+		if(count[0] < MINIMUM_RESPONSES_PER_REGIMEN || count[1] < MINIMUM_RESPONSES_PER_REGIMEN) {
+			throw new TooFewResponsesException("Only " + count[0] + " response(s) on regimen A and " + count[1]
+				+ " on regimen B to analyze the prompts " + Arrays.toString(promptIds) + ". At least "
+				+ MINIMUM_RESPONSES_PER_REGIMEN + " are needed on each regimen.");
+		}
+
+		responses = Arrays.copyOf(responses, numberOfResponses);
+		regimens = Arrays.copyOf(regimens, numberOfResponses);
+
+		Posterior posterior;
+		if(promptIds.length == 1) {
+			ProportionalOddsModel model = new ProportionalOddsModel(responses, regimens, promptIds[0]);
+			posterior = new Normal(model.getEffect() / maximumResponse, model.getStandardError() / maximumResponse);
+		} else {
+			posterior = continuousPosterior(responses, regimens, count, maximumResponse);
+		}
+
+		double effect = posterior.getLocation();
+		double lowerBound = posterior.quantile(0.025);
+		double upperBound = posterior.quantile(0.975);
+
+		JSONObject graph5 = new JSONObject();
+		graph5.put("median_effect", single(round(Math.abs(effect))));
+		graph5.put("more_effective_regimen", single(effect >= 0 ? "A" : "B"));
+		graph5.put("lower_bound", single(round(Math.abs(lowerBound))));
+		graph5.put("lower_bound_regimen", single(lowerBound >= 0 ? "A" : "B"));
+		graph5.put("upper_bound", single(round(Math.abs(upperBound))));
+		graph5.put("upper_bound_regimen", single(upperBound >= 0 ? "A" : "B"));
+
+		double belowClinicalB = posterior.cdf(-CLINICAL_DIFFERENCE);
+		double belowZero = posterior.cdf(0);
+		double belowClinicalA = posterior.cdf(CLINICAL_DIFFERENCE);
+
+		JSONObject graph6 = new JSONObject();
+		graph6.put("b_clinically_better", single(round(belowClinicalB)));
+		graph6.put("b_marginally_better", single(round(belowZero - belowClinicalB)));
+		graph6.put("a_marginally_better", single(round(belowClinicalA - belowZero)));
+		graph6.put("a_clinically_better", single(round(1 - belowClinicalA)));
+
+		JSONObject outcomeResults = new JSONObject();
+		outcomeResults.put("graph_5", graph5);
+		outcomeResults.put("graph_6", graph6);
+		return outcomeResults;
+	}
+
+	/**
+	 * Returns the posterior of the effect of an outcome with several
+	 * prompts, whose mean response is treated as continuous.
+	 */
+	private static Posterior continuousPosterior(final double[] responses, final int[] regimens, final int[] count,
+			final int maximumResponse) {
+
+		double[] sum = new double[2];
+		double[] sumOfSquares = new double[2];
+
+		for(int i = 0; i < responses.length; i++) {
+			double score = responses[i] / maximumResponse;
+			sum[regimens[i]] += score;
+			sumOfSquares[regimens[i]] += score * score;
+		}
+
+		int degreesOfFreedom = count[0] + count[1] - 2;
+		double meanA = sum[0] / count[0];
+		double meanB = sum[1] / count[1];
+		double sumOfSquaredDeviations =
+			(sumOfSquares[0] - count[0] * meanA * meanA) + (sumOfSquares[1] - count[1] * meanB * meanB);
+
+		double scale = Math.sqrt(Math.max(sumOfSquaredDeviations, 0) / degreesOfFreedom * (1.0 / count[0] + 1.0 / count[1]));
+
+		return new StudentT(degreesOfFreedom, meanB - meanA, scale);
+	}
+
+	/**
+	 * R returns every value as a vector, so single values are wrapped in an
+	 * array to match the OpenCPU results.
+	 */
+	private static JSONArray single(final Object value) {
+		return new JSONArray().put(value);
+	}
+
+	private static double round(final double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+
+	private static double logistic(final double x) {
+		return 1 / (1 + Math.exp(-x));
+	}
+
+	/**
+	 * The trial has too few complete responses on a regimen for the native
+	 * analysis to match the R results.
+	 */
+	public static class TooFewResponsesException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		public TooFewResponsesException(final String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * An outcome and the prompts whose mean is its score. An outcome without
+	 * prompts uses the cognitive function prompt chosen in the setup survey.
+	 */
+	private static class Outcome {
+		private final String name;
+		private final int maximumResponse;
+		private final String[] promptIds;
+
+		public Outcome(final String pName, final int pMaximumResponse, final String... pPromptIds) {
+			name = pName;
+			maximumResponse = pMaximumResponse;
+			promptIds = pPromptIds;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A proportional odds model of the responses to one prompt. The
+	 * responses are ordered categories, and the chance of a response at or
+	 * below category k is logistic(c_k - beta) on regimen B and
+	 * logistic(c_k) on regimen A. Only the categories that were answered are
+	 * modeled.
+	 * </p>
+	 *
+	 * <p>
+	 * The cut points c and beta are the posterior mode under independent
+	 * normal priors with a standard deviation of PRIOR_STANDARD_DEVIATION,
+	 * found by Newton's method. The priors keep the mode finite when every
+	 * response on one regimen is in the lowest or highest category. The
+	 * effect is the expected response on B minus the expected response on A,
+	 * and its standard error comes from the inverse of the negative Hessian
+	 * at the mode by the delta method.
+	 * </p>
+	 */
+	private static class ProportionalOddsModel {
+		private static final int MAXIMUM_ITERATIONS = 100;
+		private static final double CONVERGENCE = 1e-9;
+
+		// The step of the finite differences of the gradient that make up the Hessian
+		private static final double DIFFERENCE_STEP = 1e-5;
+
+		// Weak enough to leave the results of trials with a few weeks of data to the responses
+		private static final double PRIOR_STANDARD_DEVIATION = 10;
+
+		private final String promptId;
+		private final double[] categories;
+		private final int[] responseCategories;
+		private final int[] regimens;
+
+		private double effect = 0;
+		private double standardError = 0;
+
+		/**
+		 * Fits the model.
+		 *
+		 * @throws IllegalStateException The model could not be fitted.
+		 */
+		public ProportionalOddsModel(final double[] responses, final int[] pRegimens, final String pPromptId) {
+			promptId = pPromptId;
+			regimens = pRegimens;
+
+			double[] sortedResponses = responses.clone();
+			Arrays.sort(sortedResponses);
+
+			int numberOfCategories = 0;
+			double[] distinctResponses = new double[sortedResponses.length];
+			for(double response : sortedResponses) {
+				if(numberOfCategories == 0 || distinctResponses[numberOfCategories - 1] != response) {
+					distinctResponses[numberOfCategories++] = response;
+				}
+			}
+			categories = Arrays.copyOf(distinctResponses, numberOfCategories);
+
+			responseCategories = new int[responses.length];
+			for(int i = 0; i < responses.length; i++) {
+				responseCategories[i] = Arrays.binarySearch(categories, responses[i]);
+			}
+
+			// Every response is the same, so neither regimen is better
+			if(numberOfCategories < 2) {
+				return;
+			}
+
+			fit();
+		}
+
+		public double getEffect() {
+			return effect;
+		}
+
+		public double getStandardError() {
+			return standardError;
+		}
+
+		private void fit() {
+			int numberOfCutPoints = categories.length - 1;
+			double[] parameters = new double[numberOfCutPoints + 1];
+
+			// Start from the cut points of the pooled responses and no difference between the regimens
+			int[] atOrBelow = new int[categories.length];
+			for(int responseCategory : responseCategories) {
+				atOrBelow[responseCategory]++;
+			}
+			for(int k = 1; k < categories.length; k++) {
+				atOrBelow[k] += atOrBelow[k - 1];
+			}
+			for(int k = 0; k < numberOfCutPoints; k++) {
+				double proportion = atOrBelow[k] / (double) responseCategories.length;
+				parameters[k] = Math.log(proportion / (1 - proportion));
+			}
+
+			boolean isConverged = false;
+			double logPosterior = logPosterior(parameters);
+
+			for(int iteration = 0; iteration < MAXIMUM_ITERATIONS && ! isConverged; iteration++) {
+				double[] step = multiply(invert(negate(hessian(parameters))), gradient(parameters));
+
+				// Halve the step until it improves the posterior
+				double[] next = new double[parameters.length];
+				double nextLogPosterior = Double.NEGATIVE_INFINITY;
+				double fraction = 1;
+				for(; fraction > CONVERGENCE; fraction /= 2) {
+					for(int i = 0; i < parameters.length; i++) {
+						next[i] = parameters[i] + fraction * step[i];
+					}
+					nextLogPosterior = logPosterior(next);
+					if(nextLogPosterior >= logPosterior) {
+						break;
+					}
+				}
+
+				double largestChange = 0;
+				for(int i = 0; i < parameters.length; i++) {
+					largestChange = Math.max(largestChange, Math.abs(next[i] - parameters[i]));
+				}
+
+				if(nextLogPosterior >= logPosterior) {
+					parameters = next;
+					logPosterior = nextLogPosterior;
+				}
+				isConverged = largestChange < CONVERGENCE || fraction <= CONVERGENCE;
+			}
+
+			if(! isConverged) {
+				throw new IllegalStateException("The ordinal model of the prompt " + promptId + " did not converge.");
+			}
+
+			double[][] covariance = invert(negate(hessian(parameters)));
+			double[] effectGradient = effectGradient(parameters);
+			double variance = 0;
+			for(int i = 0; i < parameters.length; i++) {
+				for(int j = 0; j < parameters.length; j++) {
+					variance += effectGradient[i] * covariance[i][j] * effectGradient[j];
+				}
+			}
+
+			if(! (variance >= 0)) {
+				throw new IllegalStateException("The ordinal model of the prompt " + promptId + " has no finite variance.");
+			}
+
+			effect = effect(parameters);
+			standardError = Math.sqrt(variance);
+		}
+
+		/**
+		 * Returns the chance of a response at or below each category on the
+		 * regimen. The last category is always 1.
+		 */
+		private double[] cumulativeProbabilities(final double[] parameters, final int regimen) {
+			int numberOfCutPoints = categories.length - 1;
+			double[] cumulative = new double[categories.length];
+
+			for(int k = 0; k < numberOfCutPoints; k++) {
+				cumulative[k] = logistic(parameters[k] - regimen * parameters[numberOfCutPoints]);
+			}
+			cumulative[numberOfCutPoints] = 1;
+
+			return cumulative;
+		}
+
+		private double logPosterior(final double[] parameters) {
+			for(int k = 1; k < categories.length - 1; k++) {
+				if(parameters[k] <= parameters[k - 1]) {
+					return Double.NEGATIVE_INFINITY;
+				}
+			}
+
+			double[][] cumulative = { cumulativeProbabilities(parameters, 0), cumulativeProbabilities(parameters, 1) };
+			double logPosterior = 0;
+
+			for(int i = 0; i < responseCategories.length; i++) {
+				int k = responseCategories[i];
+				double probability = cumulative[regimens[i]][k] - (k > 0 ? cumulative[regimens[i]][k - 1] : 0);
+
+				if(probability <= 0) {
+					return Double.NEGATIVE_INFINITY;
+				}
+				logPosterior += Math.log(probability);
+			}
+
+			for(double parameter : parameters) {
+				logPosterior -= parameter * parameter / (2 * PRIOR_STANDARD_DEVIATION * PRIOR_STANDARD_DEVIATION);
+			}
+
+			return logPosterior;
+		}
+
+		private double[] gradient(final double[] parameters) {
+			int numberOfCutPoints = categories.length - 1;
+			double[][] cumulative = { cumulativeProbabilities(parameters, 0), cumulativeProbabilities(parameters, 1) };
+			double[] gradient = new double[parameters.length];
+
+			for(int i = 0; i < responseCategories.length; i++) {
+				int k = responseCategories[i];
+				double[] regimenCumulative = cumulative[regimens[i]];
+
+				double upper = regimenCumulative[k];
+				double lower = k > 0 ? regimenCumulative[k - 1] : 0;
+				double upperDensity = k < numberOfCutPoints ? upper * (1 - upper) : 0;
+				double lowerDensity = k > 0 ? lower * (1 - lower) : 0;
+				double probability = upper - lower;
+
+				if(k < numberOfCutPoints) {
+					gradient[k] += upperDensity / probability;
+				}
+				if(k > 0) {
+					gradient[k - 1] -= lowerDensity / probability;
+				}
+				gradient[numberOfCutPoints] -= regimens[i] * (upperDensity - lowerDensity) / probability;
+			}
+
+			for(int i = 0; i < parameters.length; i++) {
+				gradient[i] -= parameters[i] / (PRIOR_STANDARD_DEVIATION * PRIOR_STANDARD_DEVIATION);
+			}
+
+			return gradient;
+		}
+
+		/**
+		 * Returns the Hessian of the log posterior from central differences
+		 * of its gradient.
+		 */
+		private double[][] hessian(final double[] parameters) {
+			int numberOfParameters = parameters.length;
+			double[][] hessian = new double[numberOfParameters][numberOfParameters];
+
+			for(int i = 0; i < numberOfParameters; i++) {
+				double[] shifted = parameters.clone();
+				shifted[i] = parameters[i] + DIFFERENCE_STEP;
+				double[] above = gradient(shifted);
+				shifted[i] = parameters[i] - DIFFERENCE_STEP;
+				double[] below = gradient(shifted);
+
+				for(int j = 0; j < numberOfParameters; j++) {
+					hessian[i][j] = (above[j] - below[j]) / (2 * DIFFERENCE_STEP);
+				}
+			}
+
+			for(int i = 0; i < numberOfParameters; i++) {
+				for(int j = 0; j < i; j++) {
+					double mean = (hessian[i][j] + hessian[j][i]) / 2;
+					hessian[i][j] = mean;
+					hessian[j][i] = mean;
+				}
+			}
+
+			return hessian;
+		}
+
+		/**
+		 * Returns the expected response on B minus the expected response on
+		 * A. The expected response is the highest category minus each gap
+		 * between categories times the chance of a response below the gap.
+		 */
+		private double effect(final double[] parameters) {
+			int numberOfCutPoints = categories.length - 1;
+			double effect = 0;
+
+			for(int k = 0; k < numberOfCutPoints; k++) {
+				double gap = categories[k + 1] - categories[k];
+				effect -= gap * (logistic(parameters[k] - parameters[numberOfCutPoints]) - logistic(parameters[k]));
+			}
+
+			return effect;
+		}
+
+		private double[] effectGradient(final double[] parameters) {
+			int numberOfCutPoints = categories.length - 1;
+			double[] gradient = new double[parameters.length];
+
+			for(int k = 0; k < numberOfCutPoints; k++) {
+				double gap = categories[k + 1] - categories[k];
+				double onB = logistic(parameters[k] - parameters[numberOfCutPoints]);
+				double onA = logistic(parameters[k]);
+
+				gradient[k] = -gap * (onB * (1 - onB) - onA * (1 - onA));
+				gradient[numberOfCutPoints] += gap * onB * (1 - onB);
+			}
+
+			return gradient;
+		}
+
+		private static double[][] negate(final double[][] matrix) {
+			double[][] negated = new double[matrix.length][];
+			for(int i = 0; i < matrix.length; i++) {
+				negated[i] = new double[matrix[i].length];
+				for(int j = 0; j < matrix[i].length; j++) {
+					negated[i][j] = -matrix[i][j];
+				}
+			}
+			return negated;
+		}
+
+		private static double[] multiply(final double[][] matrix, final double[] vector) {
+			double[] product = new double[matrix.length];
+			for(int i = 0; i < matrix.length; i++) {
+				for(int j = 0; j < vector.length; j++) {
+					product[i] += matrix[i][j] * vector[j];
+				}
+			}
+			return product;
+		}
+
+		/**
+		 * Inverts the matrix by Gauss-Jordan elimination with partial
+		 * pivoting.
+		 */
+		private double[][] invert(final double[][] matrix) {
+			int size = matrix.length;
+			double[][] augmented = new double[size][2 * size];
+
+			for(int i = 0; i < size; i++) {
+				System.arraycopy(matrix[i], 0, augmented[i], 0, size);
+				augmented[i][size + i] = 1;
+			}
+
+			for(int column = 0; column < size; column++) {
+				int pivot = column;
+				for(int row = column + 1; row < size; row++) {
+					if(Math.abs(augmented[row][column]) > Math.abs(augmented[pivot][column])) {
+						pivot = row;
+					}
+				}
+
+				if(! (Math.abs(augmented[pivot][column]) > 1e-12)) {
+					throw new IllegalStateException("The ordinal model of the prompt " + promptId + " is singular.");
+				}
+
+				double[] swapped = augmented[pivot];
+				augmented[pivot] = augmented[column];
+				augmented[column] = swapped;
+
+				double divisor = augmented[column][column];
+				for(int j = 0; j < 2 * size; j++) {
+					augmented[column][j] /= divisor;
+				}
+
+				for(int row = 0; row < size; row++) {
+					double factor = augmented[row][column];
+					if(row != column && factor != 0) {
+						for(int j = 0; j < 2 * size; j++) {
+							augmented[row][j] -= factor * augmented[column][j];
+						}
+					}
+				}
+			}
+
+			double[][] inverse = new double[size][];
+			for(int i = 0; i < size; i++) {
+				inverse[i] = Arrays.copyOfRange(augmented[i], size, 2 * size);
+			}
+			return inverse;
+		}
+	}
+
+	/**
+	 * The posterior distribution of an effect, located at its median. A
+	 * scale of 0 is a point mass at the location.
+	 */
+	private abstract static class Posterior {
+		private static final int MAXIMUM_ITERATIONS = 200;
+		private static final double EPSILON = 1e-12;
+
+		private final double location;
+		private final double scale;
+
+		protected Posterior(final double pLocation, final double pScale) {
+			location = pLocation;
+			scale = pScale;
+		}
+
+		public double getLocation() {
+			return location;
+		}
+
+		/**
+		 * The CDF of the distribution with location 0 and scale 1.
+		 */
+		protected abstract double standardCdf(double z);
+
+		public double cdf(final double x) {
+			if(scale == 0) {
+				return x < location ? 0 : 1;
+			}
+
+			return standardCdf((x - location) / scale);
+		}
+
+		/**
+		 * Inverts the CDF by bisection.
+		 */
+		public double quantile(final double p) {
+			if(scale == 0) {
+				return location;
+			}
+
+			double low = -1;
+			double high = 1;
+			while(standardCdf(low) > p) {
+				low *= 2;
+			}
+			while(standardCdf(high) < p) {
+				high *= 2;
+			}
+
+			for(int i = 0; i < MAXIMUM_ITERATIONS && high - low > EPSILON; i++) {
+				double middle = (low + high) / 2;
+				if(standardCdf(middle) < p) {
+					low = middle;
+				} else {
+					high = middle;
+				}
+			}
+
+			return location + (low + high) / 2 * scale;
+		}
+	}
+
+	/**
+	 * A normal distribution.
+	 */
+	private static class Normal extends Posterior {
+		public Normal(final double pLocation, final double pScale) {
+			super(pLocation, pScale);
+		}
+
+		/**
+		 * Evaluates the CDF with the complementary error function (Chebyshev
+		 * approximation, fractional error below 1.2e-7).
+		 */
+		@Override
+		protected double standardCdf(final double z) {
+			double x = Math.abs(z) / Math.sqrt(2);
+			double t = 1 / (1 + 0.5 * x);
+			double complementaryError = t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196
+				+ t * (0.09678418 + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+				+ t * (-0.82215223 + t * 0.17087277)))))))));
+
+			return z >= 0 ? 1 - complementaryError / 2 : complementaryError / 2;
+		}
+	}
+
+	/**
+	 * A location-scale Student's t distribution.
+	 */
+	private static class StudentT extends Posterior {
+		private static final int MAXIMUM_ITERATIONS = 200;
+		private static final double EPSILON = 1e-12;
+
+		private final double degreesOfFreedom;
+
+		public StudentT(final double pDegreesOfFreedom, final double pLocation, final double pScale) {
+			super(pLocation, pScale);
+			degreesOfFreedom = pDegreesOfFreedom;
+		}
+
+		@Override
+		protected double standardCdf(final double t) {
+			double tail = 0.5 * regularizedIncompleteBeta(degreesOfFreedom / (degreesOfFreedom + t * t), degreesOfFreedom / 2, 0.5);
+			return t > 0 ? 1 - tail : tail;
+		}
+
+		/**
+		 * The regularized incomplete beta function I_x(a, b), evaluated with
+		 * its continued fraction (modified Lentz's method).
+		 */
+		private static double regularizedIncompleteBeta(final double x, final double a, final double b) {
+			if(x <= 0) {
+				return 0;
+			}
+			if(x >= 1) {
+				return 1;
+			}
+
+			// The continued fraction converges quickly only below the mean
+			if(x > (a + 1) / (a + b + 2)) {
+				return 1 - regularizedIncompleteBeta(1 - x, b, a);
+			}
+
+			double front = Math.exp(
+				logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x)) / a;
+
+			double tiny = 1e-300;
+			double c = 1;
+			double d = 1 - (a + b) * x / (a + 1);
+			d = 1 / (Math.abs(d) < tiny ? tiny : d);
+			double fraction = d;
+
+			for(int m = 1; m <= MAXIMUM_ITERATIONS; m++) {
+				// The even step
+				double numerator = m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m));
+				d = 1 + numerator * d;
+				d = 1 / (Math.abs(d) < tiny ? tiny : d);
+				c = 1 + numerator / c;
+				c = Math.abs(c) < tiny ? tiny : c;
+				fraction *= d * c;
+
+				// The odd step
+				numerator = -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+				d = 1 + numerator * d;
+				d = 1 / (Math.abs(d) < tiny ? tiny : d);
+				c = 1 + numerator / c;
+				c = Math.abs(c) < tiny ? tiny : c;
+				double delta = d * c;
+				fraction *= delta;
+
+				if(Math.abs(delta - 1) < EPSILON) {
+					break;
+				}
+			}
+
+			return front * fraction;
+		}
+
+		/**
+		 * The natural log of the gamma function (Lanczos approximation).
+		 */
+		private static double logGamma(final double x) {
+			double[] coefficients = {
+				76.18009172947146, -86.50532032941677, 24.01409824083091,
+				-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5
+			};
+
+			double y = x;
+			double temporary = x + 5.5;
+			temporary -= (x + 0.5) * Math.log(temporary);
+			double series = 1.000000000190015;
+			for(double coefficient : coefficients) {
+				series += coefficient / ++y;
+			}
+
+			return -temporary + Math.log(2.5066282746310005 * series / x);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package org.ohmage.trialist.processor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Writes a normalized data set straight to its JSON text, one data point at
+ * a time, instead of building it as nested JSONObjects and serializing those.
+ * A data point's values are kept in reused arrays, integers are never boxed,
+ * and the timestamp formatter for each time zone is created once.
+ * </p>
+ *
+ * <p>
+ * The text is identical to the one JSONObject.toString() produces for the
+ * same puts. JSONObject writes its keys in the iteration order of a HashMap,
+ * which only depends on the keys and the order they were first put in. That
+ * order is taken from a JSONObject once for each distinct key sequence, so
+ * the data points of a trial, which all share the same prompts, reuse it.
+ * "ant check" compares the text with JSONObject's for the fixture trials
+ * and for every character JSONObject.quote() escapes.
+ * </p>
+ *
+ * <p>
+ * A builder is used by a single thread for a single data set.
+ * </p>
+ */
+public class NormalizedDataBuilder {
+	private static final String METADATA_KEY = "metadata";
+	private static final String DATA_KEY = "data";
+
+	// Whether JSONObject writes the metadata before the data
+	private static final boolean METADATA_FIRST = writesFirst(METADATA_KEY, DATA_KEY);
+
+	private final DateTimeFormatter timestampFormatter;
+	private final Map<String, DateTimeFormatter> timestampFormatters = new HashMap<String, DateTimeFormatter>();
+
+	private final StringBuilder data = new StringBuilder(8192);
+	private final String metadata;
+	private int numberOfDataPoints = 0;
+
+	// The data point being built. A null text value means the integer value is used.
+	private String[] keys = new String[16];
+	private String[] textValues = new String[16];
+	private int[] intValues = new int[16];
+	private int size = 0;
+
+	// The write order computed for the last key sequence
+	private String[] orderedKeySequence = new String[0];
+	private int[] order = new int[0];
+
+	/**
+	 * Starts a data set.
+	 *
+	 * @param pMetadata The metadata section.
+	 *
+	 * @param pTimestampFormatter The formatter for the data point timestamps.
+	 * 							  It is given the time zone of each survey.
+	 */
+	public NormalizedDataBuilder(final JSONObject pMetadata, final DateTimeFormatter pTimestampFormatter) {
+		metadata = pMetadata.toString();
+		timestampFormatter = pTimestampFormatter;
+	}
+
+	/**
+	 * Formats the time a survey was taken in the time zone it was taken in.
+	 *
+	 * @param epochMillis The time the survey was taken.
+	 *
+	 * @param timeZoneId The ID of the phone's time zone.
+	 *
+	 * @return The timestamp.
+	 *
+	 * @throws IllegalArgumentException The time zone is not known.
+	 */
+	public String timestamp(final long epochMillis, final String timeZoneId) {
+		DateTimeFormatter formatter = timestampFormatters.get(timeZoneId);
+
+		if(formatter == null) {
+			formatter = timestampFormatter.withZone(DateTimeZone.forID(timeZoneId));
+			timestampFormatters.put(timeZoneId, formatter);
+		}
+
+		return formatter.print(epochMillis);
+	}
+
+	/**
+	 * Starts a new data point.
+	 */
+	public void startDataPoint() {
+		size = 0;
+	}
+
+	/**
+	 * Sets an integer value of the current data point. Setting a key again
+	 * replaces its value.
+	 */
+	public void put(final String key, final int value) {
+		int index = slot(key);
+		textValues[index] = null;
+		intValues[index] = value;
+	}
+
+	/**
+	 * Sets a string value of the current data point. Setting a key again
+	 * replaces its value.
+	 */
+	public void put(final String key, final String value) {
+		int index = slot(key);
+		textValues[index] = value;
+	}
+
+	/**
+	 * Appends the current data point to the data section.
+	 */
+	public void endDataPoint() {
+		if(numberOfDataPoints > 0) {
+			data.append(',');
+		}
+		numberOfDataPoints++;
+
+		if(! isOrderedKeySequence()) {
+			orderedKeySequence = Arrays.copyOf(keys, size);
+			order = writeOrder(orderedKeySequence);
+		}
+
+		data.append('{');
+		for(int i = 0; i < order.length; i++) {
+			int index = order[i];
+
+			if(i > 0) {
+				data.append(',');
+			}
+
+			appendQuoted(data, keys[index]);
+			data.append(':');
+
+			if(textValues[index] == null) {
+				data.append(intValues[index]);
+			} else {
+				appendQuoted(data, textValues[index]);
+			}
+		}
+		data.append('}');
+	}
+
+	public int getNumberOfDataPoints() {
+		return numberOfDataPoints;
+	}
+
+	/**
+	 * Returns the data set.
+	 *
+	 * @return The JSON text of the metadata and data sections.
+	 */
+	public String finish() {
+		StringBuilder document = new StringBuilder(metadata.length() + data.length() + 32);
+		document.append('{');
+
+		if(METADATA_FIRST) {
+			appendMetadata(document).append(',');
+			appendData(document);
+		} else {
+			appendData(document).append(',');
+			appendMetadata(document);
+		}
+
+		return document.append('}').toString();
+	}
+
+	private StringBuilder appendMetadata(final StringBuilder document) {
+		appendQuoted(document, METADATA_KEY);
+		return document.append(':').append(metadata);
+	}
+
+	private StringBuilder appendData(final StringBuilder document) {
+		appendQuoted(document, DATA_KEY);
+		return document.append(":[").append(data).append(']');
+	}
+
+	/**
+	 * Returns whether the current data point has the keys the write order
+	 * was last computed for.
+	 */
+	private boolean isOrderedKeySequence() {
+		if(orderedKeySequence.length != size) {
+			return false;
+		}
+
+		for(int i = 0; i < size; i++) {
+			if(! orderedKeySequence[i].equals(keys[i])) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the index of the key in the current data point, adding it at
+	 * the end if it is new.
+	 */
+	private int slot(final String key) {
+		for(int i = 0; i < size; i++) {
+			if(keys[i].equals(key)) {
+				return i;
+			}
+		}
+
+		if(size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			textValues = Arrays.copyOf(textValues, size * 2);
+			intValues = Arrays.copyOf(intValues, size * 2);
+		}
+
+		keys[size] = key;
+		return size++;
+	}
+
+	/**
+	 * Returns the indexes of the keys in the order JSONObject writes them
+	 * when they are put in the given order.
+	 */
+	private static int[] writeOrder(final String[] keySequence) {
+		JSONObject template = new JSONObject();
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+		try {
+			for(int i = 0; i < keySequence.length; i++) {
+				template.put(keySequence[i], i);
+				indexes.put(keySequence[i], i);
+			}
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not determine the key order", jsonException);
+		}
+
+		int[] order = new int[keySequence.length];
+		int position = 0;
+
+		Iterator<?> iterator = template.keys();
+		while(iterator.hasNext()) {
+			order[position++] = indexes.get(iterator.next());
+		}
+
+		return order;
+	}
+
+	private static boolean writesFirst(final String first, final String second) {
+		return writeOrder(new String[] { first, second })[0] == 0;
+	}
+
+	/**
+	 * Appends the string the way JSONObject.quote() writes it, without the
+	 * intermediate String.
+	 */
+	static void appendQuoted(final StringBuilder builder, final String string) {
+		int length = string.length();
+		char previous = 0;
+
+		builder.append('"');
+
+		for(int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+
+			switch(c) {
+			case '\\':
+			case '"':
+				builder.append('\\').append(c);
+				break;
+			case '/':
+				// "</" is escaped so the JSON can be embedded in HTML
+				if(previous == '<') {
+					builder.append('\\');
+				}
+				builder.append(c);
+				break;
+			case '\b':
+				builder.append("\\b");
+				break;
+			case '\t':
+				builder.append("\\t");
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '\f':
+				builder.append("\\f");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			default:
+				if(c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+					String hex = Integer.toHexString(c);
+					builder.append("\\u");
+					for(int padding = hex.length(); padding < 4; padding++) {
+						builder.append('0');
+					}
+					builder.append(hex);
+				} else {
+					builder.append(c);
+				}
+			}
+
+			previous = c;
+		}
+
+		builder.append('"');
+	}
+}
@@ -0,0 +1,481 @@
+package org.ohmage.trialist.processor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTimeZone;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * <p>
+ * Collects rows for a single observer stream and writes them to
+ * observer_stream_data as JDBC batches. Each batch is committed in its own
+ * transaction, so at most one batch of rows is lost if a write fails.
+ * </p>
+ *
+ * <p>
+ * Rows may be added from any number of threads. A full batch is handed to
+ * the writer's own thread, so the threads adding rows keep working while
+ * it is written. At most {@link #MAX_PENDING_BATCHES} full batches wait to
+ * be written; adding a row blocks until there is room for its batch.
+ * {@link #flush()} must be called once all rows have been added to write
+ * the remainder and wait for every batch, and {@link #close()} once the
+ * writer is no longer used.
+ * </p>
+ *
+ * <p>
+ * Rows may carry the key of the trial they belong to. An
+ * {@link InsertListener} is told the keys of each batch, and the IDs of
+ * their rows, in its transaction, so whatever it writes is committed together with the rows.
+ * A {@link CommitListener} is told the keys once the batch has been
+ * committed.
+ * </p>
+ *
+ * <p>
+ * A {@link WriteGuard} can decide, inside the transaction of each batch,
+ * which users' rows may still be written. The other rows of the batch are
+ * dropped.
+ * </p>
+ */
+public class ObserverStreamDataWriter {
+	private static final Logger LOGGER = Logger.getLogger(ObserverStreamDataWriter.class);
+
+	// The observer_stream_link_id is resolved once by the caller instead of once per row
+	private static final String SQL_INSERT_OBSERVER_STREAM_DATA =
+		"INSERT INTO observer_stream_data " +
+		"(user_id, observer_stream_link_id, time, time_offset, time_adjusted, time_zone, data) VALUES " +
+			"(?, ?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * The number of full batches that may be waiting for or being written.
+	 */
+	public static final int MAX_PENDING_BATCHES = 2;
+
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	private final long observerStreamLinkId;
+	private final int batchSize;
+	private final StageMetrics insertMetrics;
+
+	private final ExecutorService writeExecutor;
+	private final Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+
+	private List<Object[]> batch;
+	private List<TrialKey> batchTrialKeys;
+	private final AtomicInteger numberOfRowsWritten = new AtomicInteger();
+
+	// The first batch that could not be written, reported by every later call
+	private volatile DataAccessException writeFailure;
+
+	private volatile CommitListener commitListener;
+	private volatile InsertListener insertListener;
+	private volatile WriteGuard writeGuard;
+
+	/**
+	 * Told which trials' rows have been committed.
+	 */
+	public interface CommitListener {
+		/**
+		 * Called after a batch has been committed, on the writer's thread.
+		 *
+		 * @param trialKeys The keys the rows of the batch were added with.
+		 */
+		void committed(List<TrialKey> trialKeys);
+	}
+
+	/**
+	 * Told which trials' rows have been inserted, before they are committed.
+	 */
+	public interface InsertListener {
+		/**
+		 * Called in the transaction of a batch, on the writer's thread, after
+		 * its rows have been inserted.
+		 *
+		 * @param trialKeys The keys the inserted rows were added with.
+		 *
+		 * @param ids The observer_stream_data IDs of the rows, in the order
+		 * 			  of their keys.
+		 *
+		 * @throws DataAccessException The listener could not write. The batch
+		 * 							   is rolled back and fails like a failed
+		 * 							   insert.
+		 */
+		void inserted(List<TrialKey> trialKeys, List<Long> ids);
+	}
+
+	/**
+	 * Decides which users' rows a batch may write.
+	 */
+	public interface WriteGuard {
+		/**
+		 * Called in the transaction of a batch, on the writer's thread,
+		 * before its rows are inserted. Anything the guard locks stays locked
+		 * until the batch is committed.
+		 *
+		 * @param userIds The users the rows of the batch belong to.
+		 *
+		 * @return The users whose rows may be written.
+		 *
+		 * @throws DataAccessException The guard could not decide. The batch
+		 * 							   fails like a failed insert.
+		 */
+		Set<Long> writableUsers(Set<Long> userIds);
+	}
+
+	/**
+	 * Creates a writer for the observer stream identified by the provided
+	 * observer_stream_link ID.
+	 *
+	 * @param pJdbcTemplate The template used to write the batches.
+	 *
+	 * @param pTransactionTemplate The template that wraps each batch in a
+	 * 							   transaction.
+	 *
+	 * @param pObserverStreamLinkId The observer_stream_link ID to write rows
+	 * 								for.
+	 *
+	 * @param pBatchSize The number of rows written and committed together.
+	 *
+	 * @param pInsertMetrics Where the batches and rows written are recorded.
+	 */
+	public ObserverStreamDataWriter(
+			final JdbcTemplate pJdbcTemplate,
+			final TransactionTemplate pTransactionTemplate,
+			final long pObserverStreamLinkId,
+			final int pBatchSize,
+			final StageMetrics pInsertMetrics) {
+
+		if(pBatchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be positive: " + pBatchSize);
+		}
+
+		jdbcTemplate = pJdbcTemplate;
+		transactionTemplate = pTransactionTemplate;
+		observerStreamLinkId = pObserverStreamLinkId;
+		batchSize = pBatchSize;
+		insertMetrics = pInsertMetrics;
+
+		batch = new ArrayList<Object[]>(batchSize);
+		batchTrialKeys = new ArrayList<TrialKey>(batchSize);
+
+		writeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "observer-stream-writer-" + observerStreamLinkId);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the listener that is told about each committed batch.
+	 *
+	 * @param pCommitListener The listener or null for none.
+	 */
+	public void setCommitListener(final CommitListener pCommitListener) {
+		commitListener = pCommitListener;
+	}
+
+	/**
+	 * Sets the listener that is told about each batch in its transaction.
+	 *
+	 * @param pInsertListener The listener or null for none.
+	 */
+	public void setInsertListener(final InsertListener pInsertListener) {
+		insertListener = pInsertListener;
+	}
+
+	/**
+	 * Sets the guard that decides which rows of each batch are written.
+	 *
+	 * @param pWriteGuard The guard or null to write every row.
+	 */
+	public void setWriteGuard(final WriteGuard pWriteGuard) {
+		writeGuard = pWriteGuard;
+	}
+
+	/**
+	 * Adds a row for the user. The row is timestamped now using the default
+	 * time zone of this machine. If this fills the batch, the batch is
+	 * handed to the writer's thread before returning.
+	 *
+	 * @param userId The user the data belongs to.
+	 *
+	 * @param data The serialized JSON data.
+	 *
+	 * @throws DataAccessException An earlier batch could not be written.
+	 */
+	public synchronized void add(final long userId, final String data) {
+		add(userId, data, null);
+	}
+
+	/**
+	 * Adds a row for a trial. The trial's key is passed to the
+	 * {@link CommitListener} once the row has been committed.
+	 *
+	 * @param userId The user the data belongs to.
+	 *
+	 * @param data The serialized JSON data.
+	 *
+	 * @param trialKey The trial the data belongs to or null.
+	 *
+	 * @throws DataAccessException An earlier batch could not be written.
+	 */
+	public synchronized void add(final long userId, final String data, final TrialKey trialKey) {
+		throwWriteFailure();
+
+		long time = System.currentTimeMillis();
+		int timeOffset = DateTimeZone.getDefault().getOffset(time);
+		long timeAdjusted = time + timeOffset;
+		String timeZoneString =  DateTimeZone.getDefault().getID();
+
+		batch.add(
+			new Object[] {
+				userId, observerStreamLinkId, time, timeOffset, timeAdjusted, timeZoneString, data
+			});
+
+		// One key per row, so the keys of dropped rows can be left out
+		batchTrialKeys.add(trialKey);
+
+		if(batch.size() >= batchSize) {
+			handOff();
+		}
+	}
+
+	/**
+	 * Writes and commits any rows that have been added but not yet written,
+	 * and waits until every batch has been written.
+	 *
+	 * @throws DataAccessException A batch could not be written. Its rows are
+	 * 							   discarded.
+	 */
+	public synchronized void flush() {
+		if(! batch.isEmpty()) {
+			handOff();
+		}
+
+		try {
+			pendingBatches.acquire(MAX_PENDING_BATCHES);
+			pendingBatches.release(MAX_PENDING_BATCHES);
+		} catch(InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the batches to be written.", interruptedException);
+		}
+
+		throwWriteFailure();
+	}
+
+	/**
+	 * Stops the writer's thread. Batches that have not been written yet are
+	 * discarded, so {@link #flush()} should be called first.
+	 */
+	public void close() {
+		writeExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of rows that have been committed. Rows dropped by
+	 * the {@link WriteGuard} are not counted.
+	 *
+	 * @return The number of rows that have been committed.
+	 */
+	public int getNumberOfRowsWritten() {
+		return numberOfRowsWritten.get();
+	}
+
+	/**
+	 * Hands the current batch to the writer's thread, waiting for room if
+	 * too many batches are pending.
+	 */
+	private void handOff() {
+		final List<Object[]> rows = batch;
+		final List<TrialKey> trialKeys = batchTrialKeys;
+		batch = new ArrayList<Object[]>(batchSize);
+		batchTrialKeys = new ArrayList<TrialKey>(batchSize);
+
+		try {
+			pendingBatches.acquire();
+		} catch(InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to write a batch.", interruptedException);
+		}
+
+		writeExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(rows, trialKeys);
+				} finally {
+					pendingBatches.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes and commits a batch on the writer's thread.
+	 */
+	private void write(final List<Object[]> batchRows, final List<TrialKey> batchTrialKeys) {
+		final List<Object[]> rows = new ArrayList<Object[]>(batchRows.size());
+		final List<TrialKey> trialKeys = new ArrayList<TrialKey>(batchRows.size());
+		final List<Long> trialIds = new ArrayList<Long>(batchRows.size());
+		long startNanos = insertMetrics.start();
+
+		try {
+			transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					List<TrialKey> rowTrialKeys = new ArrayList<TrialKey>(batchRows.size());
+					selectWritableRows(batchRows, batchTrialKeys, rows, rowTrialKeys);
+
+					List<Long> ids = rows.isEmpty() ? new ArrayList<Long>() : insert(rows);
+
+					for(int i = 0; i < rows.size(); i++) {
+						if(rowTrialKeys.get(i) != null) {
+							trialKeys.add(rowTrialKeys.get(i));
+							trialIds.add(ids.get(i));
+						}
+					}
+
+					InsertListener listener = insertListener;
+					if(listener != null && ! trialKeys.isEmpty()) {
+						listener.inserted(trialKeys, trialIds);
+					}
+				}
+			});
+		} catch(DataAccessException couldNotInsert) {
+			LOGGER.error("Could not insert a batch of " + rows.size() + " row(s) for observer_stream_link_id "
+				+ observerStreamLinkId, couldNotInsert);
+			insertMetrics.recordError();
+
+			if(writeFailure == null) {
+				writeFailure = couldNotInsert;
+			}
+			return;
+		} finally {
+			insertMetrics.stop(startNanos);
+		}
+
+		numberOfRowsWritten.addAndGet(rows.size());
+		insertMetrics.addRows(rows.size());
+		for(Object[] row : rows) {
+			// The data column
+			insertMetrics.addUtf8Bytes((String) row[6]);
+		}
+
+		CommitListener listener = commitListener;
+
+		if(listener != null && ! trialKeys.isEmpty()) {
+			try {
+				listener.committed(trialKeys);
+			} catch(RuntimeException runtimeException) {
+				LOGGER.error("The commit listener of observer_stream_link_id " + observerStreamLinkId + " failed.",
+					runtimeException);
+			}
+		}
+	}
+
+	/**
+	 * Inserts the rows as one JDBC batch and returns their generated IDs in
+	 * the order of the rows.
+	 */
+	private List<Long> insert(final List<Object[]> rows) {
+		return jdbcTemplate.execute(new ConnectionCallback<List<Long>>() {
+			@Override
+			public List<Long> doInConnection(Connection connection) throws SQLException {
+				List<Long> ids = new ArrayList<Long>(rows.size());
+				PreparedStatement statement =
+					connection.prepareStatement(SQL_INSERT_OBSERVER_STREAM_DATA, Statement.RETURN_GENERATED_KEYS);
+
+				try {
+					for(Object[] row : rows) {
+						for(int i = 0; i < row.length; i++) {
+							StatementCreatorUtils.setParameterValue(statement, i + 1, SqlTypeValue.TYPE_UNKNOWN, row[i]);
+						}
+						statement.addBatch();
+					}
+					statement.executeBatch();
+
+					ResultSet generatedKeys = statement.getGeneratedKeys();
+					try {
+						while(generatedKeys.next()) {
+							ids.add(generatedKeys.getLong(1));
+						}
+					} finally {
+						generatedKeys.close();
+					}
+				} finally {
+					statement.close();
+				}
+
+				if(ids.size() != rows.size()) {
+					throw new SQLException("Inserted " + rows.size() + " row(s) into observer_stream_data but received "
+						+ ids.size() + " generated ID(s).");
+				}
+
+				return ids;
+			}
+		});
+	}
+
+	/**
+	 * Copies the rows the {@link WriteGuard} allows, and the keys of their
+	 * trials, from the batch. A row added without a key gets a null key.
+	 */
+	private void selectWritableRows(final List<Object[]> batchRows, final List<TrialKey> batchTrialKeys,
+			final List<Object[]> rows, final List<TrialKey> trialKeys) {
+
+		WriteGuard guard = writeGuard;
+		Set<Long> writableUsers = null;
+
+		if(guard != null) {
+			Set<Long> userIds = new LinkedHashSet<Long>();
+			for(Object[] row : batchRows) {
+				// The user_id column
+				userIds.add((Long) row[0]);
+			}
+			writableUsers = guard.writableUsers(userIds);
+		}
+
+		for(int i = 0; i < batchRows.size(); i++) {
+			if(writableUsers != null && ! writableUsers.contains(batchRows.get(i)[0])) {
+				continue;
+			}
+
+			rows.add(batchRows.get(i));
+			trialKeys.add(batchTrialKeys.get(i));
+		}
+
+		if(rows.size() < batchRows.size()) {
+			LOGGER.warn("Dropped " + (batchRows.size() - rows.size()) + " of " + batchRows.size() + " row(s) for "
+				+ "observer_stream_link_id " + observerStreamLinkId + " that may no longer be written.");
+		}
+	}
+
+	private void throwWriteFailure() {
+		if(writeFailure != null) {
+			throw writeFailure;
+		}
+	}
+}
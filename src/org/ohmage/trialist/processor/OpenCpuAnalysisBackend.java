@@ -0,0 +1,387 @@
+package org.ohmage.trialist.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * <p>
+ * Analyzes trials with the TrialistNof1 R package hosted in OpenCPU. A
+ * response other than 200 is thrown as an {@link OpenCpuStatusException}.
+ * Retries and timeouts are left to the {@link ResilientAnalysisBackend} and
+ * the HTTP client.
+ * </p>
+ *
+ * <p>
+ * If a batch wrapper is configured, several trials can be analyzed in one
+ * call, which costs OpenCPU one R session instead of one for each trial.
+ * The wrapper is an R function that takes a trials argument, calls wrap on
+ * each of them separately and returns a list with the results of each, or
+ * list(error = message) for a trial whose call failed.
+ * </p>
+ *
+ * <p>
+ * Request bodies may be gzipped, but only for a server known to inflate
+ * them, since stock OpenCPU does not. If a gzipped call is rejected with
+ * 415, or with 400 and an error about the gzip encoding, and the same call
+ * then succeeds uncompressed, the rest of the calls are sent uncompressed.
+ * Any other 400 is the trial's own error and is not sent again. Gzipped
+ * responses are negotiated and decompressed by the HTTP client. The data
+ * section of each trial may also be sent in the {@link CompactDataEncoding}
+ * column form, which the wrap function must then expand.
+ * </p>
+ */
+public class OpenCpuAnalysisBackend implements BatchAnalysisBackend {
+	private static final Logger LOGGER = Logger.getLogger(OpenCpuAnalysisBackend.class);
+
+	// The OpenCPU function used if analysis.opencpu.url is not configured
+	// "https://pilots.ohmage.org/ocpu/github/jservadio/TrialistNof1/R/wrap/json" is the pilot server
+	public static final String DEFAULT_URL = "https://ocpu.omh.io/ocpu/github/jservadio/TrialistNof1/R/wrap/json";
+
+	// The paths of the wrap function and its batch wrapper in the TrialistNof1 package, with JSON output
+	public static final String WRAP_PATH = "/R/wrap/json";
+	public static final String BATCH_WRAP_PATH = "/R/wrap_batch/json";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String GZIP = "gzip";
+	private static final int GZIP_BUFFER_SIZE = 8192;
+
+	private final CloseableHttpClient httpClient;
+	private final String url;
+	private final String batchUrl;
+	private final String packageVersion;
+	private final boolean columnEncoding;
+
+	// Whether request bodies are gzipped, and whether OpenCPU has already answered a gzipped one
+	private volatile boolean compressRequests;
+	private volatile boolean compressionConfirmed = false;
+
+	/**
+	 * Creates a backend that sends its requests with the HTTP client.
+	 *
+	 * @param pHttpClient The HTTP client, which may be shared with other
+	 * 					  threads.
+	 *
+	 * @param pUrl The URL of the TrialistNof1 wrap function.
+	 *
+	 * @param pPackageVersion The version of the TrialistNof1 R package that
+	 * 						  OpenCPU serves.
+	 */
+	public OpenCpuAnalysisBackend(final CloseableHttpClient pHttpClient, final String pUrl, final String pPackageVersion) {
+		this(pHttpClient, pUrl, null, pPackageVersion, false, false);
+	}
+
+	/**
+	 * Creates a backend that can also send batches of trials and encode its
+	 * requests more compactly.
+	 *
+	 * @param pHttpClient The HTTP client, which may be shared with other
+	 * 					  threads.
+	 *
+	 * @param pUrl The URL of the TrialistNof1 wrap function.
+	 *
+	 * @param pBatchUrl The URL of the batch wrapper or null if batches
+	 * 					cannot be sent.
+	 *
+	 * @param pPackageVersion The version of the TrialistNof1 R package that
+	 * 						  OpenCPU serves.
+	 *
+	 * @param pColumnEncoding Whether the data sections are sent in the
+	 * 						  column form.
+	 *
+	 * @param pCompressRequests Whether request bodies are gzipped while
+	 * 							OpenCPU accepts them.
+	 */
+	public OpenCpuAnalysisBackend(
+			final CloseableHttpClient pHttpClient,
+			final String pUrl,
+			final String pBatchUrl,
+			final String pPackageVersion,
+			final boolean pColumnEncoding,
+			final boolean pCompressRequests) {
+
+		httpClient = pHttpClient;
+		url = pUrl;
+		batchUrl = pBatchUrl;
+		packageVersion = pPackageVersion;
+		columnEncoding = pColumnEncoding;
+		compressRequests = pCompressRequests;
+	}
+
+	/**
+	 * Returns the URL of the batch wrapper in the same package as a wrap
+	 * function.
+	 *
+	 * @param wrapUrl The URL of the wrap function.
+	 *
+	 * @return The URL of the batch wrapper or null if the wrap function's
+	 * 		   URL does not end in {@link #WRAP_PATH}.
+	 */
+	public static String batchUrlFor(final String wrapUrl) {
+		if(! wrapUrl.endsWith(WRAP_PATH)) {
+			return null;
+		}
+
+		return wrapUrl.substring(0, wrapUrl.length() - WRAP_PATH.length()) + BATCH_WRAP_PATH;
+	}
+
+	@Override
+	public String getVersion() {
+		return "opencpu/TrialistNof1/" + packageVersion + " " + url;
+	}
+
+	@Override
+	public JSONObject analyze(final String normalizedData) throws IOException {
+		Object results = post(url, encode(normalizedData));
+
+		if(! (results instanceof JSONObject)) {
+			throw new IllegalStateException("OpenCPU did not return a JSON object from " + url);
+		}
+
+		return (JSONObject) results;
+	}
+
+	/**
+	 * Sends the data sets to the batch wrapper as its trials argument. The
+	 * wrapper calls the wrap function on each trial and answers with an
+	 * array that holds the results of each trial, or an object with an error
+	 * for a trial that failed.
+	 *
+	 * @throws IllegalStateException No batch wrapper is configured, or the
+	 * 								 answer is not one object per trial.
+	 */
+	@Override
+	public List<JSONObject> analyzeBatch(final List<String> normalizedData) throws IOException {
+		if(batchUrl == null) {
+			throw new IllegalStateException("No OpenCPU batch wrapper is configured.");
+		}
+
+		// The data sets are already JSON text, so they are joined instead of being parsed again
+		StringBuilder trials = new StringBuilder("{\"trials\":[");
+		for(int i = 0; i < normalizedData.size(); i++) {
+			if(i > 0) {
+				trials.append(',');
+			}
+			trials.append(encode(normalizedData.get(i)));
+		}
+		trials.append("]}");
+
+		Object results = post(batchUrl, trials.toString());
+
+		if(! (results instanceof JSONArray) || ((JSONArray) results).length() != normalizedData.size()) {
+			throw new IllegalStateException("OpenCPU did not return an array of " + normalizedData.size() + " results from "
+				+ batchUrl);
+		}
+
+		JSONArray resultsArray = (JSONArray) results;
+		List<JSONObject> trialResults = new ArrayList<JSONObject>(resultsArray.length());
+
+		for(int i = 0; i < resultsArray.length(); i++) {
+			JSONObject entry = resultsArray.optJSONObject(i);
+
+			if(entry == null) {
+				throw new IllegalStateException("OpenCPU returned results from " + batchUrl + " that are not a JSON object: "
+					+ resultsArray.opt(i));
+			}
+			trialResults.add(entry);
+		}
+
+		return trialResults;
+	}
+
+	/**
+	 * Returns the data set in the form it is sent in.
+	 */
+	private String encode(final String normalizedData) {
+		return columnEncoding ? CompactDataEncoding.toColumns(normalizedData) : normalizedData;
+	}
+
+	/**
+	 * POSTs the JSON text to an OpenCPU function, gzipped if OpenCPU accepts
+	 * it, and parses its answer.
+	 */
+	private Object post(final String callUrl, final String json) throws IOException {
+		boolean compressed = compressRequests;
+
+		if(! compressed || compressionConfirmed) {
+			return post(callUrl, json, compressed);
+		}
+
+		try {
+			Object results = post(callUrl, json, true);
+			compressionConfirmed = true;
+			return results;
+
+		} catch(OpenCpuStatusException rejected) {
+			if(! rejectsGzip(rejected)) {
+				throw rejected;
+			}
+
+			// The request may have been rejected for something else too, so compression is only given up if the uncompressed 
+			// call succeeds
+			Object results = post(callUrl, json, false);
+
+			if(compressRequests) {
+				LOGGER.warn("OpenCPU at " + callUrl + " rejected a gzipped request but accepted it uncompressed. Requests are "
+					+ "sent uncompressed from now on.");
+				compressRequests = false;
+			}
+
+			return results;
+		}
+	}
+
+	/**
+	 * Returns whether OpenCPU, or a proxy in front of it, rejected a request
+	 * because it was gzipped: with 415, or with 400 and a body that names the
+	 * gzip encoding.
+	 */
+	private static boolean rejectsGzip(final OpenCpuStatusException rejected) {
+		if(rejected.getStatusCode() == 415) {
+			return true;
+		}
+
+		if(rejected.getStatusCode() != 400 || rejected.getResponseBody() == null) {
+			return false;
+		}
+
+		String responseBody = rejected.getResponseBody().toLowerCase();
+		return responseBody.contains(GZIP) || responseBody.contains("content-encoding");
+	}
+
+	private Object post(final String callUrl, final String json, final boolean compressed) throws IOException {
+		HttpPost httpPost = new HttpPost(callUrl);
+
+		// The JSON is encoded directly onto the connection instead of being copied into a byte array first
+		httpPost.setEntity(new JsonEntity(json, compressed));
+
+		try {
+
+			CloseableHttpResponse httpResponse = httpClient.execute(httpPost);
+
+			try {
+
+				HttpEntity responseEntity = httpResponse.getEntity();
+
+				if(httpResponse.getStatusLine().getStatusCode() != 200) {
+					String responseBody = responseEntity == null ? "" : EntityUtils.toString(responseEntity, UTF_8);
+					LOGGER.error("Received a non-200 response from OpenCPU: "  + httpResponse.getStatusLine()
+						+ " Returned data: " + responseBody);
+					throw new OpenCpuStatusException(httpResponse.getStatusLine().getStatusCode(), 
+						"Could not process trial results using OpenCPU.", responseBody);
+				}
+
+				// Parse the results as they arrive using the charset OpenCPU declared (JSON defaults to UTF-8)
+				Charset charset = ContentType.getOrDefault(responseEntity).getCharset();
+				Reader reader = new InputStreamReader(responseEntity.getContent(), charset == null ? UTF_8 : charset);
+
+				try {
+
+					return new JSONTokener(reader).nextValue();
+
+				} catch(JSONException jsonException) {
+
+					throw new IllegalStateException("Could not parse the JSON returned from OpenCPU", jsonException);
+
+				} finally {
+					reader.close();
+				}
+
+			} finally {
+				// Hands the connection back to the pool
+				httpResponse.close();
+			}
+
+		} catch(OpenCpuStatusException openCpuStatusException) {
+
+			throw openCpuStatusException;
+
+		} catch(IOException ioException) {
+
+			LOGGER.error("Problem with HTTP POST to OpenCPU at " + callUrl, ioException);
+			throw ioException;
+
+		}
+	}
+
+	/**
+	 * HTTP entity that writes JSON text to the connection as UTF-8, gzipped
+	 * or not, when the request is sent. Sending the request never encodes the
+	 * text into a byte array, so the only full copy of the payload is the
+	 * String itself. Only a caller that reads the content, like wire logging
+	 * or an interceptor that buffers entities, gets the encoded bytes.
+	 */
+	private static class JsonEntity extends AbstractHttpEntity {
+		private String json;
+		private boolean compressed;
+
+		public JsonEntity(String pJson, boolean pCompressed) {
+			json = pJson;
+			compressed = pCompressed;
+			setContentType(ContentType.APPLICATION_JSON.toString());
+			if(compressed) {
+				setContentEncoding(GZIP);
+			}
+			setChunked(true);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream content = new ByteArrayOutputStream(compressed ? GZIP_BUFFER_SIZE : json.length());
+			writeTo(content);
+			return new ByteArrayInputStream(content.toByteArray());
+		}
+
+		@Override
+		public void writeTo(OutputStream outputStream) throws IOException {
+			GZIPOutputStream gzipStream = compressed ? new GZIPOutputStream(outputStream, GZIP_BUFFER_SIZE) : null;
+			Writer writer = new OutputStreamWriter(compressed ? gzipStream : outputStream, UTF_8);
+			writer.write(json);
+
+			// Flush and end the gzip stream, but do not close: the connection owns the stream
+			writer.flush();
+			if(compressed) {
+				gzipStream.finish();
+			}
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
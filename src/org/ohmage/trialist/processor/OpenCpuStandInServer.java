@@ -0,0 +1,604 @@
+package org.ohmage.trialist.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * Stands in for OpenCPU in offline end-to-end and load tests. POSTs to any
+ * path ending in /R/wrap/json are answered like the TrialistNof1 wrap
+ * function. A request whose normalized data equals one of the fixtures in
+ * standin.fixtures is answered with the results stored next to it. Other
+ * requests are answered with a fixture chosen by a hash of the request, or
+ * with the results of {@link NativeAnalysisBackend} if standin.unmatched is
+ * native.
+ * </p>
+ *
+ * <p>
+ * POSTs to a path ending in /R/wrap_batch/json are answered like the batch
+ * wrapper: the body's trials array is answered with an array that holds
+ * each trial's results as above, or an object with an error for a trial
+ * that is not an object or, with standin.unmatched=native, cannot be
+ * analyzed. A batch counts as one request below.
+ * </p>
+ *
+ * <p>
+ * Data sections in the {@link CompactDataEncoding} column form are expanded
+ * before they are matched. With standin.compression=gzip, gzipped request
+ * bodies are accepted and responses are gzipped for clients that accept
+ * it. With none, gzipped requests are rejected with 415, like a server that
+ * cannot read them. The stats count the bytes as they were sent.
+ * </p>
+ *
+ * <p>
+ * Every response is delayed by a latency drawn from standin.latency, a
+ * fraction standin.errorRate of the requests fail with standin.errorStatus,
+ * and at most standin.maxConcurrency requests are answered at the same time.
+ * Requests that wait more than standin.queueTimeoutMillis for their turn are
+ * rejected with 503. GET /stats returns the request counters.
+ * </p>
+ *
+ * <p>
+ * Point analysis.opencpu.url at http://&lt;standin.host&gt;:&lt;standin.port&gt;/ocpu/library/TrialistNof1/R/wrap/json
+ * to use it.
+ * </p>
+ */
+public class OpenCpuStandInServer {
+	private static final Logger LOGGER = Logger.getLogger(OpenCpuStandInServer.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String RESULTS_SUFFIX = "-results.json";
+
+	private static final String UNMATCHED_FIXTURE = "fixture";
+	private static final String UNMATCHED_NATIVE = "native";
+
+	private static final String GZIP_COMPRESSION = "gzip";
+	private static final String NO_COMPRESSION = "none";
+
+	// Defaults for the standin.* properties
+	private static final String DEFAULT_HOST = "127.0.0.1";
+	private static final int DEFAULT_PORT = 8090;
+	private static final String DEFAULT_FIXTURES = "data/fake-trial-data-and-results";
+	private static final String DEFAULT_LATENCY = "constant:0";
+	private static final int DEFAULT_MAX_CONCURRENCY = 4;
+	private static final int DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000;
+	private static final int DEFAULT_ERROR_STATUS = 500;
+
+	private static final String CONFIGURATION_ERROR = "Incorrect OpenCPU stand-in configuration";
+
+	private final InetSocketAddress address;
+	private final LatencyDistribution latency;
+	private final double errorRate;
+	private final int errorStatus;
+	private final boolean nativeForUnmatched;
+	private final boolean gzip;
+	private final Semaphore permits;
+	private final int maxConcurrency;
+	private final int queueTimeoutMillis;
+
+	// The canonical JSON of each fixture's normalized data to its results
+	private final Map<String, byte[]> resultsByData = new HashMap<String, byte[]>();
+	private final List<byte[]> allResults = new ArrayList<byte[]>();
+	private final NativeAnalysisBackend nativeBackend = new NativeAnalysisBackend();
+
+	private final AtomicInteger numberOfRequests = new AtomicInteger();
+	private final AtomicInteger numberOfBatches = new AtomicInteger();
+	private final AtomicInteger numberOfTrialErrors = new AtomicInteger();
+	private final AtomicInteger numberOfReplays = new AtomicInteger();
+	private final AtomicInteger numberOfSubstitutes = new AtomicInteger();
+	private final AtomicInteger numberOfErrors = new AtomicInteger();
+	private final AtomicInteger numberOfRejections = new AtomicInteger();
+	private final AtomicInteger numberInFlight = new AtomicInteger();
+	private final AtomicLong numberOfBytesReceived = new AtomicLong();
+	private final AtomicLong numberOfBytesSent = new AtomicLong();
+
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private ExecutorService executor;
+	private HttpServer server;
+
+	/**
+	 * Creates a stand-in configured by the properties and loads its
+	 * fixtures.
+	 *
+	 * @param configuredProperties The properties from the configuration
+	 * 							   file.
+	 *
+	 * @throws IOException The fixtures could not be read.
+	 *
+	 * @throws IllegalStateException A property has an invalid value.
+	 */
+	public OpenCpuStandInServer(final Properties configuredProperties) throws IOException {
+		address = new InetSocketAddress(
+			configuredProperties.getProperty("standin.host", DEFAULT_HOST).trim(),
+			ProcessorResources.positiveInteger(configuredProperties, "standin.port", DEFAULT_PORT, CONFIGURATION_ERROR));
+
+		latency = LatencyDistribution.parse(configuredProperties.getProperty("standin.latency", DEFAULT_LATENCY).trim());
+
+		try {
+			errorRate = Double.parseDouble(configuredProperties.getProperty("standin.errorRate", "0").trim());
+			if(errorRate < 0 || errorRate > 1) {
+				throw new NumberFormatException();
+			}
+		} catch(NumberFormatException notARate) {
+			LOGGER.error("The standin.errorRate property must be a number from 0 to 1. The value is: "
+				+ configuredProperties.getProperty("standin.errorRate"));
+			throw new IllegalStateException(CONFIGURATION_ERROR);
+		}
+
+		errorStatus = ProcessorResources.positiveInteger(configuredProperties, "standin.errorStatus", DEFAULT_ERROR_STATUS,
+			CONFIGURATION_ERROR);
+
+		String unmatched = configuredProperties.getProperty("standin.unmatched", UNMATCHED_FIXTURE).trim();
+		if(! UNMATCHED_FIXTURE.equals(unmatched) && ! UNMATCHED_NATIVE.equals(unmatched)) {
+			LOGGER.error("The standin.unmatched property must be " + UNMATCHED_FIXTURE + " or " + UNMATCHED_NATIVE
+				+ ". The value is: " + unmatched);
+			throw new IllegalStateException(CONFIGURATION_ERROR);
+		}
+		nativeForUnmatched = UNMATCHED_NATIVE.equals(unmatched);
+
+		String compression = configuredProperties.getProperty("standin.compression", GZIP_COMPRESSION).trim();
+		if(! GZIP_COMPRESSION.equals(compression) && ! NO_COMPRESSION.equals(compression)) {
+			LOGGER.error("The standin.compression property must be " + GZIP_COMPRESSION + " or " + NO_COMPRESSION
+				+ ". The value is: " + compression);
+			throw new IllegalStateException(CONFIGURATION_ERROR);
+		}
+		gzip = GZIP_COMPRESSION.equals(compression);
+
+		maxConcurrency = ProcessorResources.positiveInteger(configuredProperties, "standin.maxConcurrency",
+			DEFAULT_MAX_CONCURRENCY, CONFIGURATION_ERROR);
+		permits = new Semaphore(maxConcurrency, true);
+		queueTimeoutMillis = ProcessorResources.positiveInteger(configuredProperties, "standin.queueTimeoutMillis",
+			DEFAULT_QUEUE_TIMEOUT_MILLIS, CONFIGURATION_ERROR);
+
+		loadFixtures(new File(configuredProperties.getProperty("standin.fixtures", DEFAULT_FIXTURES).trim()));
+	}
+
+	/**
+	 * Starts serving, then blocks until the JVM shuts down.
+	 *
+	 * @throws IOException The server could not be started.
+	 *
+	 * @throws InterruptedException Interrupted while waiting for shutdown.
+	 */
+	public void runUntilShutdown() throws IOException, InterruptedException {
+		// Requests beyond the concurrency limit wait on the permits rather than in the accept backlog, so that the
+		// queueing delay is part of the response time the processor sees
+		executor = Executors.newCachedThreadPool();
+
+		server = HttpServer.create(address, 0);
+		server.createContext("/ocpu/", new WrapHandler());
+		server.createContext("/stats", new StatsHandler());
+		server.setExecutor(executor);
+		server.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread("opencpu-stand-in-shutdown") {
+			@Override
+			public void run() {
+				server.stop(0);
+				executor.shutdownNow();
+				LOGGER.info("OpenCPU stand-in stopped. " + stats());
+				stopped.countDown();
+			}
+		});
+
+		LOGGER.info("OpenCPU stand-in started at http://" + address.getHostString() + ":" + address.getPort()
+			+ "/ocpu/library/TrialistNof1" + OpenCpuAnalysisBackend.WRAP_PATH + " with " + allResults.size() + " fixture(s), latency "
+			+ latency + ", error rate " + errorRate + " and at most " + maxConcurrency + " concurrent request(s)");
+
+		stopped.await();
+	}
+
+	/**
+	 * Reads every user-N.json and user-N-results.json pair in the directory.
+	 */
+	private void loadFixtures(final File directory) throws IOException {
+		File[] dataFiles = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.endsWith(".json") && ! name.endsWith(RESULTS_SUFFIX);
+			}
+		});
+
+		if(dataFiles == null) {
+			throw new IOException("Could not read the OpenCPU stand-in fixtures in " + directory.getAbsolutePath());
+		}
+
+		for(File dataFile : dataFiles) {
+			String name = dataFile.getName();
+			File resultsFile = new File(directory, name.substring(0, name.length() - ".json".length()) + RESULTS_SUFFIX);
+
+			if(! resultsFile.isFile()) {
+				LOGGER.warn("Skipping the fixture " + dataFile.getAbsolutePath() + " because it has no results.");
+				continue;
+			}
+
+			byte[] results = readJson(resultsFile).toString().getBytes(UTF_8);
+			resultsByData.put(canonical(readJson(dataFile)), results);
+			allResults.add(results);
+		}
+
+		if(allResults.isEmpty()) {
+			throw new IOException("There are no OpenCPU stand-in fixtures in " + directory.getAbsolutePath());
+		}
+	}
+
+	private String stats() {
+		return "{\"requests\":" + numberOfRequests.get() + ",\"batches\":" + numberOfBatches.get()
+			+ ",\"replayed\":" + numberOfReplays.get() + ",\"substituted\":" + numberOfSubstitutes.get()
+			+ ",\"errors\":" + numberOfErrors.get() + ",\"trialErrors\":" + numberOfTrialErrors.get()
+			+ ",\"rejected\":" + numberOfRejections.get() + ",\"inFlight\":" + numberInFlight.get()
+			+ ",\"bytesReceived\":" + numberOfBytesReceived.get() + ",\"bytesSent\":" + numberOfBytesSent.get() + "}";
+	}
+
+	/**
+	 * Answers the TrialistNof1 wrap function and its batch wrapper.
+	 */
+	private class WrapHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				numberOfRequests.incrementAndGet();
+
+				String path = exchange.getRequestURI().getPath();
+				boolean batch = path.endsWith(OpenCpuAnalysisBackend.BATCH_WRAP_PATH);
+
+				if(! batch && ! path.endsWith(OpenCpuAnalysisBackend.WRAP_PATH)) {
+					respond(exchange, 404, "text/plain", ("Not found: " + exchange.getRequestURI().getPath() + "\n").getBytes(UTF_8));
+					return;
+				}
+
+				if(! "POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, "text/plain", "The wrap function must be called with POST.\n".getBytes(UTF_8));
+					return;
+				}
+
+				boolean permitted = false;
+				try {
+					permitted = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+				} catch(InterruptedException interruptedException) {
+					Thread.currentThread().interrupt();
+				}
+
+				if(! permitted) {
+					numberOfRejections.incrementAndGet();
+					respond(exchange, 503, "text/plain", "Too many concurrent requests.\n".getBytes(UTF_8));
+					return;
+				}
+
+				numberInFlight.incrementAndGet();
+
+				try {
+					answer(exchange, batch);
+				} finally {
+					numberInFlight.decrementAndGet();
+					permits.release();
+				}
+
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void answer(final HttpExchange exchange, final boolean batch) throws IOException {
+			Random random = ThreadLocalRandom.current();
+			JSONObject body = null;
+			boolean gzipped = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+
+			if(gzipped && ! gzip) {
+				respond(exchange, 415, "text/plain", "Gzipped requests are not supported.\n".getBytes(UTF_8));
+				return;
+			}
+
+			try {
+				CountingInputStream requestBody = new CountingInputStream(exchange.getRequestBody());
+				Reader reader = new InputStreamReader(gzipped ? new GZIPInputStream(requestBody) : requestBody, UTF_8);
+				try {
+					body = new JSONObject(new JSONTokener(reader));
+				} finally {
+					reader.close();
+					numberOfBytesReceived.addAndGet(requestBody.count);
+				}
+			} catch(JSONException jsonException) {
+				respond(exchange, 400, "text/plain", ("Invalid JSON: " + jsonException.getMessage() + "\n").getBytes(UTF_8));
+				return;
+			} catch(ZipException zipException) {
+				respond(exchange, 400, "text/plain", ("Invalid gzip: " + zipException.getMessage() + "\n").getBytes(UTF_8));
+				return;
+			}
+
+			JSONArray trials = null;
+			if(batch) {
+				trials = body.optJSONArray("trials");
+				if(trials == null) {
+					respond(exchange, 400, "text/plain", "The batch wrapper must be called with a trials array.\n".getBytes(UTF_8));
+					return;
+				}
+				numberOfBatches.incrementAndGet();
+			}
+
+			// A batch pays for one session, like a single call
+			try {
+				Thread.sleep(latency.nextMillis(random));
+			} catch(InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			if(random.nextDouble() < errorRate) {
+				numberOfErrors.incrementAndGet();
+				respond(exchange, errorStatus, "text/plain", "Error in wrap(): simulated failure\n".getBytes(UTF_8));
+				return;
+			}
+
+			if(! batch) {
+				try {
+					respond(exchange, 200, "application/json", resultsFor(CompactDataEncoding.toRows(body)));
+				} catch(IllegalStateException illegalStateException) {
+					respond(exchange, 400, "text/plain", ("Error in wrap(): " + illegalStateException.getMessage() + "\n").getBytes(UTF_8));
+				}
+				return;
+			}
+
+			StringBuilder results = new StringBuilder("[");
+
+			for(int i = 0; i < trials.length(); i++) {
+				if(i > 0) {
+					results.append(',');
+				}
+
+				try {
+					JSONObject normalizedData = trials.optJSONObject(i);
+					if(normalizedData == null) {
+						throw new IllegalStateException("The trial is not a JSON object.");
+					}
+					results.append(new String(resultsFor(CompactDataEncoding.toRows(normalizedData)), UTF_8));
+
+				} catch(IllegalStateException illegalStateException) {
+					numberOfTrialErrors.incrementAndGet();
+					results.append("{\"").append(BatchAnalysisBackend.ERROR_KEY).append("\":")
+						.append(JSONObject.quote("Error in wrap(): " + illegalStateException.getMessage())).append('}');
+				}
+			}
+
+			results.append(']');
+			respond(exchange, 200, "application/json", results.toString().getBytes(UTF_8));
+		}
+
+		/**
+		 * Returns the results for a trial.
+		 *
+		 * @throws IllegalStateException The native backend could not analyze
+		 * 								 the trial.
+		 */
+		private byte[] resultsFor(final JSONObject normalizedData) {
+			String canonicalData = canonical(normalizedData);
+			byte[] results = resultsByData.get(canonicalData);
+
+			if(results != null) {
+				numberOfReplays.incrementAndGet();
+				return results;
+			}
+
+			numberOfSubstitutes.incrementAndGet();
+
+			if(nativeForUnmatched) {
+				return nativeBackend.analyze(normalizedData.toString()).toString().getBytes(UTF_8);
+			}
+
+			// The same request always gets the same substitute
+			return allResults.get((canonicalData.hashCode() & Integer.MAX_VALUE) % allResults.size());
+		}
+	}
+
+	/**
+	 * Returns the request counters as JSON.
+	 */
+	private class StatsHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				respond(exchange, 200, "application/json", stats().getBytes(UTF_8));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Sends the response, gzipped if the client accepts it.
+	 */
+	private void respond(final HttpExchange exchange, final int status, final String contentType, final byte[] body)
+			throws IOException {
+
+		byte[] sentBody = body;
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+
+		if(gzip && acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+			GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+			gzipStream.write(body);
+			gzipStream.close();
+
+			sentBody = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+		exchange.sendResponseHeaders(status, sentBody.length);
+		numberOfBytesSent.addAndGet(sentBody.length);
+
+		OutputStream outputStream = exchange.getResponseBody();
+		outputStream.write(sentBody);
+		outputStream.close();
+	}
+
+	/**
+	 * Counts the bytes of a request body as they were sent.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		public CountingInputStream(final InputStream inputStream) {
+			super(inputStream);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int next = super.read();
+			if(next >= 0) {
+				count++;
+			}
+			return next;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if(read > 0) {
+				count += read;
+			}
+			return read;
+		}
+	}
+
+	private static JSONObject readJson(final File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+
+		try {
+			return new JSONObject(new JSONTokener(reader));
+		} catch(JSONException jsonException) {
+			throw new IOException("Could not parse the fixture " + file.getAbsolutePath(), jsonException);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String canonical(final JSONObject json) {
+		StringBuilder builder = new StringBuilder();
+
+		try {
+			CachingAnalysisBackend.appendCanonical(json, builder);
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not serialize the normalized data", jsonException);
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * <p>
+	 * A response time distribution, written as its name and parameters in
+	 * milliseconds:
+	 * </p>
+	 *
+	 * <ul>
+	 * <li>constant:MILLIS</li>
+	 * <li>uniform:MIN,MAX</li>
+	 * <li>exponential:MEAN</li>
+	 * <li>lognormal:MEDIAN,SIGMA, where SIGMA is the standard deviation of
+	 * the log of the latency and controls the length of the tail</li>
+	 * </ul>
+	 */
+	static class LatencyDistribution {
+		private final String specification;
+		private final String name;
+		private final double first;
+		private final double second;
+
+		private LatencyDistribution(final String pSpecification, final String pName, final double pFirst, final double pSecond) {
+			specification = pSpecification;
+			name = pName;
+			first = pFirst;
+			second = pSecond;
+		}
+
+		static LatencyDistribution parse(final String specification) {
+			int colon = specification.indexOf(':');
+
+			try {
+				if(colon < 0) {
+					throw new NumberFormatException();
+				}
+
+				String name = specification.substring(0, colon);
+				String[] parameters = specification.substring(colon + 1).split(",");
+				double first = Double.parseDouble(parameters[0].trim());
+				double second = parameters.length > 1 ? Double.parseDouble(parameters[1].trim()) : 0;
+
+				boolean twoParameters = "uniform".equals(name) || "lognormal".equals(name);
+				boolean oneParameter = "constant".equals(name) || "exponential".equals(name);
+
+				if((! twoParameters && ! oneParameter) || parameters.length != (twoParameters ? 2 : 1) || first < 0 || second < 0
+						|| ("uniform".equals(name) && second < first)) {
+					throw new NumberFormatException();
+				}
+
+				return new LatencyDistribution(specification, name, first, second);
+
+			} catch(NumberFormatException invalidSpecification) {
+				LOGGER.error("The standin.latency property must be constant:MILLIS, uniform:MIN,MAX, exponential:MEAN or "
+					+ "lognormal:MEDIAN,SIGMA. The value is: " + specification);
+				throw new IllegalStateException(CONFIGURATION_ERROR);
+			}
+		}
+
+		long nextMillis(final Random random) {
+			double millis;
+
+			if("uniform".equals(name)) {
+				millis = first + random.nextDouble() * (second - first);
+			} else if("exponential".equals(name)) {
+				millis = -first * Math.log(1 - random.nextDouble());
+			} else if("lognormal".equals(name)) {
+				millis = first * Math.exp(second * random.nextGaussian());
+			} else {
+				millis = first;
+			}
+
+			return Math.round(millis);
+		}
+
+		@Override
+		public String toString() {
+			return specification;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * OpenCPU answered a call with a status other than 200. A 5xx status means
+ * the R session or the server failed and the call may succeed if it is
+ * sent again. A 4xx status means OpenCPU rejected the request itself.
+ * </p>
+ */
+public class OpenCpuStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+	private final String responseBody;
+
+	/**
+	 * Creates the exception for a response.
+	 *
+	 * @param pStatusCode The HTTP status of the response.
+	 *
+	 * @param message The detail message.
+	 *
+	 * @param pResponseBody The body of the response, which holds OpenCPU's
+	 * 						error.
+	 */
+	public OpenCpuStatusException(final int pStatusCode, final String message, final String pResponseBody) {
+		super(message);
+		statusCode = pStatusCode;
+		responseBody = pResponseBody;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public String getResponseBody() {
+		return responseBody;
+	}
+
+	/**
+	 * Returns whether the status is a server error.
+	 *
+	 * @return Whether the status is 5xx.
+	 */
+	public boolean isServerError() {
+		return statusCode >= 500;
+	}
+}
@@ -0,0 +1,369 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * <p>
+ * Lets several processor instances share the trials of a campaign. The
+ * trials are split into a fixed number of partitions by user ID, and an
+ * instance only normalizes, analyzes and writes the trials of the
+ * partitions it holds a lease on. The leases are rows in the
+ * trialist_partition_lease table, which is created the first time leases
+ * are claimed.
+ * </p>
+ *
+ * <p>
+ * A lease expires leaseSeconds after it was last renewed, measured by the
+ * database clock so the instances' clocks do not matter. Held leases are
+ * renewed in the background at a third of that interval. An instance that
+ * cannot renew a lease stops treating the partition as its own before the
+ * lease can expire in the database.
+ * </p>
+ *
+ * <p>
+ * The local view decides which trials are worth analyzing, but a trial's
+ * rows are only written in a transaction that has locked its lease row
+ * and found it unexpired by {@link #lockPartitionsOf(Set)}. A lease cannot
+ * be taken over while the row is locked, so two instances never write the
+ * same trial, however long the analysis and the queued batches take.
+ * </p>
+ *
+ * <p>
+ * A run that processed every trial of a partition marks the partition as
+ * finished for its run ID instead of giving the lease up. Instances that
+ * start later with the same run ID do not claim it again, so the trials of
+ * a reprocessing run spread over several machines are only analyzed once.
+ * A run with another run ID claims the partition as if it were free.
+ * </p>
+ */
+public class PartitionLeases {
+	private static final Logger LOGGER = Logger.getLogger(PartitionLeases.class);
+
+	private static final String SQL_CREATE_LEASE_TABLE =
+		"CREATE TABLE IF NOT EXISTS trialist_partition_lease (" +
+			"campaign_urn varchar(255) NOT NULL, " +
+			"partition_number int unsigned NOT NULL, " +
+			"owner varchar(255) NOT NULL, " +
+			"expires_at bigint NOT NULL, " +
+			"finished_run_id varchar(255) DEFAULT NULL, " +
+			"PRIMARY KEY (campaign_urn, partition_number)" +
+		") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+
+	// expires_at is in UNIX_TIMESTAMP() seconds of the database clock
+	private static final String SQL_INSERT_LEASE =
+		"INSERT IGNORE INTO trialist_partition_lease (campaign_urn, partition_number, owner, expires_at) " +
+		"VALUES (?, ?, ?, UNIX_TIMESTAMP() + ?)";
+
+	// A partition finished by a run with the same run ID is not taken over
+	private static final String SQL_TAKE_OVER_LEASE =
+		"UPDATE trialist_partition_lease SET owner = ?, expires_at = UNIX_TIMESTAMP() + ?, finished_run_id = NULL " +
+		"WHERE campaign_urn = ? AND partition_number = ? AND (owner = ? OR expires_at < UNIX_TIMESTAMP()) " +
+			"AND (finished_run_id IS NULL OR finished_run_id <> ?)";
+
+	private static final String SQL_RENEW_LEASE =
+		"UPDATE trialist_partition_lease SET expires_at = UNIX_TIMESTAMP() + ? " +
+		"WHERE campaign_urn = ? AND partition_number = ? AND owner = ? AND finished_run_id IS NULL";
+
+	// Locks the lease rows until the transaction ends. The IN list placeholders are appended per call.
+	private static final String SQL_LOCK_HELD_LEASES =
+		"SELECT partition_number FROM trialist_partition_lease " +
+		"WHERE campaign_urn = ? AND owner = ? AND expires_at > UNIX_TIMESTAMP() AND partition_number IN ";
+
+	// Only while the lease is still held, so every write of the partition's trials was allowed. The lease expires at once.
+	private static final String SQL_FINISH_LEASE =
+		"UPDATE trialist_partition_lease SET finished_run_id = ?, expires_at = 0 " +
+		"WHERE campaign_urn = ? AND partition_number = ? AND owner = ? AND expires_at > UNIX_TIMESTAMP()";
+
+	private static final String SQL_RELEASE_LEASES =
+		"DELETE FROM trialist_partition_lease WHERE campaign_urn = ? AND owner = ? AND finished_run_id IS NULL";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final String campaignUrn;
+	private final String owner;
+	private final int numberOfPartitions;
+	private final int maxPartitions;
+	private final int leaseSeconds;
+
+	// Partition number to the System.nanoTime() until which this instance may treat the partition as its own
+	private final Map<Integer, Long> validUntilNanos = new ConcurrentHashMap<Integer, Long>();
+
+	// The held partitions that some trials were skipped in because this instance could not be sure it held them
+	private final Set<Integer> lapsedPartitions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	// Identifies the run the leases are claimed for
+	private String runId;
+
+	private ScheduledThreadPoolExecutor renewalExecutor;
+
+	/**
+	 * Creates leases that have not been claimed yet.
+	 *
+	 * @param pJdbcTemplate The template for the ohmage database.
+	 *
+	 * @param pCampaignUrn The campaign whose trials are partitioned.
+	 *
+	 * @param pOwner Identifies this instance in the lease table.
+	 *
+	 * @param pNumberOfPartitions The number of partitions. Every instance
+	 * 							  must use the same number.
+	 *
+	 * @param pMaxPartitions The most partitions this instance claims.
+	 *
+	 * @param pLeaseSeconds How long a lease lasts without being renewed.
+	 */
+	public PartitionLeases(
+			final JdbcTemplate pJdbcTemplate,
+			final String pCampaignUrn,
+			final String pOwner,
+			final int pNumberOfPartitions,
+			final int pMaxPartitions,
+			final int pLeaseSeconds) {
+
+		jdbcTemplate = pJdbcTemplate;
+		campaignUrn = pCampaignUrn;
+		owner = pOwner;
+		numberOfPartitions = pNumberOfPartitions;
+		maxPartitions = pMaxPartitions;
+		leaseSeconds = pLeaseSeconds;
+	}
+
+	/**
+	 * Claims free and expired partitions, up to the maximum, and starts
+	 * renewing them. Partitions a run with the same run ID has finished are
+	 * not claimed. Instances start looking at different partitions so that
+	 * instances started together do not compete for the same rows.
+	 *
+	 * @param pRunId Identifies the run. Instances that share the work of one
+	 * 				 run must use the same run ID.
+	 *
+	 * @return The number of partitions claimed.
+	 *
+	 * @throws DataAccessException The lease table could not be read or
+	 * 							   updated.
+	 */
+	public int claim(final String pRunId) {
+		runId = pRunId;
+		jdbcTemplate.execute(SQL_CREATE_LEASE_TABLE);
+
+		int firstPartition = (owner.hashCode() & Integer.MAX_VALUE) % numberOfPartitions;
+
+		for(int i = 0; i < numberOfPartitions && validUntilNanos.size() < maxPartitions; i++) {
+			int partition = (firstPartition + i) % numberOfPartitions;
+			long requestNanos = System.nanoTime();
+
+			boolean claimed =
+				jdbcTemplate.update(SQL_INSERT_LEASE, campaignUrn, partition, owner, leaseSeconds) == 1
+				|| jdbcTemplate.update(SQL_TAKE_OVER_LEASE, owner, leaseSeconds, campaignUrn, partition, owner, runId) == 1;
+
+			if(claimed) {
+				validUntilNanos.put(partition, validUntil(requestNanos));
+			}
+		}
+
+		LOGGER.info(owner + " holds " + validUntilNanos.size() + " of " + numberOfPartitions + " partition(s) of "
+			+ campaignUrn + ": " + validUntilNanos.keySet());
+
+		if(! validUntilNanos.isEmpty()) {
+			renewalExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "partition-lease-renewal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			long renewalPeriodMillis = Math.max(1, leaseSeconds * 1000L / 3);
+			renewalExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					renew();
+				}
+			}, renewalPeriodMillis, renewalPeriodMillis, TimeUnit.MILLISECONDS);
+		}
+
+		return validUntilNanos.size();
+	}
+
+	/**
+	 * Returns the partition of a user's trials.
+	 *
+	 * @param userId The user's ID.
+	 *
+	 * @return The partition number.
+	 */
+	public int partitionOf(final long userId) {
+		return (int) ((userId % numberOfPartitions + numberOfPartitions) % numberOfPartitions);
+	}
+
+	/**
+	 * Returns whether this instance currently holds the lease on the
+	 * partition of the user's trials. May be called from any thread.
+	 *
+	 * @param userId The user's ID.
+	 *
+	 * @return Whether the user's trials may be written.
+	 */
+	public boolean holdsPartitionOf(final long userId) {
+		int partition = partitionOf(userId);
+		Long validUntil = validUntilNanos.get(partition);
+
+		if(validUntil == null) {
+			return false;
+		}
+
+		if(System.nanoTime() - validUntil >= 0) {
+			lapsedPartitions.add(partition);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Locks the lease rows of the users' partitions until the current
+	 * transaction ends and returns the users whose partition this instance
+	 * still holds by the database clock. Must be called in a transaction on
+	 * the same database as the leases. Until the transaction ends, no other
+	 * instance can take those partitions over.
+	 *
+	 * @param userIds The users whose rows the transaction writes.
+	 *
+	 * @return The users whose rows the transaction may write.
+	 *
+	 * @throws DataAccessException The lease table could not be read.
+	 */
+	public Set<Long> lockPartitionsOf(final Set<Long> userIds) {
+		Set<Integer> partitions = new HashSet<Integer>();
+		for(Long userId : userIds) {
+			partitions.add(partitionOf(userId));
+		}
+
+		List<Object> args = new ArrayList<Object>();
+		args.add(campaignUrn);
+		args.add(owner);
+
+		StringBuilder sql = new StringBuilder(SQL_LOCK_HELD_LEASES).append('(');
+		for(Integer partition : partitions) {
+			sql.append(args.size() == 2 ? "?" : ", ?");
+			args.add(partition);
+		}
+		sql.append(") FOR UPDATE");
+
+		Set<Integer> heldPartitions = new HashSet<Integer>(
+			jdbcTemplate.queryForList(sql.toString(), Integer.class, args.toArray()));
+
+		Set<Long> writableUsers = new HashSet<Long>();
+		for(Long userId : userIds) {
+			if(heldPartitions.contains(partitionOf(userId))) {
+				writableUsers.add(userId);
+			}
+		}
+
+		for(Integer partition : partitions) {
+			if(! heldPartitions.contains(partition) && validUntilNanos.containsKey(partition)) {
+				lapsedPartitions.add(partition);
+			}
+		}
+
+		if(heldPartitions.size() < partitions.size()) {
+			LOGGER.error("Lost the lease on " + (partitions.size() - heldPartitions.size()) + " partition(s) of " + campaignUrn
+				+ " before their trials were written. Their trials are left to the instance that holds them.");
+		}
+
+		return writableUsers;
+	}
+
+	/**
+	 * Marks every partition this instance still holds, and processed without
+	 * skipping any trial, as finished for the run. Call once every trial of
+	 * the held partitions has been written, before {@link #release()}.
+	 *
+	 * @throws DataAccessException The lease table could not be updated.
+	 */
+	public void finish() {
+		if(renewalExecutor != null) {
+			renewalExecutor.shutdownNow();
+		}
+
+		int numberOfFinishedPartitions = 0;
+
+		for(Integer partition : new ArrayList<Integer>(validUntilNanos.keySet())) {
+			if(! lapsedPartitions.contains(partition)
+					&& jdbcTemplate.update(SQL_FINISH_LEASE, runId, campaignUrn, partition, owner) == 1) {
+				numberOfFinishedPartitions++;
+			}
+		}
+
+		LOGGER.info(owner + " finished " + numberOfFinishedPartitions + " partition(s) of " + campaignUrn + " for the run "
+			+ runId);
+	}
+
+	/**
+	 * Stops renewing and gives up every lease this instance holds on the
+	 * campaign and has not finished, so other instances can claim the
+	 * partitions right away.
+	 */
+	public void release() {
+		if(renewalExecutor != null) {
+			renewalExecutor.shutdownNow();
+		}
+
+		validUntilNanos.clear();
+
+		try {
+			jdbcTemplate.update(SQL_RELEASE_LEASES, campaignUrn, owner);
+		} catch(DataAccessException dataAccessException) {
+			LOGGER.warn("Could not release the partition leases of " + owner + ". They expire in at most " + leaseSeconds
+				+ " seconds.", dataAccessException);
+		}
+	}
+
+	/**
+	 * Extends every held lease. A lease that another instance has taken over
+	 * is dropped. A lease that cannot be renewed because of a database error
+	 * is kept until it may have expired.
+	 */
+	private void renew() {
+		List<Integer> partitions = new ArrayList<Integer>(validUntilNanos.keySet());
+
+		for(Integer partition : partitions) {
+			long requestNanos = System.nanoTime();
+
+			try {
+				if(jdbcTemplate.update(SQL_RENEW_LEASE, leaseSeconds, campaignUrn, partition, owner) == 1) {
+					validUntilNanos.put(partition, validUntil(requestNanos));
+				} else {
+					LOGGER.error("Lost the lease on partition " + partition + " of " + campaignUrn
+						+ ". Its remaining trials are left to the instance that holds it.");
+					validUntilNanos.remove(partition);
+				}
+			} catch(DataAccessException dataAccessException) {
+				LOGGER.warn("Could not renew the lease on partition " + partition + " of " + campaignUrn, dataAccessException);
+			}
+		}
+	}
+
+	/**
+	 * Returns the local time until which a lease renewed by a request sent at
+	 * requestNanos is certainly valid. The database starts the lease after
+	 * the request was sent, and a tenth of the lease is kept as a margin for
+	 * the trial that is being written when it runs out.
+	 */
+	private long validUntil(final long requestNanos) {
+		return requestNanos + TimeUnit.SECONDS.toNanos(leaseSeconds) / 10 * 9;
+	}
+}
@@ -0,0 +1,299 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONTokener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * <p>
+ * Keeps track of which trials already have analysis results. The keys are
+ * kept in the trialist_processed_trial table next to the ID of the newest
+ * observer_stream_data row they were read from, so each refresh only reads
+ * analysis results written since the previous refresh. Loading the index
+ * therefore costs one row per distinct trial instead of one full result
+ * blob per analysis ever run.
+ * </p>
+ *
+ * <p>
+ * The table is created the first time the index is refreshed and is then
+ * backfilled from every existing result row.
+ * </p>
+ *
+ * <p>
+ * Auto-increment IDs are handed out when rows are inserted, not when they
+ * are committed, so a result row can commit after a row with a higher ID
+ * has already been indexed. A refresh would skip such a row for good. The
+ * processor therefore adds the trials of the results it writes with
+ * {@link #record(List, List)}, in the transaction that inserts the
+ * results, under the IDs of those rows. A refresh only has to find results
+ * that were written some other way, like those written before the index
+ * existed. It finds them only if they commit before any result with a
+ * higher ID is indexed, so every writer of analysis results that runs
+ * while the index is in use, including an older processor during a
+ * rollout, must go through {@link #record(List, List)}.
+ * </p>
+ *
+ * <p>
+ * The index is written to the primary database. The analysis results and
+ * the index are read from the read replica once it has caught up with the
+ * rows written to the primary.
+ * </p>
+ */
+public class ProcessedTrialIndex {
+	private static final Logger LOGGER = Logger.getLogger(ProcessedTrialIndex.class);
+
+	// The key stored with each analysis result that identifies the trial
+	private static final String SETUP_SURVEY_ID_KEY = "setup_survey_id";
+
+	private static final String SQL_CREATE_PROCESSED_TRIAL_TABLE =
+		"CREATE TABLE IF NOT EXISTS trialist_processed_trial (" +
+			"user_id int unsigned NOT NULL, " +
+			"setup_survey_uuid varchar(36) NOT NULL, " +
+			"observer_stream_data_id bigint unsigned NOT NULL, " +
+			"PRIMARY KEY (user_id, setup_survey_uuid), " +
+			"KEY (observer_stream_data_id)" +
+		") ENGINE=InnoDB DEFAULT CHARSET=utf8";
+
+	private static final String SQL_SELECT_LAST_INDEXED_ID =
+		"SELECT COALESCE(MAX(observer_stream_data_id), 0) FROM trialist_processed_trial";
+
+	// Only the analysis results written since the last refresh
+	private static final String SQL_SELECT_NEW_ANALYSIS_RESULTS =
+		"SELECT id, user_id, data FROM observer_stream_data " +
+		"WHERE observer_stream_link_id = ? AND id > ? " +
+		"ORDER BY id";
+
+	private static final String SQL_UPSERT_PROCESSED_TRIAL =
+		"INSERT INTO trialist_processed_trial (user_id, setup_survey_uuid, observer_stream_data_id) VALUES (?, ?, ?) " +
+		"ON DUPLICATE KEY UPDATE observer_stream_data_id = GREATEST(observer_stream_data_id, VALUES(observer_stream_data_id))";
+
+	private static final String SQL_SELECT_PROCESSED_TRIALS =
+		"SELECT user_id, setup_survey_uuid FROM trialist_processed_trial";
+
+	private final ReplicaRouting replicaRouting;
+	private final JdbcTemplate jdbcTemplate;
+	private final int batchSize;
+
+	/**
+	 * Creates an index stored in the ohmage database.
+	 *
+	 * @param pReplicaRouting Routes the reads and writes of the index to the
+	 * 						  primary database or its replica.
+	 *
+	 * @param pBatchSize The number of index rows written per JDBC batch.
+	 */
+	public ProcessedTrialIndex(final ReplicaRouting pReplicaRouting, final int pBatchSize) {
+		replicaRouting = pReplicaRouting;
+		jdbcTemplate = pReplicaRouting.getPrimary();
+		batchSize = pBatchSize;
+	}
+
+	/**
+	 * Adds the trials of any analysis results written since the last refresh
+	 * to the index, creating the index table if it does not exist.
+	 *
+	 * @param analysisResultsStreamLinkId The observer_stream_link ID of the
+	 * 									  analysis results stream.
+	 *
+	 * @throws DataAccessException There was an error reading or updating the
+	 * 							   index.
+	 */
+	public void refresh(final long analysisResultsStreamLinkId) {
+		jdbcTemplate.execute(SQL_CREATE_PROCESSED_TRIAL_TABLE);
+
+		long lastIndexedId = jdbcTemplate.queryForLong(SQL_SELECT_LAST_INDEXED_ID);
+
+		final List<Object[]> rows = new ArrayList<Object[]>();
+
+		JdbcTemplate analysisResultsTemplate = replicaRouting.caughtUp();
+
+		analysisResultsTemplate.query(
+			new StreamingPreparedStatementCreator(
+				SQL_SELECT_NEW_ANALYSIS_RESULTS, new Object[] { analysisResultsStreamLinkId, lastIndexedId }),
+			new RowCallbackHandler() {
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					long id = rs.getLong("id");
+					String setupSurveyUuid = null;
+					Reader data = rs.getCharacterStream("data");
+
+					try {
+						setupSurveyUuid = extractString(data, SETUP_SURVEY_ID_KEY);
+					} catch(JSONException jsonException) {
+						throw new SQLException("Could not retrieve value for setup_survey_id in trial analysis results. " +
+							"The primary key for the row in observer_stream_data is " + id, jsonException);
+					} finally {
+						try {
+							data.close();
+						} catch(IOException ioException) {
+							LOGGER.warn("Could not close the analysis results stream.", ioException);
+						}
+					}
+
+					if(setupSurveyUuid == null) {
+						throw new SQLException("Found trial analysis results without a setup_survey_id. The primary key for " +
+							"the row in observer_stream_data is " + id);
+					}
+
+					rows.add(new Object[] { rs.getLong("user_id"), setupSurveyUuid, id });
+				}
+			}
+		);
+
+		// The streamed result set must be closed before the connection can write if both are the primary
+		for(int i = 0; i < rows.size(); i += batchSize) {
+			jdbcTemplate.batchUpdate(SQL_UPSERT_PROCESSED_TRIAL, rows.subList(i, Math.min(i + batchSize, rows.size())));
+		}
+
+		LOGGER.info("Indexed " + rows.size() + " new analysis result(s) after observer_stream_data ID " + lastIndexedId);
+	}
+
+	/**
+	 * Adds the trials of analysis results that the current transaction has
+	 * just inserted. Must be called in that transaction, so the trials are
+	 * committed together with their results. The index table must exist.
+	 *
+	 * @param trialKeys The trials of the inserted results.
+	 *
+	 * @param ids The observer_stream_data IDs of the inserted results, in
+	 * 			  the order of their trials.
+	 *
+	 * @throws DataAccessException There was an error updating the index.
+	 */
+	public void record(final List<TrialKey> trialKeys, final List<Long> ids) {
+		// Only the IDs of these rows, so the index never claims rows of other writers that it has not read
+		List<Object[]> rows = new ArrayList<Object[]>(trialKeys.size());
+		for(int i = 0; i < trialKeys.size(); i++) {
+			TrialKey trialKey = trialKeys.get(i);
+			rows.add(new Object[] { trialKey.getUserId(), trialKey.getSetupSurveyUuid(), ids.get(i) });
+		}
+
+		jdbcTemplate.batchUpdate(SQL_UPSERT_PROCESSED_TRIAL, rows);
+	}
+
+	/**
+	 * Returns the keys of every trial that has been processed at least once.
+	 *
+	 * @return A set of trial keys.
+	 *
+	 * @throws DataAccessException There was an error reading the index.
+	 */
+	public Set<TrialKey> getProcessedTrials() {
+		final Set<TrialKey> processedTrials = new HashSet<TrialKey>();
+
+		// The rows indexed by the last refresh may not have reached the replica yet
+		replicaRouting.caughtUp().query(
+			SQL_SELECT_PROCESSED_TRIALS,
+			new RowCallbackHandler() {
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					processedTrials.add(new TrialKey(rs.getLong("user_id"), rs.getString("setup_survey_uuid")));
+				}
+			}
+		);
+
+		return processedTrials;
+	}
+
+	/**
+	 * Reads a JSON object from the reader until the top-level key is found
+	 * and returns its string value without building the rest of the object.
+	 * Nested objects and arrays before the key are skipped character by
+	 * character.
+	 *
+	 * @param reader The reader positioned at the start of a JSON object.
+	 *
+	 * @param key The top-level key whose value should be returned.
+	 *
+	 * @return The string value of the key or null if the object does not
+	 * 		   contain the key.
+	 *
+	 * @throws JSONException The text is not a JSON object or the value of
+	 * 						 the key is not a string.
+	 */
+	static String extractString(final Reader reader, final String key) throws JSONException {
+		JSONTokener tokener = new JSONTokener(reader);
+
+		if(tokener.nextClean() != '{') {
+			throw tokener.syntaxError("A JSONObject text must begin with '{'");
+		}
+		if(tokener.nextClean() == '}') {
+			return null;
+		}
+		tokener.back();
+
+		while(true) {
+			if(tokener.nextClean() != '"') {
+				throw tokener.syntaxError("Expected a quoted key");
+			}
+			String name = tokener.nextString('"');
+
+			if(tokener.nextClean() != ':') {
+				throw tokener.syntaxError("Expected a ':' after a key");
+			}
+
+			if(key.equals(name)) {
+				if(tokener.nextClean() != '"') {
+					throw tokener.syntaxError("Expected a string value for the key " + key);
+				}
+				return tokener.nextString('"');
+			}
+
+			skipValue(tokener);
+
+			char c = tokener.nextClean();
+			if(c == '}') {
+				return null;
+			} else if(c != ',') {
+				throw tokener.syntaxError("Expected a ',' or '}'");
+			}
+		}
+	}
+
+	/**
+	 * Advances the tokener past the next value without keeping it.
+	 */
+	private static void skipValue(final JSONTokener tokener) throws JSONException {
+		char c = tokener.nextClean();
+
+		if(c == '"') {
+			tokener.nextString('"');
+
+		} else if(c == '{' || c == '[') {
+			int depth = 1;
+
+			while(depth > 0) {
+				c = tokener.next();
+
+				if(c == 0) {
+					throw tokener.syntaxError("Unterminated object or array");
+				} else if(c == '"') {
+					tokener.nextString('"');
+				} else if(c == '{' || c == '[') {
+					depth++;
+				} else if(c == '}' || c == ']') {
+					depth--;
+				}
+			}
+
+		} else {
+			// A number, boolean or null runs until the next delimiter
+			while(c != 0 && c != ',' && c != '}' && c != ']' && ! Character.isWhitespace(c)) {
+				c = tokener.next();
+			}
+			tokener.back();
+		}
+	}
+}
@@ -0,0 +1,693 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTimeZone;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * <p>
+ * The connection pools and settings shared by every processor run: the
+ * database connection pools, the analysis backend and the values
+ * read from the configuration file. A single instance can serve any number
+ * of runs, which lets a long-running process keep its connections warm.
+ * </p>
+ */
+public class ProcessorResources {
+	private static final Logger LOGGER = Logger.getLogger(ProcessorResources.class);
+
+	// The values of input.source
+	private static final String JDBC_SOURCE = "jdbc";
+	private static final String FILES_SOURCE = "files";
+
+	// The values of analysis.backend
+	private static final String OPENCPU_BACKEND = "opencpu";
+	private static final String NATIVE_BACKEND = "native";
+
+	// The values of analysis.native.fallback
+	private static final String NO_FALLBACK = "none";
+
+	// The values of analysis.opencpu.dataEncoding
+	private static final String ROWS_ENCODING = "rows";
+	private static final String COLUMNS_ENCODING = "columns";
+
+	// The values of analysis.opencpu.requestCompression
+	private static final String GZIP_COMPRESSION = "gzip";
+	private static final String NO_COMPRESSION = "none";
+
+	// The number of trials sent to OpenCPU at the same time if analysis.threads is not configured
+	private static final int DEFAULT_ANALYSIS_THREADS = 4;
+
+	// The TrialistNof1 version assumed if analysis.opencpu.packageVersion is not configured
+	private static final String DEFAULT_PACKAGE_VERSION = "unversioned";
+
+	// The maximum size of the analysis cache if analysis.cache.maxSizeMegabytes is not configured
+	private static final int DEFAULT_CACHE_SIZE_MEGABYTES = 100;
+
+	// How many survey_response IDs below its checkpoint an incremental run reads again if checkpoint.overlapIds is not
+	// configured. It covers the surveys inserted while a setup or start survey's transaction was still open.
+	private static final int DEFAULT_CHECKPOINT_OVERLAP_IDS = 10000;
+
+	// The time zone of the database session, read if db.timezone is not configured. A session in the SYSTEM time zone uses
+	// the server's.
+	private static final String SQL_SELECT_SESSION_TIME_ZONE =
+		"SELECT @@session.time_zone AS session_time_zone, @@system_time_zone AS system_time_zone";
+	private static final String SYSTEM_TIME_ZONE = "SYSTEM";
+
+	// The number of observer_stream_data rows written and committed together if db.batchSize is not configured
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	// The connections each campaign of a run holds at the same time: a streaming survey fetch and a transaction for each of 
+	// the normalized data and analysis results writers. The headroom covers the lease renewals and the index and lookup 
+	// queries. Together they size the pool if db.maxActive is not configured.
+	private static final int CONNECTIONS_PER_CAMPAIGN = 3;
+	private static final int CONNECTION_HEADROOM = 4;
+
+	// How long a query waits for a pooled connection if db.maxWaitSeconds is not configured
+	private static final int DEFAULT_MAX_WAIT_SECONDS = 60;
+
+	// How long a read waits for the replica to catch up if db.replica.maxLagSeconds is not configured
+	private static final int DEFAULT_REPLICA_MAX_LAG_SECONDS = 10;
+
+	// How long a partition lease lasts without being renewed if partition.leaseSeconds is not configured
+	private static final int DEFAULT_LEASE_SECONDS = 300;
+
+	// The defaults of the OpenCPU call timeouts, retries and circuit
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	private static final int DEFAULT_READ_TIMEOUT_MILLIS = 300000;
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+	private static final int DEFAULT_RETRY_DELAY_MILLIS = 1000;
+	private static final int DEFAULT_MAX_RETRY_DELAY_MILLIS = 30000;
+	private static final int DEFAULT_CIRCUIT_FAILURES = 10;
+	private static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 60;
+
+	// How long a trial waits for others to join its batch if analysis.opencpu.batchLingerMillis is not configured
+	private static final int DEFAULT_BATCH_LINGER_MILLIS = 200;
+
+	// The number of campaigns of a run processed at the same time if campaigns.threads is not configured
+	private static final int DEFAULT_CAMPAIGN_THREADS = 4;
+
+	private final BasicDataSource dataSource;
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+
+	// null if there is no read replica
+	private final BasicDataSource replicaDataSource;
+	private final ReplicaRouting replicaRouting;
+	// null until the session time zone has been read if db.timezone is not configured
+	private DateTimeZone databaseTimeZone;
+	private final int batchSize;
+	private final SurveyResponseSource surveyResponseSource;
+
+	private final CloseableHttpClient httpClient;
+	private final ResilientAnalysisBackend resilientBackend;
+	private final AnalysisBackend analysisBackend;
+	private final int analysisThreads;
+	private final Semaphore analysisPermits;
+	private final int campaignThreads;
+
+	private final File checkpointDirectory;
+	private final int checkpointOverlapIds;
+	private final File journalDirectory;
+	private final File metricsSummaryFile;
+
+	// 0 if partitioned mode is off
+	private final int numberOfPartitions;
+	private final int maxPartitions;
+	private final int leaseSeconds;
+	private final String leaseOwner;
+	private final String partitionRunId;
+
+	/**
+	 * Creates the resources described by the configuration.
+	 *
+	 * @param configuredProperties The properties from the configuration
+	 * 							   file.
+	 *
+	 * @throws IllegalStateException A required property is missing or a
+	 * 								 property has an invalid value.
+	 */
+	public ProcessorResources(final Properties configuredProperties) {
+		if(configuredProperties.getProperty("db.driver") == null) {
+			LOGGER.error("The configuration file is missing the db.driver property.");
+			throw new IllegalStateException("Incorrect db configuration");
+		}
+
+		if(configuredProperties.getProperty("db.username") == null) {
+			LOGGER.error("The configuration file is missing the db.username property.");
+			throw new IllegalStateException("Incorrect db configuration");
+		}
+
+		if(configuredProperties.getProperty("db.password") == null) {
+			LOGGER.error("The configuration is missing the db.password property.");
+			throw new IllegalStateException("Incorrect db configuration");
+		}
+
+		if(configuredProperties.getProperty("db.jdbcurl") == null) {
+			LOGGER.error("The configuration is missing the db.jdbcurl property.");
+			throw new IllegalStateException("Incorrect db configuration");
+		}
+
+		databaseTimeZone = databaseTimeZone(configuredProperties);
+		batchSize = positiveInteger(configuredProperties, "db.batchSize", DEFAULT_BATCH_SIZE, "Incorrect db configuration");
+		String backend = configuredProperties.getProperty("analysis.backend", OPENCPU_BACKEND).trim();
+		if(! OPENCPU_BACKEND.equals(backend) && ! NATIVE_BACKEND.equals(backend)) {
+			LOGGER.error("The analysis.backend property must be " + OPENCPU_BACKEND + " or " + NATIVE_BACKEND
+				+ ". The value is: " + backend);
+			throw new IllegalStateException("Incorrect analysis configuration");
+		}
+
+		// The trials the native backend refuses as too short are sent to OpenCPU unless the fallback is turned off
+		String fallback = configuredProperties.getProperty("analysis.native.fallback", OPENCPU_BACKEND).trim();
+		if(! OPENCPU_BACKEND.equals(fallback) && ! NO_FALLBACK.equals(fallback)) {
+			LOGGER.error("The analysis.native.fallback property must be " + OPENCPU_BACKEND + " or " + NO_FALLBACK
+				+ ". The value is: " + fallback);
+			throw new IllegalStateException("Incorrect analysis configuration");
+		}
+		boolean usesOpenCpu = OPENCPU_BACKEND.equals(backend) || OPENCPU_BACKEND.equals(fallback);
+
+		// The native backend is CPU bound, so by default it gets one thread per processor
+		int analysisCalls = positiveInteger(configuredProperties, "analysis.threads",
+			NATIVE_BACKEND.equals(backend) ? Runtime.getRuntime().availableProcessors() : DEFAULT_ANALYSIS_THREADS,
+			"Incorrect analysis configuration");
+
+		// In batch mode each OpenCPU call carries up to batchSize trials, and each trial waits for its results on its own
+		// analysis thread
+		int analysisBatchSize = OPENCPU_BACKEND.equals(backend) ? positiveInteger(configuredProperties,
+			"analysis.opencpu.batchSize", 1, "Incorrect analysis configuration") : 1;
+		analysisThreads = analysisCalls * analysisBatchSize;
+
+		// Fair, so the campaigns of a multi-campaign run get the permits in the order their analysis threads ask for them
+		analysisPermits = new Semaphore(analysisThreads, true);
+		campaignThreads = positiveInteger(configuredProperties, "campaigns.threads", DEFAULT_CAMPAIGN_THREADS,
+			"Incorrect campaigns configuration");
+
+		if(configuredProperties.getProperty("checkpoint.directory") != null) {
+			checkpointDirectory = new File(configuredProperties.getProperty("checkpoint.directory").trim());
+		} else {
+			checkpointDirectory = null;
+		}
+		checkpointOverlapIds = positiveInteger(configuredProperties, "checkpoint.overlapIds", DEFAULT_CHECKPOINT_OVERLAP_IDS,
+			"Incorrect checkpoint configuration");
+
+		if(configuredProperties.getProperty("journal.directory") != null) {
+			journalDirectory = new File(configuredProperties.getProperty("journal.directory").trim());
+		} else {
+			journalDirectory = null;
+		}
+
+		if(configuredProperties.getProperty("metrics.summaryFile") != null) {
+			metricsSummaryFile = new File(configuredProperties.getProperty("metrics.summaryFile").trim());
+		} else {
+			metricsSummaryFile = null;
+		}
+
+		if(configuredProperties.getProperty("partition.count") != null) {
+			numberOfPartitions = positiveInteger(configuredProperties, "partition.count", 1, "Incorrect partition configuration");
+			maxPartitions = positiveInteger(configuredProperties, "partition.maxPerInstance", numberOfPartitions,
+				"Incorrect partition configuration");
+			leaseSeconds = positiveInteger(configuredProperties, "partition.leaseSeconds", DEFAULT_LEASE_SECONDS,
+				"Incorrect partition configuration");
+			// The JVM name is pid@host, which is unique to this process
+			leaseOwner = configuredProperties.getProperty("partition.owner", ManagementFactory.getRuntimeMXBean().getName()).trim();
+			partitionRunId = configuredProperties.getProperty("partition.runId") == null ? null
+				: configuredProperties.getProperty("partition.runId").trim();
+			LOGGER.info("Partitioned mode: " + leaseOwner + " claims up to " + maxPartitions + " of " + numberOfPartitions 
+				+ " partition(s) per run");
+		} else {
+			numberOfPartitions = 0;
+			maxPartitions = 0;
+			leaseSeconds = 0;
+			leaseOwner = null;
+			partitionRunId = null;
+		}
+
+		// Both pools are sized for every campaign that may run at the same time. A query that cannot get a connection in time 
+		// fails instead of waiting forever behind long-held streaming connections.
+		int maxActive = positiveInteger(configuredProperties, "db.maxActive", 
+			campaignThreads * CONNECTIONS_PER_CAMPAIGN + CONNECTION_HEADROOM, "Incorrect db configuration");
+		long maxWaitMillis = positiveInteger(configuredProperties, "db.maxWaitSeconds", DEFAULT_MAX_WAIT_SECONDS,
+			"Incorrect db configuration") * 1000L;
+
+		// Set up the database connection
+		dataSource = new BasicDataSource();
+		dataSource.setDriverClassName(configuredProperties.getProperty("db.driver"));
+		dataSource.setUsername(configuredProperties.getProperty("db.username"));
+		dataSource.setPassword(configuredProperties.getProperty("db.password"));
+		dataSource.setUrl(configuredProperties.getProperty("db.jdbcurl"));
+		dataSource.setMaxActive(maxActive);
+		dataSource.setMaxIdle(maxActive);
+		dataSource.setMaxWait(maxWaitMillis);
+		// Lets Connector/J send a JDBC batch of inserts as one multi-row INSERT
+		dataSource.addConnectionProperty("rewriteBatchedStatements", "true");
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+		// The heavy scans are sent to a read replica if there is one, so they do not compete with ohmage's writes
+		if(configuredProperties.getProperty("db.replica.jdbcurl") != null) {
+			replicaDataSource = new BasicDataSource();
+			replicaDataSource.setDriverClassName(configuredProperties.getProperty("db.driver"));
+			replicaDataSource.setUsername(
+				configuredProperties.getProperty("db.replica.username", configuredProperties.getProperty("db.username")));
+			replicaDataSource.setPassword(
+				configuredProperties.getProperty("db.replica.password", configuredProperties.getProperty("db.password")));
+			replicaDataSource.setUrl(configuredProperties.getProperty("db.replica.jdbcurl"));
+			replicaDataSource.setDefaultReadOnly(true);
+			replicaDataSource.setMaxActive(maxActive);
+			replicaDataSource.setMaxIdle(maxActive);
+			replicaDataSource.setMaxWait(maxWaitMillis);
+			replicaRouting = new ReplicaRouting(jdbcTemplate, new JdbcTemplate(replicaDataSource),
+				positiveInteger(configuredProperties, "db.replica.maxLagSeconds", DEFAULT_REPLICA_MAX_LAG_SECONDS,
+					"Incorrect db configuration") * 1000L);
+			LOGGER.info("Sending scans to the read replica at " + replicaDataSource.getUrl());
+		} else {
+			replicaDataSource = null;
+			replicaRouting = new ReplicaRouting(jdbcTemplate, null, 0);
+		}
+
+		// Survey responses are read from the database unless a backfill points the processor at table exports
+		String source = configuredProperties.getProperty("input.source", JDBC_SOURCE).trim();
+		if(JDBC_SOURCE.equals(source)) {
+			surveyResponseSource = new JdbcSurveyResponseSource(replicaRouting.getScanTemplate());
+		} else if(FILES_SOURCE.equals(source)) {
+			if(configuredProperties.getProperty("input.directory") == null) {
+				LOGGER.error("The configuration is missing the input.directory property, which input.source=" + FILES_SOURCE
+					+ " requires.");
+				throw new IllegalStateException("Incorrect input configuration");
+			}
+			File inputDirectory = new File(configuredProperties.getProperty("input.directory").trim());
+			surveyResponseSource = new JsonLinesSurveyResponseSource(inputDirectory);
+			LOGGER.info("Reading survey responses from the exports in " + inputDirectory.getAbsolutePath());
+		} else {
+			LOGGER.error("The input.source property must be " + JDBC_SOURCE + " or " + FILES_SOURCE + ". The value is: " + source);
+			throw new IllegalStateException("Incorrect input configuration");
+		}
+
+		if(usesOpenCpu) {
+			// Set up the pooled HTTP client used for OpenCPU. The pool allows one connection per analysis.threads, so the 
+			// number of concurrent OpenCPU calls is bounded by it. Hedging may double that.
+			double hedgePercentile = hedgePercentile(configuredProperties);
+			int maxConnections = hedgePercentile > 0 ? analysisCalls * 2 : analysisCalls;
+			PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setMaxTotal(maxConnections);
+			connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+			// A connection that cannot be made, or a response that stops arriving, fails the call instead of hanging it
+			int connectTimeoutMillis = positiveInteger(configuredProperties, "analysis.opencpu.connectTimeoutMillis",
+				DEFAULT_CONNECT_TIMEOUT_MILLIS, "Incorrect analysis configuration");
+			RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMillis)
+				.setConnectionRequestTimeout(connectTimeoutMillis)
+				.setSocketTimeout(positiveInteger(configuredProperties, "analysis.opencpu.readTimeoutMillis",
+					DEFAULT_READ_TIMEOUT_MILLIS, "Incorrect analysis configuration"))
+				.build();
+
+			String url = configuredProperties.getProperty("analysis.opencpu.url", OpenCpuAnalysisBackend.DEFAULT_URL).trim();
+			String batchUrl = null;
+			if(analysisBatchSize > 1) {
+				// By default the batch wrapper is taken from the same package as the wrap function
+				if(configuredProperties.getProperty("analysis.opencpu.batchUrl") != null) {
+					batchUrl = configuredProperties.getProperty("analysis.opencpu.batchUrl").trim();
+				} else {
+					batchUrl = OpenCpuAnalysisBackend.batchUrlFor(url);
+				}
+				if(batchUrl == null) {
+					LOGGER.error("The configuration is missing the analysis.opencpu.batchUrl property, which "
+						+ "analysis.opencpu.batchSize requires because analysis.opencpu.url does not end in " 
+						+ OpenCpuAnalysisBackend.WRAP_PATH + ".");
+					throw new IllegalStateException("Incorrect analysis configuration");
+				}
+			}
+
+			String dataEncoding = configuredProperties.getProperty("analysis.opencpu.dataEncoding", ROWS_ENCODING).trim();
+			if(! ROWS_ENCODING.equals(dataEncoding) && ! COLUMNS_ENCODING.equals(dataEncoding)) {
+				LOGGER.error("The analysis.opencpu.dataEncoding property must be " + ROWS_ENCODING + " or " + COLUMNS_ENCODING
+					+ ". The value is: " + dataEncoding);
+				throw new IllegalStateException("Incorrect analysis configuration");
+			}
+
+			String requestCompression = configuredProperties.getProperty("analysis.opencpu.requestCompression", 
+				NO_COMPRESSION).trim();
+			if(! GZIP_COMPRESSION.equals(requestCompression) && ! NO_COMPRESSION.equals(requestCompression)) {
+				LOGGER.error("The analysis.opencpu.requestCompression property must be " + GZIP_COMPRESSION + " or " 
+					+ NO_COMPRESSION + ". The value is: " + requestCompression);
+				throw new IllegalStateException("Incorrect analysis configuration");
+			}
+
+			// The client asks for gzipped responses and decompresses them as they are read
+			httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).build();
+			resilientBackend = new ResilientAnalysisBackend(
+				new OpenCpuAnalysisBackend(httpClient, url, batchUrl,
+					configuredProperties.getProperty("analysis.opencpu.packageVersion", DEFAULT_PACKAGE_VERSION).trim(),
+					COLUMNS_ENCODING.equals(dataEncoding), GZIP_COMPRESSION.equals(requestCompression)),
+				positiveInteger(configuredProperties, "analysis.opencpu.maxAttempts", DEFAULT_MAX_ATTEMPTS,
+					"Incorrect analysis configuration"),
+				positiveInteger(configuredProperties, "analysis.opencpu.retryDelayMillis", DEFAULT_RETRY_DELAY_MILLIS,
+					"Incorrect analysis configuration"),
+				positiveInteger(configuredProperties, "analysis.opencpu.maxRetryDelayMillis", DEFAULT_MAX_RETRY_DELAY_MILLIS,
+					"Incorrect analysis configuration"),
+				hedgePercentile,
+				new CircuitBreaker("OpenCPU",
+					positiveInteger(configuredProperties, "analysis.opencpu.circuitFailures", DEFAULT_CIRCUIT_FAILURES,
+						"Incorrect analysis configuration"),
+					positiveInteger(configuredProperties, "analysis.opencpu.circuitOpenSeconds", DEFAULT_CIRCUIT_OPEN_SECONDS,
+						"Incorrect analysis configuration") * 1000L));
+
+			if(NATIVE_BACKEND.equals(backend)) {
+				LOGGER.info("Sending the trials the native backend cannot analyze to " + url);
+				analysisBackend = cached(new FallbackAnalysisBackend(new NativeAnalysisBackend(), resilientBackend),
+					configuredProperties);
+			} else if(analysisBatchSize > 1) {
+				LOGGER.info("Sending up to " + analysisBatchSize + " trials per OpenCPU call to " + batchUrl);
+				analysisBackend = cached(
+					new BatchingAnalysisBackend(resilientBackend, analysisBatchSize, positiveInteger(configuredProperties,
+						"analysis.opencpu.batchLingerMillis", DEFAULT_BATCH_LINGER_MILLIS, "Incorrect analysis configuration")),
+					configuredProperties);
+			} else {
+				analysisBackend = cached(resilientBackend, configuredProperties);
+			}
+		} else {
+			httpClient = null;
+			resilientBackend = null;
+			analysisBackend = cached(new NativeAnalysisBackend(), configuredProperties);
+		}
+
+		LOGGER.info("Analyzing trials with " + analysisBackend.getVersion() + " on " + analysisThreads + " thread(s)");
+	}
+
+	public JdbcTemplate getJdbcTemplate() {
+		return jdbcTemplate;
+	}
+
+	public TransactionTemplate getTransactionTemplate() {
+		return transactionTemplate;
+	}
+
+	/**
+	 * Returns the routing between the primary database and its read replica.
+	 */
+	public ReplicaRouting getReplicaRouting() {
+		return replicaRouting;
+	}
+
+	/**
+	 * Returns the time zone in which the database computes dates: db.timezone
+	 * if it is configured, or else the time zone of the database session,
+	 * which is read on the first call.
+	 *
+	 * @throws IllegalStateException The session time zone is not one JodaTime
+	 * 								 can parse.
+	 */
+	public synchronized DateTimeZone getDatabaseTimeZone() {
+		if(databaseTimeZone == null) {
+			databaseTimeZone = sessionTimeZone(getJdbcTemplate());
+		}
+		return databaseTimeZone;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public SurveyResponseSource getSurveyResponseSource() {
+		return surveyResponseSource;
+	}
+
+	public AnalysisBackend getAnalysisBackend() {
+		return analysisBackend;
+	}
+
+	public int getAnalysisThreads() {
+		return analysisThreads;
+	}
+
+	/**
+	 * Returns the permits an analysis thread holds while it analyzes a
+	 * trial. There is one per analysis thread, shared by every processor
+	 * that uses these resources.
+	 *
+	 * @return The fair semaphore of the analysis permits.
+	 */
+	public Semaphore getAnalysisPermits() {
+		return analysisPermits;
+	}
+
+	public int getCampaignThreads() {
+		return campaignThreads;
+	}
+
+	/**
+	 * Returns where incremental mode keeps its checkpoints.
+	 *
+	 * @return The checkpoint directory or null if incremental mode is off.
+	 */
+	public File getCheckpointDirectory() {
+		return checkpointDirectory;
+	}
+
+	/**
+	 * Returns how many survey_response IDs below its checkpoint an
+	 * incremental run reads again.
+	 *
+	 * @return The number of IDs.
+	 */
+	public int getCheckpointOverlapIds() {
+		return checkpointOverlapIds;
+	}
+
+	/**
+	 * Returns where the progress journals and quarantined trials are kept.
+	 *
+	 * @return The journal directory or null if runs are not journaled.
+	 */
+	public File getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	/**
+	 * Returns where the metrics of each run are written when it ends.
+	 *
+	 * @return The run summary file or null if no summary is written.
+	 */
+	public File getMetricsSummaryFile() {
+		return metricsSummaryFile;
+	}
+
+	/**
+	 * Creates the partition leases for a run of the campaign.
+	 *
+	 * @param campaignUrn The campaign of the run.
+	 *
+	 * @return The unclaimed leases or null if partitioned mode is off.
+	 */
+	public PartitionLeases createPartitionLeases(final String campaignUrn) {
+		if(numberOfPartitions == 0) {
+			return null;
+		}
+
+		return new PartitionLeases(jdbcTemplate, campaignUrn, leaseOwner, numberOfPartitions, maxPartitions, leaseSeconds);
+	}
+
+	/**
+	 * Returns whether the trials of a campaign are split into partitions.
+	 *
+	 * @return Whether partitioned mode is on.
+	 */
+	public boolean isPartitioned() {
+		return numberOfPartitions > 0;
+	}
+
+	/**
+	 * Returns the configured ID of the run the partitions are claimed for.
+	 *
+	 * @return The run ID, or null if runs are identified by their
+	 * 		   parameters.
+	 */
+	public String getPartitionRunId() {
+		return partitionRunId;
+	}
+
+	/**
+	 * Releases the HTTP and database connections. The resources cannot be
+	 * used afterwards.
+	 */
+	public void close() {
+		if(resilientBackend != null) {
+			resilientBackend.close();
+		}
+
+		if(httpClient != null) {
+			try {
+				httpClient.close();
+			} catch(IOException ioException) {
+				LOGGER.warn("Could not cleanly close the OpenCPU HTTP client.", ioException);
+			}
+		}
+
+		try {
+			dataSource.close();
+		} catch(SQLException sqlException) {
+			LOGGER.warn("Could not cleanly close the database connection pool.", sqlException);
+		}
+
+		if(replicaDataSource != null) {
+			try {
+				replicaDataSource.close();
+			} catch(SQLException sqlException) {
+				LOGGER.warn("Could not cleanly close the read replica connection pool.", sqlException);
+			}
+		}
+	}
+
+	/**
+	 * Wraps the backend with the analysis cache if analysis.cache.directory
+	 * is set.
+	 */
+	private static AnalysisBackend cached(final AnalysisBackend backend, final Properties configuredProperties) {
+		String cacheDirectory = configuredProperties.getProperty("analysis.cache.directory");
+
+		if(cacheDirectory == null) {
+			return backend;
+		}
+
+		long maximumSize = positiveInteger(configuredProperties, "analysis.cache.maxSizeMegabytes",
+			DEFAULT_CACHE_SIZE_MEGABYTES, "Incorrect analysis configuration") * 1024L * 1024L;
+
+		try {
+			return new CachingAnalysisBackend(
+				backend, new AnalysisResultCache(new File(cacheDirectory.trim()), maximumSize, backend.getVersion()));
+		} catch(IOException ioException) {
+			LOGGER.error("Could not open the analysis cache at " + cacheDirectory, ioException);
+			throw new IllegalStateException("Incorrect analysis configuration");
+		}
+	}
+
+	/**
+	 * Returns the latency percentile after which an OpenCPU call is hedged,
+	 * or 0 if analysis.opencpu.hedgePercentile is not set.
+	 */
+	private static double hedgePercentile(final Properties configuredProperties) {
+		String value = configuredProperties.getProperty("analysis.opencpu.hedgePercentile");
+
+		if(value == null) {
+			return 0;
+		}
+
+		try {
+			double percentile = Double.parseDouble(value.trim());
+
+			if(percentile <= 0 || percentile >= 100) {
+				throw new NumberFormatException();
+			}
+
+			return percentile;
+
+		} catch(NumberFormatException numberFormatException) {
+			LOGGER.error("The analysis.opencpu.hedgePercentile property must be a number between 0 and 100. The value is: " + value);
+			throw new IllegalStateException("Incorrect analysis configuration");
+		}
+	}
+
+	/**
+	 * Returns the configured database time zone or null if db.timezone is not
+	 * set.
+	 */
+	private static DateTimeZone databaseTimeZone(final Properties configuredProperties) {
+		String timeZone = configuredProperties.getProperty("db.timezone");
+
+		if(timeZone == null) {
+			return null;
+		}
+
+		try {
+			return DateTimeZone.forID(timeZone.trim());
+		} catch(IllegalArgumentException unknownTimeZone) {
+			LOGGER.error("The db.timezone property is not a time zone JodaTime can parse. The value is: " + timeZone);
+			throw new IllegalStateException("Incorrect db configuration");
+		}
+	}
+
+	/**
+	 * Returns the time zone of a MySQL session. A session in the SYSTEM time
+	 * zone uses the time zone of the database server's operating system, which
+	 * MySQL reports by its name or abbreviation.
+	 *
+	 * @throws IllegalStateException The time zone is not one JodaTime can
+	 * 								 parse.
+	 */
+	private static DateTimeZone sessionTimeZone(final JdbcTemplate jdbcTemplate) {
+		Map<String, Object> timeZones = jdbcTemplate.queryForMap(SQL_SELECT_SESSION_TIME_ZONE);
+		String timeZone = String.valueOf(timeZones.get("session_time_zone")).trim();
+
+		if(SYSTEM_TIME_ZONE.equalsIgnoreCase(timeZone)) {
+			timeZone = String.valueOf(timeZones.get("system_time_zone")).trim();
+		}
+
+		DateTimeZone sessionTimeZone = null;
+		try {
+			// Named zones and offsets such as +02:00
+			sessionTimeZone = DateTimeZone.forID(timeZone);
+		} catch(IllegalArgumentException unknownTimeZone) {
+			// The abbreviations Java still knows, such as PST; unknown ones come back as GMT
+			TimeZone javaTimeZone = TimeZone.getTimeZone(timeZone);
+			if(javaTimeZone.getID().equals(timeZone)) {
+				sessionTimeZone = DateTimeZone.forTimeZone(javaTimeZone);
+			}
+		}
+
+		if(sessionTimeZone == null) {
+			LOGGER.error("The database session time zone is not one JodaTime can parse, so the db.timezone property must be "
+				+ "set. The value is: " + timeZone);
+			throw new IllegalStateException("Incorrect db configuration");
+		}
+
+		LOGGER.info("Using the database session time zone " + sessionTimeZone.getID());
+		return sessionTimeZone;
+	}
+
+	/**
+	 * Returns the configured value of a property that must be a positive
+	 * integer or the default if the property is not set.
+	 */
+	static int positiveInteger(
+			final Properties configuredProperties,
+			final String key,
+			final int defaultValue,
+			final String errorMessage) {
+
+		String value = configuredProperties.getProperty(key);
+
+		if(value == null) {
+			return defaultValue;
+		}
+
+		try {
+			int number = Integer.parseInt(value.trim());
+
+			if(number < 1) {
+				throw new NumberFormatException();
+			}
+
+			return number;
+
+		} catch(NumberFormatException numberFormatException) {
+			LOGGER.error("The " + key + " property must be a positive integer. The value is: " + value);
+			throw new IllegalStateException(errorMessage);
+		}
+	}
+}
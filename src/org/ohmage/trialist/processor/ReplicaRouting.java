@@ -0,0 +1,141 @@
+package org.ohmage.trialist.processor;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * <p>
+ * Decides whether a query is sent to the primary database or to its read
+ * replica. Writes always go to the primary. Scans of ohmage's survey data
+ * go to the replica, where a few seconds of replication lag only make the
+ * run see the surveys as they were a little earlier.
+ * </p>
+ *
+ * <p>
+ * Reads of rows the processor itself wrote, like the normalized data and
+ * the processed trial index, must not miss them. Before such a read the
+ * primary is asked for its binary log position, and the replica is used
+ * once it has applied the log up to that position, so it has every
+ * transaction the primary had committed. Comparing row IDs would not do:
+ * IDs are handed out when rows are inserted, so a row with a lower ID can
+ * commit, and replicate, after a row with a higher ID. A replica that does
+ * not catch up within maxLagMillis is skipped, and the read goes to the
+ * primary. Reading the position needs the REPLICATION CLIENT privilege on
+ * the primary; without it every such read goes to the primary.
+ * </p>
+ *
+ * <p>
+ * Without a replica every query goes to the primary.
+ * </p>
+ */
+public class ReplicaRouting {
+	private static final Logger LOGGER = Logger.getLogger(ReplicaRouting.class);
+
+	private static final String SQL_SHOW_MASTER_STATUS = "SHOW MASTER STATUS";
+
+	// Waits until the replica has applied the log up to the position, and returns -1 on timeout or NULL if it is not a
+	// replica
+	private static final String SQL_MASTER_POS_WAIT = "SELECT MASTER_POS_WAIT(?, ?, ?)";
+
+	private final JdbcTemplate primary;
+	private final JdbcTemplate replica;
+	private final long maxLagMillis;
+
+	/**
+	 * Creates the routing between a primary and its replica.
+	 *
+	 * @param pPrimary The template for the primary database.
+	 *
+	 * @param pReplica The template for the read replica or null if there is
+	 * 				   none.
+	 *
+	 * @param pMaxLagMillis How long a read waits for the replica to catch up
+	 * 						with the primary. It is rounded up to whole
+	 * 						seconds.
+	 */
+	public ReplicaRouting(final JdbcTemplate pPrimary, final JdbcTemplate pReplica, final long pMaxLagMillis) {
+		primary = pPrimary;
+		replica = pReplica;
+		maxLagMillis = pMaxLagMillis;
+	}
+
+	/**
+	 * Returns the template for writes and reads that must see them at once.
+	 *
+	 * @return The template for the primary database.
+	 */
+	public JdbcTemplate getPrimary() {
+		return primary;
+	}
+
+	/**
+	 * Returns the template for scans that may lag behind the primary.
+	 *
+	 * @return The template for the replica, or for the primary if there is
+	 * 		   no replica.
+	 */
+	public JdbcTemplate getScanTemplate() {
+		return replica == null ? primary : replica;
+	}
+
+	/**
+	 * Returns a template that has every transaction the primary has
+	 * committed so far.
+	 *
+	 * @return The template for the replica if it has caught up, otherwise
+	 * 		   the template for the primary.
+	 */
+	public JdbcTemplate caughtUp() {
+		if(replica == null) {
+			return primary;
+		}
+
+		String logFile = null;
+		long logPosition = 0;
+
+		try {
+			List<Map<String, Object>> status = primary.queryForList(SQL_SHOW_MASTER_STATUS);
+
+			if(status.isEmpty()) {
+				LOGGER.warn("The primary does not write a binary log, so the read replica cannot be checked. Reading from the "
+					+ "primary instead.");
+				return primary;
+			}
+
+			logFile = (String) status.get(0).get("File");
+			logPosition = ((Number) status.get(0).get("Position")).longValue();
+
+		} catch(DataAccessException dataAccessException) {
+			LOGGER.warn("Could not read the binary log position of the primary. Reading from the primary instead.",
+				dataAccessException);
+			return primary;
+		}
+
+		Long eventsWaitedFor = null;
+
+		try {
+			eventsWaitedFor = replica.queryForObject(SQL_MASTER_POS_WAIT, Long.class, logFile, logPosition,
+				Math.max(1, (maxLagMillis + 999) / 1000));
+		} catch(DataAccessException dataAccessException) {
+			LOGGER.warn("Could not query the read replica. Reading from the primary instead.", dataAccessException);
+			return primary;
+		}
+
+		if(eventsWaitedFor == null) {
+			LOGGER.warn("The read replica is not replicating. Reading from the primary instead.");
+			return primary;
+		}
+
+		if(eventsWaitedFor < 0) {
+			LOGGER.warn("The read replica had not reached " + logFile + ":" + logPosition + " of the primary after waiting "
+				+ maxLagMillis + " ms. Reading from the primary instead.");
+			return primary;
+		}
+
+		return replica;
+	}
+}
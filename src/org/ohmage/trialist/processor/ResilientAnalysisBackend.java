@@ -0,0 +1,377 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Keeps a remote analysis backend from failing or stalling the run over a
+ * few bad calls. Analyses are pure functions of the normalized data, so a
+ * call may be sent more than once.
+ * </p>
+ *
+ * <ul>
+ * <li>A call that fails because the backend could not be reached, timed out
+ * or answered with a 5xx status is retried up to maxAttempts times in all.
+ * Before each retry the call waits a random time between zero and a
+ * limit that doubles with each attempt, from retryDelayMillis up to
+ * maxRetryDelayMillis. The random spread keeps the analysis threads from
+ * retrying in step.</li>
+ * <li>If hedging is on, a call that has not been answered after the
+ * hedgePercentile latency of the recent calls is sent a second time, and
+ * whichever copy is answered first is used. Hedging starts once enough
+ * calls have been timed.</li>
+ * <li>A {@link CircuitBreaker} refuses calls while the backend keeps
+ * failing, so the remaining trials fail fast instead of each waiting
+ * through its retries.</li>
+ * </ul>
+ *
+ * <p>
+ * A call that fails for good because the backend is unavailable throws
+ * {@link AnalysisBackendUnavailableException}. Other failures, like a 4xx
+ * status or results that cannot be parsed, are thrown as they are without
+ * a retry.
+ * </p>
+ *
+ * <p>
+ * A call whose thread is interrupted is not retried and does not count for
+ * or against the circuit. It throws
+ * {@link AnalysisBackendUnavailableException} with the interrupt flag set,
+ * so the trial is tried again by the next run.
+ * </p>
+ *
+ * <p>
+ * Batches are retried, hedged and counted by the circuit the same way as
+ * single calls.
+ * </p>
+ */
+public class ResilientAnalysisBackend implements BatchAnalysisBackend {
+	private static final Logger LOGGER = Logger.getLogger(ResilientAnalysisBackend.class);
+
+	// Hedging starts once this many calls have been timed, and the percentile is taken over the most recent calls
+	private static final int MIN_LATENCY_SAMPLES = 20;
+	private static final int LATENCY_WINDOW = 200;
+
+	private final BatchAnalysisBackend backend;
+	private final int maxAttempts;
+	private final long retryDelayMillis;
+	private final long maxRetryDelayMillis;
+	private final double hedgePercentile;
+	private final CircuitBreaker circuitBreaker;
+
+	// The latencies of the most recent answered calls in nanoseconds, as a ring
+	private final long[] latencyNanos = new long[LATENCY_WINDOW];
+	private int numberOfLatencies = 0;
+	private int nextLatency = 0;
+
+	// Runs the copies of hedged calls
+	private final ExecutorService hedgeExecutor;
+
+	private final AtomicInteger numberOfRetries = new AtomicInteger();
+	private final AtomicInteger numberOfHedges = new AtomicInteger();
+
+	/**
+	 * Wraps a backend.
+	 *
+	 * @param pBackend The backend whose calls are retried and hedged.
+	 *
+	 * @param pMaxAttempts The most times a call is sent, counting the first.
+	 *
+	 * @param pRetryDelayMillis The limit of the random wait before the first
+	 * 							retry.
+	 *
+	 * @param pMaxRetryDelayMillis The largest limit of the random wait
+	 * 							   before a retry.
+	 *
+	 * @param pHedgePercentile The latency percentile, from 0 to 100
+	 * 						   exclusive, after which a call is sent again,
+	 * 						   or 0 to never hedge.
+	 *
+	 * @param pCircuitBreaker The circuit of the backend.
+	 */
+	public ResilientAnalysisBackend(
+			final BatchAnalysisBackend pBackend,
+			final int pMaxAttempts,
+			final long pRetryDelayMillis,
+			final long pMaxRetryDelayMillis,
+			final double pHedgePercentile,
+			final CircuitBreaker pCircuitBreaker) {
+
+		backend = pBackend;
+		maxAttempts = pMaxAttempts;
+		retryDelayMillis = pRetryDelayMillis;
+		maxRetryDelayMillis = pMaxRetryDelayMillis;
+		hedgePercentile = pHedgePercentile;
+		circuitBreaker = pCircuitBreaker;
+
+		if(hedgePercentile > 0) {
+			hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger numberOfThreads = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "analysis-hedge-" + numberOfThreads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			hedgeExecutor = null;
+		}
+	}
+
+	@Override
+	public String getVersion() {
+		return backend.getVersion();
+	}
+
+	@Override
+	public JSONObject analyze(final String normalizedData) throws IOException {
+		return call(new BackendCall<JSONObject>() {
+			@Override
+			public JSONObject call() throws IOException {
+				return backend.analyze(normalizedData);
+			}
+		});
+	}
+
+	@Override
+	public List<JSONObject> analyzeBatch(final List<String> normalizedData) throws IOException {
+		return call(new BackendCall<List<JSONObject>>() {
+			@Override
+			public List<JSONObject> call() throws IOException {
+				return backend.analyzeBatch(normalizedData);
+			}
+		});
+	}
+
+	/**
+	 * Sends a call, retrying and hedging it.
+	 */
+	private <T> T call(final BackendCall<T> backendCall) throws IOException {
+		IOException lastFailure = null;
+
+		for(int attempt = 1; attempt <= maxAttempts; attempt++) {
+			if(attempt > 1) {
+				long delayMillis = retryDelay(attempt - 1);
+				LOGGER.warn("Retrying an analysis call in " + delayMillis + " ms (attempt " + attempt + " of " + maxAttempts + ", "
+					+ numberOfRetries.incrementAndGet() + " retries so far) after: " + lastFailure);
+				sleep(delayMillis);
+			}
+
+			if(! circuitBreaker.allowCall()) {
+				throw new AnalysisBackendUnavailableException("The analysis backend " + backend.getVersion()
+					+ " is failing and its circuit is open.", lastFailure);
+			}
+
+			boolean answered = false;
+
+			try {
+				T results = hedgedCall(backendCall);
+				answered = true;
+				return results;
+
+			} catch(IOException ioException) {
+				if(! isRetryable(ioException)) {
+					answered = true;
+					throw ioException;
+				}
+				// An interrupted call says nothing about the backend, and is not retried
+				if(Thread.currentThread().isInterrupted()) {
+					throw ioException;
+				}
+				lastFailure = ioException;
+
+			} catch(RuntimeException runtimeException) {
+				// The backend answered, but with something the trial cannot use, unless the call was interrupted
+				answered = ! Thread.currentThread().isInterrupted();
+				throw runtimeException;
+
+			} finally {
+				if(answered) {
+					circuitBreaker.recordSuccess();
+				} else if(Thread.currentThread().isInterrupted()) {
+					circuitBreaker.recordAbandoned();
+				} else {
+					circuitBreaker.recordFailure();
+				}
+			}
+		}
+
+		throw new AnalysisBackendUnavailableException("The analysis backend " + backend.getVersion() + " failed " + maxAttempts
+			+ " time(s) in a row.", lastFailure);
+	}
+
+	/**
+	 * Stops the threads of hedged calls.
+	 */
+	public void close() {
+		if(hedgeExecutor != null) {
+			hedgeExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Sends a call and, if it is slow, a second copy of it. Returns the
+	 * first results. Fails only if every copy fails, with the failure of the
+	 * first copy.
+	 */
+	private <T> T hedgedCall(final BackendCall<T> backendCall) throws IOException {
+		long hedgeDelayNanos = hedgeDelayNanos();
+
+		if(hedgeDelayNanos < 0) {
+			return timedCall(backendCall);
+		}
+
+		Callable<T> call = new Callable<T>() {
+			@Override
+			public T call() throws IOException {
+				return timedCall(backendCall);
+			}
+		};
+
+		CompletionService<T> copies = new ExecutorCompletionService<T>(hedgeExecutor);
+		Future<T> first = copies.submit(call);
+		Future<T> second = null;
+
+		try {
+			Future<T> done = copies.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+
+			if(done == null) {
+				LOGGER.info("Hedging an analysis call that has taken more than " + TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos)
+					+ " ms (" + numberOfHedges.incrementAndGet() + " hedge(s) so far)");
+				second = copies.submit(call);
+				done = copies.take();
+			}
+
+			try {
+				return done.get();
+			} catch(ExecutionException firstFailure) {
+				if(second == null) {
+					throw firstFailure;
+				}
+
+				// The other copy may still be answered
+				try {
+					return copies.take().get();
+				} catch(ExecutionException secondFailure) {
+					throw firstFailure;
+				}
+			}
+
+		} catch(ExecutionException executionException) {
+			Throwable cause = executionException.getCause();
+
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("An analysis call failed.", cause);
+
+		} catch(InterruptedException interruptedException) {
+			// The trial is not at fault, so it is tried again by the next run
+			Thread.currentThread().interrupt();
+			throw new AnalysisBackendUnavailableException("Interrupted while waiting for an analysis call.", interruptedException);
+
+		} finally {
+			// The copy that lost is no longer needed
+			first.cancel(true);
+			if(second != null) {
+				second.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Sends a call and records its latency if it is answered.
+	 */
+	private <T> T timedCall(final BackendCall<T> backendCall) throws IOException {
+		long startNanos = System.nanoTime();
+		T results = backendCall.call();
+		recordLatency(System.nanoTime() - startNanos);
+		return results;
+	}
+
+	private synchronized void recordLatency(final long nanos) {
+		latencyNanos[nextLatency] = nanos;
+		nextLatency = (nextLatency + 1) % LATENCY_WINDOW;
+		numberOfLatencies = Math.min(numberOfLatencies + 1, LATENCY_WINDOW);
+	}
+
+	/**
+	 * Returns how long a call may take before it is hedged, or -1 if it is
+	 * not hedged.
+	 */
+	private synchronized long hedgeDelayNanos() {
+		if(hedgePercentile <= 0 || numberOfLatencies < MIN_LATENCY_SAMPLES) {
+			return -1;
+		}
+
+		long[] sorted = Arrays.copyOf(latencyNanos, numberOfLatencies);
+		Arrays.sort(sorted);
+
+		int index = (int) Math.ceil(hedgePercentile / 100 * numberOfLatencies) - 1;
+		return sorted[Math.max(0, Math.min(index, numberOfLatencies - 1))];
+	}
+
+	/**
+	 * Returns a random wait before a retry, between zero and a limit that
+	 * doubles with each retry.
+	 */
+	private long retryDelay(final int retry) {
+		long limit = retryDelayMillis << Math.min(retry - 1, 30);
+
+		if(limit <= 0 || limit > maxRetryDelayMillis) {
+			limit = maxRetryDelayMillis;
+		}
+
+		return ThreadLocalRandom.current().nextLong(limit + 1);
+	}
+
+	/**
+	 * Returns whether the failure may not happen again if the call is sent
+	 * again: the backend could not be reached, timed out, or failed on its
+	 * side.
+	 */
+	private static boolean isRetryable(final IOException ioException) {
+		if(ioException instanceof OpenCpuStatusException) {
+			return ((OpenCpuStatusException) ioException).isServerError();
+		}
+
+		return true;
+	}
+
+	private static void sleep(final long millis) throws AnalysisBackendUnavailableException {
+		try {
+			Thread.sleep(millis);
+		} catch(InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new AnalysisBackendUnavailableException("Interrupted while waiting to retry an analysis call.",
+				interruptedException);
+		}
+	}
+
+	/**
+	 * A call to the wrapped backend.
+	 */
+	private interface BackendCall<T> {
+		T call() throws IOException;
+	}
+}
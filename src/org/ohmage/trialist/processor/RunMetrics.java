@@ -0,0 +1,176 @@
+package org.ohmage.trialist.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * The metrics of one processor run, one {@link StageMetrics} per stage of
+ * {@link TrialistAnalysisProcessor#run()}. The stages are registered with
+ * the platform MBean server when the run starts, replacing those of the
+ * previous run for the same campaign, so a long-running process shows the
+ * run in progress or the last run. When the run ends, the metrics can be
+ * written as a JSON summary file.
+ * </p>
+ */
+public class RunMetrics {
+	private static final Logger LOGGER = Logger.getLogger(RunMetrics.class);
+
+	private static final String JMX_DOMAIN = "org.ohmage.trialist.processor";
+
+	// The stages, in the order run() goes through them
+	public static final String PROCESSED_TRIAL_LOOKUP = "processedTrialLookup";
+	public static final String TRIAL_SCAN = "trialScan";
+	public static final String FILTERING = "filtering";
+	public static final String NORMALIZED_DATA_LOOKUP = "normalizedDataLookup";
+	public static final String MAIN_SURVEY_FETCH = "mainSurveyFetch";
+	public static final String NORMALIZATION = "normalization";
+	public static final String ANALYSIS = "analysis";
+	public static final String INSERTS = "inserts";
+
+	private static final String[] STAGES = {
+		PROCESSED_TRIAL_LOOKUP, TRIAL_SCAN, FILTERING, NORMALIZED_DATA_LOOKUP, MAIN_SURVEY_FETCH, NORMALIZATION, ANALYSIS, INSERTS
+	};
+
+	private final String campaignUrn;
+	private final DateTime startTime = new DateTime();
+	private final Map<String, StageMetrics> stages = new LinkedHashMap<String, StageMetrics>();
+
+	/**
+	 * Creates empty metrics for a run.
+	 *
+	 * @param pCampaignUrn The campaign the run processes.
+	 */
+	public RunMetrics(final String pCampaignUrn) {
+		campaignUrn = pCampaignUrn;
+
+		for(String stage : STAGES) {
+			stages.put(stage, new StageMetrics(stage));
+		}
+	}
+
+	/**
+	 * Returns the metrics of a stage.
+	 *
+	 * @param stage One of the stage names defined by this class.
+	 *
+	 * @return The metrics of the stage.
+	 */
+	public StageMetrics stage(final String stage) {
+		StageMetrics stageMetrics = stages.get(stage);
+
+		if(stageMetrics == null) {
+			throw new IllegalArgumentException("Unknown stage: " + stage);
+		}
+
+		return stageMetrics;
+	}
+
+	public Collection<StageMetrics> getStages() {
+		return stages.values();
+	}
+
+	/**
+	 * Registers every stage with the platform MBean server. Problems are only
+	 * logged, because the metrics are not needed to process trials.
+	 */
+	public void register() {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+		for(StageMetrics stageMetrics : stages.values()) {
+			try {
+				ObjectName name = new ObjectName(JMX_DOMAIN + ":type=RunMetrics,campaign=" + ObjectName.quote(campaignUrn)
+					+ ",stage=" + stageMetrics.getName());
+
+				if(mBeanServer.isRegistered(name)) {
+					mBeanServer.unregisterMBean(name);
+				}
+
+				mBeanServer.registerMBean(stageMetrics, name);
+
+			} catch(JMException jmException) {
+				LOGGER.warn("Could not register the metrics of the stage " + stageMetrics.getName() + " with JMX.", jmException);
+			}
+		}
+	}
+
+	/**
+	 * Writes the run summary to the file, replacing the summary of the
+	 * previous run.
+	 *
+	 * @param file The summary file.
+	 *
+	 * @param outcome completed, stopped or failed.
+	 *
+	 * @param numberOfTrialsProcessed The number of analysis results saved.
+	 *
+	 * @throws IOException The summary could not be written.
+	 */
+	public void writeSummary(final File file, final String outcome, final int numberOfTrialsProcessed) throws IOException {
+		try {
+			new CheckpointFile(file).write(toSummary(outcome, numberOfTrialsProcessed));
+		} catch(JSONException jsonException) {
+			throw new IOException("Could not create the run summary", jsonException);
+		}
+	}
+
+	/**
+	 * Returns the run summary as it is written by
+	 * {@link #writeSummary(File, String, int)}.
+	 *
+	 * @param outcome completed, stopped or failed.
+	 *
+	 * @param numberOfTrialsProcessed The number of analysis results saved.
+	 *
+	 * @return The summary.
+	 *
+	 * @throws JSONException The summary could not be created.
+	 */
+	public JSONObject toSummary(final String outcome, final int numberOfTrialsProcessed) throws JSONException {
+		JSONObject summary = new JSONObject();
+		summary.put("campaignUrn", campaignUrn);
+		summary.put("startTime", startTime.toString());
+		summary.put("endTime", new DateTime().toString());
+		summary.put("durationMillis", System.currentTimeMillis() - startTime.getMillis());
+		summary.put("outcome", outcome);
+		summary.put("trialsProcessed", numberOfTrialsProcessed);
+
+		JSONObject stageSummaries = new JSONObject();
+		for(StageMetrics stageMetrics : stages.values()) {
+			stageSummaries.put(stageMetrics.getName(), stageMetrics.toJson());
+		}
+		summary.put("stages", stageSummaries);
+
+		return summary;
+	}
+
+	/**
+	 * Returns the total time and the row count of each stage for the log.
+	 */
+	@Override
+	public String toString() {
+		List<String> parts = new ArrayList<String>();
+
+		for(StageMetrics stageMetrics : stages.values()) {
+			parts.add(stageMetrics.getName() + "=" + Math.round(stageMetrics.getTotalMillis()) + "ms/" + stageMetrics.getRows()
+				+ " rows" + (stageMetrics.getErrors() > 0 ? "/" + stageMetrics.getErrors() + " errors" : ""));
+		}
+
+		return parts.toString();
+	}
+}
@@ -0,0 +1,219 @@
+package org.ohmage.trialist.processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * The timer, latency histogram and counters of one stage of a processor
+ * run. Operations are timed with {@link #start()} and {@link #stop(long)}.
+ * Every method may be called from any thread.
+ * </p>
+ */
+public class StageMetrics implements StageMetricsMXBean {
+	// Bucket i holds the durations from 2^i up to 2^(i+1) microseconds, which covers up to about 12 days
+	private static final int NUMBER_OF_BUCKETS = 40;
+
+	private final String name;
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * Creates the metrics for a stage.
+	 *
+	 * @param pName The name of the stage.
+	 */
+	public StageMetrics(final String pName) {
+		name = pName;
+	}
+
+	/**
+	 * Starts timing an operation.
+	 *
+	 * @return The start time to pass to {@link #stop(long)}.
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the duration of an operation.
+	 *
+	 * @param startNanos The value returned by {@link #start()}.
+	 */
+	public void stop(final long startNanos) {
+		long nanos = Math.max(0, System.nanoTime() - startNanos);
+
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		buckets.incrementAndGet(bucket(nanos));
+
+		long max = maxNanos.get();
+		while(nanos > max && ! maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	public void addRows(final long numberOfRows) {
+		rows.addAndGet(numberOfRows);
+	}
+
+	/**
+	 * Adds the size of the text when it is encoded as UTF-8, which is how it
+	 * is sent to OpenCPU and stored in the database. The size is counted
+	 * without encoding the text.
+	 *
+	 * @param text The text the stage read or wrote.
+	 */
+	public void addUtf8Bytes(final CharSequence text) {
+		bytes.addAndGet(utf8Length(text));
+	}
+
+	public void recordError() {
+		errors.incrementAndGet();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getTotalMillis() {
+		return totalNanos.get() / 1e6;
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long numberOfOperations = count.get();
+		return numberOfOperations == 0 ? 0 : getTotalMillis() / numberOfOperations;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return maxNanos.get() / 1e6;
+	}
+
+	@Override
+	public double getMedianMillis() {
+		return percentileMillis(0.5);
+	}
+
+	@Override
+	public double get95thPercentileMillis() {
+		return percentileMillis(0.95);
+	}
+
+	@Override
+	public double get99thPercentileMillis() {
+		return percentileMillis(0.99);
+	}
+
+	@Override
+	public long getRows() {
+		return rows.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Returns the metrics as a JSON object for the run summary.
+	 *
+	 * @return The metrics keyed by the names used in JMX.
+	 *
+	 * @throws JSONException The metrics could not be converted.
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("count", getCount());
+		json.put("totalMillis", round(getTotalMillis()));
+		json.put("meanMillis", round(getMeanMillis()));
+		json.put("maxMillis", round(getMaxMillis()));
+		json.put("medianMillis", round(getMedianMillis()));
+		json.put("95thPercentileMillis", round(get95thPercentileMillis()));
+		json.put("99thPercentileMillis", round(get99thPercentileMillis()));
+		json.put("rows", getRows());
+		json.put("bytes", getBytes());
+		json.put("errors", getErrors());
+		return json;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket that holds the quantile, or the
+	 * maximum if that is smaller.
+	 */
+	private double percentileMillis(final double quantile) {
+		long rank = (long) Math.ceil(quantile * count.get());
+		long seen = 0;
+
+		for(int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			seen += buckets.get(i);
+
+			if(seen >= rank && seen > 0) {
+				return Math.min((1L << (i + 1)) / 1e3, getMaxMillis());
+			}
+		}
+
+		return getMaxMillis();
+	}
+
+	/**
+	 * Returns the number of bytes the text takes up in UTF-8. An unpaired
+	 * surrogate counts as the one byte of the '?' that replaces it.
+	 */
+	static long utf8Length(final CharSequence text) {
+		long length = 0;
+		int numberOfChars = text.length();
+
+		for(int i = 0; i < numberOfChars; i++) {
+			char c = text.charAt(i);
+
+			if(c < 0x80) {
+				length += 1;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(! Character.isSurrogate(c)) {
+				length += 3;
+			} else if(Character.isHighSurrogate(c) && i + 1 < numberOfChars && Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 1;
+			}
+		}
+
+		return length;
+	}
+
+	private static int bucket(final long nanos) {
+		long micros = nanos / 1000;
+		return micros == 0 ? 0 : Math.min(NUMBER_OF_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static double round(final double millis) {
+		return Math.round(millis * 1000) / 1000.0;
+	}
+}
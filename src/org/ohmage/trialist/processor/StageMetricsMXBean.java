@@ -0,0 +1,42 @@
+package org.ohmage.trialist.processor;
+
+/**
+ * <p>
+ * The JMX view of the metrics of one stage of a processor run. Times are
+ * in milliseconds. The percentiles are estimated from a histogram whose
+ * buckets double in width, so they are accurate to within a factor of two.
+ * </p>
+ */
+public interface StageMetricsMXBean {
+	public String getName();
+
+	/**
+	 * @return The number of timed operations, e.g. queries or trials.
+	 */
+	public long getCount();
+
+	public double getTotalMillis();
+
+	public double getMeanMillis();
+
+	public double getMaxMillis();
+
+	public double getMedianMillis();
+
+	public double get95thPercentileMillis();
+
+	public double get99thPercentileMillis();
+
+	/**
+	 * @return The number of rows or items the stage read or wrote.
+	 */
+	public long getRows();
+
+	/**
+	 * @return The number of bytes of JSON or survey text, encoded as UTF-8,
+	 * 		   the stage read or wrote.
+	 */
+	public long getBytes();
+
+	public long getErrors();
+}
@@ -0,0 +1,53 @@
+package org.ohmage.trialist.processor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.SqlProvider;
+
+/**
+ * <p>
+ * Creates read-only, forward-only statements that MySQL Connector/J streams
+ * row by row instead of reading the whole result set into memory. The
+ * connection cannot be used for anything else until the result set has
+ * been consumed.
+ * </p>
+ */
+public class StreamingPreparedStatementCreator implements PreparedStatementCreator, SqlProvider {
+	private final String sql;
+	private final Object[] parameters;
+	
+	/**
+	 * Creates a statement creator for the query.
+	 * 
+	 * @param pSql The SQL to prepare.
+	 * 
+	 * @param pParameters The values bound to the placeholders in order.
+	 */
+	public StreamingPreparedStatementCreator(final String pSql, final Object[] pParameters) {
+		sql = pSql;
+		parameters = pParameters;
+	}
+	
+	@Override
+	public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+		PreparedStatement preparedStatement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		
+		// Integer.MIN_VALUE is the signal for Connector/J to stream results
+		preparedStatement.setFetchSize(Integer.MIN_VALUE);
+		
+		for(int i = 0; i < parameters.length; i++) {
+			preparedStatement.setObject(i + 1, parameters[i]);
+		}
+		
+		return preparedStatement;
+	}
+	
+	@Override
+	public String getSql() {
+		return sql;
+	}
+}
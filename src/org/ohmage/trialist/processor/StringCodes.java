@@ -0,0 +1,61 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Interns strings that repeat across many rows, such as prompt IDs and time
+ * zone IDs, as small integer codes. Codes are handed out in the order the
+ * strings are first seen, starting at 0. Null is a valid string.
+ * </p>
+ *
+ * <p>
+ * Strings must not be added while another thread reads the codes.
+ * </p>
+ */
+public class StringCodes {
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+	private final List<String> strings = new ArrayList<String>();
+
+	/**
+	 * Returns the code of the string, adding it if it is new.
+	 *
+	 * @param string The string.
+	 *
+	 * @return The string's code.
+	 */
+	public int code(final String string) {
+		Integer code = codes.get(string);
+
+		if(code == null) {
+			code = strings.size();
+			codes.put(string, code);
+			strings.add(string);
+		}
+
+		return code;
+	}
+
+	/**
+	 * Returns the string for a code.
+	 *
+	 * @param code A code returned by {@link #code(String)}.
+	 *
+	 * @return The first instance of the string that was added.
+	 */
+	public String string(final int code) {
+		return strings.get(code);
+	}
+
+	/**
+	 * Returns the number of distinct strings.
+	 *
+	 * @return The number of codes handed out.
+	 */
+	public int size() {
+		return strings.size();
+	}
+}
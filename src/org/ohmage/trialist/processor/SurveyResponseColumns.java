@@ -0,0 +1,425 @@
+package org.ohmage.trialist.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * <p>
+ * The main survey responses of one user, stored by column instead of as an
+ * object per survey and per prompt response. The survey times are a long
+ * array and the time zones are codes into a shared {@link StringCodes}.
+ * Every prompt ID is a code into another shared table and owns an int
+ * column with one cell per survey, so a numeric response costs four bytes.
+ * Responses that are not integers, like the notes, are kept as strings in
+ * a side column of that prompt.
+ * </p>
+ *
+ * <p>
+ * The prompt IDs of a survey, in the order they were first added, are
+ * stored once per distinct sequence. Surveys of the same campaign almost
+ * always share one sequence. A prompt ID that is added twice to a survey
+ * keeps its first position and its last response.
+ * </p>
+ *
+ * <p>
+ * Surveys are added in time order. Once {@link #trimToSize()} has been
+ * called the columns no longer change and can be read from any thread, and
+ * {@link #range(long, long)} returns views that share them.
+ * </p>
+ */
+public class SurveyResponseColumns {
+	private static final int[] NO_PROMPTS = new int[0];
+
+	private final StringCodes promptIds;
+	private final StringCodes timeZoneIds;
+
+	// One cell per survey
+	private long[] epochMillis;
+	private int[] timeZoneCodes;
+	private int[] promptSequenceIndexes;
+
+	// The distinct prompt code sequences
+	private final List<int[]> promptSequences;
+
+	// Indexed by prompt code
+	private Column[] columns;
+
+	// The view of the surveys [offset, offset + size)
+	private final int offset;
+	private int size;
+
+	// The prompt codes of the last survey while it is being added
+	private int[] currentPrompts = new int[16];
+	private int numberOfCurrentPrompts = 0;
+
+	/**
+	 * Creates empty columns.
+	 *
+	 * @param pPromptIds The table the prompt IDs are interned in.
+	 *
+	 * @param pTimeZoneIds The table the time zone IDs are interned in.
+	 */
+	public SurveyResponseColumns(final StringCodes pPromptIds, final StringCodes pTimeZoneIds) {
+		promptIds = pPromptIds;
+		timeZoneIds = pTimeZoneIds;
+		epochMillis = new long[16];
+		timeZoneCodes = new int[16];
+		promptSequenceIndexes = new int[16];
+		promptSequences = new ArrayList<int[]>(2);
+		columns = new Column[Math.max(16, promptIds.size())];
+		offset = 0;
+		size = 0;
+	}
+
+	/**
+	 * Creates a view of some of the surveys of the other columns.
+	 */
+	private SurveyResponseColumns(final SurveyResponseColumns other, final int pOffset, final int pSize) {
+		promptIds = other.promptIds;
+		timeZoneIds = other.timeZoneIds;
+		epochMillis = other.epochMillis;
+		timeZoneCodes = other.timeZoneCodes;
+		promptSequenceIndexes = other.promptSequenceIndexes;
+		promptSequences = other.promptSequences;
+		columns = other.columns;
+		offset = pOffset;
+		size = pSize;
+		currentPrompts = null;
+	}
+
+	/**
+	 * Starts a survey. Its prompt responses are added with
+	 * {@link #addPromptResponse(String, String)}.
+	 *
+	 * @param pEpochMillis The time the survey was taken.
+	 *
+	 * @param timeZoneId The ID of the phone's time zone.
+	 */
+	public void addSurvey(final long pEpochMillis, final String timeZoneId) {
+		endSurvey();
+
+		if(size > 0 && pEpochMillis < epochMillis[size - 1]) {
+			throw new IllegalArgumentException("The surveys must be added in time order.");
+		}
+
+		if(size == epochMillis.length) {
+			int capacity = size * 2;
+			epochMillis = Arrays.copyOf(epochMillis, capacity);
+			timeZoneCodes = Arrays.copyOf(timeZoneCodes, capacity);
+			promptSequenceIndexes = Arrays.copyOf(promptSequenceIndexes, capacity);
+		}
+
+		epochMillis[size] = pEpochMillis;
+		timeZoneCodes[size] = timeZoneIds.code(timeZoneId);
+		promptSequenceIndexes[size] = -1;
+		size++;
+	}
+
+	/**
+	 * Adds a prompt response to the last survey.
+	 *
+	 * @param promptId The prompt ID.
+	 *
+	 * @param response The response as it was stored.
+	 */
+	public void addPromptResponse(final String promptId, final String response) {
+		if(size == 0 || promptSequenceIndexes[size - 1] != -1) {
+			throw new IllegalStateException("There is no survey to add the prompt response to.");
+		}
+
+		int promptCode = promptIds.code(promptId);
+		int survey = size - 1;
+
+		if(! containsCurrentPrompt(promptCode)) {
+			if(numberOfCurrentPrompts == currentPrompts.length) {
+				currentPrompts = Arrays.copyOf(currentPrompts, numberOfCurrentPrompts * 2);
+			}
+			currentPrompts[numberOfCurrentPrompts++] = promptCode;
+		}
+
+		column(promptCode).set(survey, epochMillis.length, response);
+	}
+
+	/**
+	 * Ends the last survey and releases the spare capacity of every column.
+	 * Nothing can be added afterwards.
+	 */
+	public void trimToSize() {
+		endSurvey();
+
+		epochMillis = Arrays.copyOf(epochMillis, size);
+		timeZoneCodes = Arrays.copyOf(timeZoneCodes, size);
+		promptSequenceIndexes = Arrays.copyOf(promptSequenceIndexes, size);
+
+		for(Column column : columns) {
+			if(column != null) {
+				column.trimToSize(size);
+			}
+		}
+
+		currentPrompts = null;
+	}
+
+	/**
+	 * Returns a view of the surveys taken in [startMillis, endMillis).
+	 *
+	 * @param startMillis The start of the range, inclusive.
+	 *
+	 * @param endMillis The end of the range, exclusive.
+	 *
+	 * @return The surveys in the range.
+	 */
+	public SurveyResponseColumns range(final long startMillis, final long endMillis) {
+		if(currentPrompts != null) {
+			throw new IllegalStateException("The columns are still being added to.");
+		}
+
+		int from = firstSurveyAtOrAfter(startMillis);
+		int to = Math.max(from, firstSurveyAtOrAfter(endMillis));
+
+		return new SurveyResponseColumns(this, offset + from, to - from);
+	}
+
+	/**
+	 * Returns the number of surveys.
+	 *
+	 * @return The number of surveys.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getEpochMillis(final int survey) {
+		return epochMillis[offset + survey];
+	}
+
+	public String getTimeZoneId(final int survey) {
+		return timeZoneIds.string(timeZoneCodes[offset + survey]);
+	}
+
+	/**
+	 * Returns the number of distinct prompt IDs in the survey.
+	 */
+	public int getNumberOfPromptResponses(final int survey) {
+		return promptSequence(survey).length;
+	}
+
+	/**
+	 * Returns the ID of a prompt in the survey.
+	 *
+	 * @param survey The survey.
+	 *
+	 * @param promptResponse The position of the prompt ID in the survey.
+	 *
+	 * @return The prompt ID.
+	 */
+	public String getPromptId(final int survey, final int promptResponse) {
+		return promptIds.string(promptSequence(survey)[promptResponse]);
+	}
+
+	/**
+	 * Returns a response as an integer.
+	 *
+	 * @param survey The survey.
+	 *
+	 * @param promptResponse The position of the prompt ID in the survey.
+	 *
+	 * @return The response.
+	 *
+	 * @throws NumberFormatException The response is not an integer.
+	 */
+	public int getIntResponse(final int survey, final int promptResponse) {
+		Column column = columns[promptSequence(survey)[promptResponse]];
+		int cell = offset + survey;
+
+		if(column.isText(cell)) {
+			return Integer.parseInt(column.texts[cell]);
+		}
+
+		return column.values[cell];
+	}
+
+	/**
+	 * Returns a response as a string. Integer responses are returned in
+	 * their canonical form.
+	 *
+	 * @param survey The survey.
+	 *
+	 * @param promptResponse The position of the prompt ID in the survey.
+	 *
+	 * @return The response.
+	 */
+	public String getResponse(final int survey, final int promptResponse) {
+		Column column = columns[promptSequence(survey)[promptResponse]];
+		int cell = offset + survey;
+
+		return column.isText(cell) ? column.texts[cell] : String.valueOf(column.values[cell]);
+	}
+
+	/**
+	 * Returns the first survey taken at or after the time, or the number of
+	 * surveys if there is none.
+	 */
+	private int firstSurveyAtOrAfter(final long millis) {
+		int low = 0;
+		int high = size;
+
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+
+			if(getEpochMillis(middle) < millis) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	private int[] promptSequence(final int survey) {
+		int index = promptSequenceIndexes[offset + survey];
+		return index < 0 ? NO_PROMPTS : promptSequences.get(index);
+	}
+
+	/**
+	 * Stores the prompt sequence of the last survey.
+	 */
+	private void endSurvey() {
+		if(size == 0 || promptSequenceIndexes[size - 1] != -1 || currentPrompts == null) {
+			return;
+		}
+
+		int index = -1;
+
+		for(int i = 0; i < promptSequences.size() && index < 0; i++) {
+			if(isCurrentPromptSequence(promptSequences.get(i))) {
+				index = i;
+			}
+		}
+
+		if(index < 0) {
+			index = promptSequences.size();
+			promptSequences.add(Arrays.copyOf(currentPrompts, numberOfCurrentPrompts));
+		}
+
+		promptSequenceIndexes[size - 1] = index;
+		numberOfCurrentPrompts = 0;
+	}
+
+	private boolean isCurrentPromptSequence(final int[] promptSequence) {
+		if(promptSequence.length != numberOfCurrentPrompts) {
+			return false;
+		}
+
+		for(int i = 0; i < numberOfCurrentPrompts; i++) {
+			if(promptSequence[i] != currentPrompts[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean containsCurrentPrompt(final int promptCode) {
+		for(int i = 0; i < numberOfCurrentPrompts; i++) {
+			if(currentPrompts[i] == promptCode) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private Column column(final int promptCode) {
+		if(promptCode >= columns.length) {
+			columns = Arrays.copyOf(columns, Math.max(promptCode + 1, columns.length * 2));
+		}
+
+		if(columns[promptCode] == null) {
+			columns[promptCode] = new Column();
+		}
+
+		return columns[promptCode];
+	}
+
+	/**
+	 * The responses to one prompt, one cell per survey.
+	 */
+	private static class Column {
+		private int[] values = new int[0];
+
+		// Only allocated once a response is not an integer
+		private String[] texts;
+		private BitSet textCells;
+
+		private void set(final int cell, final int capacity, final String response) {
+			if(cell >= values.length) {
+				values = Arrays.copyOf(values, capacity);
+			}
+
+			if(isInteger(response)) {
+				values[cell] = Integer.parseInt(response);
+
+				if(textCells != null) {
+					textCells.clear(cell);
+				}
+
+			} else {
+				if(texts == null) {
+					texts = new String[capacity];
+					textCells = new BitSet();
+				} else if(cell >= texts.length) {
+					texts = Arrays.copyOf(texts, capacity);
+				}
+
+				texts[cell] = response;
+				textCells.set(cell);
+			}
+		}
+
+		private boolean isText(final int cell) {
+			return textCells != null && textCells.get(cell);
+		}
+
+		private void trimToSize(final int size) {
+			values = Arrays.copyOf(values, size);
+
+			if(texts != null) {
+				texts = Arrays.copyOf(texts, size);
+			}
+		}
+
+		/**
+		 * Returns whether Integer.parseInt() accepts the string, without
+		 * paying for an exception when it does not.
+		 */
+		private static boolean isInteger(final String string) {
+			if(string == null || string.length() == 0 || string.length() > 11) {
+				return false;
+			}
+
+			int start = (string.charAt(0) == '-' || string.charAt(0) == '+') ? 1 : 0;
+
+			if(start == string.length()) {
+				return false;
+			}
+
+			long value = 0;
+
+			for(int i = start; i < string.length(); i++) {
+				char c = string.charAt(i);
+
+				if(c < '0' || c > '9') {
+					return false;
+				}
+
+				value = value * 10 + (c - '0');
+			}
+
+			return string.charAt(0) == '-' ? -value >= Integer.MIN_VALUE : value <= Integer.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.ohmage.trialist.processor;
+
+import java.util.List;
+
+import org.json.JSONException;
+
+/**
+ * <p>
+ * Where the processor reads the ohmage survey_response and prompt_response
+ * rows from. The rows are passed to a handler one at a time, in the order
+ * the processor's single-pass scans depend on.
+ * </p>
+ *
+ * <p>
+ * Failures are reported as Spring DataAccessExceptions, whether the rows
+ * come from the database or from somewhere else.
+ * </p>
+ */
+public interface SurveyResponseSource {
+	/**
+	 * Receives setup and start survey responses.
+	 */
+	public interface SurveyHandler {
+		public void handleSurvey(long surveyResponseId, String uuid, long userId, String surveyId, String survey,
+				long epochMillis) throws JSONException;
+	}
+
+	/**
+	 * Receives the prompt responses of main survey responses, all prompt
+	 * responses of a survey response in a row.
+	 */
+	public interface PromptResponseHandler {
+		public void handlePromptResponse(long surveyResponseId, long userId, long epochMillis, String phoneTimezone,
+				String promptId, String response);
+	}
+
+	/**
+	 * The epoch millis range [startMillis, endMillis) of one user's trial.
+	 */
+	public static class TrialPeriod {
+		private final long userId;
+		private final long startMillis;
+		private final long endMillis;
+
+		public TrialPeriod(final long pUserId, final long pStartMillis, final long pEndMillis) {
+			userId = pUserId;
+			startMillis = pStartMillis;
+			endMillis = pEndMillis;
+		}
+
+		public long getUserId() {
+			return userId;
+		}
+
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		public long getEndMillis() {
+			return endMillis;
+		}
+
+		public boolean contains(final long epochMillis) {
+			return epochMillis >= startMillis && epochMillis < endMillis;
+		}
+	}
+
+	/**
+	 * Passes every setup and start survey response of the campaign with an
+	 * ID above the given one to the handler, ordered by user ID, epoch millis
+	 * and ID.
+	 *
+	 * @param campaignUrn The campaign.
+	 *
+	 * @param afterSurveyResponseId Only survey responses with a higher ID
+	 * 								are read. 0 reads every survey response.
+	 *
+	 * @param handler The handler. A JSONException it throws stops the scan.
+	 *
+	 * @throws org.springframework.dao.DataAccessException The rows could not
+	 * 		   be read.
+	 */
+	public void scanSetupAndStartSurveys(String campaignUrn, long afterSurveyResponseId, SurveyHandler handler);
+
+	/**
+	 * Passes the prompt responses of every main survey response of the
+	 * campaign that falls in one of the trial periods to the handler,
+	 * ordered by user ID, epoch millis and survey response ID.
+	 *
+	 * @param campaignUrn The campaign.
+	 *
+	 * @param trialPeriods The trial periods, at most
+	 * 					   {@link #getMaxTrialPeriodsPerScan()} of them.
+	 *
+	 * @param handler The handler.
+	 *
+	 * @throws org.springframework.dao.DataAccessException The rows could not
+	 * 		   be read.
+	 */
+	public void scanMainSurveyPromptResponses(String campaignUrn, List<TrialPeriod> trialPeriods,
+			PromptResponseHandler handler);
+
+	/**
+	 * Returns how many trial periods a single main survey scan accepts.
+	 *
+	 * @return The maximum number of trial periods per scan.
+	 */
+	public int getMaxTrialPeriodsPerScan();
+}
@@ -0,0 +1,400 @@
+package org.ohmage.trialist.processor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Records the progress of each trial of a run in a local JSON Lines file,
+ * so a run that was interrupted can be restarted without redoing the work
+ * it had already saved. The first line identifies the run. Each following
+ * line moves one trial to a new state: its normalized data was committed,
+ * it was analyzed (with the analysis results, so they are not requested
+ * again), or its analysis results were committed. The journal is deleted
+ * when the run completes. A journal left by a different run is discarded.
+ * </p>
+ *
+ * <p>
+ * Trials that fail are quarantined instead of failing the run. They are
+ * appended to a second file, with the stage that failed and the error, and
+ * every later run of the campaign skips them. Removing a trial's line from
+ * the quarantine file lets the next run try it again.
+ * </p>
+ *
+ * <p>
+ * Each record is flushed as it is written, so a crash of the processor
+ * loses nothing. The methods may be called from any thread.
+ * </p>
+ */
+public class TrialJournal {
+	private static final Logger LOGGER = Logger.getLogger(TrialJournal.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String JOURNAL_SUFFIX = ".journal.jsonl";
+	private static final String QUARANTINE_SUFFIX = ".quarantine.jsonl";
+
+	// The states of a trial, in the order they are reached
+	private static final String NORMALIZED = "normalized";
+	private static final String ANALYZED = "analyzed";
+	private static final String PERSISTED = "persisted";
+
+	private final File journalFile;
+	private final File quarantineFile;
+
+	private final Map<TrialKey, String> states = new HashMap<TrialKey, String>();
+	private final Map<TrialKey, String> analysisResults = new HashMap<TrialKey, String>();
+	private final Map<TrialKey, String> quarantinedStages = new HashMap<TrialKey, String>();
+	private final Set<TrialKey> quarantinedThisRun = new HashSet<TrialKey>();
+
+	private Writer journalWriter;
+	private Writer quarantineWriter;
+
+	private TrialJournal(final File pJournalFile, final File pQuarantineFile) {
+		journalFile = pJournalFile;
+		quarantineFile = pQuarantineFile;
+	}
+
+	/**
+	 * Opens the journal and the quarantine of a campaign. If the journal was
+	 * left by the same run, its progress is loaded; otherwise a new journal
+	 * is started.
+	 *
+	 * @param directory The directory that holds the journals.
+	 *
+	 * @param campaignUrn The campaign.
+	 *
+	 * @param run Identifies the run, e.g. its trial end date and reprocess
+	 * 			  flags. Only a journal with an equal run is resumed.
+	 *
+	 * @return The journal.
+	 *
+	 * @throws IOException The files could not be read or written.
+	 */
+	public static TrialJournal open(final File directory, final String campaignUrn, final JSONObject run) throws IOException {
+		TrialJournal journal = new TrialJournal(
+			CheckpointFile.forCampaign(directory, campaignUrn, JOURNAL_SUFFIX).getFile(),
+			CheckpointFile.forCampaign(directory, campaignUrn, QUARANTINE_SUFFIX).getFile());
+
+		journal.loadQuarantine();
+
+		boolean resumed = journal.loadJournal(run.toString());
+
+		if(resumed) {
+			LOGGER.info("Resuming the run in " + journal.journalFile.getAbsolutePath() + " with " + journal.states.size()
+				+ " trial(s) already in progress or done");
+			journal.journalWriter = journal.append(journal.journalFile);
+
+			// Start a new line after a last line that was cut short
+			if(! endsWithNewLine(journal.journalFile)) {
+				journal.journalWriter.write('\n');
+				journal.journalWriter.flush();
+			}
+		} else {
+			if(! directory.isDirectory() && ! directory.mkdirs()) {
+				throw new IOException("Could not create the journal directory: " + directory.getAbsolutePath());
+			}
+
+			journal.journalWriter = new OutputStreamWriter(new FileOutputStream(journal.journalFile, false), UTF_8);
+			journal.journalWriter.write(run.toString());
+			journal.journalWriter.write('\n');
+			journal.journalWriter.flush();
+		}
+
+		if(! journal.quarantinedStages.isEmpty()) {
+			LOGGER.warn(journal.quarantinedStages.size() + " quarantined trial(s) will be skipped. See "
+				+ journal.quarantineFile.getAbsolutePath());
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Returns whether the trial's analysis results were committed by this
+	 * run before it was interrupted.
+	 */
+	public synchronized boolean isPersisted(final TrialKey trialKey) {
+		return PERSISTED.equals(states.get(trialKey));
+	}
+
+	public synchronized boolean isQuarantined(final TrialKey trialKey) {
+		return quarantinedStages.containsKey(trialKey);
+	}
+
+	/**
+	 * Returns the analysis results recorded for the trial.
+	 *
+	 * @return The analysis results as JSON text or null if the trial has not
+	 * 		   been analyzed.
+	 */
+	public synchronized String getAnalysisResults(final TrialKey trialKey) {
+		return analysisResults.get(trialKey);
+	}
+
+	/**
+	 * Records that the normalized data of the trials was committed.
+	 */
+	public synchronized void recordNormalized(final Collection<TrialKey> trialKeys) {
+		for(TrialKey trialKey : trialKeys) {
+			record(trialKey, NORMALIZED, null);
+		}
+	}
+
+	/**
+	 * Records the analysis results of a trial before they are committed.
+	 */
+	public synchronized void recordAnalyzed(final TrialKey trialKey, final String results) {
+		record(trialKey, ANALYZED, results);
+		analysisResults.put(trialKey, results);
+	}
+
+	/**
+	 * Records that the analysis results of the trials were committed.
+	 */
+	public synchronized void recordPersisted(final Collection<TrialKey> trialKeys) {
+		for(TrialKey trialKey : trialKeys) {
+			record(trialKey, PERSISTED, null);
+			analysisResults.remove(trialKey);
+		}
+	}
+
+	/**
+	 * Quarantines a trial that failed, so neither this run nor later runs
+	 * process it again.
+	 *
+	 * @param trialKey The trial.
+	 *
+	 * @param stage The stage that failed.
+	 *
+	 * @param cause Why it failed.
+	 */
+	public synchronized void quarantine(final TrialKey trialKey, final String stage, final Throwable cause) {
+		LOGGER.error("Quarantining " + trialKey + " after it failed in " + stage, cause);
+
+		try {
+			JSONObject line = trialLine(trialKey);
+			line.put("stage", stage);
+			line.put("error", String.valueOf(cause));
+			line.put("time", System.currentTimeMillis());
+
+			if(quarantineWriter == null) {
+				quarantineWriter = append(quarantineFile);
+			}
+
+			quarantineWriter.write(line.toString());
+			quarantineWriter.write('\n');
+			quarantineWriter.flush();
+
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not quarantine " + trialKey, jsonException);
+		} catch(IOException ioException) {
+			throw new IllegalStateException("Could not write the quarantine " + quarantineFile.getAbsolutePath(), ioException);
+		}
+
+		quarantinedStages.put(trialKey, stage);
+		quarantinedThisRun.add(trialKey);
+	}
+
+	/**
+	 * Returns the number of trials quarantined by this run.
+	 */
+	public synchronized int getNumberOfTrialsQuarantined() {
+		return quarantinedThisRun.size();
+	}
+
+	/**
+	 * Deletes the journal of the completed run. The quarantine is kept.
+	 *
+	 * @throws IOException The journal could not be deleted.
+	 */
+	public synchronized void complete() throws IOException {
+		close();
+		Files.deleteIfExists(journalFile.toPath());
+	}
+
+	/**
+	 * Closes the files and keeps the journal so the run can be resumed.
+	 */
+	public synchronized void close() {
+		closeQuietly(journalWriter);
+		closeQuietly(quarantineWriter);
+		journalWriter = null;
+		quarantineWriter = null;
+	}
+
+	private void record(final TrialKey trialKey, final String state, final String results) {
+		try {
+			JSONObject line = trialLine(trialKey);
+			line.put("state", state);
+
+			if(results != null) {
+				line.put("analysis_results", results);
+			}
+
+			journalWriter.write(line.toString());
+			journalWriter.write('\n');
+			journalWriter.flush();
+
+		} catch(JSONException jsonException) {
+			throw new IllegalStateException("Could not journal " + trialKey, jsonException);
+		} catch(IOException ioException) {
+			throw new IllegalStateException("Could not write the journal " + journalFile.getAbsolutePath(), ioException);
+		}
+
+		states.put(trialKey, state);
+	}
+
+	/**
+	 * Loads the journal if it belongs to the run.
+	 *
+	 * @return Whether the journal was loaded.
+	 */
+	private boolean loadJournal(final String run) throws IOException {
+		if(! journalFile.exists()) {
+			return false;
+		}
+
+		BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), UTF_8);
+
+		try {
+			String firstLine = reader.readLine();
+
+			if(firstLine == null || ! sameRun(firstLine, run)) {
+				LOGGER.info("The journal " + journalFile.getAbsolutePath() + " belongs to a different run. Starting a new one.");
+				return false;
+			}
+
+			String line = null;
+
+			while((line = reader.readLine()) != null) {
+				try {
+					JSONObject entry = new JSONObject(line);
+					TrialKey trialKey = trialKey(entry);
+					String state = entry.getString("state");
+
+					states.put(trialKey, state);
+
+					if(ANALYZED.equals(state)) {
+						analysisResults.put(trialKey, entry.getString("analysis_results"));
+					} else if(PERSISTED.equals(state)) {
+						analysisResults.remove(trialKey);
+					}
+				} catch(JSONException jsonException) {
+					// The last line of a journal may be cut short by a crash
+					LOGGER.warn("Skipping an unreadable line of the journal " + journalFile.getAbsolutePath() + ": " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return true;
+	}
+
+	private void loadQuarantine() throws IOException {
+		if(! quarantineFile.exists()) {
+			return;
+		}
+
+		BufferedReader reader = Files.newBufferedReader(quarantineFile.toPath(), UTF_8);
+
+		try {
+			String line = null;
+
+			while((line = reader.readLine()) != null) {
+				if(line.trim().length() == 0) {
+					continue;
+				}
+
+				try {
+					JSONObject entry = new JSONObject(line);
+					quarantinedStages.put(trialKey(entry), entry.optString("stage"));
+				} catch(JSONException jsonException) {
+					LOGGER.warn("Skipping an unreadable line of the quarantine " + quarantineFile.getAbsolutePath() + ": " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static boolean sameRun(final String firstLine, final String run) {
+		try {
+			JSONObject journaledRun = new JSONObject(firstLine);
+			JSONObject currentRun = new JSONObject(run);
+
+			if(journaledRun.length() != currentRun.length()) {
+				return false;
+			}
+
+			for(String key : JSONObject.getNames(currentRun)) {
+				if(! String.valueOf(currentRun.get(key)).equals(String.valueOf(journaledRun.opt(key)))) {
+					return false;
+				}
+			}
+
+			return true;
+
+		} catch(JSONException jsonException) {
+			return false;
+		}
+	}
+
+	private static boolean endsWithNewLine(final File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+		try {
+			if(randomAccessFile.length() == 0) {
+				return true;
+			}
+
+			randomAccessFile.seek(randomAccessFile.length() - 1);
+			return randomAccessFile.read() == '\n';
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static JSONObject trialLine(final TrialKey trialKey) throws JSONException {
+		JSONObject line = new JSONObject();
+		line.put("user_id", trialKey.getUserId());
+		line.put("setup_survey_uuid", trialKey.getSetupSurveyUuid());
+		return line;
+	}
+
+	private static TrialKey trialKey(final JSONObject entry) throws JSONException {
+		return new TrialKey(entry.getLong("user_id"), entry.getString("setup_survey_uuid"));
+	}
+
+	private Writer append(final File file) throws IOException {
+		return new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+	}
+
+	private static void closeQuietly(final Writer writer) {
+		if(writer == null) {
+			return;
+		}
+
+		try {
+			writer.close();
+		} catch(IOException ioException) {
+			LOGGER.warn("Could not close a journal file.", ioException);
+		}
+	}
+}
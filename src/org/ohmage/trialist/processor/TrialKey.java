@@ -0,0 +1,78 @@
+package org.ohmage.trialist.processor;
+
+/**
+ * <p>
+ * Identifies a trial by the user and the UUID of the user's setup survey. A
+ * processed trial is identified by a row in observer_stream_data that
+ * contains trial analysis results and the UUID of the setup survey for a
+ * given user.
+ * </p>
+ */
+public class TrialKey {
+	private final long userId;
+	private final String surveyUuid;
+	
+	/**
+	 * Creates a key for the trial configured by the setup survey.
+	 * 
+	 * @param pUserId The user taking part in the trial.
+	 * 
+	 * @param pSurveyUuid The UUID of the trial's setup survey.
+	 */
+	public TrialKey(final long pUserId, final String pSurveyUuid) {
+		userId = pUserId;
+		surveyUuid = pSurveyUuid;	
+	}
+	
+	/**
+	 * Returns the ID of the user taking part in the trial.
+	 * 
+	 * @return The user's ID.
+	 */
+	public long getUserId() {
+		return userId;
+	}
+	
+	/**
+	 * Returns the UUID of the trial's setup survey.
+	 * 
+	 * @return The setup survey UUID.
+	 */
+	public String getSetupSurveyUuid() {
+		return surveyUuid;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result
+				+ ((surveyUuid == null) ? 0 : surveyUuid.hashCode());
+		result = prime * result + (int) (userId ^ (userId >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TrialKey other = (TrialKey) obj;
+		if (surveyUuid == null) {
+			if (other.surveyUuid != null)
+				return false;
+		} else if (!surveyUuid.equals(other.surveyUuid))
+			return false;
+		if (userId != other.userId)
+			return false;
+		return true;
+	}
+	
+	@Override
+	public String toString() {
+		return "TrialKey [userId=" + userId + ", setupSurveyUuid=" + surveyUuid + "]";
+	}
+}
@@ -1,26 +1,37 @@
 package org.ohmage.trialist.processor;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import org.apache.commons.dbcp.BasicDataSource;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
 import org.joda.time.format.DateTimeFormatter;
@@ -31,9 +42,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
-import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionTemplate;
 
 
 /**
@@ -65,9 +75,30 @@ public class TrialistAnalysisProcessor {
 	private static final String DATA_STREAM_VERSION = "2013013000";
 	private static final String ANALYSIS_RESULTS_STREAM_VERSION = "2013013000";
 	
-	// OpenCPU HTTP connectivity
-	// private static final String OCPU_URL = "https://pilots.ohmage.org/ocpu/github/jservadio/TrialistNof1/R/wrap/json";
-	private static final String OCPU_URL = "https://ocpu.omh.io/ocpu/github/jservadio/TrialistNof1/R/wrap/json";
+	// The checkpoint file name suffix for the saved trial windows of a campaign
+	private static final String TRIAL_WINDOW_CHECKPOINT_SUFFIX = ".trial-windows.json";
+	
+	// The number of chunks of fetched main surveys that wait to be normalized, and the marker after the last chunk
+	private static final int FETCHED_CHUNKS_QUEUED = 1;
+	private static final List<UserTrial> END_OF_CHUNKS = new ArrayList<UserTrial>();
+	
+	// The stages a trial can be quarantined in
+	private static final String NORMALIZATION_STAGE = "normalization";
+	private static final String ANALYSIS_STAGE = "analysis";
+	
+	// The setup survey prompts normalizeTrial() reads
+	private static final List<String> NORMALIZATION_SETUP_PROMPT_IDS = Arrays.asList(
+		"regimenA", "regimenB", "regimenDuration", "numberComparisonCycles", "randomAsText", "cognitiveFunction");
+	
+	// Date formatter to strip off times and timezones from trial start and end dates
+	private static final DateTimeFormatter YEAR_MONTH_DAY_FORMATTER = new DateTimeFormatterBuilder()
+		.append(ISODateTimeFormat.yearMonthDay().getPrinter(), ISODateTimeFormat.yearMonthDay().getParser())
+		.toFormatter().withZoneUTC();
+	
+	// Date formatter to print datetimes returned from the db. The timezone is dependent on the user's data.
+	private static final DateTimeFormatter DATE_TIME_FORMATTER = new DateTimeFormatterBuilder()
+		.append(ISODateTimeFormat.dateTime().getPrinter(), ISODateTimeFormat.dateTime().getParser())
+		.toFormatter();
 	
 	// Processing customization
 	private boolean alsoReprocessTrials;
@@ -76,45 +107,57 @@ public class TrialistAnalysisProcessor {
 	private DateTime yesterday;
 	private String campaignUrn;
 	
+	// Where incremental mode keeps its checkpoints, or null to scan every survey on each run, and how many survey_response 
+	// IDs below the checkpoint each incremental run reads again
+	private File checkpointDirectory;
+	private long checkpointOverlapIds;
+	
+	// Where the progress of each run is journaled, or null to fail the run on the first failed trial. The journal of the
+	// current run is opened by run().
+	private File journalDirectory;
+	private TrialJournal trialJournal;
+	
 	// Program execution info
-	private int numberOfTrialsProcessed = 0;
+	private AtomicInteger numberOfTrialsProcessed = new AtomicInteger();
+	private volatile boolean stopRequested = false;
 	
-	// Database connectivity
+	// The timers and counters of the current run, and where they are summarized when it ends (null for no summary)
+	private RunMetrics runMetrics;
+	private File metricsSummaryFile;
+	
+	// Database connectivity. Scans and reads of the rows this processor wrote may be routed to a read replica.
 	private JdbcTemplate jdbcTemplate;
+	private ReplicaRouting replicaRouting;
+	private TransactionTemplate transactionTemplate;
+	private int batchSize;
 	
-	// Retrieve all setup and start surveys for all users for a given trialist campaign
-	private static final String SQL_SELECT_TRIAL_SETUP_AND_START = 
-		"SELECT uuid, user_id, survey_id, survey " +
-		"FROM survey_response " +
-		"WHERE campaign_id = (SELECT id FROM campaign WHERE urn = ?) " +
-			"AND survey_id IN ('start', 'setup') ORDER BY user_id, epoch_millis";
-	
-	// Find any trials that have analysis results
-	private static final String SQL_SELECT_PROCESSED_TRIALS = 
-		"SELECT observer_stream_data.user_id, data FROM observer_stream_data " +
-		"LEFT JOIN observer_stream_link ON observer_stream_link_id = observer_stream_link.id " +
-		"LEFT JOIN observer ON observer_stream_link.observer_id = observer.id " +
-		"LEFT JOIN observer_stream ON observer_stream_link.observer_stream_id = observer_stream.id " +
-		"WHERE observer.observer_id = '" + OBSERVER_ID + "'" + 
-		" AND observer.version = '" + OBSERVER_VERSION + "'" +
-		" AND observer_stream.stream_id = '" + ANALYSIS_RESULTS_STREAM_ID + "'" +  
-		" AND observer_stream.version = '" + ANALYSIS_RESULTS_STREAM_VERSION + "'";
-
-	// Find normalized trial results for a given user 
-	private static final String SQL_SELECT_EXISTS_TRIALIST_STREAM_DATA_POINTS 
-		= "SELECT EXISTS (SELECT data FROM observer_stream_data " +
-			"LEFT JOIN observer_stream_link ON observer_stream_link_id = observer_stream_link.id " +
-			"LEFT JOIN observer ON observer_stream_link.observer_id = observer.id " +
-			"LEFT JOIN observer_stream ON observer_stream_link.observer_stream_id = observer_stream.id " +
-			"WHERE observer.observer_id = '" + OBSERVER_ID + "'" + 
-			" AND observer.version = '" + OBSERVER_VERSION + "'" +
-			" AND observer_stream.stream_id = '" + DATA_STREAM_ID + "'" +  
-			" AND observer_stream.version = '" + DATA_STREAM_VERSION + "'" + 
-			" AND observer_stream_data.user_id = ?)";
+	// The observer_stream_link IDs for the data and results streams, resolved on first use
+	private Long dataStreamLinkId;
+	private Long analysisResultsStreamLinkId;
+	
+	// The time zone MySQL uses for DATE(FROM_UNIXTIME(...)), needed to turn trial dates into epoch millis ranges
+	private DateTimeZone databaseTimeZone;
+	
+	// Where the survey_response and prompt_response rows are read from
+	private SurveyResponseSource surveyResponseSource;
+	
+	// The analysis backend shared by all analysis threads, and the permits that the analysis threads of every campaign take 
+	// turns at
+	private AnalysisBackend analysisBackend;
+	private int analysisThreads;
+	private Semaphore analysisPermits;
+	
+	// The processed trials loaded once for every campaign of a MultiCampaignRun, or null if the run loads them itself
+	private Set<TrialKey> sharedProcessedTrials;
+	
+	// The partitions of the campaign this instance may process, or null if every trial is processed, and the configured ID 
+	// of the run they are claimed for, or null to identify the run by its parameters
+	private PartitionLeases partitionLeases;
+	private String configuredPartitionRunId;
 	
-	// Find normalized trial results for a given user 
-	private static final String SQL_SELECT_TRIALIST_STREAM_DATA_POINTS 
-		= "SELECT data FROM observer_stream_data " +
+	// Find normalized trial results for a set of users. The IN list placeholders are appended per chunk of users.
+	private static final String SQL_SELECT_TRIALIST_STREAM_DATA_POINTS_FOR_USERS 
+		= "SELECT observer_stream_data.user_id, data FROM observer_stream_data " +
 			"LEFT JOIN observer_stream_link ON observer_stream_link_id = observer_stream_link.id " +
 			"LEFT JOIN observer ON observer_stream_link.observer_id = observer.id " +
 			"LEFT JOIN observer_stream ON observer_stream_link.observer_stream_id = observer_stream.id " +
@@ -122,39 +165,16 @@ public class TrialistAnalysisProcessor {
 			" AND observer.version = '" + OBSERVER_VERSION + "'" +
 			" AND observer_stream.stream_id = '" + DATA_STREAM_ID + "'" +  
 			" AND observer_stream.version = '" + DATA_STREAM_VERSION + "'" + 
-			" AND observer_stream_data.user_id = ?";
-	
-	// Get all of the Trialist main surveys for a given user. "main" is the name given to the daily self-report survey in Trialist
-	private static final String SQL_SELECT_MAIN_SURVEY_PROMPT_RESPONSES_FOR_USER =
-		"SELECT sr.id, sr.epoch_millis, sr.phone_timezone, pr.prompt_id, pr.response " +
-		"FROM prompt_response pr, survey_response sr " +
-		"WHERE pr.survey_response_id = sr.id " +
-			"AND sr.survey_id = 'main' " +
-			"AND sr.campaign_id = (SELECT id FROM campaign where urn = ?) " +
-			"AND DATE(FROM_UNIXTIME(sr.epoch_millis / 1000)) BETWEEN ? AND ? " +
-			"AND sr.user_id = ? " +
-			"ORDER BY user_id, epoch_millis asc";
-	
-	// Save the normalized trial data points
-	private static final String SQL_INSERT_TRIAL_DATA_POINTS = 
-		"INSERT INTO observer_stream_data " +
-		"(user_id, observer_stream_link_id, time, time_offset, time_adjusted, time_zone, data) VALUES " +
-			"(?, " +
-			"(SELECT osl.id FROM observer_stream_link osl, observer_stream os, observer o WHERE o.observer_id = '" + OBSERVER_ID +
-				"' AND o.version = '" + OBSERVER_VERSION + "' AND os.stream_id = '" + DATA_STREAM_ID +
-				"' AND os.version = '" + DATA_STREAM_VERSION + "' AND osl.observer_id = o.id AND osl.observer_stream_id = os.id), " +
-			"?, ?, ?, ?, ?)";
-
-	// Save the trial analysis results
-	private static final String SQL_INSERT_TRIAL_ANALYSIS_RESULTS = 
-		"INSERT INTO observer_stream_data " +
-		"(user_id, observer_stream_link_id, time, time_offset, time_adjusted, time_zone, data) VALUES " +
-			"(?, " +
-			"(SELECT osl.id FROM observer_stream_link osl, observer_stream os, observer o WHERE o.observer_id = '" + OBSERVER_ID +
-				"' AND o.version = '" + OBSERVER_VERSION + "' AND os.stream_id = '" + ANALYSIS_RESULTS_STREAM_ID + 
-				"' AND os.version = '" + ANALYSIS_RESULTS_STREAM_VERSION + "' AND osl.observer_id = o.id " +
-				"AND osl.observer_stream_id = os.id), " +
-			"?, ?, ?, ?, ?)";
+			" AND observer_stream_data.user_id IN ";
+	
+	// The maximum number of user IDs bound to a single IN list
+	private static final int USER_ID_CHUNK_SIZE = 500;
+	
+	// Find the observer_stream_link ID for a stream of the Trialist observer
+	private static final String SQL_SELECT_OBSERVER_STREAM_LINK_ID = 
+		"SELECT osl.id FROM observer_stream_link osl, observer_stream os, observer o " +
+		"WHERE o.observer_id = '" + OBSERVER_ID + "' AND o.version = '" + OBSERVER_VERSION + "' " +
+			"AND os.stream_id = ? AND os.version = ? AND osl.observer_id = o.id AND osl.observer_stream_id = os.id";
 	
 	/**
 	 * Create a processor that will process the previous day's completed trials for the default Trialist campaign.
@@ -195,575 +215,927 @@ public class TrialistAnalysisProcessor {
 	/**
 	 * Returns the number of trials processed.
 	 */
-	private int getNumberOfTrialsProcessed() {
-		return numberOfTrialsProcessed;
+	int getNumberOfTrialsProcessed() {
+		return numberOfTrialsProcessed.get();
 	}
 	
 	/**
-	 * Sets up the database connection. 
+	 * Returns the campaign this processor processes.
 	 */
-	private void createjdbcTemplate(String driver, String username, String password, String jdbcUrl) {
-		BasicDataSource dataSource = new BasicDataSource();
-		dataSource.setDriverClassName(driver);
-		dataSource.setUsername(username);
-		dataSource.setPassword(password);
-		dataSource.setUrl(jdbcUrl); 
-		jdbcTemplate = new JdbcTemplate(dataSource);
+	String getCampaignUrn() {
+		return campaignUrn;
 	}
-		
+	
+	/**
+	 * Sets up the database connectivity and the analysis backend using resources that may be shared with other processors.
+	 */
+	void useResources(ProcessorResources resources) {
+		jdbcTemplate = resources.getJdbcTemplate();
+		replicaRouting = resources.getReplicaRouting();
+		transactionTemplate = resources.getTransactionTemplate();
+		databaseTimeZone = resources.getDatabaseTimeZone();
+		batchSize = resources.getBatchSize();
+		surveyResponseSource = resources.getSurveyResponseSource();
+		analysisBackend = resources.getAnalysisBackend();
+		analysisThreads = resources.getAnalysisThreads();
+		analysisPermits = resources.getAnalysisPermits();
+		checkpointDirectory = resources.getCheckpointDirectory();
+		checkpointOverlapIds = resources.getCheckpointOverlapIds();
+		journalDirectory = resources.getJournalDirectory();
+		metricsSummaryFile = resources.getMetricsSummaryFile();
+		partitionLeases = resources.createPartitionLeases(campaignUrn);
+		configuredPartitionRunId = resources.getPartitionRunId();
+	}
+	
+	/**
+	 * Reads the survey responses from the provided source instead of the configured one, for the checks under bench/ that 
+	 * run without a database.
+	 */
+	void useSurveyResponseSource(SurveyResponseSource pSurveyResponseSource, long pCheckpointOverlapIds) {
+		surveyResponseSource = pSurveyResponseSource;
+		checkpointOverlapIds = pCheckpointOverlapIds;
+		runMetrics = new RunMetrics(campaignUrn);
+	}
+	
+	/**
+	 * Makes this processor one campaign of a {@link MultiCampaignRun}. The processor uses the processed trials the run loaded 
+	 * for every campaign instead of loading them again, unless they are null, and leaves the run summary to the run. Must be 
+	 * called after {@link #useResources(ProcessorResources)}.
+	 */
+	void joinRun(Set<TrialKey> processedTrials) {
+		sharedProcessedTrials = processedTrials;
+		metricsSummaryFile = null;
+	}
+	
+	/**
+	 * Asks a running processor to stop. Trials that are already being analyzed are finished and saved, trials that have not 
+	 * been sent to the analysis backend yet are skipped, and the checkpoint is not moved forward. May be called from any thread.
+	 */
+	void requestStop() {
+		stopRequested = true;
+	}
+	
 	/**
 	 * Performs trial post-processing based on the parameters supplied to main(). Finds completed trials and formats the data into
-	 * a cleaned up data set defined by an observer stream. Passes the formatted data points to analysis software hosted in 
-	 * OpenCPU. Finally, persists both the data points and the analysis results. The analysis results are also defined by an 
+	 * a cleaned up data set defined by an observer stream. Passes the formatted data points to the configured analysis backend 
+	 * (OpenCPU by default). Finally, persists both the data points and the analysis results. The analysis results are also defined by an 
 	 * observer stream.
+	 * 
+	 * Once the trials are known, fetching, normalization, analysis and inserts run as a pipeline with bounded queues between 
+	 * the stages, so the database and the analysis backend are busy at the same time.
+	 * 
+	 * Each stage is timed and counted in {@link RunMetrics}, which are available over JMX while the run is in progress and 
+	 * are written to the run summary file when it ends.
+	 * 
+	 * In partitioned mode, the run first claims partition leases and only processes the trials of the partitions it holds. 
+	 * A run that completes marks its partitions as finished, so later instances of the same run do not process them again. 
+	 * The other leases are released when the run ends.
+	 * 
+	 * When runs are journaled, the work a previous, interrupted run of the same campaign and trial end date already saved is 
+	 * skipped, and a trial that fails is quarantined instead of failing the run. See {@link TrialJournal}.
 	 */
 	public void run() throws IOException, JSONException {
-		List<ProcessedTrial> processedTrials = null;
+		runMetrics = new RunMetrics(campaignUrn);
+		runMetrics.register();
 		
-		// Date formatter to strip off times and timezones from trial start and end dates
-		DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
-		builder.append(ISODateTimeFormat.yearMonthDay().getPrinter(), ISODateTimeFormat.yearMonthDay().getParser());
-		DateTimeFormatter yearMonthDayFormatter = builder.toFormatter().withZoneUTC();
+		String outcome = "failed";
 		
-		// Date formatter to print datetimes returned from the db
-		builder.clear();
-		builder.append(ISODateTimeFormat.dateTime().getPrinter(), ISODateTimeFormat.dateTime().getParser());
-		DateTimeFormatter dateTimeFormatter = builder.toFormatter(); // the timezone is dependent on the user's data
-		
-		// Find all processed trials to handling filtering in case case trial reprocessing is not desired
 		try {
-			processedTrials = jdbcTemplate.query(
-				SQL_SELECT_PROCESSED_TRIALS, 
-				new ResultSetExtractor<List<ProcessedTrial>>() {
-					@Override
-					public List<ProcessedTrial> extractData(ResultSet rs) throws SQLException {
-						try {
-							// Filter out duplicates because a trial can be analyzed multiple times and for the purposes of this 
-							// program it only matters if it was processed once
-							
-							List<ProcessedTrial> processedTrials = new ArrayList<ProcessedTrial>();
-							
-							while(rs.next()) {
-								ProcessedTrial pt = new ProcessedTrial(
-									rs.getLong("user_id"), 
-									new JSONObject(rs.getString("data")).getString("setup_survey_id")); 
-								
-								if(! processedTrials.contains(pt)) {
-									processedTrials.add(pt);
-								}
-							}
-							
-							return processedTrials;
-							
-						} catch(JSONException jsonException) {
-							
-							throw new SQLException("Could not retrieve value for setup_survey_id in trial analysis results.", jsonException);
-						}
-					}
+			
+			if(journalDirectory != null) {
+				trialJournal = TrialJournal.open(journalDirectory, campaignUrn, journaledRun());
+			}
+			
+			if(partitionLeases != null && partitionLeases.claim(partitionRunId()) == 0) {
+				LOGGER.warn("Every partition of " + campaignUrn + " is held by other instances or was finished by this run. "
+					+ "No trials will be processed.");
+			} else {
+				processTrials();
+				
+				if(partitionLeases != null && ! stopRequested) {
+					partitionLeases.finish();
 				}
-			);
+			}
+			outcome = stopRequested ? "stopped" : "completed";
+			
+		} finally {
+			
+			if(trialJournal != null) {
+				trialJournal.close();
+			}
+			
+			if(partitionLeases != null) {
+				partitionLeases.release();
+			}
+			
+			LOGGER.info("Stage metrics: " + runMetrics);
+			
+			if(metricsSummaryFile != null) {
+				try {
+					runMetrics.writeSummary(metricsSummaryFile, outcome, numberOfTrialsProcessed.get());
+				} catch(IOException ioException) {
+					LOGGER.warn("Could not write the run summary to " + metricsSummaryFile.getAbsolutePath(), ioException);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns what identifies a run in its journal. A journal is only resumed by a run with the same parameters.
+	 */
+	private JSONObject journaledRun() throws JSONException {
+		JSONObject run = new JSONObject();
+		run.put("campaign_urn", campaignUrn);
+		run.put("trial_end_date", YEAR_MONTH_DAY_FORMATTER.print(dateTrialEnded));
+		run.put("reprocess", alsoReprocessTrials);
+		run.put("reprocess_all", alsoReprocessAllTrials);
+		return run;
+	}
+	
+	/**
+	 * Returns what identifies a run to the partition leases: the partition.runId property, or else the trial end date and 
+	 * whether trials are reprocessed, so the instances started with the same parameters share the work of one run.
+	 */
+	private String partitionRunId() {
+		if(configuredPartitionRunId != null) {
+			return configuredPartitionRunId;
+		}
+		
+		return YEAR_MONTH_DAY_FORMATTER.print(dateTrialEnded) + (alsoReprocessAllTrials ? " reprocess-all" 
+			: alsoReprocessTrials ? " reprocess" : "");
+	}
+	
+	/**
+	 * Returns the metrics of the current or last run.
+	 * 
+	 * @return The metrics, or null if the processor has not been run.
+	 */
+	RunMetrics getRunMetrics() {
+		return runMetrics;
+	}
+	
+	/**
+	 * The stages of {@link #run()}.
+	 */
+	private void processTrials() throws IOException, JSONException {
+		Set<TrialKey> processedTrials = null;
+		
+		// Find all processed trials to handling filtering in case case trial reprocessing is not desired. A multi-campaign 
+		// run has already found them for every campaign, unless the campaign is partitioned: then they are found after the 
+		// partitions were claimed, so the trials written by the instance that held a partition before are included.
+		StageMetrics processedTrialLookup = runMetrics.stage(RunMetrics.PROCESSED_TRIAL_LOOKUP);
+		long startNanos = processedTrialLookup.start();
+		
+		try {
+			
+			processedTrials = sharedProcessedTrials != null ? sharedProcessedTrials : selectProcessedTrials();
+			processedTrialLookup.addRows(processedTrials.size());
 			
 		} catch (DataAccessException dataAccessException) {
 			LOGGER.error("An error occurred when accessing the database to retrieve already processed trials.");
+			processedTrialLookup.recordError();
 			throw dataAccessException;
+		} finally {
+			processedTrialLookup.stop(startNanos);
 		}
 		
 		// Grab each setup survey response and each start survey response. Determine if the user's trial is over 
 		// based on the trial length defined in the setup response, the time at which the user started, and the trial end date 
-		// this program is configured to use.
-		List<UserSurveyDate> userSetupStartList = null;
+		// this program is configured to use. The rows are streamed through a single pass that only keeps the current user's 
+		// surveys and the trials that end on the requested date. In incremental mode, every user's trial window is kept and 
+		// only the surveys submitted since the last successful run are read.
+		CheckpointFile trialWindowCheckpoint = null;
+		Map<Long, TrialWindow> trialWindows = null;
+		long lastSurveyResponseId = 0;
 		
-		try { 
-			userSetupStartList = jdbcTemplate.query(
-				SQL_SELECT_TRIAL_SETUP_AND_START, 
-				new Object[] { campaignUrn }, 
-				new RowMapper<UserSurveyDate>() {
-					@Override
-					public UserSurveyDate mapRow(ResultSet rs, int rowNum) throws SQLException {
-						JSONObject survey = null;
-						try {
-							survey = new JSONObject(rs.getString("survey"));
-						} catch (JSONException jsonException) {
-							LOGGER.error("Found a survey that cannot be parsed as JSON. The primary key for the row" +
-								" in survey_response is " + rs.getLong("id"));
-							throw new SQLException(jsonException);
-						}
-						
-						return new UserSurveyDate(rs.getString("uuid"), rs.getLong("user_id"), rs.getString("survey_id"), survey);
-					}
-				}
-			);
+		if(checkpointDirectory != null) {
+			trialWindowCheckpoint = CheckpointFile.forCampaign(checkpointDirectory, campaignUrn, TRIAL_WINDOW_CHECKPOINT_SUFFIX);
+			trialWindows = new HashMap<Long, TrialWindow>();
+			lastSurveyResponseId = readTrialWindows(trialWindowCheckpoint, trialWindows);
+		}
+		
+		TrialScanner trialScanner = scanTrials(trialWindows, lastSurveyResponseId);
+		List<UserTrial> userTrials = trialScanner.finish();
+		
+		// Filter out all trials that should not be processed
+		StageMetrics filtering = runMetrics.stage(RunMetrics.FILTERING);
+		startNanos = filtering.start();
+		List<UserTrial> trialsToProcess = 
+			filterTrialsForJournal(filterTrialsForPartitions(filterTrialsForReprocessing(userTrials, processedTrials)));
+		filtering.stop(startNanos);
+		filtering.addRows(trialsToProcess.size());
+ 		
+//		LOGGER.info(trialsToProcess.size() + " trial(s) will be processed");
+		
+//		for(UserTrial userTrial : trialsToProcess) {
+//			LOGGER.info(userTrial.toString());
+//		}
+		
+		// Find the normalized data for any previously processed trial in the list
+		// The data will potentially exist if trials are being reprocessed or if this program has already been run for a given
+		// trial end date.
+		
+		StageMetrics normalizedDataLookup = runMetrics.stage(RunMetrics.NORMALIZED_DATA_LOOKUP);
+		startNanos = normalizedDataLookup.start();
+		
+		try {
+			
+			selectNormalizedData(trialsToProcess);
+			
 		} catch (DataAccessException dataAccessException) {
-			LOGGER.error("An error occurred when accessing the database.");
+			LOGGER.error("An error occurred when accessing the database.", dataAccessException);
+			normalizedDataLookup.recordError();
 			throw dataAccessException;
+		} finally {
+			normalizedDataLookup.stop(startNanos);
 		}
 		
-		if(userSetupStartList == null) {
-			userSetupStartList = Collections.<UserSurveyDate>emptyList();
-		}
+		// The rest of the run is a pipeline, so every stage works on a different trial at the same time:
+		// 
+		//   fetch thread      main surveys of the next chunk of trials
+		//   this thread       normalization of the current chunk
+		//   analysis threads  analysis of the trials normalized so far
+		//   writer threads    inserts of the batches filled so far
+		// 
+		// The queues between the stages are bounded, so a slow stage holds up the stages in front of it instead of letting 
+		// fetched surveys or normalized data pile up in memory. The run takes about as long as its slowest stage.
+		final ObserverStreamDataWriter normalizedDataWriter = new ObserverStreamDataWriter(
+			jdbcTemplate, transactionTemplate, getDataStreamLinkId(), batchSize, runMetrics.stage(RunMetrics.INSERTS));
+		final ObserverStreamDataWriter analysisResultsWriter = new ObserverStreamDataWriter(
+			jdbcTemplate, transactionTemplate, getAnalysisResultsStreamLinkId(), batchSize, runMetrics.stage(RunMetrics.INSERTS));
 		
+		// The trials of the results are indexed in the transaction that writes them, so no refresh can miss them
+		final ProcessedTrialIndex processedTrialIndex = new ProcessedTrialIndex(replicaRouting, batchSize);
+		analysisResultsWriter.setInsertListener(new ObserverStreamDataWriter.InsertListener() {
+			@Override
+			public void inserted(List<TrialKey> trialKeys, List<Long> ids) {
+				processedTrialIndex.record(trialKeys, ids);
+			}
+		});
 		
-		LOGGER.info("Original survey list");
+		if(trialJournal != null) {
+			normalizedDataWriter.setCommitListener(new ObserverStreamDataWriter.CommitListener() {
+				@Override
+				public void committed(List<TrialKey> trialKeys) {
+					trialJournal.recordNormalized(trialKeys);
+				}
+			});
+			analysisResultsWriter.setCommitListener(new ObserverStreamDataWriter.CommitListener() {
+				@Override
+				public void committed(List<TrialKey> trialKeys) {
+					trialJournal.recordPersisted(trialKeys);
+				}
+			});
+		}
 		
-		for(UserSurveyDate usd : userSetupStartList) {
-			LOGGER.info(usd);
+		// Analysis and queued batches can outlast the local view of a lease, so the lease is checked again in each batch's 
+		// transaction
+		if(partitionLeases != null) {
+			ObserverStreamDataWriter.WriteGuard leaseGuard = new ObserverStreamDataWriter.WriteGuard() {
+				@Override
+				public Set<Long> writableUsers(Set<Long> userIds) {
+					return partitionLeases.lockPartitionsOf(userIds);
+				}
+			};
+			normalizedDataWriter.setWriteGuard(leaseGuard);
+			analysisResultsWriter.setWriteGuard(leaseGuard);
 		}
 		
-	// 	LOGGER.info("Found " + userSetupStartList.size() + " setup and start survey responses");
-				
-		// For any given user, there may be more than one setup survey and more than one start survey. A clinician
-		// may set up a user multiple times using the front-end and the most recent setup survey in a repeating list  
-		// of setup surveys should be used. The same issue occurs for the start survey where a user may complete the start
-		// survey multiple times by reinstalling the app. In this case the most recent start survey is what is desired. A
-		// given user may also complete multiple trials, so simply selecting the oldest setup and start surveys will not 
-		// work becaused this may cause earlier trials to be skipped over.
-		
-		List<UserSurveyDate> filteredUserSetupStartList = new ArrayList<UserSurveyDate>();
-
-		long currentUserId = -1;
-		UserSurveyDate currentStart = null;
-		UserSurveyDate currentSetup = null;
-		
-		for(UserSurveyDate userSurveyDate : userSetupStartList) {
-			if(currentUserId == -1)	{
-				// Very weird edge case if the first survey is not a setup survey, but make sure anyway
-				if(userSurveyDate.getSurveyId().equals("setup")) {
-					currentUserId = userSurveyDate.getUserId();
-					currentSetup = userSurveyDate;
-				} 
-			} else {
+		TrialAnalyzer trialAnalyzer = new TrialAnalyzer(analysisResultsWriter);
+		ExecutorService fetchExecutor = Executors.newSingleThreadExecutor();
+		
+		try {
+			
+			// Trials whose data was normalized by an earlier run go straight to analysis
+			List<UserTrial> normalizedTrials = new ArrayList<UserTrial>();
+			List<UserTrial> trialsToNormalize = new ArrayList<UserTrial>();
+			
+			for(UserTrial userTrial : trialsToProcess) {
+				if(userTrial.hasNormalizedData()) {
+					normalizedTrials.add(userTrial);
+				} else {
+					trialsToNormalize.add(userTrial);
+				}
+			}
+			
+			// The main surveys are fetched a chunk of trials at a time using a few multi-user queries. The fetch starts before 
+			// the normalized trials are submitted, which waits for analysis permits, so the first chunk is read meanwhile.
+			final BlockingQueue<List<UserTrial>> fetchedChunks = new ArrayBlockingQueue<List<UserTrial>>(FETCHED_CHUNKS_QUEUED);
+			Future<Void> fetch = fetchExecutor.submit(new MainSurveyFetch(trialsToNormalize, fetchedChunks));
+			
+			for(UserTrial userTrial : normalizedTrials) {
+				trialAnalyzer.submit(userTrial);
+			}
+			
+			StageMetrics normalization = runMetrics.stage(RunMetrics.NORMALIZATION);
+			
+			// Create the normalized data stream for each trial and pass it on to the analysis
+			for(List<UserTrial> chunk = takeChunk(fetchedChunks); chunk != END_OF_CHUNKS && ! stopRequested; 
+					chunk = takeChunk(fetchedChunks)) {
 				
-				if(currentUserId == userSurveyDate.getUserId()) {
-					if(userSurveyDate.getSurveyId().equals("start")) {
-						if(currentSetup != null) {
-							filteredUserSetupStartList.add(currentSetup);
-							currentSetup = null;
-						}
+				for(UserTrial userTrial : chunk) {
+					SurveyResponseColumns surveyResponses = userTrial.getSurveyResponses();
+					userTrial.setSurveyResponses(null);
+					
+					if(! holdsPartitionOf(userTrial)) {
+						LOGGER.warn("The partition lease for user " + userTrial.getUserId() + " was lost. The trial will not be processed.");
+						continue;
+					}
+					
+					if(surveyResponses == null || surveyResponses.size() == 0) {
+						LOGGER.info("Found 0 survey responses for the main survey for user " + userTrial.getUserId() 
+							+ ". The trial will not be processed.");
+						continue;
 						
-						currentStart = userSurveyDate;
-					} else { 
-						currentSetup = userSurveyDate;
+					} else {
+						LOGGER.info("Found " + surveyResponses.size() 
+							+ " survey responses for the main survey for user " + userTrial.getUserId());
 					}
 					
-				} else { // A new user
+					// Now convert the list of responses into the normalized format
+					String normalizedData = null;
+					startNanos = normalization.start();
 					
-					if(userSurveyDate.getSurveyId().equals("setup")) {
-						currentUserId = userSurveyDate.getUserId();
-
-						// Save the previous start survey only if there is one
-						if(currentStart != null) {
-							filteredUserSetupStartList.add(currentStart);
-							currentStart = null;
+					try {
+						normalizedData = normalizeTrial(userTrial, surveyResponses);
+						userTrial.setNormalizedData(normalizedData);
+					} catch(Exception exception) {
+						if(trialJournal == null) {
+							throw exception;
 						}
+						trialJournal.quarantine(userTrial.getTrialKey(), NORMALIZATION_STAGE, exception);
+						continue;
+					} finally {
+						normalization.stop(startNanos);
 						
-						// And add the new setup survey to the list
-						currentSetup = userSurveyDate;
-						
-					} else { // The user has changed, but their first survey is not the setup survey, so just reset
-						currentUserId = -1;
-						currentStart = null;
+						if(normalizedData == null) {
+							normalization.recordError();
+						}
 					}
+					
+					normalization.addRows(surveyResponses.size());
+					normalization.addUtf8Bytes(normalizedData);
+					
+					// Queue the data to be saved to the DB and the trial to be analyzed
+					normalizedDataWriter.add(userTrial.getUserId(), normalizedData, userTrial.getTrialKey());
+					trialAnalyzer.submit(userTrial);
 				}
 			}
+			
+			// Surface a failed fetch. A stopped run does not wait for the fetch to finish.
+			if(! stopRequested) {
+				waitForFetch(fetch);
+			}
+			
+			normalizedDataWriter.flush();
+			trialAnalyzer.awaitAll();
+			
+			// Write whatever is left of the last batch
+			analysisResultsWriter.flush();
+			
+		} finally {
+			fetchExecutor.shutdownNow();
+			trialAnalyzer.shutdownNow();
+			normalizedDataWriter.close();
+			analysisResultsWriter.close();
+			numberOfTrialsProcessed.addAndGet(analysisResultsWriter.getNumberOfRowsWritten());
 		}
 		
-		// Handle the case where the last item in the original list was a start survey
-		if(currentStart != null) {
-			filteredUserSetupStartList.add(currentStart);
+		int numberOfFailedTrials = trialAnalyzer.getNumberOfFailedTrials();
+		
+		if(numberOfFailedTrials > 0) {
+			throw new IllegalStateException(numberOfFailedTrials + " of " + trialAnalyzer.getNumberOfTrialsSubmitted() 
+				+ " trial(s) could not be analyzed.");
 		}
 		
-		LOGGER.info("Filtered survey list");
+		if(stopRequested) {
+			LOGGER.warn("Stopped before every trial was analyzed. The remaining trials will be picked up by the next run.");
+			return;
+		}
 		
-		for(UserSurveyDate usd : filteredUserSetupStartList) {
-			LOGGER.info(usd);
+		// Only a successful run moves the checkpoint forward and starts the next run from scratch
+		if(trialWindowCheckpoint != null) {
+			writeTrialWindows(trialWindowCheckpoint, trialScanner.getTrialWindows(), trialScanner.getLastSurveyResponseId());
 		}
 		
-	    // Now determine each user's trial end date
+		if(trialJournal != null) {
+			if(trialJournal.getNumberOfTrialsQuarantined() > 0) {
+				LOGGER.warn(trialJournal.getNumberOfTrialsQuarantined() + " trial(s) were quarantined by this run.");
+			}
+			trialJournal.complete();
+		}
+	}
+	
+	/**
+	 * Returns the trials of every campaign that already have analysis results. The processed trial index is refreshed first,
+	 * which only needs to read the analysis results written since its last refresh.
+	 */
+	Set<TrialKey> selectProcessedTrials() {
+		ProcessedTrialIndex processedTrialIndex = new ProcessedTrialIndex(replicaRouting, batchSize);
+		processedTrialIndex.refresh(getAnalysisResultsStreamLinkId());
+		return processedTrialIndex.getProcessedTrials();
+	}
+	
+	/**
+	 * Converts the main survey responses of a trial into the normalized data set: the trial metadata from the setup survey and
+	 * one data point per survey response. Package-private so it can be benchmarked (see bench/).
+	 */
+	String normalizeTrial(UserTrial userTrial, SurveyResponseColumns surveyResponses) throws JSONException {
+		JSONObject metadata = normalizedMetadata(userTrial);
+		int regimenDuration = metadata.getInt("regimen_duration");
+
+		// Data Section
 		
-		currentUserId = -1;                 
-		String currentSetupSurveyUuid = null;  
-		JSONObject currentSetupSurvey = null;
+		// The data points are written straight to JSON text. Everything that only depends on the survey is computed once per 
+		// survey rather than once per prompt response.
+		NormalizedDataBuilder builder = new NormalizedDataBuilder(metadata, DATE_TIME_FORMATTER);
 		
-		List<UserTrial> userTrials = new ArrayList<UserTrial>();
+		int cycleLength = regimenDuration * 2;
+		DateTime surveyDateTime = null;
+		boolean participantStartedOnDayZero = false;
 		
-		for(UserSurveyDate userSurveyDate : filteredUserSetupStartList) {
-			if(currentUserId == -1)	{
-				currentUserId = userSurveyDate.getUserId();
-				currentSetupSurvey = userSurveyDate.getSurvey();
-				currentSetupSurveyUuid = userSurveyDate.getSurveyUuid();
-				 
+		for(int survey = 0; survey < surveyResponses.size(); survey++) {
+			long epochMillis = surveyResponses.getEpochMillis(survey);
+			
+			// Calculate the current cycle which is based on the number of days the participant has been participating
+			// divided by the cycleLength
+															
+			// Grab the time the survey was taken and normalize it to UTC so it can be compared 
+			// to the start date. Midnight UTC of the survey's UTC date does not depend on the phone's time zone.
+			surveyDateTime = new DateTime(utcMidnight(epochMillis), DateTimeZone.UTC);
+			
+			int daysInTrial = Days.daysBetween(userTrial.getTrialStartDate(), surveyDateTime).getDays();
+			
+			// Handle the case where the participant started filling out surveys on the same
+			// day they clicked "Start Trial".
+			if(daysInTrial == 0) {
+				participantStartedOnDayZero = true;
+			}
+			if(participantStartedOnDayZero) {
+				daysInTrial++;
+			}
+			
+			int cycle = 0;
+			
+			if(daysInTrial % cycleLength == 0) {
+				cycle = daysInTrial / cycleLength;
 			} else {
-				if(currentUserId == userSurveyDate.getUserId()) {
-					if(userSurveyDate.getSurveyId().equals("start")) {
-						// Calculate the user's trial end date based on the setup config and the start date
-						try {
-							// Multiply by 2 because each regimen duration is half a cycle
-							int cycleDuration = regimenDurationInDays(getIntValueForPromptId(currentSetupSurvey, "regimenDuration")) * 2;
-							int numberOfCycles = numberOfCycles(getIntValueForPromptId(currentSetupSurvey, "numberComparisonCycles"));
-							
-							// NOTE: JodaTime requires the long version of the timezone ID. It will accept America/Los_Angeles, but 
-							// reject Etc/GMT-8 or PST. The latter formats will cause an IllegalArgumentException.
-							// Trialist-MWF (phone app) uses a JavaScript library to generate long timezone IDs and ohmage
-							// server uses JodaTime to validate timezone input for survey responses, so a malformed timezone 
-							// should never occur
-							DateTimeZone startDateTimeZone  = null;
-							
-							try {
-								
-								startDateTimeZone = DateTimeZone.forID(userSurveyDate.getSurvey().getString("timezone"));
-								
-							} catch (IllegalArgumentException unknownTimeZone) {
-								// This means that somehow the server app persisted a timezone that Joda cannot parse. 
-								// Just skip the response and log the incorrectly formatted data.
-								LOGGER.warn("Found a start survey with a timezone that JodaTime cannot parse. The value is: " 
-										+ userSurveyDate.getSurvey().getString("timezone"));
-								throw unknownTimeZone;
-							}
-
-							// The user's timezone needs to be provided as the second parameter otherwise JodaTime will default to
-							// the timezone of the machine this program is running on. After the DateTime is created, the time 
-							// and timezone fields are normalized because only the date portion of the DateTime will be needed
-							// for later processing.
-							DateTime startDateTime = new DateTime(
-								getStringValueForPromptId(userSurveyDate.getSurvey(), "startPrompt"), startDateTimeZone)
-									.withZone(DateTimeZone.forID("UTC"))
-									.withTime(0, 0, 0, 0);
-							
-							// The phone app saves the start date as the current day if the current local time is before
-							// 8:00pm and the next day if it is after 8:00pm, so no need to handle the time here 
-							
-							// Subtract 1 to make the start date inclusive to the trial end date calculation
-							int totalDays = cycleDuration * numberOfCycles - 1; 
-							
-							// Calculate the end date, strip out the time, and set the tz to UTC because this value is only used in
-							// an equals() comparison with another yyyy-mm-dd UTC date.
-							DateTime endDateTime = startDateTime.plusDays(totalDays)
-								.withZone(DateTimeZone.forID("UTC"))
-								.withTime(0, 0, 0, 0);
-							
-							userTrials.add(new UserTrial(currentUserId, startDateTime, endDateTime, currentSetupSurvey, currentSetupSurveyUuid)); 
-							
-						} catch (JSONException jsonException) { 
-							LOGGER.error("Malformed setup survey found in the database. JSON: " + currentSetupSurvey, jsonException);
-							throw jsonException;
-						}	
-					}
-					else { // There is a new setup survey for the same user
-						currentSetupSurvey = userSurveyDate.getSurvey();
-						currentSetupSurveyUuid = userSurveyDate.getSurveyUuid();
-					}
+				cycle = daysInTrial / cycleLength + 1;
+			}
+			
+			if(LOGGER.isInfoEnabled()) {
+				LOGGER.info("Days into trial: " + daysInTrial + " ... Current cycle: " + cycle);
+			}
+			
+			int numberOfPromptResponses = surveyResponses.getNumberOfPromptResponses(survey);
+			builder.startDataPoint();
+			
+			// Every survey with at least one prompt response gets the cycle and the timestamp, even if it only has notes
+			if(numberOfPromptResponses > 0) {
+				builder.put("cycle", cycle);
+				builder.put("timestamp", builder.timestamp(epochMillis, surveyResponses.getTimeZoneId(survey)));
+			}
+			
+			for(int promptResponse = 0; promptResponse < numberOfPromptResponses; promptResponse++) {
+				String promptId = surveyResponses.getPromptId(survey, promptResponse);
+				
+				if(promptId.equals("currentRegimen")) {
+					
+					builder.put("regimen", regimen(surveyResponses.getIntResponse(survey, promptResponse)));
+					
 				} else {
-					currentUserId = userSurveyDate.getUserId();
-					currentSetupSurvey = userSurveyDate.getSurvey();
-					currentSetupSurveyUuid = userSurveyDate.getSurveyUuid();
+					if(! promptId.equals("notesAboutToday")) { // notesAboutToday is not relevant to
+						                                       // the analysis, so skip it
+
+						builder.put(promptId, surveyResponses.getIntResponse(survey, promptResponse));
+					} 
 				}
 			}
+			
+			builder.endDataPoint();
 		}
 		
-		for(UserTrial userTrial : userTrials) {
-			LOGGER.info(userTrial.toString());
+		LOGGER.info(builder.getNumberOfDataPoints() + " survey responses in the normalized data array");
+		
+		return builder.finish();
+	}
+	
+	/**
+	 * Creates the metadata section of a trial's normalized data set from its setup survey and dates. Package-private so the
+	 * normalized data can be checked against the fixtures (see bench/).
+	 */
+	JSONObject normalizedMetadata(UserTrial userTrial) throws JSONException {
+		JSONObject metadata = new JSONObject();
+		
+		try {
+			metadata.put("regimen_a", regimenArray(userTrial.getSetupSurvey(), "regimenA", campaignUrn));
+			metadata.put("regimen_b", regimenArray(userTrial.getSetupSurvey(), "regimenB", campaignUrn));
+			metadata.put("trial_start_date", YEAR_MONTH_DAY_FORMATTER.print(userTrial.getTrialStartDate()));
+			metadata.put("trial_end_date", YEAR_MONTH_DAY_FORMATTER.print(userTrial.getTrialEndDate()));
+			int regimenDuration = regimenDurationInDays(getIntValueForPromptId(userTrial.getSetupSurvey(), "regimenDuration"));
+			metadata.put("regimen_duration", regimenDuration);
+			int numberOfCycles = numberOfCycles(getIntValueForPromptId(userTrial.getSetupSurvey(), "numberComparisonCycles"));
+			metadata.put("number_of_cycles", numberOfCycles);
+			String randomABPairs = getStringValueForPromptId(userTrial.getSetupSurvey(), "randomAsText");
+			metadata.put("cycle_ab_pairs", randomABPairs);
+			metadata.put("cognitiveFunctionPromptKey", getStringValueForPromptId(userTrial.getSetupSurvey(), "cognitiveFunction"));
+			
+		} catch (JSONException jsonException) {
+			
+			LOGGER.error("Could not create metadata object for the analysis data set because of invalid JSON " +
+				"or a missing key in the setup survey. The survey UUID is " 
+					+ userTrial.getSetupSurveyUuid(), jsonException);
+			throw jsonException;
 		}
 		
-		// Filter out all trials that should not be processed
-		List<UserTrial> trialsToProcess = filterTrialsForReprocessing(filterTrialsByDate(userTrials), processedTrials);
- 		
-//		LOGGER.info(trialsToProcess.size() + " trial(s) will be processed");
+		return metadata;
+	}
+	
+	/**
+	 * Scans the setup and start surveys into trial windows. If trialWindows is null, every survey is scanned and only the 
+	 * current user's window is kept. Otherwise the surveys are folded into the saved windows, which include the surveys up 
+	 * to the provided survey_response ID.
+	 * 
+	 * Auto-increment IDs are handed out when rows are inserted, not when they are committed, and a replica applies the rows 
+	 * in commit order. A setup or start survey that was not committed, or not replicated, when the last run read the 
+	 * surveys can therefore have an ID below the one saved with the windows. The scan starts checkpointOverlapIds below that 
+	 * ID so such surveys are still found, and skips the surveys the windows have already folded in. If a survey belongs 
+	 * before a survey already in its window, the windows are discarded and every survey is scanned again.
+	 */
+	TrialScanner scanTrials(Map<Long, TrialWindow> trialWindows, long lastSurveyResponseId) {
+		long afterSurveyResponseId = Math.max(0, lastSurveyResponseId - checkpointOverlapIds);
+		TrialScanner trialScanner = scanTrialWindows(trialWindows, lastSurveyResponseId, afterSurveyResponseId);
 		
-//		for(UserTrial userTrial : trialsToProcess) {
-//			LOGGER.info(userTrial.toString());
-//		}
+		if(trialScanner.isOutOfOrder()) {
+			LOGGER.warn("The saved trial windows are out of date. Rescanning all setup and start surveys.");
+			trialScanner = scanTrialWindows(new HashMap<Long, TrialWindow>(), 0, 0);
+		}
 		
-		// Find the normalized data for any previously processed trial in the list
-		// The data will potentially exist if trials are being reprocessed or if this program has already been run for a given
-		// trial end date.
+		return trialScanner;
+	}
+	
+	/**
+	 * Streams the setup and start surveys after the provided survey_response ID through a new trial scanner. If trialWindows
+	 * is null, only the current user's window is kept. 
+	 */
+	private TrialScanner scanTrialWindows(Map<Long, TrialWindow> trialWindows, long lastSurveyResponseId, 
+			long afterSurveyResponseId) {
+		
+		TrialScanner trialScanner = new TrialScanner(trialWindows, lastSurveyResponseId);
+		StageMetrics trialScan = runMetrics.stage(RunMetrics.TRIAL_SCAN);
+		long startNanos = trialScan.start();
+		
+		try { 
+			surveyResponseSource.scanSetupAndStartSurveys(campaignUrn, afterSurveyResponseId, trialScanner);
+		} catch (DataAccessException dataAccessException) {
+			LOGGER.error("An error occurred when accessing the database.");
+			trialScan.recordError();
+			throw dataAccessException;
+		} finally {
+			trialScan.stop(startNanos);
+		}
+		
+		return trialScanner;
+	}
+	
+	/**
+	 * Loads the trial windows saved by the last successful run into the map and returns the last survey_response ID they 
+	 * include, or 0 if there is no checkpoint.
+	 */
+	private long readTrialWindows(CheckpointFile checkpoint, Map<Long, TrialWindow> trialWindows) throws IOException, JSONException {
+		JSONObject saved = checkpoint.read();
+		
+		if(saved == null) {
+			LOGGER.info("No trial window checkpoint at " + checkpoint.getFile().getAbsolutePath() + ". Scanning all surveys.");
+			return 0;
+		}
+		
+		return restoreTrialWindows(saved, trialWindows);
+	}
+	
+	/**
+	 * Puts the trial windows of a checkpoint written by {@link #savedTrialWindows(Map, long)} into the map and returns the 
+	 * last survey_response ID they include.
+	 */
+	long restoreTrialWindows(JSONObject saved, Map<Long, TrialWindow> trialWindows) throws JSONException {
+		JSONArray savedWindows = saved.getJSONArray("trial_windows");
+		int numberOfWindows = savedWindows.length();
+		
+		for(int i = 0; i < numberOfWindows; i++) {
+			TrialWindow trialWindow = TrialWindow.fromJson(savedWindows.getJSONObject(i));
+			trialWindows.put(trialWindow.getUserId(), trialWindow);
+		}
+		
+		long lastSurveyResponseId = saved.getLong("last_survey_response_id");
+		
+		LOGGER.info("Loaded " + numberOfWindows + " trial window(s) up to survey_response ID " + lastSurveyResponseId);
+		
+		return lastSurveyResponseId;
+	}
+	
+	/**
+	 * Saves the trial windows and the last survey_response ID they include.
+	 */
+	private void writeTrialWindows(CheckpointFile checkpoint, Map<Long, TrialWindow> trialWindows, long lastSurveyResponseId) 
+			throws IOException, JSONException {
+		
+		checkpoint.write(savedTrialWindows(trialWindows, lastSurveyResponseId));
+		
+		LOGGER.info("Saved " + trialWindows.size() + " trial window(s) up to survey_response ID " + lastSurveyResponseId);
+	}
+	
+	/**
+	 * Returns the checkpoint of the trial windows and the last survey_response ID they include. Each window only keeps the 
+	 * IDs of its folded surveys that the next run reads again.
+	 */
+	JSONObject savedTrialWindows(Map<Long, TrialWindow> trialWindows, long lastSurveyResponseId) throws JSONException {
+		JSONArray savedWindows = new JSONArray();
+		
+		for(TrialWindow trialWindow : trialWindows.values()) {
+			trialWindow.forgetFoldedSurveysUpTo(lastSurveyResponseId - checkpointOverlapIds);
+			savedWindows.put(trialWindow.toJson());
+		}
+		
+		JSONObject saved = new JSONObject();
+		saved.put("campaign_urn", campaignUrn);
+		saved.put("last_survey_response_id", lastSurveyResponseId);
+		saved.put("trial_windows", savedWindows);
+		return saved;
+	}
+	
+	/**
+	 * Sends the normalized data for a trial to the analysis backend and saves the analysis results. Called concurrently from the
+	 * analysis threads, so it must only touch state that belongs to the provided trial.
+	 */
+	private void analyzeTrial(UserTrial userTrial, ObserverStreamDataWriter analysisResultsWriter) throws IOException {
+		LOGGER.info("Processing trial " + userTrial);
+		
+		// A resumed run writes the results the interrupted run journaled instead of analyzing the trial again
+		String journaledResults = trialJournal == null ? null : trialJournal.getAnalysisResults(userTrial.getTrialKey());
+		
+		if(journaledResults != null) {
+			LOGGER.info("Using the journaled analysis results of trial " + userTrial);
+			analysisResultsWriter.add(userTrial.getUserId(), journaledResults, userTrial.getTrialKey());
+			userTrial.setNormalizedData(null);
+			return;
+		}
+		
+		// The permits are shared with the other campaigns of a multi-campaign run and handed out in the order they are asked for
+		try {
+			analysisPermits.acquire();
+		} catch(InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to analyze a trial.", interruptedException);
+		}
+		
+		StageMetrics analysis = runMetrics.stage(RunMetrics.ANALYSIS);
+		long startNanos = analysis.start();
+		JSONObject analysisResults = null;
+		
+		try {
+			analysisResults = analysisBackend.analyze(userTrial.getNormalizedData());
+		} finally {
+			analysisPermits.release();
+			analysis.stop(startNanos);
 			
-		for(UserTrial userTrial : trialsToProcess) {
-			try {
-				
-				if(jdbcTemplate.queryForObject(SQL_SELECT_EXISTS_TRIALIST_STREAM_DATA_POINTS, Boolean.class, userTrial.getUserId())) {
-				
-					userTrial.setNormalizedData(
-						jdbcTemplate.queryForObject(
-							SQL_SELECT_TRIALIST_STREAM_DATA_POINTS, 
-							new Object[] { userTrial.getUserId() }, 
-							new RowMapper<JSONObject>() {
-								@Override
-								public JSONObject mapRow(ResultSet rs, int rowNum) throws SQLException {
-									try {
-										return new JSONObject(rs.getString("data"));
-									} catch (JSONException jsonException) {
-										LOGGER.error("Found stream data that cannot be parsed as JSON. The value returned from " +
-											"observer_stream_data is " + rs.getString("data"));
-										throw new SQLException(jsonException);
-									}
-								}
-							}
-						)
-					);
-				}
-				
-			} catch (DataAccessException dataAccessException) {
-				LOGGER.error("An error occurred when accessing the database.", dataAccessException);
-				throw dataAccessException;
+			if(analysisResults == null) {
+				analysis.recordError();
 			}
 		}
 		
-		// Create the normalized data stream for each trial 
-		for(UserTrial userTrial : trialsToProcess) {
-			if(userTrial.getNormalizedData() == null) { // If the trial data has not been normalized, normalize it.
-				
-				SurveyReponseRowCallbackHandler surveyResponseHandler = new SurveyReponseRowCallbackHandler();
-				
-				try { 
-					
-					LOGGER.info("Params to retrieving main surveys. " +
-						"Start date " + yearMonthDayFormatter.print(userTrial.getTrialStartDate()) +
-						", end date " + yearMonthDayFormatter.print(userTrial.getTrialEndDate()) + 
-						",  user ID " + userTrial.getUserId());
-					
-					jdbcTemplate.query(
-						SQL_SELECT_MAIN_SURVEY_PROMPT_RESPONSES_FOR_USER, 
-						new Object[] { campaignUrn,
-									   yearMonthDayFormatter.print(userTrial.getTrialStartDate()), 
-									   yearMonthDayFormatter.print(userTrial.getTrialEndDate()), 
-									   userTrial.getUserId()  },
-						surveyResponseHandler
-					);
-				} catch (DataAccessException dataAccessException) {
-					LOGGER.error("An error occurred when accessing the database.");
-					throw dataAccessException;
-				}
-				
-				if(surveyResponseHandler.getSurveyResponses().size() == 0) {
-					LOGGER.info("Found 0 survey responses for the main survey for user " + userTrial.getUserId() 
-						+ ". The trial will not be processed.");
-					continue;
-					
-				} else {
-					LOGGER.info("Found " + surveyResponseHandler.getSurveyResponses().size() 
-						+ " survey responses for the main survey for user " + userTrial.getUserId());
-				}
-				
-				// Now convert the list of responses into the normalized format
-
-				JSONObject root = new JSONObject();
-				JSONObject metadata = new JSONObject();
-				JSONArray dataArray = new JSONArray();
-				
-				int regimenDuration = -1;
-				int numberOfCycles = -1;
-				
-				// Metadata Section
-				
-				try {
-					metadata.put("regimen_a", regimenArray(userTrial.getSetupSurvey(), "regimenA", campaignUrn));
-					metadata.put("regimen_b", regimenArray(userTrial.getSetupSurvey(), "regimenB", campaignUrn));
-					metadata.put("trial_start_date", yearMonthDayFormatter.print(userTrial.getTrialStartDate()));
-					metadata.put("trial_end_date", yearMonthDayFormatter.print(userTrial.getTrialEndDate()));
-					regimenDuration = regimenDurationInDays(getIntValueForPromptId(userTrial.getSetupSurvey(), "regimenDuration"));
-					metadata.put("regimen_duration", regimenDuration);
-					numberOfCycles = numberOfCycles(getIntValueForPromptId(userTrial.getSetupSurvey(), "numberComparisonCycles"));
-					metadata.put("number_of_cycles", numberOfCycles);
-					String randomABPairs = getStringValueForPromptId(userTrial.getSetupSurvey(), "randomAsText");
-					metadata.put("cycle_ab_pairs", randomABPairs);
-					metadata.put("cognitiveFunctionPromptKey", getStringValueForPromptId(userTrial.getSetupSurvey(), "cognitiveFunction"));
-					
-					root.put("metadata", metadata);
-					
-				} catch (JSONException jsonException) {
-					
-					LOGGER.error("Could not create metadata object for the analysis data set because of invalid JSON " +
-						"or a missing key in the setup survey. The survey UUID is " 
-							+ userTrial.getSetupSurveyUuid(), jsonException);
-					throw jsonException;
-				}
-
-				// Data Section
-				
-				List<SurveyResponse> surveyResponses = surveyResponseHandler.getSurveyResponses();
-				
-				try {
-					
-					int cycleLength = regimenDuration * 2;
-					DateTime surveyDateTime = null;
-					boolean participantStartedOnDayZero = false;
-					
-					for(SurveyResponse surveyResponse : surveyResponses) {
-						// Calculate the current cycle which is based on the number of days the participant has been participating
-						// divided by the cycleLength
-																		
-						// Grab the time the survey was taken and normalize it to UTC so it can be compared 
-						// to the start date.
-						surveyDateTime = new DateTime(
-							surveyResponse.getEpochMillis(), DateTimeZone.forID(surveyResponse.getTimeZoneString()))
-								.withZone(DateTimeZone.forID("UTC"))
-								.withTime(0, 0, 0, 0);
-						
-						int daysInTrial = Days.daysBetween(userTrial.getTrialStartDate(), surveyDateTime).getDays();
-						
-						// Handle the case where the participant started filling out surveys on the same
-						// day they clicked "Start Trial".
-						if(daysInTrial == 0) {
-							participantStartedOnDayZero = true;
-						}
-						if(participantStartedOnDayZero) {
-							daysInTrial++;
-						}
+		try {
+			
+			// Add the setup survey UUID to the JSON returned from the analysis
+			// The setup survey UUID is stored with the analysis results in order to determine 
+			// whether a particular trial has already been processed. It is stored with the stream
+			// data in order to avoid having to create a new table in the DB.
+			analysisResults.put("setup_survey_id", userTrial.getSetupSurveyUuid());
+			
+		} catch(JSONException jsonException) {
+			
+			throw new IllegalStateException("Could not add the setup survey ID to the analysis results", jsonException);
+		}
+		
+		// Now queue the results to be stored
+		String analysisJsonString = analysisResults.toString();
+		LOGGER.info("Trial results JSON: " + analysisJsonString);
+		analysis.addRows(1);
+		analysis.addUtf8Bytes(analysisJsonString);
+		
+		if(trialJournal != null) {
+			trialJournal.recordAnalyzed(userTrial.getTrialKey(), analysisJsonString);
+		}
+		
+		analysisResultsWriter.add(userTrial.getUserId(), analysisJsonString, userTrial.getTrialKey());
+		
+		// The trial's data is not needed once its results are queued
+		userTrial.setNormalizedData(null);
+	}
+	
+	/**
+	 * Returns the observer_stream_link ID of the normalized data stream, looking it up the first time it is needed.
+	 */
+	private long getDataStreamLinkId() {
+		if(dataStreamLinkId == null) {
+			dataStreamLinkId = selectObserverStreamLinkId(DATA_STREAM_ID, DATA_STREAM_VERSION);
+		}
+		return dataStreamLinkId;
+	}
+	
+	/**
+	 * Returns the observer_stream_link ID of the analysis results stream, looking it up the first time it is needed.
+	 */
+	private long getAnalysisResultsStreamLinkId() {
+		if(analysisResultsStreamLinkId == null) {
+			analysisResultsStreamLinkId = selectObserverStreamLinkId(ANALYSIS_RESULTS_STREAM_ID, ANALYSIS_RESULTS_STREAM_VERSION);
+		}
+		return analysisResultsStreamLinkId;
+	}
+	
+	/**
+	 * Looks up the observer_stream_link ID for a stream of the Trialist observer.
+	 */
+	private long selectObserverStreamLinkId(String streamId, String streamVersion) {
+		try {
+			
+			return jdbcTemplate.queryForLong(SQL_SELECT_OBSERVER_STREAM_LINK_ID, streamId, streamVersion);
+			
+		} catch (DataAccessException dataAccessException) {
+			LOGGER.error("Could not find the observer stream link for the stream " + streamId + " version " + streamVersion 
+				+ ". Is the " + OBSERVER_ID + " observer registered?", dataAccessException);
+			throw dataAccessException;
+		}
+	}
+	
+	/**
+	 * Retrieves the already normalized data for the provided trials using one query per chunk of users instead of one per
+	 * trial. A user's stored data sets are matched to that user's trials using the trial start and end dates in the data 
+	 * set metadata. The data is set on each trial it is found for.
+	 */
+	private void selectNormalizedData(List<UserTrial> userTrials) {
+		final Map<Long, List<UserTrial>> trialsByUser = new HashMap<Long, List<UserTrial>>();
+		
+		for(UserTrial userTrial : userTrials) {
+			List<UserTrial> trialsForUser = trialsByUser.get(userTrial.getUserId());
+			
+			if(trialsForUser == null) {
+				trialsForUser = new ArrayList<UserTrial>();
+				trialsByUser.put(userTrial.getUserId(), trialsForUser);
+			}
+			
+			trialsForUser.add(userTrial);
+		}
+		
+		final StageMetrics normalizedDataLookup = runMetrics.stage(RunMetrics.NORMALIZED_DATA_LOOKUP);
+		List<Long> userIds = new ArrayList<Long>(trialsByUser.keySet());
+		
+		// The data sets may have been written moments ago, e.g. by the run this one resumes
+		JdbcTemplate normalizedDataTemplate = replicaRouting.caughtUp();
+		
+		for(int chunkStart = 0; chunkStart < userIds.size(); chunkStart += USER_ID_CHUNK_SIZE) {
+			List<Long> chunk = userIds.subList(chunkStart, Math.min(chunkStart + USER_ID_CHUNK_SIZE, userIds.size()));
+			
+			StringBuilder sql = new StringBuilder(SQL_SELECT_TRIALIST_STREAM_DATA_POINTS_FOR_USERS).append('(');
+			for(int i = 0; i < chunk.size(); i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			sql.append(") ORDER BY observer_stream_data.id");
+			
+			normalizedDataTemplate.query(
+				sql.toString(), 
+				chunk.toArray(), 
+				new RowCallbackHandler() {
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						JSONObject normalizedData = null;
+						String trialStartDate = null;
+						String trialEndDate = null;
 						
-						int cycle = 0;
+						String data = rs.getString("data");
+						normalizedDataLookup.addRows(1);
+						normalizedDataLookup.addUtf8Bytes(data);
 						
-						if(daysInTrial % cycleLength == 0) {
-							cycle = daysInTrial / cycleLength;
-						} else {
-							cycle = daysInTrial / cycleLength + 1;
+						try {
+							normalizedData = new JSONObject(data);
+							JSONObject metadata = normalizedData.getJSONObject("metadata");
+							trialStartDate = metadata.getString("trial_start_date");
+							trialEndDate = metadata.getString("trial_end_date");
+						} catch (JSONException jsonException) {
+							LOGGER.error("Found stream data that cannot be parsed as JSON. The value returned from " +
+								"observer_stream_data is " + rs.getString("data"));
+							throw new SQLException(jsonException);
 						}
 						
-                        LOGGER.info("Days into trial: " + daysInTrial + " ... Current cycle: " + cycle);
-                        
-						List<PromptResponse> promptResponses = surveyResponse.getPromptResponses();
-						JSONObject dataPoint = new JSONObject();
-						
-						for(PromptResponse promptResponse : promptResponses) {
-							
-							dataPoint.put("cycle", cycle);
-							dataPoint.put("timestamp", 
-								dateTimeFormatter.withZone(DateTimeZone.forID(surveyResponse.getTimeZoneString()))
-									.print(surveyResponse.getEpochMillis()));
-							
-							if(promptResponse.getPromptId().equals("currentRegimen")) {
-								
-								dataPoint.put("regimen", regimen(Integer.parseInt(promptResponse.getResponse())));
+						// Rows are ordered oldest first, so the most recently saved data set for a trial wins
+						for(UserTrial userTrial : trialsByUser.get(rs.getLong("user_id"))) {
+							if(trialStartDate.equals(YEAR_MONTH_DAY_FORMATTER.print(userTrial.getTrialStartDate()))
+									&& trialEndDate.equals(YEAR_MONTH_DAY_FORMATTER.print(userTrial.getTrialEndDate()))) {
 								
-							} else {
-								if(! promptResponse.getPromptId().equals("notesAboutToday")) { // notesAboutToday is not relevant to
-									                                                           // the analysis, so skip it
-
-									dataPoint.put(promptResponse.getPromptId(), Integer.parseInt(promptResponse.getResponse()));
-								} 
+								userTrial.setNormalizedData(data);
 							}
 						}
-						
-						dataArray.put(dataPoint);
 					}
-					
-					LOGGER.info(dataArray.length() + " survey responses in the normalized data array");
-					
-					root.put("data", dataArray);
-					userTrial.setNormalizedData(root);
-					
-				} catch (JSONException dataArrayCreationException) {
-					
-					LOGGER.error("Could not create an entry in the data array from a survey response.", dataArrayCreationException);
-					throw dataArrayCreationException;
-				} 
-
-				// Save the data to the DB
-				try {
-					
-					long time = System.currentTimeMillis();
-					int timeOffset = DateTimeZone.getDefault().getOffset(time); 
-					long timeAdjusted = time + timeOffset;
-					String timeZoneString =  DateTimeZone.getDefault().getID();
-					
-					jdbcTemplate.update(SQL_INSERT_TRIAL_DATA_POINTS, userTrial.getUserId(), 
-							time, timeOffset, timeAdjusted, timeZoneString, userTrial.getNormalizedData().toString());
-				
-				} catch(DataAccessException couldNotInsert) {
-					
-					LOGGER.error("Could not insert trial data.", couldNotInsert);
-					throw couldNotInsert;
 				}
+			);
+		}
+		
+		int numberOfTrialsFound = 0;
+		
+		for(UserTrial userTrial : userTrials) {
+			if(userTrial.hasNormalizedData()) {
+				numberOfTrialsFound++;
 			}
 		}
 		
-		// One last loop through the trials to perform and save the analysis results
+		LOGGER.info("Found normalized data for " + numberOfTrialsFound + " of " + userTrials.size() + " trial(s)");
+	}
+	
+	/**
+	 * Retrieves the main survey responses for a chunk of trials in a single scan of the survey response source. The responses
+	 * are stored by user in columns, then each of the user's trials is given the view of the columns its date range contains. 
+	 * A trial without main surveys is given none. Each chunk has its own prompt and time zone ID tables so the columns of 
+	 * the next chunk can be filled while the current chunk is read.
+	 * 
+	 * The trial dates are inclusive calendar days in the database time zone, matching what 
+	 * DATE(FROM_UNIXTIME(epoch_millis / 1000)) evaluates to in MySQL, so they are converted to a half-open epoch millis range. 
+	 */
+	private void selectMainSurveyResponses(List<UserTrial> chunk) {
+		// The prompt and time zone IDs repeat in every survey, so they are stored once for the chunk
+		StringCodes promptIds = new StringCodes();
+		StringCodes timeZoneIds = new StringCodes();
+		
+		List<SurveyResponseSource.TrialPeriod> trialPeriods = new ArrayList<SurveyResponseSource.TrialPeriod>(chunk.size());
+		
+		for(UserTrial userTrial : chunk) {
+			trialPeriods.add(
+				new SurveyResponseSource.TrialPeriod(userTrial.getUserId(), trialStartMillis(userTrial), trialEndMillis(userTrial)));
+		}
+		
+		MultiUserSurveyResponseHandler surveyResponseHandler = 
+			new MultiUserSurveyResponseHandler(runMetrics.stage(RunMetrics.MAIN_SURVEY_FETCH), promptIds, timeZoneIds);
 		
-		CloseableHttpClient httpClient = null;
+		surveyResponseSource.scanMainSurveyPromptResponses(campaignUrn, trialPeriods, surveyResponseHandler);
 		
-		for(UserTrial userTrial : trialsToProcess) {
-			if(userTrial.getNormalizedData() == null) { // No main surveys were found in the processing above 
-				continue;
-			}
-			
-			LOGGER.info("Processing trial " + userTrial);
-			
-			httpClient = HttpClients.createDefault();
-			HttpPost httpPost = new HttpPost(OCPU_URL);
-			httpPost.setHeader("Content-Type", "application/json");
-			
-			// LOGGER.info("Processing the following JSON: " + userTrial.getNormalizedData().toString(4));
-			
-			httpPost.setEntity(new StringEntity(userTrial.getNormalizedData().toString(), Charset.forName("UTF-8")));
-			
-			StringBuilder ocpuResponseBuilder = new StringBuilder();
+		Map<Long, SurveyResponseColumns> surveyResponsesByUser = surveyResponseHandler.getSurveyResponsesByUser();
+		
+		for(UserTrial userTrial : chunk) {
+			SurveyResponseColumns surveyResponsesForUser = surveyResponsesByUser.get(userTrial.getUserId());
 			
-			try { 
-				
-				CloseableHttpResponse httpResponse = httpClient.execute(httpPost); 
-				
-				byte[] bytes = new byte[4096];
-				int amountRead = 0;
-				
-				InputStream is = httpResponse.getEntity().getContent();
-				
-				while((amountRead = is.read(bytes, 0, 4096)) != -1) {
-					ocpuResponseBuilder.append(new String(bytes, 0, amountRead));
-				}
-				
-				if(httpResponse.getStatusLine().getStatusCode() != 200) {
-					LOGGER.error("Received a non-200 response from OpenCPU: "  + httpResponse.getStatusLine() 
-						+ " Returned data: " + ocpuResponseBuilder);
-					throw new IllegalStateException("Could not process trial results using OpenCPU.");
-				}
-				
-				is.close();
-				httpResponse.close();
-				httpClient.close();
-				
-			} catch(IOException ioException) {
-				
-				LOGGER.error("Problem with HTTP POST to OpenCPU at " + OCPU_URL, ioException);
-				throw ioException;
-				
+			if(surveyResponsesForUser != null) {
+				userTrial.setSurveyResponses(
+					surveyResponsesForUser.range(trialStartMillis(userTrial), trialEndMillis(userTrial)));
 			}
-			
-			// Now store the results
-			try {
-				
-				// First add the setup survey UUID to the JSON returned from OpenCPU
-				// The setup survey UUID is stored with the analysis results in order to determine 
-				// whether a particular trial has already been processed. It is stored with the stream
-				// data in order to avoid having to create a new table in the DB.
-				
-				String analysisJsonString = null;
-				
-				try {
-					
-					analysisJsonString = new JSONObject(ocpuResponseBuilder.toString()).put("setup_survey_id", userTrial.getSetupSurveyUuid()).toString();
-					LOGGER.info("Trial results JSON: " + analysisJsonString);
-					
-				} catch(JSONException jsonException) {
-					
-					throw new IllegalStateException("Could not add setup survey ID to JSON returned from OpenCPU", jsonException);
-				}
-				
-				long time = System.currentTimeMillis();
-				int timeOffset = DateTimeZone.getDefault().getOffset(time); 
-				long timeAdjusted = time + timeOffset;
-				String timeZoneString =  DateTimeZone.getDefault().getID();
-				
-				jdbcTemplate.update(SQL_INSERT_TRIAL_ANALYSIS_RESULTS, userTrial.getUserId(), time, timeOffset, timeAdjusted, timeZoneString, analysisJsonString);
-			
-			} catch(DataAccessException couldNotInsert) {
-				
-				LOGGER.error("Could not insert trial results.", couldNotInsert);
-				throw couldNotInsert;
-			}			
-			
-			numberOfTrialsProcessed++;
 		}
 	}
 	
+	/**
+	 * Takes the next chunk of trials from the fetch stage, waiting until it has been fetched.
+	 */
+	private static List<UserTrial> takeChunk(BlockingQueue<List<UserTrial>> fetchedChunks) {
+		try {
+			return fetchedChunks.take();
+		} catch(InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for main surveys to be fetched.", interruptedException);
+		}
+	}
+	
+	/**
+	 * Waits for the fetch stage to finish and rethrows the error that stopped it, if any.
+	 */
+	private static void waitForFetch(Future<Void> fetch) {
+		try {
+			fetch.get();
+		} catch(ExecutionException executionException) {
+			if(executionException.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) executionException.getCause();
+			}
+			throw new IllegalStateException("Could not fetch the main surveys.", executionException.getCause());
+		} catch(InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for main surveys to be fetched.", interruptedException);
+		}
+	}
+	
+	private static long utcMidnight(long epochMillis) {
+		long millisIntoDay = epochMillis % DateTimeConstants.MILLIS_PER_DAY;
+		return epochMillis - (millisIntoDay < 0 ? millisIntoDay + DateTimeConstants.MILLIS_PER_DAY : millisIntoDay);
+	}
+	
+	/**
+	 * Returns the first millisecond of the trial start date in the database time zone.
+	 */
+	private long trialStartMillis(UserTrial userTrial) {
+		return userTrial.getTrialStartDate().toLocalDate().toDateTimeAtStartOfDay(databaseTimeZone).getMillis();
+	}
+	
+	/**
+	 * Returns the first millisecond after the trial end date in the database time zone.
+	 */
+	private long trialEndMillis(UserTrial userTrial) {
+		return userTrial.getTrialEndDate().toLocalDate().plusDays(1).toDateTimeAtStartOfDay(databaseTimeZone).getMillis();
+	}
+	
 	/**
 	 * Map the regimen duration prompt response (the <key> element in the prompt's XML config) to the actual value in days. 
 	 * Magic numbers ahoy!
@@ -813,7 +1185,7 @@ public class TrialistAnalysisProcessor {
 	/**
 	 * Returns the integer value for a prompt ID present in the survey object.  
 	 */
-	private int getIntValueForPromptId(JSONObject surveyObject, String promptId) throws JSONException {
+	int getIntValueForPromptId(JSONObject surveyObject, String promptId) throws JSONException {
 		// Grab the responses array and then find the prompt response object that contains the key given by promptId
 		JSONArray responses = (JSONArray) surveyObject.get("responses");
 		int numberOfResponses = responses.length();
@@ -828,7 +1200,7 @@ public class TrialistAnalysisProcessor {
 	/**
 	 * Returns the String value for a prompt ID present in the survey object.   
 	 */
-	private String getStringValueForPromptId(JSONObject surveyObject, String promptId) throws JSONException {
+	String getStringValueForPromptId(JSONObject surveyObject, String promptId) throws JSONException {
 		// Grab the responses array and then find the prompt response object that contains the key given by promptId
 		JSONArray responses = (JSONArray) surveyObject.get("responses");
 		int numberOfResponses = responses.length();
@@ -842,48 +1214,92 @@ public class TrialistAnalysisProcessor {
 	
 	
 	/**
-	 * Returns a list of user trials that should be processed based the trial end date parameter and whether reprocessAllTrials 
+	 * Returns whether a user trial should be processed based the trial end date parameter and whether reprocessAllTrials 
 	 * is true.
 	 */
-	private List<UserTrial> filterTrialsByDate(List<UserTrial> trialsToCheck) {
-		if(trialsToCheck == null || trialsToCheck.isEmpty()) {
-			return Collections.<UserTrial>emptyList();
+	private boolean isTrialInDateRange(UserTrial userTrial) {
+		// Don't process trials that are not finished yet
+		if(userTrial.getTrialEndDate().compareTo(yesterday) <= 0) {
+
+			if(alsoReprocessAllTrials) {
+				// Any finished trial will be processed
+				return true;
+				
+			} else {
+				
+				// Otherwise only trials ending on the end date parameter to this program will be processed
+				return userTrial.getTrialEndDate().equals(dateTrialEnded);
+			}	
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * In partitioned mode, keeps only the trials in the partitions this instance holds. 
+	 */
+	private List<UserTrial> filterTrialsForPartitions(List<UserTrial> trialsToCheck) {
+		if(partitionLeases == null) {
+			return trialsToCheck;
 		}
 		
-		List<UserTrial> trialsToProcess = new ArrayList<UserTrial>();
+		List<UserTrial> trialsInPartitions = new ArrayList<UserTrial>();
 		
 		for(UserTrial userTrial : trialsToCheck) {
-			// Don't process trials that are not finished yet
-			if(userTrial.getTrialEndDate().compareTo(yesterday) <= 0) {
-
-				if(alsoReprocessAllTrials) {
-					// Any finished trial will be processed
-					trialsToProcess.add(userTrial);
-					
-				} else {
-					
-					// Otherwise only trials ending on the end date parameter to this program will be processed
-					if(userTrial.getTrialEndDate().equals(dateTrialEnded)) {
-						
-						trialsToProcess.add(userTrial);
-					}
-				}	
+			if(partitionLeases.holdsPartitionOf(userTrial.getUserId())) {
+				trialsInPartitions.add(userTrial);
+			}
+		}
+		
+		LOGGER.info(trialsInPartitions.size() + " of " + trialsToCheck.size() + " trial(s) are in the partitions held by this instance");
+		
+		return trialsInPartitions;
+	}
+	
+	/**
+	 * Returns whether this instance may write the trial: always, unless partitioned mode is on and the lease on the 
+	 * trial's partition was lost. May be called from any thread.
+	 */
+	private boolean holdsPartitionOf(UserTrial userTrial) {
+		return partitionLeases == null || partitionLeases.holdsPartitionOf(userTrial.getUserId());
+	}
+	
+	/**
+	 * Filters out the trials whose results an interrupted run of the journal already saved and the quarantined trials.
+	 */
+	private List<UserTrial> filterTrialsForJournal(List<UserTrial> trialsToCheck) {
+		if(trialJournal == null) {
+			return trialsToCheck;
+		}
+		
+		List<UserTrial> remainingTrials = new ArrayList<UserTrial>();
+		int numberOfTrialsSaved = 0;
+		
+		for(UserTrial userTrial : trialsToCheck) {
+			if(trialJournal.isPersisted(userTrial.getTrialKey())) {
+				numberOfTrialsSaved++;
+			} else if(! trialJournal.isQuarantined(userTrial.getTrialKey())) {
+				remainingTrials.add(userTrial);
 			}
 		}
 		
-		return trialsToProcess;
+		if(numberOfTrialsSaved > 0) {
+			LOGGER.info("Skipping " + numberOfTrialsSaved + " trial(s) saved before the run was interrupted");
+		}
+		
+		return remainingTrials;
 	}
 	
 	/**
 	 * If reprocessTrials is false, this method filters out any trial that has already been processed. 
 	 */
-	private List<UserTrial> filterTrialsForReprocessing(List<UserTrial> trialsToCheck, List<ProcessedTrial> processedTrials) { 
+	private List<UserTrial> filterTrialsForReprocessing(List<UserTrial> trialsToCheck, Set<TrialKey> processedTrials) { 
 		if(! alsoReprocessTrials && ! alsoReprocessAllTrials) {
 			// Use an iterator because the list might be modified as it is traversed
 			Iterator<UserTrial> iterator = trialsToCheck.iterator();
 			while(iterator.hasNext()) {
 				UserTrial userTrial = iterator.next();
-				if(processedTrials.contains(new ProcessedTrial(userTrial.getUserId(), userTrial.getSetupSurveyUuid()))) {
+				if(processedTrials.contains(userTrial.getTrialKey())) {
 					iterator.remove();
 				}
 			}
@@ -898,7 +1314,7 @@ public class TrialistAnalysisProcessor {
 	 * Converts the multi_choice prompt response String into a JSON array of regimens. If the campaignUrn represents a mock trial
 	 * or an "old" trial (a test run), returns music genres instead of medications. 
 	 */
-	private JSONArray regimenArray(JSONObject setupSurvey, String regimenKey, String campaignUrn) throws JSONException {
+	JSONArray regimenArray(JSONObject setupSurvey, String regimenKey, String campaignUrn) throws JSONException {
 		boolean isMock = campaignUrn.contains("old") || campaignUrn.contains("mock"); 
 		JSONArray stringArray = new JSONArray();
 		JSONArray intArray = null;
@@ -957,150 +1373,716 @@ public class TrialistAnalysisProcessor {
 	 * be generated; also-reprocess-all signals to reprocess all trials regardless of their completion date; trial-end-date indicates 
 	 * that the program should process completed trials for a custom end date as opposed to the previous calendar day; campaign-urn
 	 * allows the URN to be customized (e.g., so only mock trials are processed). If also-reprocess-all is true, the values for reprocess 
-	 * and trial-end-date are ignored.
+	 * and trial-end-date are ignored. campaign-urn may also be an array of URNs, which are processed concurrently in one run. See 
+	 * {@link MultiCampaignRun}.
 	 * 
 	 * Invoke with "help" as the first argument to print help text.
 	 * 
-	 * @param args if args[0] is present, it must be a JSON object.
+	 * Invoke with "daemon" as the first argument to keep the program running and process trials on a schedule. See 
+	 * {@link TrialistProcessorDaemon}.
+	 * 
+	 * Invoke with "opencpu-stand-in" as the first argument to serve fixture results in place of OpenCPU for offline 
+	 * tests instead of processing trials. See {@link OpenCpuStandInServer}.
+	 * 
+	 * @param args if args[0] is present, it must be a JSON object, "help", "daemon" or "opencpu-stand-in".
+	 */
+	public static void main(String args[]) throws Exception {
+		Properties configuredProperties = new ConfigurationFileImport().getProperties();
+		// Config logging
+		PropertyConfigurator.configure(configuredProperties);
+		
+		if(args.length == 1 && "daemon".equals(args[0])) {
+			new TrialistProcessorDaemon(configuredProperties).runUntilShutdown();
+			return;
+		}
+		
+		if(args.length == 1 && "opencpu-stand-in".equals(args[0])) {
+			new OpenCpuStandInServer(configuredProperties).runUntilShutdown();
+			return;
+		}
+		
+		LOGGER.info("Starting program run at " + new Date());
+		
+		MultiCampaignRun run = null;
+		ProcessorResources resources = null;
+		
+		try {
+			
+			if(args.length == 0) {
+				
+				run = new MultiCampaignRun();
+				
+			} else if(args.length == 1) {
+				
+				if("help".equals(args[0])) {
+					help();
+					return;
+				}
+				
+				run = fromParameters(args[0]);
+				
+				if(run == null) {
+					return;
+				}
+								
+			} else {
+				
+				LOGGER.error("Could not run program because incorrect arguments were provided.");
+				return;
+			}
+			
+			resources = new ProcessorResources(configuredProperties);
+			run.useResources(resources);
+			
+			run.run();
+		}
+		
+		finally {
+			if(resources != null) {
+				resources.close();
+			}
+			
+			if(run != null) {
+				run.logNumberOfTrialsProcessed();
+			} else {
+				LOGGER.info("Processed 0 trials.");
+			}
+			
+			LOGGER.info("Ending program run at " + new Date());
+		}
+	}
+	
+	/**
+	 * Creates a run from the JSON object parameter described in {@link #main(String[])}. Logs the problem and returns null if 
+	 * the parameter is not valid.
+	 */
+	static MultiCampaignRun fromParameters(String parameterString) {
+		JSONObject parameters = null;
+		boolean alsoReprocess = false;
+		boolean alsoReprocessAll = false;
+		String trialEndDateString = null;
+		DateTime trialEndDate = null;
+		List<String> campaignUrns = new ArrayList<String>();
+		
+		try {
+			parameters = new JSONObject(parameterString);
+		} catch (JSONException jsonException) {
+			LOGGER.error("The provided parameter is not a parseable JSON object.");
+			return null;
+		}
+		
+		try {
+			alsoReprocess = parameters.getBoolean("also-reprocess");
+		} catch (JSONException jsonException) {
+			LOGGER.error("Boolean value missing for the key 'also-reprocess'.");
+			return null;
+		}
+		
+		try {
+			alsoReprocessAll = parameters.getBoolean("also-reprocess-all");
+		} catch (JSONException jsonException) {
+			LOGGER.error("Boolean value missing for the key 'also-reprocess-all'.");
+			return null;
+		}
+
+		try {
+			trialEndDateString = parameters.getString("trial-end-date");
+			
+			// This will throw an IllegalArgumentException if the date string is not parseable
+			trialEndDate = ISODateTimeFormat.yearMonthDay().parseDateTime(trialEndDateString)
+				.withZone(DateTimeZone.forID("UTC"))
+				.withTime(0, 0, 0, 0);
+			
+		} catch (JSONException jsonException) {
+			LOGGER.error("String value missing for the key 'trial-end-date'.");
+			return null;
+		}
+		
+		// A single campaign URN or an array of them
+		try {
+			JSONArray campaignUrnArray = parameters.optJSONArray("campaign-urn");
+			
+			if(campaignUrnArray == null) {
+				campaignUrns.add(parameters.getString("campaign-urn"));
+			} else {
+				for(int i = 0; i < campaignUrnArray.length(); i++) {
+					campaignUrns.add(campaignUrnArray.getString(i));
+				}
+			}
+		} catch(JSONException jsonException) {
+			LOGGER.error("String or array of strings missing for the key 'campaign-urn'.");
+			return null;
+		}
+		
+		if(campaignUrns.isEmpty()) {
+			LOGGER.error("The array for the key 'campaign-urn' is empty.");
+			return null;
+		}
+		
+		return new MultiCampaignRun(alsoReprocess, alsoReprocessAll, trialEndDate, campaignUrns);
+	}
+	
+	/**
+	 * Prints help text to System.out.
+	 */
+	private static void help() {
+		System.out.println();
+		System.out.println("Invoke with no arguments to process trials for the previous calendar day.");
+		System.out.println("Invoke with \"help\" to show this message.");
+		System.out.println("Invoke with \"daemon\" to keep running and process trials on the schedule in the configuration file.");
+		System.out.println("Invoke with \"opencpu-stand-in\" to serve fixture results in place of OpenCPU for offline tests.");
+		System.out.println("Invoke with a JSON object to customize the processing. The allowable keys in the object are:");
+		System.out.println("    also-reprocess, a boolean that indicates whether to process trials where the analysis has already been performed;");
+		System.out.println("    also-reprocess-all, a boolean that indicates whether to reprocess all trials;");
+		System.out.println("    trial-end-date, a string that is an ISO8601 date (yyyy-mm-dd) which indicates which end date to process trials for;");		
+		System.out.println("    campaign-urn, a string indicating a custom campaign URN to use (e.g., for processing mock trials), or an array of");
+		System.out.println("        campaign URNs to process in the same run.");
+		System.out.println();
+	}
+	
+	/**
+	 * Callback handler that turns the setup and start survey rows, ordered by user and time, into user trials in one pass.
+	 * 
+	 * For any given user, there may be more than one setup survey and more than one start survey. A clinician
+	 * may set up a user multiple times using the front-end and the most recent setup survey in a repeating list  
+	 * of setup surveys should be used. The same issue occurs for the start survey where a user may complete the start
+	 * survey multiple times by reinstalling the app. In this case the most recent start survey is what is desired. A
+	 * given user may also complete multiple trials, so simply selecting the oldest setup and start surveys will not 
+	 * work becaused this may cause earlier trials to be skipped over.
+	 * 
+	 * Each user's surveys are folded into a {@link TrialWindow}. Without a map of windows, only the current user's window is
+	 * held and it is turned into a trial as soon as the next user's rows start. With a map of windows (incremental mode), the 
+	 * rows update the saved windows and every window is turned into a trial once all rows have been processed. Rows that a 
+	 * saved window has already folded in are skipped.
+	 */
+	class TrialScanner implements SurveyResponseSource.SurveyHandler {
+		private Map<Long, TrialWindow> trialWindows;
+		private TrialWindow currentWindow = null;
+		private long lastSurveyResponseId;
+		private boolean outOfOrder = false;
+		private StageMetrics scanMetrics = runMetrics.stage(RunMetrics.TRIAL_SCAN);
+		
+		private List<UserTrial> userTrials = new ArrayList<UserTrial>();
+		
+		/**
+		 * Creates a scanner that keeps the window of every user in the provided map, which may already contain the windows 
+		 * saved by a previous run that read up to the provided survey_response ID. If the map is null, only the current 
+		 * user's window is kept.
+		 */
+		public TrialScanner(Map<Long, TrialWindow> pTrialWindows, long pLastSurveyResponseId) {
+			trialWindows = pTrialWindows;
+			lastSurveyResponseId = pLastSurveyResponseId;
+		}
+		
+		@Override
+		public void handleSurvey(long surveyResponseId, String uuid, long userId, String surveyId, String surveyString, 
+				long epochMillis) throws JSONException {
+			
+			if(outOfOrder) {
+				return;
+			}
+			
+			if(trialWindows != null && trialWindows.containsKey(userId) && trialWindows.get(userId).hasFolded(surveyResponseId)) {
+				// Read again because it is in the overlap below the last run's survey_response ID
+				return;
+			}
+			
+			scanMetrics.addRows(1);
+			scanMetrics.addUtf8Bytes(surveyString);
+			
+			JSONObject survey = null;
+			try {
+				survey = new JSONObject(surveyString);
+			} catch (JSONException jsonException) {
+				LOGGER.error("Found a survey that cannot be parsed as JSON. The UUID for the row" +
+					" in survey_response is " + uuid);
+				throw jsonException;
+			}
+			
+			UserSurveyDate userSurveyDate = new UserSurveyDate(uuid, userId, surveyId, survey);
+			LOGGER.info("Original survey: " + userSurveyDate);
+			
+			lastSurveyResponseId = Math.max(lastSurveyResponseId, surveyResponseId);
+			
+			TrialWindow trialWindow = null;
+			
+			if(trialWindows == null) {
+				if(currentWindow == null || currentWindow.getUserId() != userSurveyDate.getUserId()) {
+					addUserTrial(currentWindow);
+					currentWindow = new TrialWindow(userSurveyDate.getUserId());
+				}
+				trialWindow = currentWindow;
+				
+			} else {
+				trialWindow = trialWindows.get(userSurveyDate.getUserId());
+				if(trialWindow == null) {
+					trialWindow = new TrialWindow(userSurveyDate.getUserId());
+					trialWindows.put(userSurveyDate.getUserId(), trialWindow);
+				}
+			}
+			
+			if(! trialWindow.isAfter(surveyResponseId, epochMillis)) {
+				// A survey uploaded or committed late that belongs before surveys already folded into the saved window
+				LOGGER.warn("Found a survey older than the saved trial window for user " + userSurveyDate.getUserId() 
+					+ ". The UUID for the row in survey_response is " + userSurveyDate.getSurveyUuid());
+				outOfOrder = true;
+				return;
+			}
+			
+			trialWindow.add(userSurveyDate, surveyResponseId, epochMillis);
+		}
+		
+		/**
+		 * Returns whether a row was found that cannot be applied to the saved windows, in which case the caller should
+		 * discard them and scan every row.
+		 */
+		public boolean isOutOfOrder() {
+			return outOfOrder;
+		}
+		
+		/**
+		 * Returns the windows of every user, or null if only the current user's window is kept.
+		 */
+		public Map<Long, TrialWindow> getTrialWindows() {
+			return trialWindows;
+		}
+		
+		/**
+		 * Returns the highest survey_response ID that has been folded into the windows.
+		 */
+		public long getLastSurveyResponseId() {
+			return lastSurveyResponseId;
+		}
+		
+		/**
+		 * Turns the remaining windows into trials and returns the trials that pass the date filter. Call once after all rows
+		 * have been processed.
+		 */
+		public List<UserTrial> finish() throws JSONException {
+			if(trialWindows == null) {
+				addUserTrial(currentWindow);
+				currentWindow = null;
+			} else {
+				for(TrialWindow trialWindow : trialWindows.values()) {
+					addUserTrial(trialWindow);
+				}
+			}
+			
+			return userTrials;
+		}
+		
+		/**
+		 * Creates the trial for the window, if it has one, and keeps it if it passes the date filter.
+		 */
+		private void addUserTrial(TrialWindow trialWindow) throws JSONException {
+			if(trialWindow == null || ! trialWindow.hasTrial()) {
+				return;
+			}
+			
+			try {
+				UserTrial userTrial = createUserTrial(trialWindow);
+				LOGGER.info(userTrial.toString());
+				
+				if(isTrialInDateRange(userTrial)) {
+					userTrials.add(userTrial);
+				}
+				
+			} catch (JSONException jsonException) { 
+				LOGGER.error("Malformed setup survey found in the database. JSON: " + trialWindow.getSetupSurvey(), jsonException);
+				throw jsonException;
+			}	
+		}
+	}
+	
+	/**
+	 * Calculates the user's trial end date based on the setup config and the start date of the window's trial.
+	 */
+	UserTrial createUserTrial(TrialWindow trialWindow) throws JSONException {
+		JSONObject setupSurvey = trialWindow.getSetupSurvey();
+		JSONObject startSurvey = trialWindow.getStartSurvey();
+		
+		// Multiply by 2 because each regimen duration is half a cycle
+		int cycleDuration = regimenDurationInDays(getIntValueForPromptId(setupSurvey, "regimenDuration")) * 2;
+		int numberOfCycles = numberOfCycles(getIntValueForPromptId(setupSurvey, "numberComparisonCycles"));
+		
+		// NOTE: JodaTime requires the long version of the timezone ID. It will accept America/Los_Angeles, but 
+		// reject Etc/GMT-8 or PST. The latter formats will cause an IllegalArgumentException.
+		// Trialist-MWF (phone app) uses a JavaScript library to generate long timezone IDs and ohmage
+		// server uses JodaTime to validate timezone input for survey responses, so a malformed timezone 
+		// should never occur
+		DateTimeZone startDateTimeZone  = null;
+		
+		try {
+			
+			startDateTimeZone = DateTimeZone.forID(startSurvey.getString("timezone"));
+			
+		} catch (IllegalArgumentException unknownTimeZone) {
+			// This means that somehow the server app persisted a timezone that Joda cannot parse. 
+			// Just skip the response and log the incorrectly formatted data.
+			LOGGER.warn("Found a start survey with a timezone that JodaTime cannot parse. The value is: " 
+					+ startSurvey.getString("timezone"));
+			throw unknownTimeZone;
+		}
+
+		// The user's timezone needs to be provided as the second parameter otherwise JodaTime will default to
+		// the timezone of the machine this program is running on. After the DateTime is created, the time 
+		// and timezone fields are normalized because only the date portion of the DateTime will be needed
+		// for later processing.
+		DateTime startDateTime = new DateTime(
+			getStringValueForPromptId(startSurvey, "startPrompt"), startDateTimeZone)
+				.withZone(DateTimeZone.forID("UTC"))
+				.withTime(0, 0, 0, 0);
+		
+		// The phone app saves the start date as the current day if the current local time is before
+		// 8:00pm and the next day if it is after 8:00pm, so no need to handle the time here 
+		
+		// Subtract 1 to make the start date inclusive to the trial end date calculation
+		int totalDays = cycleDuration * numberOfCycles - 1; 
+		
+		// Calculate the end date, strip out the time, and set the tz to UTC because this value is only used in
+		// an equals() comparison with another yyyy-mm-dd UTC date.
+		DateTime endDateTime = startDateTime.plusDays(totalDays)
+			.withZone(DateTimeZone.forID("UTC"))
+			.withTime(0, 0, 0, 0);
+		
+		return new UserTrial(trialWindow.getUserId(), startDateTime, endDateTime, normalizationSetupSurvey(setupSurvey), 
+			trialWindow.getSetupSurveyUuid()); 
+	}
+	
+	/**
+	 * Returns a setup survey with only the responses the normalized data is built from, so a trial does not keep the whole
+	 * survey for the rest of the run.
+	 */
+	private static JSONObject normalizationSetupSurvey(JSONObject setupSurvey) throws JSONException {
+		JSONArray responses = (JSONArray) setupSurvey.get("responses");
+		JSONArray normalizationResponses = new JSONArray();
+		int numberOfResponses = responses.length();
+		
+		for(int i = 0; i < numberOfResponses; i++) {
+			JSONObject response = responses.optJSONObject(i);
+			
+			if(response != null && NORMALIZATION_SETUP_PROMPT_IDS.contains(response.optString("prompt_id"))) {
+				normalizationResponses.put(response);
+			}
+		}
+		
+		JSONObject normalizationSetupSurvey = new JSONObject();
+		normalizationSetupSurvey.put("responses", normalizationResponses);
+		return normalizationSetupSurvey;
+	}
+	
+	/**
+	 * The fetch stage of the pipeline. Fetches the main surveys a chunk of trials at a time and queues each chunk for 
+	 * normalization, waiting while the queue is full. The end of the chunks is always queued, even if a fetch fails, so the 
+	 * normalization never waits for a chunk that will not come.
+	 */
+	private class MainSurveyFetch implements Callable<Void> {
+		private final List<UserTrial> trialsToFetch;
+		private final BlockingQueue<List<UserTrial>> fetchedChunks;
+		
+		public MainSurveyFetch(List<UserTrial> pTrialsToFetch, BlockingQueue<List<UserTrial>> pFetchedChunks) {
+			trialsToFetch = pTrialsToFetch;
+			fetchedChunks = pFetchedChunks;
+		}
+		
+		@Override
+		public Void call() throws InterruptedException {
+			StageMetrics mainSurveyFetch = runMetrics.stage(RunMetrics.MAIN_SURVEY_FETCH);
+			int chunkSize = surveyResponseSource.getMaxTrialPeriodsPerScan();
+			
+			try {
+				for(int chunkStart = 0; chunkStart < trialsToFetch.size() && ! stopRequested; chunkStart += chunkSize) {
+					List<UserTrial> chunk = new ArrayList<UserTrial>(
+						trialsToFetch.subList(chunkStart, (int) Math.min((long) chunkStart + chunkSize, trialsToFetch.size())));
+					
+					long startNanos = mainSurveyFetch.start();
+					
+					try { 
+						
+						selectMainSurveyResponses(chunk);
+						
+					} catch (DataAccessException dataAccessException) {
+						LOGGER.error("An error occurred when accessing the database.");
+						mainSurveyFetch.recordError();
+						throw dataAccessException;
+					} finally {
+						mainSurveyFetch.stop(startNanos);
+					}
+					
+					fetchedChunks.put(chunk);
+				}
+			} finally {
+				try {
+					fetchedChunks.put(END_OF_CHUNKS);
+				} catch(InterruptedException interruptedException) {
+					// The run has given up on the fetch
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * The analysis stage of the pipeline. Each trial is analyzed on its own thread so a slow R session (or a long in-process 
+	 * analysis) only holds up the trial it belongs to. Up to twice as many trials as there are threads may be submitted and 
+	 * not finished yet; submitting another waits until one finishes.
+	 * 
+	 * Only the thread that runs the pipeline may submit trials and wait for them.
 	 */
-	public static void main(String args[]) throws Exception {
-		Properties configuredProperties = new ConfigurationFileImport().getProperties();
-		// Config logging
-		PropertyConfigurator.configure(configuredProperties);
+	private class TrialAnalyzer {
+		private final ObserverStreamDataWriter analysisResultsWriter;
+		private final ExecutorService analysisExecutor = Executors.newFixedThreadPool(analysisThreads);
+		private final Semaphore unfinishedTrials = new Semaphore(analysisThreads * 2);
 		
-		LOGGER.info("Starting program run at " + new Date());
-				
-		if(configuredProperties.getProperty("db.driver") == null) {
-			LOGGER.error("The configuration file is missing the db.driver property.");
-			throw new IllegalStateException("Incorrect db configuration");
+		private final List<Future<Void>> analysisFutures = new ArrayList<Future<Void>>();
+		private final List<UserTrial> analyzedTrials = new ArrayList<UserTrial>();
+		private int numberOfFailedTrials = 0;
+		
+		public TrialAnalyzer(ObserverStreamDataWriter pAnalysisResultsWriter) {
+			analysisResultsWriter = pAnalysisResultsWriter;
+		}
+		
+		/**
+		 * Queues a normalized trial to be analyzed and its results to be saved.
+		 */
+		public void submit(final UserTrial userTrial) {
+			try {
+				unfinishedTrials.acquire();
+			} catch(InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting to analyze a trial.", interruptedException);
+			}
+			
+			analyzedTrials.add(userTrial);
+			analysisFutures.add(analysisExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						if(stopRequested) {
+							return null;
+						}
+						
+						if(holdsPartitionOf(userTrial)) {
+							analyzeTrial(userTrial, analysisResultsWriter);
+						} else {
+							LOGGER.warn("The partition lease for user " + userTrial.getUserId() 
+								+ " was lost. The trial will not be analyzed.");
+						}
+						return null;
+						
+					} finally {
+						unfinishedTrials.release();
+					}
+				}
+			}));
+		}
+		
+		/**
+		 * Waits for every submitted trial to finish. A failed trial is logged and does not stop the trials behind it. When 
+		 * runs are journaled it is quarantined, unless the backend was unavailable or the results could not be written: those 
+		 * trials are left to the next run.
+		 */
+		public void awaitAll() {
+			analysisExecutor.shutdown();
+			
+			for(int i = 0; i < analysisFutures.size(); i++) {
+				try {
+					
+					analysisFutures.get(i).get();
+					
+				} catch (ExecutionException executionException) {
+					
+					if(trialJournal != null && ! isUnavailable(executionException.getCause())) {
+						trialJournal.quarantine(analyzedTrials.get(i).getTrialKey(), ANALYSIS_STAGE, executionException.getCause());
+						continue;
+					}
+					
+					LOGGER.error("Could not analyze trial " + analyzedTrials.get(i), executionException.getCause());
+					numberOfFailedTrials++;
+					
+				} catch (InterruptedException interruptedException) {
+					
+					analysisExecutor.shutdownNow();
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for trial analysis to finish.", interruptedException);
+				}
+			}
+		}
+		
+		/**
+		 * Returns whether a trial failed because the analysis backend or the database was unavailable, rather than because 
+		 * of the trial itself.
+		 */
+		private boolean isUnavailable(Throwable cause) {
+			return cause instanceof AnalysisBackendUnavailableException || cause instanceof DataAccessException;
 		}
 		
-		if(configuredProperties.getProperty("db.username") == null) {
-			LOGGER.error("The configuration file is missing the db.username property.");
-			throw new IllegalStateException("Incorrect db configuration");
+		/**
+		 * Stops the analysis threads, interrupting the trials that are being analyzed.
+		 */
+		public void shutdownNow() {
+			analysisExecutor.shutdownNow();
 		}
 		
-		if(configuredProperties.getProperty("db.password") == null) {
-			LOGGER.error("The configuration is missing the db.password property.");
-			throw new IllegalStateException("Incorrect db configuration");
+		public int getNumberOfTrialsSubmitted() {
+			return analysisFutures.size();
 		}
 		
-		if(configuredProperties.getProperty("db.jdbcurl") == null) {
-			LOGGER.error("The configuration is missing the db.jdbcurl property.");
-			throw new IllegalStateException("Incorrect db configuration");
+		public int getNumberOfFailedTrials() {
+			return numberOfFailedTrials;
 		}
+	}
+	
+	/**
+	 * The state of one user's setup and start surveys. A start survey only counts once the user has a setup survey. The 
+	 * user's trial is configured by the most recent setup survey that was followed by a start survey and starts on the most 
+	 * recent start survey. A setup survey that has not been followed by a start survey yet is pending and replaces the 
+	 * trial's setup survey once a start survey arrives.
+	 * 
+	 * The window also remembers the survey_response IDs of the surveys folded into it, so the surveys an incremental run 
+	 * reads again are not folded in twice. See {@link TrialistAnalysisProcessor#scanTrials(Map, long)}.
+	 */
+	static class TrialWindow {
+		private long userId;
+		private long lastEpochMillis;
+		private long lastSurveyResponseId;
+		private Set<Long> foldedSurveyResponseIds;
+		private String pendingSetupSurveyUuid;
+		private JSONObject pendingSetupSurvey;
+		private String setupSurveyUuid;
+		private JSONObject setupSurvey;
+		private JSONObject startSurvey;
 		
-		TrialistAnalysisProcessor processor = null;
+		public TrialWindow(final long pUserId) {
+			userId = pUserId;
+			lastEpochMillis = Long.MIN_VALUE;
+			lastSurveyResponseId = Long.MIN_VALUE;
+			foldedSurveyResponseIds = new HashSet<Long>();
+		}
 		
-		try {
+		/**
+		 * Folds a survey that belongs after the surveys already in the window into the window.
+		 */
+		public void add(UserSurveyDate userSurveyDate, long surveyResponseId, long epochMillis) {
+			lastEpochMillis = epochMillis;
+			lastSurveyResponseId = surveyResponseId;
+			foldedSurveyResponseIds.add(surveyResponseId);
 			
-			if(args.length == 0) {
-				
-				processor = new TrialistAnalysisProcessor();
-				
-			} else if(args.length == 1) {
-				
-				if("help".equals(args[0])) {
-					help();
-					return;
-				}
-				
-				JSONObject parameters = null;
-				boolean alsoReprocess = false;
-				boolean alsoReprocessAll = false;
-				String trialEndDateString = null;
-				DateTime trialEndDate = null;
-				String campaignUrn = null;
-				
-				try {
-					parameters = new JSONObject(args[0]);
-				} catch (JSONException jsonException) {
-					LOGGER.error("The provided parameter is not a parseable JSON object.");
-					return;
-				}
+			if(userSurveyDate.getSurveyId().equals("setup")) {
+				pendingSetupSurveyUuid = userSurveyDate.getSurveyUuid();
+				pendingSetupSurvey = userSurveyDate.getSurvey();
 				
-				try {
-					alsoReprocess = parameters.getBoolean("also-reprocess");
-				} catch (JSONException jsonException) {
-					LOGGER.error("Boolean value missing for the key 'also-reprocess'.");
-					return;
+			} else if(userSurveyDate.getSurveyId().equals("start")) {
+				if(pendingSetupSurvey != null) {
+					setupSurveyUuid = pendingSetupSurveyUuid;
+					setupSurvey = pendingSetupSurvey;
+					pendingSetupSurveyUuid = null;
+					pendingSetupSurvey = null;
 				}
 				
-				try {
-					alsoReprocessAll = parameters.getBoolean("also-reprocess-all");
-				} catch (JSONException jsonException) {
-					LOGGER.error("Boolean value missing for the key 'also-reprocess-all'.");
-					return;
-				}
-
-				try {
-					trialEndDateString = parameters.getString("trial-end-date");
-					
-					// This will throw an IllegalArgumentException if the date string is not parseable
-					trialEndDate = ISODateTimeFormat.yearMonthDay().parseDateTime(trialEndDateString)
-						.withZone(DateTimeZone.forID("UTC"))
-						.withTime(0, 0, 0, 0);
-					
-				} catch (JSONException jsonException) {
-					LOGGER.error("String value missing for the key 'trial-end-date'.");
-					return;
+				if(setupSurvey != null) {
+					startSurvey = userSurveyDate.getSurvey();
 				}
-				
-				try {
-					campaignUrn = parameters.getString("campaign-urn");
-				} catch(JSONException jsonException) {
-					LOGGER.error("String value missing for the key 'campaign-urn'.");
-					return;
+			}
+		}
+		
+		/**
+		 * Returns whether a survey belongs after every survey in the window, in the order the surveys are scanned: by epoch 
+		 * millis, then by survey_response ID.
+		 */
+		public boolean isAfter(long surveyResponseId, long epochMillis) {
+			return epochMillis > lastEpochMillis || (epochMillis == lastEpochMillis && surveyResponseId > lastSurveyResponseId);
+		}
+		
+		/**
+		 * Returns whether the survey has already been folded into the window.
+		 */
+		public boolean hasFolded(long surveyResponseId) {
+			return foldedSurveyResponseIds.contains(surveyResponseId);
+		}
+		
+		/**
+		 * Forgets the IDs of the folded surveys up to the provided survey_response ID, which no later scan reads again.
+		 */
+		public void forgetFoldedSurveysUpTo(long surveyResponseId) {
+			Iterator<Long> iterator = foldedSurveyResponseIds.iterator();
+			while(iterator.hasNext()) {
+				if(iterator.next() <= surveyResponseId) {
+					iterator.remove();
 				}
-				
-				processor = new TrialistAnalysisProcessor(alsoReprocess, alsoReprocessAll, trialEndDate, campaignUrn);
-								
-			} else {
-				
-				LOGGER.error("Could not run program because incorrect arguments were provided.");
-				return;
 			}
-			
-			processor.createjdbcTemplate(
-				configuredProperties.getProperty("db.driver"), 
-				configuredProperties.getProperty("db.username"),
-				configuredProperties.getProperty("db.password"),
-				configuredProperties.getProperty("db.jdbcurl")
-			);
-			
-			processor.run();
 		}
 		
-		finally {
-			if(processor != null) {
-				LOGGER.info("Processed " + processor.getNumberOfTrialsProcessed() + " trials.");
-			} else {
-				LOGGER.info("Processed 0 trials.");
+		public boolean hasTrial() {
+			return setupSurvey != null && startSurvey != null;
+		}
+		
+		public long getUserId() {
+			return userId;
+		}
+		
+		public long getLastEpochMillis() {
+			return lastEpochMillis;
+		}
+		
+		public String getSetupSurveyUuid() {
+			return setupSurveyUuid;
+		}
+		
+		public JSONObject getSetupSurvey() {
+			return setupSurvey;
+		}
+		
+		public JSONObject getStartSurvey() {
+			return startSurvey;
+		}
+		
+		/**
+		 * Returns the window as a JSON object for the incremental checkpoint.
+		 */
+		public JSONObject toJson() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("user_id", userId);
+			json.put("last_epoch_millis", lastEpochMillis);
+			json.put("last_survey_response_id", lastSurveyResponseId);
+			json.put("folded_survey_response_ids", new JSONArray(foldedSurveyResponseIds));
+			json.putOpt("pending_setup_survey_uuid", pendingSetupSurveyUuid);
+			json.putOpt("pending_setup_survey", pendingSetupSurvey);
+			json.putOpt("setup_survey_uuid", setupSurveyUuid);
+			json.putOpt("setup_survey", setupSurvey);
+			json.putOpt("start_survey", startSurvey);
+			return json;
+		}
+		
+		/**
+		 * Restores a window saved by {@link #toJson()}.
+		 */
+		public static TrialWindow fromJson(JSONObject json) throws JSONException {
+			TrialWindow trialWindow = new TrialWindow(json.getLong("user_id"));
+			trialWindow.lastEpochMillis = json.getLong("last_epoch_millis");
+			// Windows saved before the IDs were kept count as having no folded surveys that may be read again
+			trialWindow.lastSurveyResponseId = json.optLong("last_survey_response_id", Long.MIN_VALUE);
+			JSONArray foldedSurveyResponseIds = json.optJSONArray("folded_survey_response_ids");
+			if(foldedSurveyResponseIds != null) {
+				for(int i = 0; i < foldedSurveyResponseIds.length(); i++) {
+					trialWindow.foldedSurveyResponseIds.add(foldedSurveyResponseIds.getLong(i));
+				}
 			}
-			
-			LOGGER.info("Ending program run at " + new Date());
+			trialWindow.pendingSetupSurveyUuid = json.optString("pending_setup_survey_uuid", null);
+			trialWindow.pendingSetupSurvey = json.optJSONObject("pending_setup_survey");
+			trialWindow.setupSurveyUuid = json.optString("setup_survey_uuid", null);
+			trialWindow.setupSurvey = json.optJSONObject("setup_survey");
+			trialWindow.startSurvey = json.optJSONObject("start_survey");
+			return trialWindow;
 		}
 	}
 	
-	/**
-	 * Prints help text to System.out.
-	 */
-	private static void help() {
-		System.out.println();
-		System.out.println("Invoke with no arguments to process trials for the previous calendar day.");
-		System.out.println("Invoke with \"help\" to show this message.");
-		System.out.println("Invoke with a JSON object to customize the processing. The allowable keys in the object are:");
-		System.out.println("    also-reprocess, a boolean that indicates whether to process trials where the analysis has already been performed;");
-		System.out.println("    also-reprocess-all, a boolean that indicates whether to reprocess all trials;");
-		System.out.println("    trial-end-date, a string that is an ISO8601 date (yyyy-mm-dd) which indicates which end date to process trials for;");		
-		System.out.println("    campaign-urn, a string indicating a custom campaign URN to use (e.g., for processing mock trials).");
-		System.out.println();
-	}
-	
 	/**
 	 * Domain object for participant setup and start surveys. 
 	 */
-	private static class UserSurveyDate {
+	static class UserSurveyDate {
 		private String uuid;
 		private long userId;
 		private String surveyId;
@@ -1151,13 +2133,22 @@ public class TrialistAnalysisProcessor {
 	/**
 	 * Domain object for a user's trial data. 
 	 */
-	private static class UserTrial {
+	static class UserTrial {
+		private static final Charset UTF_8 = Charset.forName("UTF-8");
+		
 		private long userId;
 		private DateTime trialStartDate;
 		private DateTime trialEndDate;
 		private JSONObject setupSurvey;
 		private String setupSurveyUuid;
-		private JSONObject normalizedData;
+		
+		// The trial's main survey responses until they are normalized
+		private SurveyResponseColumns surveyResponses;
+		
+		// The normalized data set as deflated UTF-8 JSON text until it is analyzed. The data points repeat the same keys, so 
+		// it deflates to a small fraction of the text.
+		private byte[] normalizedData;
+		private int normalizedDataLength;
 		
 		DateTimeFormatter yearMonthDayFormatter;
 		
@@ -1196,179 +2187,166 @@ public class TrialistAnalysisProcessor {
 			return setupSurveyUuid;
 		}
 		
-		public JSONObject getNormalizedData() {
-			return normalizedData;
+		public TrialKey getTrialKey() {
+			return new TrialKey(userId, setupSurveyUuid);
 		}
-
-		public void setNormalizedData(JSONObject normalizedData) {
-			this.normalizedData = normalizedData;
-		}
-		
-		// Does not include all instance variables in the interest of brevity
-		@Override
-		public String toString() {
-			return "UserTrial [userId=" + userId + ", trialStartDate="
-					+ yearMonthDayFormatter.print(trialStartDate) + ", trialEndDate=" + yearMonthDayFormatter.print(trialEndDate)
-				    + ", setupSurveyUuid=" + setupSurveyUuid + "]";
-		}	
-	}
-	
-	/**
-	 * A processed trial is identified by a row in observer_stream_data that contains trial analysis results and the UUID of 
-	 * the setup survey for a given user.
-	 */
-	private static class ProcessedTrial {
-		private long userId;
-		private String surveyUuid;
 		
-		public ProcessedTrial(final long pUserId, final String pSurveyUuid) {
-			userId = pUserId;
-			surveyUuid = pSurveyUuid;	
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result
-					+ ((surveyUuid == null) ? 0 : surveyUuid.hashCode());
-			result = prime * result + (int) (userId ^ (userId >>> 32));
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			ProcessedTrial other = (ProcessedTrial) obj;
-			if (surveyUuid == null) {
-				if (other.surveyUuid != null)
-					return false;
-			} else if (!surveyUuid.equals(other.surveyUuid))
-				return false;
-			if (userId != other.userId)
-				return false;
-			return true;
+		public SurveyResponseColumns getSurveyResponses() {
+			return surveyResponses;
 		}
-	}
-	
-	/**
-	 * Domain object for a single survey response (that contains many prompt responses). 
-	 */
-	private static class SurveyResponse {
-		private long epochMillis;
-		private String timeZoneString;
-		private List<PromptResponse> promptResponses;
 		
-		public SurveyResponse(long pEpochMillis, String pTimeZoneString) {
-			epochMillis = pEpochMillis;
-			timeZoneString = pTimeZoneString;
-			promptResponses = new ArrayList<PromptResponse>();
+		public void setSurveyResponses(SurveyResponseColumns surveyResponses) {
+			this.surveyResponses = surveyResponses;
 		}
 		
-		public SurveyResponse(SurveyResponse other) {
-			epochMillis = other.getEpochMillis();
-			timeZoneString = other.getTimeZoneString();
-			promptResponses = new ArrayList<PromptResponse>(other.getPromptResponses());
+		public boolean hasNormalizedData() {
+			return normalizedData != null;
 		}
 		
-		public void addPromptResponse(PromptResponse response) {
-			promptResponses.add(response);
+		/**
+		 * Returns the normalized data set as JSON text, or null if the trial has none. Each call inflates the text again.
+		 */
+		public String getNormalizedData() {
+			if(normalizedData == null) {
+				return null;
+			}
+			
+			Inflater inflater = new Inflater();
+			
+			try {
+				byte[] text = new byte[normalizedDataLength];
+				int length = 0;
+				
+				inflater.setInput(normalizedData);
+				
+				while(length < text.length) {
+					int inflated = inflater.inflate(text, length, text.length - length);
+					
+					if(inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+						throw new IllegalStateException("The normalized data of " + this + " is truncated.");
+					}
+					
+					length += inflated;
+				}
+				
+				return new String(text, UTF_8);
+				
+			} catch (DataFormatException dataFormatException) {
+				throw new IllegalStateException("The normalized data of " + this + " is corrupt.", dataFormatException);
+			} finally {
+				inflater.end();
+			}
 		}
 		
-		public List<PromptResponse> getPromptResponses() {
-			return promptResponses;
-		}
-
-		public long getEpochMillis() {
-			return epochMillis;
-		}
-
-		public String getTimeZoneString() {
-			return timeZoneString;
+		/**
+		 * Keeps the normalized data set, or releases it if the data is null.
+		 */
+		public void setNormalizedData(String normalizedData) {
+			if(normalizedData == null) {
+				this.normalizedData = null;
+				normalizedDataLength = 0;
+				return;
+			}
+			
+			byte[] text = normalizedData.getBytes(UTF_8);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			
+			try {
+				byte[] deflated = new byte[text.length / 4 + 64];
+				int length = 0;
+				
+				deflater.setInput(text);
+				deflater.finish();
+				
+				while(! deflater.finished()) {
+					if(length == deflated.length) {
+						deflated = Arrays.copyOf(deflated, deflated.length * 2);
+					}
+					
+					length += deflater.deflate(deflated, length, deflated.length - length);
+				}
+				
+				this.normalizedData = Arrays.copyOf(deflated, length);
+				normalizedDataLength = text.length;
+				
+			} finally {
+				deflater.end();
+			}
 		}
-	}
-	
-	/**
-	 * Domain object for a single prompt response. 
-	 */
-	private static class PromptResponse {
-		private String promptId;
-		private String response;
 		
-		public PromptResponse(String pPromptId, String pResponse) {
-			promptId = pPromptId;
-			response = pResponse;
-		}
-
-		public String getPromptId() {
-			return promptId;
-		}
-
-		public String getResponse() {
-			return response;
-		}
+		// Does not include all instance variables in the interest of brevity
+		@Override
+		public String toString() {
+			return "UserTrial [userId=" + userId + ", trialStartDate="
+					+ yearMonthDayFormatter.print(trialStartDate) + ", trialEndDate=" + yearMonthDayFormatter.print(trialEndDate)
+				    + ", setupSurveyUuid=" + setupSurveyUuid + "]";
+		}	
 	}
 	
 	/**
-	 * Callback handler to manage conversion of database rows into SurveyResponse and PromptResponse objects. 
+	 * Callback handler to manage conversion of prompt response rows into survey response columns for many users. The rows 
+	 * must be ordered by user and survey so the prompt responses for a survey are contiguous. The handler only looks at the 
+	 * current row, so it can be used with a forward-only streaming result set.
 	 */
-	private static class SurveyReponseRowCallbackHandler implements RowCallbackHandler {
+	private static class MultiUserSurveyResponseHandler implements SurveyResponseSource.PromptResponseHandler {
 		private long currentSurveyKey;
-		private SurveyResponse currentSurveyResponse = null;
+		private SurveyResponseColumns currentSurveyResponses = null;
+		
+		private Map<Long, SurveyResponseColumns> surveyResponsesByUser;
+		
+		private StringCodes promptIds;
+		private StringCodes timeZoneIds;
 		
-		private List<SurveyResponse> surveyResponses;
+		// Counts the prompt response rows and their characters
+		private StageMetrics fetchMetrics;
 		
-		public SurveyReponseRowCallbackHandler() {
+		public MultiUserSurveyResponseHandler(StageMetrics pFetchMetrics, StringCodes pPromptIds, StringCodes pTimeZoneIds) {
+			fetchMetrics = pFetchMetrics;
+			promptIds = pPromptIds;
+			timeZoneIds = pTimeZoneIds;
 			currentSurveyKey = -1;
-			surveyResponses = new ArrayList<SurveyResponse>();
+			surveyResponsesByUser = new HashMap<Long, SurveyResponseColumns>();
 		}
 		
-		public List<SurveyResponse> getSurveyResponses() {
-			return surveyResponses;
+		/**
+		 * Returns the survey responses by user ID in the order they were returned from the source. Only call once the 
+		 * query has completed.
+		 */
+		public Map<Long, SurveyResponseColumns> getSurveyResponsesByUser() {
+			for(SurveyResponseColumns surveyResponses : surveyResponsesByUser.values()) {
+				surveyResponses.trimToSize();
+			}
+			
+			return surveyResponsesByUser;
 		}
 		
 		/**
-		 * For each iteration through the provided ResultSet parameter, pulls out the survey and prompt response data and 
-		 * stores it for later retrieval.
+		 * For each prompt response row, pulls out the survey and prompt response data and stores it for later retrieval.
 		 */
-		public void processRow(ResultSet rs) throws SQLException {
-			long surveyKey = rs.getLong("id");
-			String promptId = rs.getString("prompt_id");
-			String response = rs.getString("response");
-			long epochMillis = rs.getLong("epoch_millis");
-			String timezone = rs.getString("phone_timezone");
-						
-			if(currentSurveyKey == -1) {
-				
-				currentSurveyKey = surveyKey;
-				currentSurveyResponse = new SurveyResponse(epochMillis, timezone);
-				currentSurveyResponse.addPromptResponse(new PromptResponse(promptId, response));
+		@Override
+		public void handlePromptResponse(long surveyKey, long userId, long epochMillis, String phoneTimezone, 
+				String promptId, String response) {
+			
+			fetchMetrics.addRows(1);
+			if(response != null) {
+				fetchMetrics.addUtf8Bytes(response);
+			}
+			
+			if(currentSurveyKey != surveyKey) {
 				
-			} else if(currentSurveyKey != surveyKey) {
+				currentSurveyResponses = surveyResponsesByUser.get(userId);
 				
-				// Save a deep copy of the previous survey to the list
-				surveyResponses.add(new SurveyResponse(currentSurveyResponse));
+				if(currentSurveyResponses == null) {
+					currentSurveyResponses = new SurveyResponseColumns(promptIds, timeZoneIds);
+					surveyResponsesByUser.put(userId, currentSurveyResponses);
+				}
 				
+				// The new survey is added right away and filled in by the rows that follow
 				currentSurveyKey = surveyKey;
-				currentSurveyResponse = new SurveyResponse(epochMillis, timezone);
-				currentSurveyResponse.addPromptResponse(new PromptResponse(promptId, response));
-				
-			} else if(rs.isLast()) {
-				
-				currentSurveyResponse.addPromptResponse(new PromptResponse(promptId, response));
-
-				// Save a deep copy of the previous survey to the list
-				surveyResponses.add(new SurveyResponse(currentSurveyResponse));
-				
-			} else {
-				
-				currentSurveyResponse.addPromptResponse(new PromptResponse(promptId, response));
+				currentSurveyResponses.addSurvey(epochMillis, phoneTimezone);
 			}
+			
+			currentSurveyResponses.addPromptResponse(promptId, response);
 		}
 	}
 }
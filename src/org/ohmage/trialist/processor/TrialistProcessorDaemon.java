@@ -0,0 +1,350 @@
+package org.ohmage.trialist.processor;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.LocalTime;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * Keeps the processor resident instead of launching a new JVM for every
+ * run. The database pool and the OpenCPU HTTP client are created once and
+ * shared by every run. Runs happen once a day at daemon.runTime and on
+ * demand when the JSON parameters accepted by
+ * {@link TrialistAnalysisProcessor#main(String[])} are POSTed to /runs.
+ * Runs never overlap; on-demand runs wait for the current run to finish.
+ * </p>
+ *
+ * <p>
+ * On JVM shutdown (e.g. SIGTERM), no new runs are started, the trials that
+ * are already being analyzed are finished and saved, and the connections
+ * are closed.
+ * </p>
+ */
+public class TrialistProcessorDaemon {
+	private static final Logger LOGGER = Logger.getLogger(TrialistProcessorDaemon.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Defaults for the daemon.* properties
+	private static final String DEFAULT_RUN_TIME = "01:00";
+	private static final String DEFAULT_HOST = "127.0.0.1";
+	private static final int DEFAULT_PORT = 8089;
+	private static final int DEFAULT_SHUTDOWN_TIMEOUT_MINUTES = 30;
+
+	// How long the daemon waits before trying again to schedule the next run if that failed
+	private static final int RESCHEDULE_RETRY_MINUTES = 10;
+
+	private final ProcessorResources resources;
+	private final LocalTime runTime;
+	private final InetSocketAddress address;
+	private final int shutdownTimeoutMinutes;
+
+	// A single thread, so runs are serialized
+	private final ScheduledThreadPoolExecutor runExecutor;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private volatile boolean stopping = false;
+	private volatile MultiCampaignRun currentRun = null;
+	private HttpServer server;
+
+	/**
+	 * Creates a daemon configured by the properties. The database and HTTP
+	 * connections are created right away.
+	 *
+	 * @param configuredProperties The properties from the configuration
+	 * 							   file.
+	 *
+	 * @throws IllegalStateException A property has an invalid value.
+	 */
+	public TrialistProcessorDaemon(final Properties configuredProperties) {
+		try {
+			runTime = ISODateTimeFormat.hourMinute().parseLocalTime(
+				configuredProperties.getProperty("daemon.runTime", DEFAULT_RUN_TIME).trim());
+		} catch(IllegalArgumentException invalidTime) {
+			LOGGER.error("The daemon.runTime property must be a time formatted as HH:mm. The value is: "
+				+ configuredProperties.getProperty("daemon.runTime"));
+			throw new IllegalStateException("Incorrect daemon configuration");
+		}
+
+		address = new InetSocketAddress(
+			configuredProperties.getProperty("daemon.host", DEFAULT_HOST).trim(),
+			ProcessorResources.positiveInteger(configuredProperties, "daemon.port", DEFAULT_PORT,
+				"Incorrect daemon configuration"));
+
+		shutdownTimeoutMinutes = ProcessorResources.positiveInteger(configuredProperties, "daemon.shutdownTimeoutMinutes",
+			DEFAULT_SHUTDOWN_TIMEOUT_MINUTES, "Incorrect daemon configuration");
+
+		runExecutor = new ScheduledThreadPoolExecutor(1);
+		// The next scheduled run is dropped on shutdown instead of waited for
+		runExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+		resources = new ProcessorResources(configuredProperties);
+	}
+
+	/**
+	 * Starts the schedule and the on-demand endpoint, then blocks until the
+	 * JVM shuts down.
+	 *
+	 * @throws IOException The on-demand endpoint could not be started.
+	 *
+	 * @throws InterruptedException Interrupted while waiting for shutdown.
+	 */
+	public void runUntilShutdown() throws IOException, InterruptedException {
+		server = HttpServer.create(address, 0);
+		server.createContext("/runs", new RunHandler());
+		server.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread("trialist-daemon-shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+
+		scheduleNextRun();
+
+		LOGGER.info("Daemon started. Runs are scheduled daily at " + runTime + " and accepted at http://"
+			+ address.getHostString() + ":" + address.getPort() + "/runs");
+
+		stopped.await();
+	}
+
+	/**
+	 * Schedules the default run (trials that ended yesterday for the default
+	 * campaign) at the next occurrence of the run time.
+	 */
+	private void scheduleNextRun() {
+		DateTime now = new DateTime();
+		DateTime nextRun = nextRunTime(now, runTime);
+
+		runExecutor.schedule(
+			new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// Created when the run starts so "yesterday" is relative to the run
+						process(new MultiCampaignRun());
+					} finally {
+						if(! stopping) {
+							rescheduleNextRun();
+						}
+					}
+				}
+			},
+			nextRun.getMillis() - now.getMillis(),
+			TimeUnit.MILLISECONDS);
+
+		LOGGER.info("The next scheduled run is at " + nextRun);
+	}
+
+	/**
+	 * Schedules the next run after a run has ended. If that fails, it is
+	 * tried again later instead of ending the daily runs.
+	 */
+	private void rescheduleNextRun() {
+		try {
+			scheduleNextRun();
+		} catch(RejectedExecutionException rejectedExecutionException) {
+			LOGGER.info("The daemon is shutting down. No further runs are scheduled.");
+		} catch(RuntimeException exception) {
+			LOGGER.error("Could not schedule the next run. Trying again in " + RESCHEDULE_RETRY_MINUTES + " minutes.", exception);
+
+			runExecutor.schedule(
+				new Runnable() {
+					@Override
+					public void run() {
+						if(! stopping) {
+							rescheduleNextRun();
+						}
+					}
+				},
+				RESCHEDULE_RETRY_MINUTES,
+				TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * Returns the next occurrence of the run time after now, in the time zone
+	 * of now. On a day the clocks skip the run time, the run starts when they
+	 * resume.
+	 */
+	static DateTime nextRunTime(final DateTime now, final LocalTime runTime) {
+		DateTimeZone zone = now.getZone();
+
+		for(LocalDate day = now.toLocalDate(); ; day = day.plusDays(1)) {
+			LocalDateTime nextRun = day.toLocalDateTime(runTime);
+
+			while(zone.isLocalDateTimeGap(nextRun)) {
+				nextRun = nextRun.plusMinutes(1);
+			}
+
+			DateTime nextRunTime = nextRun.toDateTime(zone);
+			if(nextRunTime.isAfter(now)) {
+				return nextRunTime;
+			}
+		}
+	}
+
+	/**
+	 * Performs one run with the shared resources. A failed run is logged and
+	 * does not stop the daemon.
+	 */
+	private void process(final MultiCampaignRun run) {
+		// Published before stopping is checked, so a shutdown either sees the
+		// run and stops it or is seen here
+		currentRun = run;
+
+		if(stopping) {
+			currentRun = null;
+			return;
+		}
+
+		LOGGER.info("Starting program run at " + new Date());
+
+		try {
+			run.useResources(resources);
+			run.run();
+		} catch(Exception exception) {
+			LOGGER.error("The run did not complete.", exception);
+		} finally {
+			currentRun = null;
+			run.logNumberOfTrialsProcessed();
+			LOGGER.info("Ending program run at " + new Date());
+		}
+	}
+
+	/**
+	 * Stops accepting runs, lets the current run finish its in-flight trials
+	 * and closes the shared connections.
+	 */
+	private void shutdown() {
+		LOGGER.info("Shutting down the daemon.");
+
+		stopping = true;
+
+		if(server != null) {
+			server.stop(0);
+		}
+
+		MultiCampaignRun run = currentRun;
+		if(run != null) {
+			LOGGER.info("Waiting for the trials that are being analyzed to finish.");
+			run.requestStop();
+		}
+
+		runExecutor.shutdown();
+
+		try {
+			if(! runExecutor.awaitTermination(shutdownTimeoutMinutes, TimeUnit.MINUTES)) {
+				LOGGER.warn("The current run did not finish within " + shutdownTimeoutMinutes + " minute(s). Stopping it.");
+				runExecutor.shutdownNow();
+			}
+		} catch(InterruptedException interruptedException) {
+			runExecutor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		resources.close();
+		stopped.countDown();
+
+		LOGGER.info("Daemon stopped.");
+	}
+
+	/**
+	 * Accepts on-demand runs. The body of a POST is either empty, for the
+	 * default run, or the JSON object accepted by main(). The run is queued
+	 * and 202 is returned right away.
+	 */
+	private class RunHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				if(! "POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, "Runs must be requested with POST.");
+					return;
+				}
+
+				String parameters = readBody(exchange).trim();
+
+				final MultiCampaignRun run;
+				if(parameters.length() == 0) {
+					run = new MultiCampaignRun();
+				} else {
+					run = TrialistAnalysisProcessor.fromParameters(parameters);
+				}
+
+				if(run == null) {
+					respond(exchange, 400, "The parameters are not valid. See the log for details.");
+					return;
+				}
+
+				if(stopping) {
+					respond(exchange, 503, "The daemon is shutting down.");
+					return;
+				}
+
+				try {
+					runExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							process(run);
+						}
+					});
+				} catch(RejectedExecutionException rejectedExecutionException) {
+					respond(exchange, 503, "The daemon is shutting down.");
+					return;
+				}
+
+				LOGGER.info("Queued an on-demand run with the parameters: " + parameters);
+				respond(exchange, 202, "The run has been queued.");
+
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private String readBody(final HttpExchange exchange) throws IOException {
+			StringBuilder body = new StringBuilder();
+			Reader reader = new InputStreamReader(exchange.getRequestBody(), UTF_8);
+			char[] buffer = new char[4096];
+			int amountRead = 0;
+
+			while((amountRead = reader.read(buffer)) != -1) {
+				body.append(buffer, 0, amountRead);
+			}
+
+			return body.toString();
+		}
+
+		private void respond(final HttpExchange exchange, final int status, final String message) throws IOException {
+			byte[] bytes = (message + "\n").getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+
+			OutputStream outputStream = exchange.getResponseBody();
+			outputStream.write(bytes);
+			outputStream.close();
+		}
+	}
+}